@@ -0,0 +1,136 @@
+package net.ypresto.androidtranscoder;
+
+import junit.framework.TestCase;
+
+import net.ypresto.androidtranscoder.engine.MediaTranscoderEngine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class TranscodeSchedulerTest extends TestCase {
+    private static final long TIMEOUT_MS = 5000;
+    private TranscodeScheduler mScheduler;
+    private final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    protected void setUp() throws Exception {
+        mScheduler = new TranscodeScheduler(1, 60000, Executors.defaultThreadFactory());
+    }
+
+    public void testRunsHigherPriorityFirst() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Void> first = mScheduler.submit(TranscodeOptions.PRIORITY_DEFAULT, new BlockingTask("first", release));
+        while (mEvents.isEmpty()) Thread.sleep(1);
+        Future<Void> background = mScheduler.submit(TranscodeOptions.PRIORITY_BACKGROUND, new BlockingTask("background", null));
+        Future<Void> interactive = mScheduler.submit(TranscodeOptions.PRIORITY_USER_INITIATED, new BlockingTask("interactive", null));
+        release.countDown();
+        first.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        interactive.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        background.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(listOf("first", "interactive", "background"), mEvents);
+    }
+
+    public void testPreemptsLowerPriorityJob() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch paused = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        Future<Void> background = mScheduler.submit(TranscodeOptions.PRIORITY_BACKGROUND, new TranscodeScheduler.Task() {
+            @Override
+            public Void call(MediaTranscoderEngine.PauseController pauseController) throws Exception {
+                started.countDown();
+                while (!finish.await(1, TimeUnit.MILLISECONDS)) {
+                    if (pauseController.shouldPause()) {
+                        mEvents.add("paused");
+                        paused.countDown();
+                        pauseController.awaitResume();
+                        mEvents.add("resumed");
+                    }
+                }
+                return null;
+            }
+        });
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // Interactive job starts at once, while background one pauses at its next chance.
+        mScheduler.submit(TranscodeOptions.PRIORITY_USER_INITIATED, new TranscodeScheduler.Task() {
+            @Override
+            public Void call(MediaTranscoderEngine.PauseController pauseController) throws Exception {
+                assertTrue(paused.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+                mEvents.add("interactive");
+                return null;
+            }
+        }).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        finish.countDown();
+        background.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(listOf("paused", "interactive", "resumed"), mEvents);
+    }
+
+    public void testHoldsBackgroundJobsUnderPressure() throws Exception {
+        FakeDevicePressure devicePressure = new FakeDevicePressure();
+        devicePressure.mLevel = DevicePressure.LEVEL_SEVERE;
+        mScheduler.setMaxConcurrentJobs(2);
+        mScheduler.setDevicePressure(devicePressure);
+        Future<Void> background = mScheduler.submit(TranscodeOptions.PRIORITY_BACKGROUND, new BlockingTask("background", null));
+        Thread.sleep(100);
+        assertFalse(background.isDone());
+        devicePressure.mLevel = DevicePressure.LEVEL_NONE;
+        mScheduler.checkDevicePressure();
+        background.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(listOf("background"), mEvents);
+    }
+
+    public void testCancelQueuedJob() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Void> first = mScheduler.submit(TranscodeOptions.PRIORITY_DEFAULT, new BlockingTask("first", release));
+        Future<Void> canceled = mScheduler.submit(TranscodeOptions.PRIORITY_DEFAULT, new BlockingTask("canceled", null));
+        Future<Void> last = mScheduler.submit(TranscodeOptions.PRIORITY_DEFAULT, new BlockingTask("last", null));
+        canceled.cancel(true);
+        release.countDown();
+        first.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        last.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(listOf("first", "last"), mEvents);
+    }
+
+    public void testCapacity() {
+        assertEquals(4, TranscodeScheduler.getCapacity(4, DevicePressure.LEVEL_NONE));
+        assertEquals(2, TranscodeScheduler.getCapacity(4, DevicePressure.LEVEL_MODERATE));
+        assertEquals(1, TranscodeScheduler.getCapacity(1, DevicePressure.LEVEL_MODERATE));
+        assertEquals(1, TranscodeScheduler.getCapacity(4, DevicePressure.LEVEL_CRITICAL));
+    }
+
+    private static List<String> listOf(String... values) {
+        List<String> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        return list;
+    }
+
+    private class BlockingTask implements TranscodeScheduler.Task {
+        private final String mName;
+        private final CountDownLatch mRelease;
+
+        BlockingTask(String name, CountDownLatch release) {
+            mName = name;
+            mRelease = release;
+        }
+
+        @Override
+        public Void call(MediaTranscoderEngine.PauseController pauseController) throws Exception {
+            mEvents.add(mName);
+            if (mRelease != null) assertTrue(mRelease.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            return null;
+        }
+    }
+
+    private static class FakeDevicePressure implements DevicePressure {
+        private volatile int mLevel;
+
+        @Override
+        public int getLevel() {
+            return mLevel;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+public class AudioBufferRingTest extends TestCase {
+    private static final int CODEC_BUFFER_COUNT = 4;
+
+    public void testKeepsOrderAcrossWrap() {
+        AudioBufferRing ring = new AudioBufferRing(2);
+        ring.add(100, samples(1));
+        ring.add(200, samples(2));
+        assertTrue(ring.isFull());
+        try {
+            ring.add(300, samples(3));
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(100, ring.peek().presentationTimeUs);
+        ring.remove();
+        ring.add(300, null);
+        assertEquals(2, ring.peek().data.get(0));
+        ring.remove();
+        assertTrue(ring.peek().isEndOfStream);
+        ring.remove();
+        assertTrue(ring.isEmpty());
+        assertNull(ring.peek());
+    }
+
+    public void testRewindRestoresWindow() {
+        ByteBuffer source = samples(1, 2, 3, 4, 5, 6, 7, 8);
+        source.limit(12).position(4);
+        AudioBufferRing ring = new AudioBufferRing(1);
+        ring.add(0, source);
+        assertEquals(4, source.position());
+        AudioBufferRing.AudioBuffer buffer = ring.peek();
+        buffer.data.get();
+        buffer.data.clear();
+        buffer.rewind();
+        assertEquals(4, buffer.data.remaining());
+        assertEquals(3, buffer.data.get());
+    }
+
+    public void testSteadyStateDoesNotAllocate() {
+        AudioBufferRing ring = new AudioBufferRing(CODEC_BUFFER_COUNT);
+        AudioBufferRing.AudioBuffer[] firstSlots = new AudioBufferRing.AudioBuffer[CODEC_BUFFER_COUNT];
+        ShortBuffer[] firstData = new ShortBuffer[CODEC_BUFFER_COUNT];
+        for (int i = 0; i < CODEC_BUFFER_COUNT; i++) {
+            ring.add(i, codecBuffer(32));
+            firstSlots[i] = ring.peek();
+            firstData[i] = ring.peek().data;
+            ring.remove();
+        }
+        // Like MediaCodec on API 21+, every buffer comes in new ByteBuffer, which should not cost new objects.
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < CODEC_BUFFER_COUNT; i++) {
+                ByteBuffer source = codecBuffer(32 - round % 16 * 2);
+                source.putShort(0, (short) round);
+                ring.add(round, source);
+                AudioBufferRing.AudioBuffer slot = ring.peek();
+                assertSame(firstSlots[i], slot);
+                assertSame(firstData[i], slot.data);
+                assertEquals(source.remaining() / 2, slot.data.remaining());
+                assertEquals(round, slot.data.get(0));
+                ring.remove();
+            }
+        }
+    }
+
+    public void testGrowsStorageForLargerBuffer() {
+        AudioBufferRing ring = new AudioBufferRing(1);
+        ring.add(0, codecBuffer(8));
+        ring.remove();
+        ring.add(0, codecBuffer(64));
+        assertEquals(32, ring.peek().data.remaining());
+    }
+
+    private static ByteBuffer codecBuffer(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    private static ByteBuffer samples(int... values) {
+        ByteBuffer buffer = codecBuffer(values.length * 2);
+        for (int value : values) buffer.putShort((short) value);
+        buffer.flip();
+        return buffer;
+    }
+}
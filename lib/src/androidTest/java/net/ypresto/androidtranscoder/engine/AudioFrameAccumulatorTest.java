@@ -0,0 +1,41 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.nio.ShortBuffer;
+
+public class AudioFrameAccumulatorTest extends TestCase {
+    private static final int FRAME_SAMPLES = 1024 * 2;
+
+    public void testReadsWholeFramesFromOddSizedWrites() {
+        AudioFrameAccumulator accumulator = new AudioFrameAccumulator(2, 16);
+        int written = 0;
+        int read = 0;
+        ShortBuffer frame = ShortBuffer.allocate(FRAME_SAMPLES);
+        int frameCount = 0;
+        // Typical decoder buffer sizes which do not divide codec frame.
+        int[] writeSizes = {1152 * 2, 960 * 2, 4096 * 2, 2};
+        for (int i = 0; i < 40; i++) {
+            short[] samples = new short[writeSizes[i % writeSizes.length]];
+            for (int j = 0; j < samples.length; j++) samples[j] = (short) written++;
+            accumulator.write(ShortBuffer.wrap(samples));
+            while (accumulator.getAvailableSamples() >= FRAME_SAMPLES) {
+                frame.clear();
+                assertEquals(FRAME_SAMPLES, accumulator.read(frame));
+                frame.flip();
+                while (frame.hasRemaining()) assertEquals((short) read++, frame.get());
+                frameCount++;
+            }
+        }
+        assertTrue(accumulator.getAvailableSamples() < FRAME_SAMPLES);
+        assertEquals(written, frameCount * FRAME_SAMPLES + accumulator.getAvailableSamples());
+    }
+
+    public void testPartialLastFrame() {
+        AudioFrameAccumulator accumulator = new AudioFrameAccumulator(2, 4);
+        accumulator.write(ShortBuffer.wrap(new short[]{1, 2, 3, 4, 5, 6}));
+        ShortBuffer frame = ShortBuffer.allocate(FRAME_SAMPLES);
+        assertEquals(6, accumulator.read(frame));
+        assertEquals(0, accumulator.getAvailableSamples());
+    }
+}
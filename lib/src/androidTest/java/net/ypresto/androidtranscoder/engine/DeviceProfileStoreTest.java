@@ -0,0 +1,63 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class DeviceProfileStoreTest extends TestCase {
+    private static final String DEVICE = "Acme Phone / Android 7.0 (API 24)";
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("device-profile", ".properties");
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    public void testLoadsSavedProfile() throws IOException {
+        DeviceProfileStore store = new DeviceProfileStore(mFile);
+        assertNull(store.load(DEVICE));
+        store.save(new DeviceProfile(DEVICE, "video/avc", "OMX.acme.avc.encoder", 240, 2, 95.5));
+        DeviceProfile profile = new DeviceProfileStore(mFile).load(DEVICE);
+        assertEquals("video/avc", profile.getVideoMime());
+        assertEquals("OMX.acme.avc.encoder", profile.getVideoEncoderName());
+        assertEquals(240, profile.getOperatingRate());
+        assertEquals(2, profile.getMaxConcurrentJobs());
+        assertEquals(95.5, profile.getEncodeFramesPerSecond());
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+
+    public void testIgnoresProfileOfOtherDeviceOrOsVersion() throws IOException {
+        DeviceProfileStore store = new DeviceProfileStore(mFile);
+        store.save(new DeviceProfile(DEVICE, "video/avc", null, 0, 1, 0));
+        assertNotNull(store.load(DEVICE));
+        assertNull(store.load("Acme Phone / Android 8.0 (API 26)"));
+    }
+
+    public void testIgnoresBrokenFile() throws IOException {
+        OutputStream outputStream = new FileOutputStream(mFile);
+        try {
+            outputStream.write("version=1\ndevice=x\nmaxConcurrentJobs=".getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+        assertNull(new DeviceProfileStore(mFile).load("x"));
+    }
+
+    public void testRaisesConcurrencyOnlyWhileThroughputGrows() {
+        assertEquals(1, DeviceBenchmark.chooseConcurrency(new double[]{100, 105, 110, 0}));
+        assertEquals(2, DeviceBenchmark.chooseConcurrency(new double[]{100, 180, 190, 0}));
+        assertEquals(3, DeviceBenchmark.chooseConcurrency(new double[]{100, 180, 250, 0}));
+        assertEquals(1, DeviceBenchmark.chooseConcurrency(new double[]{100}));
+    }
+}
@@ -0,0 +1,50 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+public class FrameDropperTest extends TestCase {
+
+    public void testKeepsEveryOtherFrameFrom60To30() {
+        FrameDropper dropper = new FrameDropper(30);
+        for (int i = 0; i < 120; i++) {
+            assertEquals("frame " + i, i % 2 == 0, dropper.shouldRender(frameTimeUs(i, 60)));
+        }
+    }
+
+    public void testDropsOneOfFiveFramesFrom30To24() {
+        FrameDropper dropper = new FrameDropper(24);
+        boolean[] pattern = {true, false, true, true, true};
+        int renderedCount = 0;
+        for (int i = 0; i < 90; i++) {
+            boolean rendered = dropper.shouldRender(frameTimeUs(i, 30));
+            assertEquals("frame " + i, pattern[i % pattern.length], rendered);
+            if (rendered) renderedCount++;
+        }
+        assertEquals(72, renderedCount);
+    }
+
+    public void testKeepsJitteredFramesWithinTolerance() {
+        FrameDropper dropper = new FrameDropper(30);
+        // Up to 3ms early or late, within 10% of 33ms interval.
+        long[] jittersUs = {0, 3000, -3000, 2000, -1000, 3000, -3000};
+        for (int i = 0; i < 90; i++) {
+            long presentationTimeUs = frameTimeUs(i, 30) + (i == 0 ? 0 : jittersUs[i % jittersUs.length]);
+            assertTrue("frame " + i, dropper.shouldRender(presentationTimeUs));
+        }
+    }
+
+    public void testKeepsAllFramesWhenTargetIsNotBelowInputRate() {
+        FrameDropper sameRate = new FrameDropper(30);
+        FrameDropper higherRate = new FrameDropper(60);
+        FrameDropper ntscInput = new FrameDropper(30);
+        for (int i = 0; i < 300; i++) {
+            assertTrue("frame " + i, sameRate.shouldRender(frameTimeUs(i, 30)));
+            assertTrue("frame " + i, higherRate.shouldRender(frameTimeUs(i, 30)));
+            assertTrue("frame " + i, ntscInput.shouldRender(frameTimeUs(i, 29.97)));
+        }
+    }
+
+    private static long frameTimeUs(int frame, double frameRate) {
+        return (long) (frame * 1000000 / frameRate);
+    }
+}
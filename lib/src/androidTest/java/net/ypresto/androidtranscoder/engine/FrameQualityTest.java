@@ -0,0 +1,81 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class FrameQualityTest extends TestCase {
+    // Size of samples QualityMonitor reads back from 16:9 video, e.g. 1080p.
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 90;
+    // Far below sample interval of 500ms, so that scoring does not slow down transcoding.
+    private static final long SSIM_BUDGET_NS = 5 * 1000 * 1000;
+    private static final int BENCHMARK_ITERATIONS = 200;
+
+    public void testIdentical() {
+        byte[] plane = gradient();
+        assertEquals(1.0, FrameQuality.ssim(plane, plane, WIDTH, HEIGHT), 1e-9);
+        assertEquals(FrameQuality.MAX_PSNR, FrameQuality.psnr(plane, plane, plane.length));
+    }
+
+    public void testNoiseLowersScores() {
+        byte[] reference = gradient();
+        byte[] light = addNoise(reference, 2);
+        byte[] heavy = addNoise(reference, 20);
+        double lightSsim = FrameQuality.ssim(reference, light, WIDTH, HEIGHT);
+        double heavySsim = FrameQuality.ssim(reference, heavy, WIDTH, HEIGHT);
+        assertTrue(lightSsim < 1.0);
+        assertTrue(heavySsim < lightSsim);
+        assertTrue(FrameQuality.psnr(reference, heavy, reference.length) < FrameQuality.psnr(reference, light, reference.length));
+    }
+
+    public void testSsimFitsSampleBudget() {
+        byte[] reference = gradient();
+        byte[] distorted = addNoise(reference, 5);
+        double sum = 0;
+        // Warm up JIT.
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) sum += FrameQuality.ssim(reference, distorted, WIDTH, HEIGHT);
+        long startNs = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) sum += FrameQuality.ssim(reference, distorted, WIDTH, HEIGHT);
+        long averageNs = (System.nanoTime() - startNs) / BENCHMARK_ITERATIONS;
+        assertTrue(sum > 0);
+        assertTrue("SSIM took " + averageNs + "ns per frame", averageNs < SSIM_BUDGET_NS);
+    }
+
+    public void testPsnrOfUniformError() {
+        byte[] reference = new byte[WIDTH * HEIGHT];
+        byte[] distorted = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < distorted.length; i++) distorted[i] = 10;
+        // MSE is 100.
+        assertEquals(10 * Math.log10(255.0 * 255.0 / 100), FrameQuality.psnr(reference, distorted, reference.length), 1e-9);
+    }
+
+    public void testRgbaToLuma() {
+        ByteBuffer rgba = ByteBuffer.wrap(new byte[]{(byte) 255, (byte) 255, (byte) 255, (byte) 255, 0, 0, 0, (byte) 255});
+        byte[] luma = new byte[2];
+        FrameQuality.rgbaToLuma(rgba, luma, 2);
+        assertEquals(255, luma[0] & 0xff);
+        assertEquals(0, luma[1] & 0xff);
+    }
+
+    private static byte[] gradient() {
+        byte[] plane = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                plane[y * WIDTH + x] = (byte) ((x + y * 2) & 0xff);
+            }
+        }
+        return plane;
+    }
+
+    private static byte[] addNoise(byte[] plane, int amplitude) {
+        Random random = new Random(0);
+        byte[] noisy = new byte[plane.length];
+        for (int i = 0; i < plane.length; i++) {
+            int value = (plane[i] & 0xff) + random.nextInt(amplitude * 2 + 1) - amplitude;
+            noisy[i] = (byte) Math.max(0, Math.min(255, value));
+        }
+        return noisy;
+    }
+}
@@ -0,0 +1,72 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class GlRenderThreadTest extends TestCase {
+    public void testRunsTasksOnSingleThread() throws Exception {
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                threads.add(Thread.currentThread());
+            }
+        };
+        Thread[] workers = new Thread[3];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    GlRenderThread.Job job = GlRenderThread.getInstance().register();
+                    for (int j = 0; j < 10; j++) job.run(task);
+                    job.unregister();
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) worker.join();
+        assertEquals(30, threads.size());
+        for (Thread thread : threads) {
+            assertSame(threads.get(0), thread);
+            assertTrue(Thread.currentThread() != thread);
+        }
+    }
+
+    public void testRethrowsTaskException() {
+        GlRenderThread.Job job = GlRenderThread.getInstance().register();
+        try {
+            job.run(new Runnable() {
+                @Override
+                public void run() {
+                    throw new IllegalArgumentException("test");
+                }
+            });
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("test", e.getMessage());
+        } finally {
+            job.unregister();
+        }
+    }
+
+    public void testMeasuresTasks() {
+        GlRenderThread.Job job = GlRenderThread.getInstance().register();
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                long endNs = System.nanoTime() + 1000000;
+                while (System.nanoTime() < endNs) ;
+            }
+        };
+        for (int i = 0; i < 5; i++) job.run(task);
+        job.unregister();
+        // Includes the task which unregisters the job.
+        assertEquals(6, job.getTaskCount());
+        assertTrue(job.getMaxWaitUs() >= job.getAverageWaitUs());
+        double share = job.getShare();
+        assertTrue("share: " + share, share > 0 && share <= 1.0);
+    }
+}
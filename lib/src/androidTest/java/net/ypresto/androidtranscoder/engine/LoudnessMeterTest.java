@@ -0,0 +1,70 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.nio.ShortBuffer;
+
+public class LoudnessMeterTest extends TestCase {
+    private static final int SAMPLE_RATE = 48000;
+
+    public void testStereoSine() {
+        // EBU Tech 3341 case 1: 1kHz stereo sine at -23dBFS measures -23 LUFS.
+        LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, 2);
+        short[] samples = stereoSine(1000, -23, SAMPLE_RATE * 20);
+        meter.write(samples, 0, samples.length / 2);
+        assertEquals(-23.0, meter.getIntegratedLoudness(), 0.1);
+        assertEquals(-23.0, meter.getShortTermLoudness(), 0.1);
+    }
+
+    public void testGating() {
+        // Silence is gated out, and quieter part below relative gate is ignored.
+        LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, 2);
+        meter.write(new short[SAMPLE_RATE * 20], 0, SAMPLE_RATE * 10);
+        short[] quiet = stereoSine(1000, -46, SAMPLE_RATE * 10);
+        meter.write(quiet, 0, quiet.length / 2);
+        short[] loud = stereoSine(1000, -23, SAMPLE_RATE * 10);
+        meter.write(loud, 0, loud.length / 2);
+        assertEquals(-23.0, meter.getIntegratedLoudness(), 0.1);
+    }
+
+    public void testNormalizer() {
+        LoudnessNormalizer normalizer = new LoudnessNormalizer(-16, SAMPLE_RATE, 2);
+        short[] samples = stereoSine(1000, -30, SAMPLE_RATE * 30);
+        ShortBuffer output = ShortBuffer.allocate(samples.length);
+        for (int offset = 0; offset < samples.length; offset += 2048) {
+            normalizer.write(ShortBuffer.wrap(samples, offset, Math.min(2048, samples.length - offset)));
+            normalizer.read(output);
+        }
+        normalizer.flush();
+        normalizer.read(output);
+        assertEquals(samples.length, output.position());
+        assertEquals(-30.0, normalizer.getInputLoudness(), 0.1);
+        assertEquals(-16.0, normalizer.getOutputLoudness(), 1.0);
+    }
+
+    public void testLimiter() {
+        // Raising -20dBFS sine with peaks of 0dBFS to -6 LUFS needs limiting.
+        LoudnessNormalizer normalizer = new LoudnessNormalizer(-6, SAMPLE_RATE, 2);
+        short[] samples = stereoSine(1000, -20, SAMPLE_RATE * 10);
+        for (int i = SAMPLE_RATE * 5; i < SAMPLE_RATE * 5 + 200; i++) samples[i] = Short.MAX_VALUE;
+        normalizer.write(ShortBuffer.wrap(samples));
+        normalizer.flush();
+        ShortBuffer output = ShortBuffer.allocate(samples.length);
+        normalizer.read(output);
+        int ceiling = (int) Math.ceil(Math.pow(10.0, -1.0 / 20.0) * Short.MAX_VALUE);
+        for (int i = 0; i < output.position(); i++) {
+            assertTrue(Math.abs(output.get(i)) <= ceiling);
+        }
+    }
+
+    private static short[] stereoSine(double frequency, double peakDbfs, int frameCount) {
+        double amplitude = Math.pow(10.0, peakDbfs / 20.0) * 32768;
+        short[] samples = new short[frameCount * 2];
+        for (int i = 0; i < frameCount; i++) {
+            short sample = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+            samples[i * 2] = sample;
+            samples[i * 2 + 1] = sample;
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,100 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import junit.framework.TestCase;
+
+import net.ypresto.androidtranscoder.format.MediaFormatExtraConstants;
+import net.ypresto.androidtranscoder.format.MediaFormatStrategy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+public class MediaTranscoderEngineTest extends TestCase {
+    // AMR-NB 12.2kbps frame of 20ms: header with frame type 7 and quality bit, then 244 bits of payload.
+    private static final int AMR_FRAME_HEADER = 0x3c;
+    private static final int AMR_FRAME_PAYLOAD_SIZE = 31;
+    private static final int AMR_FRAME_COUNT = 150;
+    private static final MediaFormatStrategy PASS_THROUGH_STRATEGY = new MediaFormatStrategy() {
+        @Override
+        public MediaFormat createVideoOutputFormat(MediaFormat inputFormat) {
+            return null;
+        }
+
+        @Override
+        public MediaFormat createAudioOutputFormat(MediaFormat inputFormat) {
+            return null;
+        }
+    };
+
+    private File mInput;
+    private File mOutput;
+
+    @Override
+    protected void setUp() throws Exception {
+        // Input whose codec has no encoder on Android and cannot be in MP4 as is.
+        mInput = File.createTempFile("transcode-input", ".amr");
+        mOutput = File.createTempFile("transcode-output", ".mp4");
+        Random random = new Random(0);
+        byte[] payload = new byte[AMR_FRAME_PAYLOAD_SIZE];
+        OutputStream outputStream = new FileOutputStream(mInput);
+        try {
+            outputStream.write("#!AMR\n".getBytes("US-ASCII"));
+            for (int i = 0; i < AMR_FRAME_COUNT; i++) {
+                random.nextBytes(payload);
+                outputStream.write(AMR_FRAME_HEADER);
+                outputStream.write(payload);
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        //noinspection ResultOfMethodCallIgnored
+        mInput.delete();
+        //noinspection ResultOfMethodCallIgnored
+        mOutput.delete();
+    }
+
+    public void testReencodesNonAacAudioToAacForSpeed() throws Exception {
+        MediaTranscoderEngine engine = new MediaTranscoderEngine();
+        engine.setSpeed(2.0);
+        assertOutputsAacAudio(transcode(engine));
+    }
+
+    public void testReencodesNonAacAudioToAacForLoudness() throws Exception {
+        MediaTranscoderEngine engine = new MediaTranscoderEngine();
+        engine.setTargetLoudness(-16);
+        assertOutputsAacAudio(transcode(engine));
+    }
+
+    private TranscodeResult transcode(MediaTranscoderEngine engine) throws IOException, InterruptedException {
+        FileInputStream inputStream = new FileInputStream(mInput);
+        try {
+            engine.setDataSource(inputStream.getFD());
+            return engine.transcodeVideo(mOutput.getPath(), PASS_THROUGH_STRATEGY);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void assertOutputsAacAudio(TranscodeResult result) throws IOException {
+        assertTrue(result.getOutputs().get(0).getAudioSampleCount() > 0);
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(mOutput.getPath());
+            assertEquals(1, extractor.getTrackCount());
+            assertEquals(MediaFormatExtraConstants.MIMETYPE_AUDIO_AAC,
+                    extractor.getTrackFormat(0).getString(MediaFormat.KEY_MIME));
+        } finally {
+            extractor.release();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class MuxerWriterTest extends TestCase {
+    public void testWritesSamplesInOrderAcrossWrap() {
+        RecordingWriter writer = new RecordingWriter(100, 0);
+        try {
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            for (int i = 0; i < 50; i++) {
+                // Odd sizes and offsets so that samples wrap at various positions.
+                int size = 1 + i % 37;
+                ByteBuffer sample = ByteBuffer.allocate(size + 3);
+                for (int j = 0; j < size; j++) sample.put(3 + j, (byte) (i + j));
+                bufferInfo.set(3, size, i * 1000L, 0);
+                writer.writeSampleData(i % 2, sample, bufferInfo);
+            }
+            writer.flush();
+            assertEquals(50, writer.mSamples.size());
+            for (int i = 0; i < 50; i++) {
+                byte[] sample = writer.mSamples.get(i);
+                assertEquals(1 + i % 37, sample.length);
+                for (int j = 0; j < sample.length; j++) assertEquals((byte) (i + j), sample[j]);
+                assertEquals(i * 1000L, (long) writer.mPresentationTimesUs.get(i));
+                assertEquals(i % 2, (int) writer.mTracks.get(i));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testReportsBackpressureOfSlowWriter() {
+        RecordingWriter writer = new RecordingWriter(64, 5);
+        try {
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            for (int i = 0; i < 10; i++) {
+                bufferInfo.set(0, 32, i, 0);
+                writer.writeSampleData(0, ByteBuffer.allocate(32), bufferInfo);
+            }
+            writer.flush();
+            assertEquals(10, writer.mSamples.size());
+            assertTrue(writer.getBlockedCount() > 0);
+            assertTrue(writer.getBlockedUs() > 0);
+            assertTrue(writer.getPeakQueuedBytes() <= 64);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testWritesLargeSampleAfterQueuedOnes() {
+        RecordingWriter writer = new RecordingWriter(16, 0);
+        try {
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            bufferInfo.set(0, 8, 0, 0);
+            writer.writeSampleData(0, ByteBuffer.allocate(8), bufferInfo);
+            bufferInfo.set(0, 100, 1, 0);
+            writer.writeSampleData(0, ByteBuffer.allocate(100), bufferInfo);
+            writer.flush();
+            assertEquals(8, writer.mSamples.get(0).length);
+            assertEquals(100, writer.mSamples.get(1).length);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testRethrowsWriterError() {
+        RecordingWriter writer = new RecordingWriter(16, 0);
+        writer.mError = new IllegalStateException("storage removed");
+        try {
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            bufferInfo.set(0, 8, 0, 0);
+            writer.writeSampleData(0, ByteBuffer.allocate(8), bufferInfo);
+            writer.flush();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("storage removed", e.getMessage());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static class RecordingWriter extends MuxerWriter {
+        private final long mDelayMs;
+        private final List<byte[]> mSamples = Collections.synchronizedList(new ArrayList<byte[]>());
+        private final List<Long> mPresentationTimesUs = Collections.synchronizedList(new ArrayList<Long>());
+        private final List<Integer> mTracks = Collections.synchronizedList(new ArrayList<Integer>());
+        private volatile RuntimeException mError;
+
+        private RecordingWriter(int capacity, long delayMs) {
+            super(null, capacity);
+            mDelayMs = delayMs;
+        }
+
+        @Override
+        void writeSample(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+            if (mError != null) throw mError;
+            if (mDelayMs > 0) {
+                try {
+                    Thread.sleep(mDelayMs);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            ByteBuffer sample = byteBuf.duplicate();
+            sample.limit(bufferInfo.offset + bufferInfo.size);
+            sample.position(bufferInfo.offset);
+            byte[] bytes = new byte[bufferInfo.size];
+            sample.get(bytes);
+            mSamples.add(bytes);
+            mPresentationTimesUs.add(bufferInfo.presentationTimeUs);
+            mTracks.add(trackIndex);
+        }
+    }
+}
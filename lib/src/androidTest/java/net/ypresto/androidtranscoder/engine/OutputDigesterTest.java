@@ -0,0 +1,57 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class OutputDigesterTest extends TestCase {
+    private File mOutput;
+
+    @Override
+    protected void setUp() throws Exception {
+        mOutput = File.createTempFile("transcode-output", ".mp4");
+        OutputStream outputStream = new FileOutputStream(mOutput);
+        try {
+            outputStream.write("abc".getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        //noinspection ResultOfMethodCallIgnored
+        mOutput.delete();
+    }
+
+    public void testDigestsWithAllAlgorithms() throws IOException {
+        TranscodeResult.Output output = new OutputDigester(Arrays.asList("SHA-256", "MD5"))
+                .digest(mOutput.getPath(), 30, 47);
+        assertEquals(3, output.getSize());
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", output.getDigest("SHA-256"));
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", output.getDigest("MD5"));
+        assertNull(output.getDigest("SHA-1"));
+        assertEquals(30, output.getVideoSampleCount());
+        assertEquals(47, output.getAudioSampleCount());
+    }
+
+    public void testTakesOnlySizeWithoutAlgorithms() throws IOException {
+        TranscodeResult.Output output = new OutputDigester(Collections.<String>emptyList()).digest(mOutput.getPath(), -1, -1);
+        assertEquals(3, output.getSize());
+        assertTrue(output.getDigests().isEmpty());
+    }
+
+    public void testRejectsUnknownAlgorithm() {
+        try {
+            new OutputDigester(Collections.singletonList("NO-SUCH-DIGEST"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PcmConverterTest extends TestCase {
+    public void testChunksAndDownmix() {
+        RecordingSink sink = new RecordingSink();
+        PcmConverter converter = new PcmConverter(sink, 0, 1, 4);
+        converter.setInputFormat(48000, 2);
+        converter.write(ShortBuffer.wrap(new short[]{100, 300, -100, -300, 0, 1000, 2, 4, 6, 8, 10, 12}), 1000);
+        converter.finish();
+        assertEquals(48000, sink.mSampleRate);
+        assertEquals(1, sink.mChannelCount);
+        assertEquals(2, sink.mChunks.size());
+        assertArrayEquals(new short[]{200, -200, 500, 3}, sink.mChunks.get(0));
+        assertArrayEquals(new short[]{7, 11}, sink.mChunks.get(1));
+        assertEquals(1000, (long) sink.mPresentationTimesUs.get(0));
+        // 4 frames at 48kHz.
+        assertEquals(1000 + 83, (long) sink.mPresentationTimesUs.get(1));
+        assertTrue(sink.mIsEnded);
+    }
+
+    public void testResampleAcrossBuffers() {
+        RecordingSink sink = new RecordingSink();
+        PcmConverter converter = new PcmConverter(sink, 16000, 0, 1000);
+        converter.setInputFormat(48000, 1);
+        // Ramp of 0, 1, 2, ... split into odd-sized buffers.
+        int value = 0;
+        for (int size : new int[]{7, 1, 13, 300, 2}) {
+            short[] samples = new short[size];
+            for (int i = 0; i < size; i++) samples[i] = (short) value++;
+            converter.write(ShortBuffer.wrap(samples), 0);
+        }
+        converter.finish();
+        short[] output = sink.mChunks.get(0);
+        assertEquals((value - 1) / 3 + 1, output.length);
+        for (int i = 0; i < output.length; i++) {
+            assertEquals(i * 3, output[i]);
+        }
+    }
+
+    public void testUpsampleInterpolates() {
+        RecordingSink sink = new RecordingSink();
+        PcmConverter converter = new PcmConverter(sink, 16000, 2, 100);
+        converter.setInputFormat(8000, 1);
+        converter.write(ShortBuffer.wrap(new short[]{0, 100}), 0);
+        converter.write(ShortBuffer.wrap(new short[]{200}), 0);
+        converter.finish();
+        assertArrayEquals(new short[]{0, 0, 50, 50, 100, 100, 150, 150}, sink.mChunks.get(0));
+    }
+
+    private static void assertArrayEquals(short[] expected, short[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("index " + i, expected[i], actual[i]);
+        }
+    }
+
+    private static class RecordingSink implements PcmAudioSink {
+        private final List<short[]> mChunks = new ArrayList<>();
+        private final List<Long> mPresentationTimesUs = new ArrayList<>();
+        private int mSampleRate;
+        private int mChannelCount;
+        private boolean mIsEnded;
+
+        @Override
+        public void onOutputFormat(int sampleRate, int channelCount) {
+            mSampleRate = sampleRate;
+            mChannelCount = channelCount;
+        }
+
+        @Override
+        public void onPcmChunk(short[] samples, int frameCount, long presentationTimeUs) {
+            short[] chunk = new short[frameCount * mChannelCount];
+            System.arraycopy(samples, 0, chunk, 0, chunk.length);
+            mChunks.add(chunk);
+            mPresentationTimesUs.add(presentationTimeUs);
+        }
+
+        @Override
+        public void onEndOfStream() {
+            mIsEnded = true;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+public class QualityControllerTest extends TestCase {
+    public void testSampling() {
+        QualityController controller = new QualityController(0.95, 2000000);
+        assertTrue(controller.shouldSample(0));
+        assertFalse(controller.shouldSample(100000));
+        assertTrue(controller.shouldSample(500000));
+    }
+
+    public void testConvergesToTarget() {
+        // Content whose distortion is inversely proportional to bitrate: SSIM 0.95 at 4Mbps.
+        QualityController controller = new QualityController(0.95, 1000000);
+        for (int window = 0; window < 10; window++) {
+            for (int i = 0; i < 4; i++) {
+                controller.addScore(1.0 - 0.05 * 4000000 / controller.getVideoBitrate(), 40);
+            }
+            controller.update();
+        }
+        assertEquals(4000000, controller.getVideoBitrate(), 4000000 * 0.05);
+    }
+
+    public void testLowersBitrateForStaticContent() {
+        QualityController controller = new QualityController(0.95, 8000000);
+        for (int i = 0; i < 4; i++) controller.addScore(0.995, 50);
+        assertTrue(controller.update());
+        assertEquals(4000000, controller.getVideoBitrate());
+        assertEquals(0.995, controller.getAverageSsim(), 1e-9);
+    }
+}
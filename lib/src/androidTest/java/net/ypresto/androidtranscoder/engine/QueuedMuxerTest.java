@@ -0,0 +1,136 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class QueuedMuxerTest extends TestCase {
+    private static final long MAX_LEAD_US = 100 * 1000;
+    private static final long VIDEO_INTERVAL_US = 33333;
+    private static final long AUDIO_INTERVAL_US = 23220;
+
+    public void testKeepsTracksFromThreadsInterleaved() throws InterruptedException {
+        RecordingWriter writer = new RecordingWriter();
+        QueuedMuxer muxer = createStartedMuxer(writer);
+        muxer.setMaxInterleaveLeadUs(MAX_LEAD_US);
+        int videoCount = 60;
+        int audioCount = 86;
+        // Audio is slower, so video should wait for it.
+        SampleWriterThread videoThread = new SampleWriterThread(muxer, QueuedMuxer.SampleType.VIDEO, VIDEO_INTERVAL_US, videoCount, 0);
+        SampleWriterThread audioThread = new SampleWriterThread(muxer, QueuedMuxer.SampleType.AUDIO, AUDIO_INTERVAL_US, audioCount, 2);
+        videoThread.start();
+        audioThread.start();
+        videoThread.join();
+        audioThread.join();
+
+        long videoLastUs = -1;
+        long audioLastUs = -1;
+        int writtenVideoCount = 0;
+        int writtenAudioCount = 0;
+        for (long[] sample : writer.mSamples) {
+            boolean isVideo = sample[0] == 0;
+            long presentationTimeUs = sample[1];
+            if (isVideo) {
+                // Waiting track allows one more sample of its own.
+                if (writtenAudioCount < audioCount) assertTrue(presentationTimeUs <= audioLastUs + MAX_LEAD_US + AUDIO_INTERVAL_US);
+                videoLastUs = presentationTimeUs;
+                writtenVideoCount++;
+            } else {
+                if (writtenVideoCount < videoCount) assertTrue(presentationTimeUs <= videoLastUs + MAX_LEAD_US + VIDEO_INTERVAL_US);
+                audioLastUs = presentationTimeUs;
+                writtenAudioCount++;
+            }
+        }
+        assertEquals(videoCount, writtenVideoCount);
+        assertEquals(audioCount, writtenAudioCount);
+    }
+
+    public void testReleasesWriterWhenOtherTrackFinishes() throws InterruptedException {
+        RecordingWriter writer = new RecordingWriter();
+        QueuedMuxer muxer = createStartedMuxer(writer);
+        muxer.setMaxInterleaveLeadUs(MAX_LEAD_US);
+        SampleWriterThread audioThread = new SampleWriterThread(muxer, QueuedMuxer.SampleType.AUDIO, AUDIO_INTERVAL_US, 20, 0);
+        audioThread.start();
+        audioThread.join(200);
+        assertTrue(audioThread.isAlive());
+        muxer.setTrackFinished(QueuedMuxer.SampleType.VIDEO);
+        audioThread.join(1000);
+        assertFalse(audioThread.isAlive());
+        assertEquals(20, writer.mSamples.size());
+    }
+
+    private static QueuedMuxer createStartedMuxer(MuxerWriter writer) {
+        QueuedMuxer muxer = new QueuedMuxer(writer, new QueuedMuxer.Listener() {
+            @Override
+            public void onDetermineOutputFormat() {
+            }
+        });
+        muxer.addTrack(QueuedMuxer.SampleType.VIDEO);
+        muxer.addTrack(QueuedMuxer.SampleType.AUDIO);
+        muxer.beginSegment(0, true);
+        muxer.setOutputFormat(QueuedMuxer.SampleType.VIDEO, new MediaFormat());
+        muxer.setOutputFormat(QueuedMuxer.SampleType.AUDIO, new MediaFormat());
+        return muxer;
+    }
+
+    private static class SampleWriterThread extends Thread {
+        private final QueuedMuxer mMuxer;
+        private final QueuedMuxer.SampleType mSampleType;
+        private final long mIntervalUs;
+        private final int mCount;
+        private final long mDelayMs;
+
+        private SampleWriterThread(QueuedMuxer muxer, QueuedMuxer.SampleType sampleType, long intervalUs, int count, long delayMs) {
+            mMuxer = muxer;
+            mSampleType = sampleType;
+            mIntervalUs = intervalUs;
+            mCount = count;
+            mDelayMs = delayMs;
+        }
+
+        @Override
+        public void run() {
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            try {
+                for (int i = 0; i < mCount; i++) {
+                    if (mDelayMs > 0) Thread.sleep(mDelayMs);
+                    bufferInfo.set(0, 4, i * mIntervalUs, 0);
+                    mMuxer.writeSampleData(mSampleType, ByteBuffer.allocate(4), bufferInfo);
+                }
+                bufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mMuxer.writeSampleData(mSampleType, ByteBuffer.allocate(0), bufferInfo);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static class RecordingWriter extends MuxerWriter {
+        // Pairs of muxer track and presentation time, recorded under lock of QueuedMuxer.
+        private final List<long[]> mSamples = new ArrayList<>();
+        private int mTrackCount;
+
+        private RecordingWriter() {
+            super(null, 0);
+        }
+
+        @Override
+        int addTrack(MediaFormat format) {
+            return mTrackCount++;
+        }
+
+        @Override
+        void start() {
+        }
+
+        @Override
+        void writeSample(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+            if (bufferInfo.size > 0) mSamples.add(new long[]{trackIndex, bufferInfo.presentationTimeUs});
+        }
+    }
+}
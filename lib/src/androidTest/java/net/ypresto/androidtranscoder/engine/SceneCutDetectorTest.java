@@ -0,0 +1,61 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class SceneCutDetectorTest extends TestCase {
+    private static final long FRAME_US = 33333;
+
+    public void testCut() {
+        SceneCutDetector detector = new SceneCutDetector(500 * 1000);
+        long time = 0;
+        for (int i = 0; i < 30; i++, time += FRAME_US) {
+            assertFalse(detector.isSceneCut(histogram(60 + i % 3), time));
+        }
+        assertTrue(detector.isSceneCut(histogram(200), time));
+        time += FRAME_US;
+        assertFalse(detector.isSceneCut(histogram(200), time));
+        assertEquals(1, detector.getCutCount());
+    }
+
+    public void testMinInterval() {
+        SceneCutDetector detector = new SceneCutDetector(500 * 1000);
+        detector.isSceneCut(histogram(60), 0);
+        // Too close to the first frame, which is keyframe anyway.
+        assertFalse(detector.isSceneCut(histogram(200), FRAME_US));
+    }
+
+    public void testGradualFade() {
+        SceneCutDetector detector = new SceneCutDetector(500 * 1000);
+        for (int i = 0; i < 100; i++) {
+            assertFalse(detector.isSceneCut(histogram(40 + i * 2), i * FRAME_US));
+        }
+    }
+
+    public void testComputeHistogram() {
+        ByteBuffer rgba = ByteBuffer.allocate(4 * 3);
+        rgba.put(new byte[]{0, 0, 0, -1, -1, -1, -1, -1, -1, -1, -1, -1});
+        int[] histogram = new int[SceneCutDetector.HISTOGRAM_BINS];
+        SceneCutDetector.computeHistogram(rgba, 3, histogram);
+        assertEquals(1, histogram[0]);
+        assertEquals(2, histogram[SceneCutDetector.HISTOGRAM_BINS - 1]);
+    }
+
+    // Histogram of 64x36 frame whose luma is spread around given mean.
+    private static int[] histogram(int meanLuma) {
+        int[] histogram = new int[SceneCutDetector.HISTOGRAM_BINS];
+        double binWidth = 256.0 / SceneCutDetector.HISTOGRAM_BINS;
+        double sum = 0;
+        double[] weights = new double[SceneCutDetector.HISTOGRAM_BINS];
+        for (int i = 0; i < weights.length; i++) {
+            double distance = ((i + 0.5) * binWidth - meanLuma) / 20.0;
+            weights[i] = Math.exp(-distance * distance / 2);
+            sum += weights[i];
+        }
+        for (int i = 0; i < weights.length; i++) {
+            histogram[i] = (int) Math.round(64 * 36 * weights[i] / sum);
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,56 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.nio.ShortBuffer;
+
+public class TimeStretcherTest extends TestCase {
+    private static final int SAMPLE_RATE = 44100;
+
+    public void testLengthAndPitch() {
+        for (double speed : new double[]{0.5, 2.0, 4.0}) {
+            short[] output = stretch(speed, sine(440, SAMPLE_RATE * 2));
+            assertEquals("speed " + speed, Math.round(SAMPLE_RATE * 2 / speed), output.length);
+            // Frequency is estimated from zero crossings, excluding head and tail.
+            assertEquals("speed " + speed, 440, estimateFrequency(output, 4096, output.length - 4096), 440 * 0.03);
+        }
+    }
+
+    public void testSmallWrites() {
+        short[] input = sine(1000, SAMPLE_RATE);
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 1, 1.5);
+        ShortBuffer output = ShortBuffer.allocate(SAMPLE_RATE);
+        for (int offset = 0; offset < input.length; offset += 37) {
+            stretcher.write(ShortBuffer.wrap(input, offset, Math.min(37, input.length - offset)));
+            stretcher.read(output);
+        }
+        stretcher.finish();
+        stretcher.read(output);
+        assertEquals(Math.round(SAMPLE_RATE / 1.5), output.position());
+    }
+
+    private static short[] stretch(double speed, short[] input) {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 1, speed);
+        stretcher.write(ShortBuffer.wrap(input));
+        stretcher.finish();
+        ShortBuffer output = ShortBuffer.allocate(stretcher.getAvailableSamples());
+        stretcher.read(output);
+        return output.array();
+    }
+
+    private static short[] sine(double frequency, int length) {
+        short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = (short) (10000 * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        }
+        return samples;
+    }
+
+    private static double estimateFrequency(short[] samples, int from, int to) {
+        int crossings = 0;
+        for (int i = from + 1; i < to; i++) {
+            if ((samples[i - 1] < 0) != (samples[i] < 0)) crossings++;
+        }
+        return crossings / 2.0 * SAMPLE_RATE / (to - from);
+    }
+}
@@ -0,0 +1,142 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class TranscodeCacheTest extends TestCase {
+    private File mDirectory;
+    private File mOutput;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = File.createTempFile("transcode-cache", "");
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.delete();
+        mOutput = File.createTempFile("transcode-output", ".mp4");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.delete();
+        //noinspection ResultOfMethodCallIgnored
+        mOutput.delete();
+    }
+
+    public void testCopiesCachedOutput() throws IOException {
+        TranscodeCache cache = new TranscodeCache(mDirectory, 1000);
+        assertNull(cache.get("a", mOutput));
+        write(mOutput, 100, (byte) 1);
+        cache.put("a", mOutput, 30, 47);
+        write(mOutput, 10, (byte) 0);
+        assertNotNull(cache.get("a", mOutput));
+        assertTrue(Arrays.equals(filled(100, (byte) 1), read(mOutput)));
+        assertEquals(100, cache.getSize());
+    }
+
+    public void testKeepsSampleCountsAcrossReload() throws IOException {
+        write(mOutput, 100, (byte) 1);
+        new TranscodeCache(mDirectory, 1000).put("a", mOutput, 30, 47);
+        TranscodeCache.Entry entry = new TranscodeCache(mDirectory, 1000).get("a", mOutput);
+        assertEquals(100, entry.mSize);
+        assertEquals(30, entry.mVideoSampleCount);
+        assertEquals(47, entry.mAudioSampleCount);
+    }
+
+    public void testEvictsLeastRecentlyUsedAcrossReload() throws IOException {
+        TranscodeCache cache = new TranscodeCache(mDirectory, 250);
+        write(mOutput, 100, (byte) 1);
+        cache.put("a", mOutput, 30, 47);
+        cache.put("b", mOutput, 30, 47);
+        assertNotNull(cache.get("a", mOutput));
+
+        // Recency is kept by index.
+        cache = new TranscodeCache(mDirectory, 250);
+        cache.put("c", mOutput, 30, 47);
+        assertEquals(200, cache.getSize());
+        assertNotNull(cache.get("a", mOutput));
+        assertNull(cache.get("b", mOutput));
+        assertNotNull(cache.get("c", mOutput));
+    }
+
+    public void testDropsLeftoversOfCrash() throws IOException {
+        TranscodeCache cache = new TranscodeCache(mDirectory, 1000);
+        write(mOutput, 100, (byte) 1);
+        cache.put("a", mOutput, 30, 47);
+        cache.put("b", mOutput, 30, 47);
+        // Crashed while copying an output, and after an indexed output was lost.
+        write(new File(mDirectory, "c.0.tmp"), 50, (byte) 2);
+        write(new File(mDirectory, "d.mp4"), 50, (byte) 2);
+        //noinspection ResultOfMethodCallIgnored
+        new File(mDirectory, "b.mp4").delete();
+
+        cache = new TranscodeCache(mDirectory, 1000);
+        assertEquals(100, cache.getSize());
+        assertNotNull(cache.get("a", mOutput));
+        assertNull(cache.get("b", mOutput));
+        assertFalse(new File(mDirectory, "c.0.tmp").exists());
+        assertFalse(new File(mDirectory, "d.mp4").exists());
+    }
+
+    public void testIgnoresBrokenIndex() throws IOException {
+        assertTrue(mDirectory.mkdirs());
+        write(new File(mDirectory, "index"), 20, (byte) 'x');
+        TranscodeCache cache = new TranscodeCache(mDirectory, 1000);
+        assertEquals(0, cache.getSize());
+        write(mOutput, 100, (byte) 1);
+        cache.put("a", mOutput, 30, 47);
+        assertNotNull(new TranscodeCache(mDirectory, 1000).get("a", mOutput));
+    }
+
+    public void testSkipsOutputLargerThanCache() throws IOException {
+        TranscodeCache cache = new TranscodeCache(mDirectory, 50);
+        write(mOutput, 100, (byte) 1);
+        cache.put("a", mOutput, 30, 47);
+        assertNull(cache.get("a", mOutput));
+    }
+
+    private static byte[] filled(int size, byte value) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, value);
+        return bytes;
+    }
+
+    private static void write(File file, int size, byte value) throws IOException {
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(filled(size, value));
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = inputStream.read(bytes, offset, bytes.length - offset);
+                if (read < 0) break;
+                offset += read;
+            }
+        } finally {
+            inputStream.close();
+        }
+        return bytes;
+    }
+}
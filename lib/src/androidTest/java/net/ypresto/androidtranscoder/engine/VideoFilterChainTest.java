@@ -0,0 +1,52 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class VideoFilterChainTest extends TestCase {
+    public void testCoordinateFiltersAreFused() {
+        VideoFilterChain chain = new VideoFilterChain(Arrays.asList(
+                VideoFilter.crop(0.1f, 0.1f, 0.9f, 0.9f), VideoFilter.rotate(90)), 1280, 720);
+        assertEquals(1, chain.getPassCount());
+        assertTrue(chain.getFragmentShader(0).contains("samplerExternalOES"));
+    }
+
+    public void testBlurAfterCoordinateFiltersIsFused() {
+        VideoFilterChain chain = new VideoFilterChain(Arrays.asList(
+                VideoFilter.crop(0.25f, 0.25f, 0.75f, 0.75f), VideoFilter.blur(2), VideoFilter.rotate(180)), 1280, 720);
+        assertEquals(1, chain.getPassCount());
+        assertTrue(chain.getFragmentShader(0).contains("uBlurStepX"));
+    }
+
+    public void testBlurAfterPixelFilterStartsNewPass() {
+        VideoFilterChain chain = new VideoFilterChain(Arrays.asList(
+                VideoFilter.blur(2), VideoFilter.rotate(90), VideoFilter.blur(4)), 1280, 720);
+        assertEquals(2, chain.getPassCount());
+        assertTrue(chain.getFragmentShader(0).contains("samplerExternalOES"));
+        assertFalse(chain.getFragmentShader(1).contains("samplerExternalOES"));
+        assertTrue(chain.getFragmentShader(1).contains("sampler2D sTexture"));
+    }
+
+    public void testShadersDependOnlyOnFilterTypes() {
+        VideoFilterChain chain1 = new VideoFilterChain(Arrays.asList(
+                VideoFilter.crop(0, 0, 0.5f, 0.5f), VideoFilter.blur(2)), 1280, 720);
+        VideoFilterChain chain2 = new VideoFilterChain(Arrays.asList(
+                VideoFilter.crop(0.5f, 0.5f, 1, 1), VideoFilter.blur(8)), 640, 360);
+        assertEquals(chain1.getVertexShader(0), chain2.getVertexShader(0));
+        assertEquals(chain1.getFragmentShader(0), chain2.getFragmentShader(0));
+    }
+
+    public void testInvalidFilters() {
+        try {
+            VideoFilter.rotate(45);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            VideoFilter.crop(0.5f, 0, 0.5f, 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
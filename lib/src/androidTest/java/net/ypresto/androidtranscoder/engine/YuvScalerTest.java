@@ -0,0 +1,113 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class YuvScalerTest extends TestCase {
+    public void testCopySameSize() {
+        YuvFrame source = YuvFrame.createI420(4, 2, 4, 2);
+        fillPlane(source, YuvFrame.PLANE_Y, 10);
+        fillPlane(source, YuvFrame.PLANE_U, 100);
+        fillPlane(source, YuvFrame.PLANE_V, 200);
+        YuvFrame target = YuvFrame.createI420(4, 2, 4, 2);
+        scale(YuvScaler.Filter.BILINEAR, 1, source, target);
+        assertTrue(Arrays.equals(source.mData, target.mData));
+    }
+
+    public void testConvertI420ToNv12() {
+        YuvFrame source = YuvFrame.createI420(4, 2, 4, 2);
+        fillPlane(source, YuvFrame.PLANE_Y, 10);
+        fillPlane(source, YuvFrame.PLANE_U, 100);
+        fillPlane(source, YuvFrame.PLANE_V, 200);
+        YuvFrame target = YuvFrame.createNv12(4, 2, 4, 2);
+        scale(YuvScaler.Filter.BILINEAR, 1, source, target);
+        // Y plane, then U and V interleaved.
+        byte[] expected = {10, 11, 12, 13, 14, 15, 16, 17, 100, (byte) 200, 101, (byte) 201};
+        assertTrue(Arrays.toString(target.mData), Arrays.equals(expected, target.mData));
+    }
+
+    public void testBoxDownscaleAverages() {
+        YuvFrame source = YuvFrame.createI420(4, 4, 4, 4);
+        // 2x2 blocks of 0 and 100 in a checkerboard.
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                source.mData[y * 4 + x] = (byte) ((x / 2 + y / 2) % 2 == 0 ? 0 : 100);
+            }
+        }
+        YuvFrame target = YuvFrame.createI420(2, 2, 2, 2);
+        scale(YuvScaler.Filter.BOX, 1, source, target);
+        assertEquals(0, target.mData[0]);
+        assertEquals(100, target.mData[1]);
+        assertEquals(100, target.mData[2]);
+        assertEquals(0, target.mData[3]);
+
+        YuvFrame single = YuvFrame.createI420(1, 1, 1, 1);
+        scale(YuvScaler.Filter.BOX, 1, source, single);
+        assertEquals(50, single.mData[0]);
+    }
+
+    public void testBilinearUpscaleKeepsGradient() {
+        YuvFrame source = YuvFrame.createI420(2, 2, 2, 2);
+        source.mData[0] = 0;
+        source.mData[1] = 100;
+        source.mData[2] = 0;
+        source.mData[3] = 100;
+        YuvFrame target = YuvFrame.createI420(4, 2, 4, 2);
+        scale(YuvScaler.Filter.BILINEAR, 1, source, target);
+        // Centers of target pixels map to -0.25, 0.25, 0.75 and 1.25 of source, clamped to edges.
+        assertEquals(0, target.mData[0] & 0xff);
+        assertEquals(25, target.mData[1] & 0xff);
+        assertEquals(75, target.mData[2] & 0xff);
+        assertEquals(100, target.mData[3] & 0xff);
+    }
+
+    public void testCrop() {
+        YuvFrame source = YuvFrame.createI420(4, 4, 4, 4);
+        fillPlane(source, YuvFrame.PLANE_Y, 0);
+        source.setCrop(2, 2, 2, 2);
+        YuvFrame target = YuvFrame.createI420(2, 2, 2, 2);
+        scale(YuvScaler.Filter.BILINEAR, 1, source, target);
+        assertEquals(10, target.mData[0]);
+        assertEquals(11, target.mData[1]);
+        assertEquals(14, target.mData[2]);
+        assertEquals(15, target.mData[3]);
+    }
+
+    public void testParallelMatchesSingleThread() {
+        YuvFrame source = YuvFrame.createNv12(320, 180, 320, 180);
+        for (int i = 0; i < source.mData.length; i++) {
+            source.mData[i] = (byte) (i * 31 + i / 320 * 7);
+        }
+        for (YuvScaler.Filter filter : YuvScaler.Filter.values()) {
+            YuvFrame single = YuvFrame.createI420(150, 84, 150, 84);
+            YuvFrame parallel = YuvFrame.createI420(150, 84, 150, 84);
+            scale(filter, 1, source, single);
+            scale(filter, 4, source, parallel);
+            assertTrue(filter.name(), Arrays.equals(single.mData, parallel.mData));
+        }
+    }
+
+    public void testChooseFilter() {
+        assertEquals(YuvScaler.Filter.BOX, YuvScaler.chooseFilter(1920, 1080, 640, 360));
+        assertEquals(YuvScaler.Filter.BILINEAR, YuvScaler.chooseFilter(1920, 1080, 1280, 720));
+    }
+
+    private static void scale(YuvScaler.Filter filter, int threadCount, YuvFrame source, YuvFrame target) {
+        YuvScaler scaler = new YuvScaler(filter, threadCount);
+        try {
+            scaler.scale(source, target);
+        } finally {
+            scaler.release();
+        }
+    }
+
+    private static void fillPlane(YuvFrame frame, int plane, int base) {
+        int value = base;
+        for (int y = 0; y < frame.getPlaneHeight(plane); y++) {
+            for (int x = 0; x < frame.getPlaneWidth(plane); x++) {
+                frame.mData[frame.mOffsets[plane] + y * frame.mRowStrides[plane] + x * frame.mPixelStrides[plane]] = (byte) value++;
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package net.ypresto.androidtranscoder.source;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ProgressiveDataSourceTest extends TestCase {
+    private static final int CONTENT_SIZE = 256 * 1024;
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private byte[] mContent;
+    private File mFile;
+    private ServerSocket mServerSocket;
+
+    @Override
+    protected void setUp() throws Exception {
+        mContent = new byte[CONTENT_SIZE];
+        new Random(0).nextBytes(mContent);
+        mFile = File.createTempFile("progressive", ".bin");
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServerSocket.close();
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    public void testReadBlocksUntilDownloaded() throws Exception {
+        ProgressiveDataSource dataSource = new ProgressiveDataSource(mFile, CONTENT_SIZE);
+        startServer(10);
+        startDownload(dataSource);
+        try {
+            // Tail is read before it is downloaded.
+            byte[] buffer = new byte[1024];
+            assertEquals(buffer.length, dataSource.readAt(CONTENT_SIZE - buffer.length, buffer, 0, buffer.length));
+            assertTrue(Arrays.equals(Arrays.copyOfRange(mContent, CONTENT_SIZE - buffer.length, CONTENT_SIZE), buffer));
+            assertEquals(-1, dataSource.readAt(CONTENT_SIZE, buffer, 0, buffer.length));
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    public void testReadAhead() throws Exception {
+        ProgressiveDataSource progressiveDataSource = new ProgressiveDataSource(mFile, CONTENT_SIZE);
+        startServer(0);
+        startDownload(progressiveDataSource);
+        ReadAheadDataSource dataSource = new ReadAheadDataSource(progressiveDataSource, 40 * 1000);
+        try {
+            byte[] buffer = new byte[CONTENT_SIZE];
+            int position = 0;
+            // Odd-sized reads crossing window boundaries.
+            while (position < CONTENT_SIZE) {
+                int read = dataSource.readAt(position, buffer, position, Math.min(777, CONTENT_SIZE - position));
+                assertTrue(read > 0);
+                position += read;
+            }
+            assertTrue(Arrays.equals(mContent, buffer));
+            assertEquals(-1, dataSource.readAt(CONTENT_SIZE, buffer, 0, 1));
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    public void testFailure() throws Exception {
+        final ProgressiveDataSource dataSource = new ProgressiveDataSource(mFile, -1);
+        assertEquals(-1, dataSource.getSize());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dataSource.notifyFailed(new IOException("Connection reset."));
+            }
+        }).start();
+        try {
+            dataSource.readAt(0, new byte[1], 0, 1);
+            fail();
+        } catch (IOException e) {
+            // expected
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    // Stand-in for remote server, which sends content slowly by chunks.
+    private void startServer(final long chunkIntervalMs) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = mServerSocket.accept();
+                    try {
+                        OutputStream outputStream = socket.getOutputStream();
+                        for (int offset = 0; offset < CONTENT_SIZE; offset += CHUNK_SIZE) {
+                            outputStream.write(mContent, offset, Math.min(CHUNK_SIZE, CONTENT_SIZE - offset));
+                            outputStream.flush();
+                            Thread.sleep(chunkIntervalMs);
+                        }
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }).start();
+    }
+
+    private void startDownload(final ProgressiveDataSource dataSource) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = new Socket(mServerSocket.getInetAddress(), mServerSocket.getLocalPort());
+                    OutputStream outputStream = new FileOutputStream(mFile);
+                    try {
+                        InputStream inputStream = socket.getInputStream();
+                        byte[] buffer = new byte[4096];
+                        long written = 0;
+                        int read;
+                        while ((read = inputStream.read(buffer)) != -1) {
+                            outputStream.write(buffer, 0, read);
+                            written += read;
+                            dataSource.notifyBytesAvailable(written);
+                        }
+                        dataSource.notifyCompleted();
+                    } finally {
+                        outputStream.close();
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    dataSource.notifyFailed(e);
+                }
+            }
+        }).start();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * Device pressure from battery temperature, battery level while not charging, and battery saver.
+ */
+public class AndroidDevicePressure implements DevicePressure {
+    // In tenths of a degree Celsius, as reported by battery.
+    private static final int TEMPERATURE_MODERATE = 400;
+    private static final int TEMPERATURE_SEVERE = 450;
+    private static final int TEMPERATURE_CRITICAL = 500;
+    private static final int BATTERY_PERCENT_MODERATE = 30;
+    private static final int BATTERY_PERCENT_SEVERE = 15;
+
+    private final Context mContext;
+
+    public AndroidDevicePressure(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    public int getLevel() {
+        int level = LEVEL_NONE;
+        // Sticky broadcast, no receiver is registered.
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            int temperature = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+            if (temperature >= TEMPERATURE_CRITICAL) {
+                level = LEVEL_CRITICAL;
+            } else if (temperature >= TEMPERATURE_SEVERE) {
+                level = LEVEL_SEVERE;
+            } else if (temperature >= TEMPERATURE_MODERATE) {
+                level = LEVEL_MODERATE;
+            }
+            boolean isCharging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            int batteryLevel = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int batteryScale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (!isCharging && batteryLevel >= 0 && batteryScale > 0) {
+                int percent = batteryLevel * 100 / batteryScale;
+                if (percent <= BATTERY_PERCENT_SEVERE) {
+                    level = Math.max(level, LEVEL_SEVERE);
+                } else if (percent <= BATTERY_PERCENT_MODERATE) {
+                    level = Math.max(level, LEVEL_MODERATE);
+                }
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && isPowerSaveMode()) {
+            level = Math.max(level, LEVEL_MODERATE);
+        }
+        return level;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean isPowerSaveMode() {
+        PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        return powerManager != null && powerManager.isPowerSaveMode();
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder;
+
+/**
+ * Signal of how much device can afford transcoding, e.g. by temperature or battery.
+ * {@link MediaTranscoder} runs less jobs concurrently under pressure, and only prioritized ones under severe pressure.
+ *
+ * @see AndroidDevicePressure
+ */
+public interface DevicePressure {
+    int LEVEL_NONE = 0;
+    /** Run half of jobs allowed. */
+    int LEVEL_MODERATE = 1;
+    /** Run single job, excluding background ones. */
+    int LEVEL_SEVERE = 2;
+    /** Run single user initiated job only. */
+    int LEVEL_CRITICAL = 3;
+
+    /**
+     * Called periodically on background thread while jobs exist.
+     *
+     * @return One of LEVEL_* constants.
+     */
+    int getLevel();
+}
@@ -15,36 +15,41 @@
  */
 package net.ypresto.androidtranscoder;
 
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
+import net.ypresto.androidtranscoder.engine.DeviceProfile;
 import net.ypresto.androidtranscoder.engine.MediaTranscoderEngine;
+import net.ypresto.androidtranscoder.engine.PcmAudioSink;
+import net.ypresto.androidtranscoder.engine.TrackSelection;
+import net.ypresto.androidtranscoder.engine.TranscodeResult;
 import net.ypresto.androidtranscoder.format.MediaFormatPresets;
 import net.ypresto.androidtranscoder.format.MediaFormatStrategy;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.concurrent.Callable;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class MediaTranscoder {
     private static final String TAG = "MediaTranscoder";
-    private static final int MAXIMUM_THREAD = 1; // TODO
+    private static final int DEFAULT_MAX_CONCURRENT_JOBS = 1;
+    private static final long DEVICE_PRESSURE_POLL_INTERVAL_MS = 5000;
     private static volatile MediaTranscoder sMediaTranscoder;
-    private ThreadPoolExecutor mExecutor;
+    private final TranscodeScheduler mScheduler;
 
     private MediaTranscoder() {
-        mExecutor = new ThreadPoolExecutor(
-                0, MAXIMUM_THREAD, 60, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>(),
+        mScheduler = new TranscodeScheduler(DEFAULT_MAX_CONCURRENT_JOBS, DEVICE_PRESSURE_POLL_INTERVAL_MS,
                 new ThreadFactory() {
                     @Override
                     public Thread newThread(Runnable r) {
@@ -53,6 +58,22 @@ public class MediaTranscoder {
                 });
     }
 
+    /**
+     * Set how many jobs run at once when device is not under pressure. Default is 1.
+     */
+    public void setMaxConcurrentJobs(int maxConcurrentJobs) {
+        mScheduler.setMaxConcurrentJobs(maxConcurrentJobs);
+    }
+
+    /**
+     * Run less jobs concurrently while device is under given pressure, e.g. {@link AndroidDevicePressure}.
+     *
+     * @param devicePressure Signal polled while jobs exist, or null to ignore device state.
+     */
+    public void setDevicePressure(DevicePressure devicePressure) {
+        mScheduler.setDevicePressure(devicePressure);
+    }
+
     public static MediaTranscoder getInstance() {
         if (sMediaTranscoder == null) {
             synchronized (MediaTranscoder.class) {
@@ -159,16 +180,203 @@ public class MediaTranscoder {
      * @param listener          Listener instance for callback.
      */
     public Future<Void> transcodeVideo(final FileDescriptor inFileDescriptor, final String outPath, final MediaFormatStrategy outFormatStrategy, final Listener listener) {
+        return concatenateVideos(Collections.singletonList(inFileDescriptor), outPath, outFormatStrategy, listener);
+    }
+
+    /**
+     * Transcodes video file asynchronously with additional options.
+     *
+     * @param inFileDescriptor  FileDescriptor for input.
+     * @param outPath           File path for output.
+     * @param outFormatStrategy Strategy for output video format.
+     * @param options           Options of transcode job.
+     * @param listener          Listener instance for callback.
+     */
+    public Future<Void> transcodeVideo(final FileDescriptor inFileDescriptor, final String outPath, final MediaFormatStrategy outFormatStrategy, final TranscodeOptions options, final Listener listener) {
+        return transcode(Collections.singletonList(inFileDescriptor), null, Collections.singletonList(outPath), Collections.singletonList(outFormatStrategy), options, listener);
+    }
+
+    /**
+     * Transcodes video asynchronously, reading input through {@link MediaDataSource}.
+     * Useful for input which is not a plain file, e.g. encrypted cache or file being downloaded.
+     * See {@link net.ypresto.androidtranscoder.source} for implementations.
+     *
+     * @param inDataSource      Data source for input, which should be closed by caller after transcode.
+     * @param outPath           File path for output.
+     * @param outFormatStrategy Strategy for output video format.
+     * @param listener          Listener instance for callback.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    public Future<Void> transcodeVideo(final MediaDataSource inDataSource, final String outPath, final MediaFormatStrategy outFormatStrategy, final Listener listener) {
+        return transcode(null, inDataSource, Collections.singletonList(outPath), Collections.singletonList(outFormatStrategy), null, listener);
+    }
+
+    /**
+     * Concatenates video files in order into single output asynchronously.
+     * Inputs which already fit to output format are copied without re-encoding,
+     * and only others are transcoded with outFormatStrategy.
+     * Output resolution and audio format follow the first input.
+     *
+     * @param inFileDescriptors FileDescriptors for inputs, in order of output.
+     * @param outPath           File path for output.
+     * @param outFormatStrategy Strategy for output video format.
+     * @param listener          Listener instance for callback.
+     */
+    public Future<Void> concatenateVideos(final List<FileDescriptor> inFileDescriptors, final String outPath, final MediaFormatStrategy outFormatStrategy, final Listener listener) {
+        return transcode(inFileDescriptors, null, Collections.singletonList(outPath), Collections.singletonList(outFormatStrategy), null, listener);
+    }
+
+    /**
+     * Transcodes video file into multiple renditions asynchronously, e.g. 1080p/720p/480p for adaptive streaming.
+     * Input video is decoded only once and encoded for each rendition.
+     * Audio track is transcoded once with the first strategy and shared by all renditions.
+     *
+     * @param inFileDescriptor    FileDescriptor for input.
+     * @param outPaths            File paths for outputs.
+     * @param outFormatStrategies Strategies for output video format, in the same order as outPaths.
+     * @param listener            Listener instance for callback.
+     */
+    public Future<Void> transcodeVideoRenditions(final FileDescriptor inFileDescriptor, final List<String> outPaths, final List<MediaFormatStrategy> outFormatStrategies, final Listener listener) {
+        return transcode(Collections.singletonList(inFileDescriptor), null, outPaths, outFormatStrategies, null, listener);
+    }
+
+    /**
+     * Extracts audio track of video file into audio-only MP4 (.m4a) asynchronously.
+     * Video track is dropped without being decoded.
+     *
+     * @param inFileDescriptor FileDescriptor for input.
+     * @param outPath          File path for output.
+     * @param outAudioFormat   Output audio format, or null to copy audio track as-is.
+     * @param listener         Listener instance for callback.
+     */
+    public Future<Void> extractAudio(final FileDescriptor inFileDescriptor, final String outPath, final MediaFormat outAudioFormat, final Listener listener) {
+        TrackSelection trackSelection = new TrackSelection();
+        trackSelection.setVideoEnabled(false);
+        TranscodeOptions options = new TranscodeOptions();
+        options.setTrackSelection(trackSelection);
+        MediaFormatStrategy outFormatStrategy = new MediaFormatStrategy() {
+            @Override
+            public MediaFormat createVideoOutputFormat(MediaFormat inputFormat) {
+                return null;
+            }
+
+            @Override
+            public MediaFormat createAudioOutputFormat(MediaFormat inputFormat) {
+                return outAudioFormat;
+            }
+        };
+        return transcode(Collections.singletonList(inFileDescriptor), null, Collections.singletonList(outPath), Collections.singletonList(outFormatStrategy), options, listener);
+    }
+
+    /**
+     * Decodes audio track of video file into 16-bit PCM asynchronously, e.g. to feed speech recognizer.
+     * Video track is not decoded.
+     *
+     * @param inFileDescriptor FileDescriptor for input.
+     * @param sink             Sink to receive PCM chunks, called on worker thread.
+     * @param sampleRate       Sample rate of output, or 0 to keep input one.
+     * @param channelCount     Channel count of output (1 or 2), or 0 to keep input one.
+     * @param chunkFrameCount  Number of frames (samples per channel) in each chunk.
+     * @param listener         Listener instance for callback.
+     */
+    public Future<Void> extractAudioPcm(final FileDescriptor inFileDescriptor, final PcmAudioSink sink,
+                                        final int sampleRate, final int channelCount, final int chunkFrameCount, final Listener listener) {
+        return submit(new EngineTask() {
+            @Override
+            public TranscodeResult run(MediaTranscoderEngine engine) throws IOException, InterruptedException {
+                engine.setDataSource(inFileDescriptor);
+                engine.extractAudioPcm(sink, sampleRate, channelCount, chunkFrameCount);
+                return null;
+            }
+
+            @Override
+            public String toString() {
+                return "input: " + inFileDescriptor;
+            }
+        }, listener);
+    }
+
+    private Future<Void> transcode(final List<FileDescriptor> inFileDescriptors, final MediaDataSource inDataSource, final List<String> outPaths, final List<MediaFormatStrategy> outFormatStrategies,
+                                   final TranscodeOptions options, final Listener listener) {
+        int priority = options != null ? options.getPriority() : TranscodeOptions.PRIORITY_DEFAULT;
+        return submit(priority, new EngineTask() {
+            @Override
+            public TranscodeResult run(MediaTranscoderEngine engine) throws IOException, InterruptedException {
+                if (inDataSource != null) {
+                    engine.setDataSource(inDataSource);
+                } else {
+                    engine.setDataSources(inFileDescriptors);
+                }
+                if (options != null) options.applyTo(engine);
+                return engine.transcodeVideo(outPaths, outFormatStrategies);
+            }
+
+            @Override
+            public String toString() {
+                return "input: " + (inDataSource != null ? inDataSource : inFileDescriptors) + ", output: " + outPaths;
+            }
+        }, listener);
+    }
+
+    /**
+     * Allocates codecs and EGL context for jobs with given strategy on worker thread, so that the next transcode
+     * starts quickly. Call this e.g. when user opens the screen which will start transcoding.
+     *
+     * @param outFormatStrategy Strategy for the upcoming transcode.
+     */
+    public Future<Void> prewarm(final MediaFormatStrategy outFormatStrategy) {
+        return mScheduler.submit(TranscodeOptions.PRIORITY_DEFAULT, new TranscodeScheduler.Task() {
+            @Override
+            public Void call(MediaTranscoderEngine.PauseController pauseController) throws Exception {
+                MediaTranscoderEngine.prewarm(outFormatStrategy);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Tunes later jobs for this device on worker thread: loads profile stored in given directory, or benchmarks
+     * encoders and stores the result. Jobs started after completion use encoder and operating rate of the profile,
+     * and number of concurrent jobs is set from it; call {@link #setMaxConcurrentJobs(int)} afterwards to override.
+     * Call this before submitting jobs, as they would disturb the benchmark.
+     *
+     * @param profileDir Directory to store profile, e.g. {@link android.content.Context#getFilesDir()}.
+     */
+    public Future<Void> loadDeviceProfile(final File profileDir) {
+        return mScheduler.submit(TranscodeOptions.PRIORITY_DEFAULT, new TranscodeScheduler.Task() {
+            @Override
+            public Void call(MediaTranscoderEngine.PauseController pauseController) throws Exception {
+                DeviceProfile profile = MediaTranscoderEngine.loadDeviceProfile(profileDir);
+                mScheduler.setMaxConcurrentJobs(profile.getMaxConcurrentJobs());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Releases codecs and EGL contexts kept for next transcode, e.g. from {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void releasePooledResources() {
+        MediaTranscoderEngine.releasePooledResources();
+    }
+
+    private Future<Void> submit(final EngineTask task, final Listener listener) {
+        return submit(TranscodeOptions.PRIORITY_DEFAULT, task, listener);
+    }
+
+    private Future<Void> submit(int priority, final EngineTask task, final Listener listener) {
         Looper looper = Looper.myLooper();
         if (looper == null) looper = Looper.getMainLooper();
         final Handler handler = new Handler(looper);
         final AtomicReference<Future<Void>> futureReference = new AtomicReference<>();
-        final Future<Void> createdFuture = mExecutor.submit(new Callable<Void>() {
+        final Future<Void> createdFuture = mScheduler.submit(priority, new TranscodeScheduler.Task() {
             @Override
-            public Void call() throws Exception {
+            public Void call(MediaTranscoderEngine.PauseController pauseController) throws Exception {
                 Exception caughtException = null;
+                TranscodeResult caughtResult = null;
                 try {
                     MediaTranscoderEngine engine = new MediaTranscoderEngine();
+                    engine.setPauseController(pauseController);
                     engine.setProgressCallback(new MediaTranscoderEngine.ProgressCallback() {
                         @Override
                         public void onProgress(final double progress) {
@@ -180,11 +388,9 @@ public class MediaTranscoder {
                             });
                         }
                     });
-                    engine.setDataSource(inFileDescriptor);
-                    engine.transcodeVideo(outPath, outFormatStrategy);
+                    caughtResult = task.run(engine);
                 } catch (IOException e) {
-                    Log.w(TAG, "Transcode failed: input file (fd: " + inFileDescriptor.toString() + ") not found"
-                            + " or could not open output file ('" + outPath + "') .", e);
+                    Log.w(TAG, "Transcode failed: input file not found or could not open output file (" + task + ").", e);
                     caughtException = e;
                 } catch (InterruptedException e) {
                     Log.i(TAG, "Cancel transcode video file.", e);
@@ -195,10 +401,14 @@ public class MediaTranscoder {
                 }
 
                 final Exception exception = caughtException;
+                final TranscodeResult result = caughtResult;
                 handler.post(new Runnable() {
                     @Override
                     public void run() {
                         if (exception == null) {
+                            if (result != null && listener instanceof ResultListener) {
+                                ((ResultListener) listener).onTranscodeResult(result);
+                            }
                             listener.onTranscodeCompleted();
                         } else {
                             Future<Void> future = futureReference.get();
@@ -219,6 +429,10 @@ public class MediaTranscoder {
         return createdFuture;
     }
 
+    private interface EngineTask {
+        TranscodeResult run(MediaTranscoderEngine engine) throws IOException, InterruptedException;
+    }
+
     public interface Listener {
         /**
          * Called to notify progress.
@@ -245,4 +459,16 @@ public class MediaTranscoder {
          */
         void onTranscodeFailed(Exception exception);
     }
+
+    /**
+     * Listener which also receives result of transcoding, e.g. measured loudness.
+     */
+    public interface ResultListener extends Listener {
+        /**
+         * Called just before {@link #onTranscodeCompleted()}.
+         *
+         * @param result Result of transcoding.
+         */
+        void onTranscodeResult(TranscodeResult result);
+    }
 }
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder;
+
+import net.ypresto.androidtranscoder.engine.MediaTranscoderEngine;
+import net.ypresto.androidtranscoder.engine.SpriteSheetOptions;
+import net.ypresto.androidtranscoder.engine.TrackSelection;
+import net.ypresto.androidtranscoder.engine.TranscodeCache;
+import net.ypresto.androidtranscoder.engine.VideoFilter;
+
+import java.util.List;
+
+/**
+ * Optional settings of transcode job which are not part of output format.
+ */
+public class TranscodeOptions {
+    /** For jobs user is not waiting for, e.g. backups. Not run under severe device pressure. */
+    public static final int PRIORITY_BACKGROUND = -1;
+    public static final int PRIORITY_DEFAULT = 0;
+    /** For jobs user is waiting for, e.g. "share now". Runs even under critical device pressure. */
+    public static final int PRIORITY_USER_INITIATED = 1;
+    private SpriteSheetOptions mSpriteSheetOptions;
+    private TrackSelection mTrackSelection;
+    private double mTargetFrameRate;
+    private double mSpeed = 1.0;
+    private double mTargetLoudness;
+    private long mTargetFileSize;
+    private double mTargetQuality;
+    private boolean mIsSceneCutDetectionEnabled;
+    private List<VideoFilter> mVideoFilters;
+    private boolean mIsGlDisabled;
+    private int mPriority = PRIORITY_DEFAULT;
+    private int mMuxerBufferSize = 4 * 1024 * 1024;
+    private boolean mIsParallelTracksEnabled;
+    private TranscodeCache mResultCache;
+    private List<String> mOutputDigestAlgorithms;
+
+    public SpriteSheetOptions getSpriteSheetOptions() {
+        return mSpriteSheetOptions;
+    }
+
+    /**
+     * Generate thumbnail sprite sheets from frames decoded for transcoding.
+     *
+     * @param spriteSheetOptions Options of sprite sheets, or null to disable.
+     */
+    public void setSpriteSheetOptions(SpriteSheetOptions spriteSheetOptions) {
+        mSpriteSheetOptions = spriteSheetOptions;
+    }
+
+    public TrackSelection getTrackSelection() {
+        return mTrackSelection;
+    }
+
+    /**
+     * Select tracks to be written to output, e.g. to write video only or to keep extra audio tracks.
+     *
+     * @param trackSelection Track selection, or null for first video and audio tracks.
+     */
+    public void setTrackSelection(TrackSelection trackSelection) {
+        mTrackSelection = trackSelection;
+    }
+
+    public double getTargetFrameRate() {
+        return mTargetFrameRate;
+    }
+
+    /**
+     * Drop frames so that re-encoded video does not exceed given frame rate. Default is 0, which keeps all frames.
+     *
+     * @param targetFrameRate Maximum frame rate of output, or 0 to keep all frames.
+     */
+    public void setTargetFrameRate(double targetFrameRate) {
+        mTargetFrameRate = targetFrameRate;
+    }
+
+    public double getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Change playback speed, e.g. 4.0 for time-lapse or 0.5 for slow motion. Audio keeps its pitch. Default is 1.0.
+     * Combine with {@link #setTargetFrameRate(double)} to fill slow motion with duplicated frames.
+     */
+    public void setSpeed(double speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("Speed should be positive: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    public double getTargetLoudness() {
+        return mTargetLoudness;
+    }
+
+    /**
+     * Normalize loudness of audio in the same pass, e.g. -16 LUFS. Default is 0, which keeps audio level.
+     * Measured loudness is reported to {@link MediaTranscoder.ResultListener}.
+     *
+     * @param targetLoudness Target integrated loudness in LUFS, or 0 to disable.
+     */
+    public void setTargetLoudness(double targetLoudness) {
+        mTargetLoudness = targetLoudness;
+    }
+
+    public long getTargetFileSize() {
+        return mTargetFileSize;
+    }
+
+    /**
+     * Aim output file at given size in one pass, e.g. for attachment size limit. Default is 0, which uses bitrate
+     * of output format as is. Requires API 19.
+     *
+     * @param targetFileSize Target size of output file in bytes, or 0 to disable.
+     */
+    public void setTargetFileSize(long targetFileSize) {
+        mTargetFileSize = targetFileSize;
+    }
+
+    public double getTargetQuality() {
+        return mTargetQuality;
+    }
+
+    /**
+     * Encode video at minimum bitrate which keeps given SSIM, e.g. 0.95. Default is 0, which uses bitrate of output
+     * format as is. Measured quality is reported to {@link MediaTranscoder.ResultListener}. Requires API 19.
+     *
+     * @param targetSsim Target SSIM in (0, 1), or 0 to disable.
+     */
+    public void setTargetQuality(double targetSsim) {
+        mTargetQuality = targetSsim;
+    }
+
+    public boolean isSceneCutDetectionEnabled() {
+        return mIsSceneCutDetectionEnabled;
+    }
+
+    /**
+     * Place keyframes on scene cuts of re-encoded video, for smaller files and cleaner cut points for segmenting.
+     * Default is false. Requires API 19.
+     */
+    public void setSceneCutDetectionEnabled(boolean enabled) {
+        mIsSceneCutDetectionEnabled = enabled;
+    }
+
+    public List<VideoFilter> getVideoFilters() {
+        return mVideoFilters;
+    }
+
+    /**
+     * Apply filters e.g. watermark, color grade or crop to video while re-encoding, without extra pass.
+     * See {@link VideoFilter} for available filters.
+     *
+     * @param videoFilters Filters to apply in order, or null to disable.
+     */
+    public void setVideoFilters(List<VideoFilter> videoFilters) {
+        mVideoFilters = videoFilters;
+    }
+
+    public boolean isGlDisabled() {
+        return mIsGlDisabled;
+    }
+
+    /**
+     * Transcode video on CPU instead of GL, for devices with broken GLES driver. Default is false, which still falls
+     * back to CPU when GL cannot be set up. Filters, thumbnails, target quality and scene cut detection require GL.
+     */
+    public void setGlDisabled(boolean disabled) {
+        mIsGlDisabled = disabled;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Run this job before jobs with lower priority. Running jobs with lower priority are paused at next keyframe if
+     * no more jobs can run concurrently. Default is {@link #PRIORITY_DEFAULT}.
+     *
+     * @param priority One of PRIORITY_* constants, or any int where larger one runs first.
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    public int getMuxerBufferSize() {
+        return mMuxerBufferSize;
+    }
+
+    /**
+     * Buffer encoded samples so that they are written to output on separate thread, and slow storage (e.g. SD card)
+     * does not stall codecs. Default is 4MB per output.
+     *
+     * @param bufferSize Size of buffer in bytes, or 0 to write on transcoding thread.
+     */
+    public void setMuxerBufferSize(int bufferSize) {
+        mMuxerBufferSize = bufferSize;
+    }
+
+    public boolean isParallelTracksEnabled() {
+        return mIsParallelTracksEnabled;
+    }
+
+    /**
+     * Transcode video and audio on their own threads, which wait on codecs instead of polling them. Helps when one
+     * track is slow to process, e.g. audio of slow motion. Applied only when both tracks are re-encoded. Default is false.
+     */
+    public void setParallelTracksEnabled(boolean enabled) {
+        mIsParallelTracksEnabled = enabled;
+    }
+
+    public TranscodeCache getResultCache() {
+        return mResultCache;
+    }
+
+    /**
+     * Reuse output of previous job with the same input content, output formats and options, instead of transcoding.
+     * Output of finished job is added to the cache. Only single file input and output without filters or thumbnails
+     * is cached.
+     *
+     * @param resultCache Cache shared by jobs, or null not to cache.
+     */
+    public void setResultCache(TranscodeCache resultCache) {
+        mResultCache = resultCache;
+    }
+
+    public List<String> getOutputDigestAlgorithms() {
+        return mOutputDigestAlgorithms;
+    }
+
+    /**
+     * Report digests of each output in result, e.g. for integrity check of upload, without reading output again.
+     * Size and sample counts of outputs are reported regardless.
+     *
+     * @param outputDigestAlgorithms Algorithms such as "SHA-256" and "MD5", or null not to digest.
+     */
+    public void setOutputDigestAlgorithms(List<String> outputDigestAlgorithms) {
+        mOutputDigestAlgorithms = outputDigestAlgorithms;
+    }
+
+    void applyTo(MediaTranscoderEngine engine) {
+        engine.setSpriteSheetOptions(mSpriteSheetOptions);
+        engine.setTrackSelection(mTrackSelection);
+        engine.setTargetFrameRate(mTargetFrameRate);
+        engine.setSpeed(mSpeed);
+        engine.setTargetLoudness(mTargetLoudness);
+        engine.setTargetFileSize(mTargetFileSize);
+        engine.setTargetQuality(mTargetQuality);
+        engine.setSceneCutDetectionEnabled(mIsSceneCutDetectionEnabled);
+        engine.setVideoFilters(mVideoFilters);
+        engine.setGlDisabled(mIsGlDisabled);
+        engine.setMuxerBufferSize(mMuxerBufferSize);
+        engine.setParallelTracksEnabled(mIsParallelTracksEnabled);
+        engine.setResultCache(mResultCache);
+        engine.setOutputDigestAlgorithms(mOutputDigestAlgorithms);
+    }
+}
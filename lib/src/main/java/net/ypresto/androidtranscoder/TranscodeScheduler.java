@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder;
+
+import android.util.Log;
+
+import net.ypresto.androidtranscoder.engine.MediaTranscoderEngine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs jobs in priority order, up to number of concurrent jobs allowed under current {@link DevicePressure}.
+ * Running job which lost its slot to higher priority one is asked to pause through
+ * {@link MediaTranscoderEngine.PauseController}, and resumed when slot is available again.
+ */
+class TranscodeScheduler {
+    private static final String TAG = "TranscodeScheduler";
+    private static final int STATE_QUEUED = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_PAUSE_REQUESTED = 2;
+    private static final int STATE_PAUSED = 3;
+    // Higher priority first, then first submitted.
+    private static final Comparator<Job> ORDER = new Comparator<Job>() {
+        @Override
+        public int compare(Job lhs, Job rhs) {
+            if (lhs.mPriority != rhs.mPriority) return lhs.mPriority > rhs.mPriority ? -1 : 1;
+            return lhs.mSequence < rhs.mSequence ? -1 : (lhs.mSequence == rhs.mSequence ? 0 : 1);
+        }
+    };
+
+    private final Object mLock = new Object();
+    private final List<Job> mJobs = new ArrayList<>();
+    // Paused jobs keep their threads, so number of threads is not bounded by concurrency.
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledThreadPoolExecutor mPressurePoller;
+    private final long mPressurePollIntervalMs;
+    private ScheduledFuture<?> mPressurePoll;
+    private DevicePressure mDevicePressure;
+    private int mPressureLevel = DevicePressure.LEVEL_NONE;
+    private int mMaxConcurrentJobs;
+    private long mNextSequence;
+
+    TranscodeScheduler(int maxConcurrentJobs, long pressurePollIntervalMs, ThreadFactory threadFactory) {
+        mMaxConcurrentJobs = maxConcurrentJobs;
+        mPressurePollIntervalMs = pressurePollIntervalMs;
+        mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), threadFactory);
+        mPressurePoller = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    interface Task {
+        Void call(MediaTranscoderEngine.PauseController pauseController) throws Exception;
+    }
+
+    void setMaxConcurrentJobs(int maxConcurrentJobs) {
+        if (maxConcurrentJobs < 1) throw new IllegalArgumentException("maxConcurrentJobs should be positive.");
+        synchronized (mLock) {
+            mMaxConcurrentJobs = maxConcurrentJobs;
+            reschedule();
+        }
+    }
+
+    void setDevicePressure(DevicePressure devicePressure) {
+        synchronized (mLock) {
+            mDevicePressure = devicePressure;
+            if (devicePressure == null) mPressureLevel = DevicePressure.LEVEL_NONE;
+            updatePressurePoll();
+        }
+        checkDevicePressure();
+    }
+
+    /**
+     * Reads device pressure now, and pauses or resumes jobs if its level changed.
+     */
+    void checkDevicePressure() {
+        DevicePressure devicePressure;
+        synchronized (mLock) {
+            devicePressure = mDevicePressure;
+        }
+        int level = devicePressure == null ? DevicePressure.LEVEL_NONE : devicePressure.getLevel();
+        synchronized (mLock) {
+            if (level == mPressureLevel) return;
+            Log.d(TAG, "Device pressure level changed: " + mPressureLevel + " -> " + level);
+            mPressureLevel = level;
+            reschedule();
+        }
+    }
+
+    Future<Void> submit(int priority, Task task) {
+        Job job = new Job(priority, task);
+        synchronized (mLock) {
+            job.mSequence = mNextSequence++;
+            mJobs.add(job);
+            updatePressurePoll();
+            reschedule();
+        }
+        return job.mFuture;
+    }
+
+    private void onJobFinished(Job job) {
+        synchronized (mLock) {
+            mJobs.remove(job);
+            updatePressurePoll();
+            reschedule();
+        }
+    }
+
+    // Poll only while there are jobs to schedule.
+    private void updatePressurePoll() {
+        boolean shouldPoll = mDevicePressure != null && !mJobs.isEmpty();
+        if (shouldPoll && mPressurePoll == null) {
+            mPressurePoll = mPressurePoller.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkDevicePressure();
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Failed to read device pressure.", e);
+                    }
+                }
+            }, mPressurePollIntervalMs, mPressurePollIntervalMs, TimeUnit.MILLISECONDS);
+        } else if (!shouldPoll && mPressurePoll != null) {
+            mPressurePoll.cancel(false);
+            mPressurePoll = null;
+        }
+    }
+
+    /**
+     * Gives slots to jobs by priority. Should be called with lock held.
+     */
+    private void reschedule() {
+        int capacity = getCapacity(mMaxConcurrentJobs, mPressureLevel);
+        int minimumPriority = getMinimumPriority(mPressureLevel);
+        List<Job> jobs = new ArrayList<>(mJobs);
+        Collections.sort(jobs, ORDER);
+        int granted = 0;
+        for (Job job : jobs) {
+            boolean canRun = granted < capacity && job.mPriority >= minimumPriority;
+            if (canRun) granted++;
+            switch (job.mState) {
+                case STATE_QUEUED:
+                    if (canRun) {
+                        job.mState = STATE_RUNNING;
+                        mExecutor.execute(job.mFuture);
+                    }
+                    break;
+                case STATE_RUNNING:
+                    if (!canRun) job.mState = STATE_PAUSE_REQUESTED;
+                    break;
+                case STATE_PAUSE_REQUESTED:
+                    if (canRun) job.mState = STATE_RUNNING;
+                    break;
+                case STATE_PAUSED:
+                    if (canRun) {
+                        job.mState = STATE_RUNNING;
+                        mLock.notifyAll();
+                    }
+                    break;
+            }
+        }
+    }
+
+    static int getCapacity(int maxConcurrentJobs, int pressureLevel) {
+        switch (pressureLevel) {
+            case DevicePressure.LEVEL_NONE:
+                return maxConcurrentJobs;
+            case DevicePressure.LEVEL_MODERATE:
+                return Math.max(1, maxConcurrentJobs / 2);
+            default:
+                return 1;
+        }
+    }
+
+    static int getMinimumPriority(int pressureLevel) {
+        switch (pressureLevel) {
+            case DevicePressure.LEVEL_NONE:
+            case DevicePressure.LEVEL_MODERATE:
+                return Integer.MIN_VALUE;
+            case DevicePressure.LEVEL_SEVERE:
+                return TranscodeOptions.PRIORITY_DEFAULT;
+            default:
+                return TranscodeOptions.PRIORITY_USER_INITIATED;
+        }
+    }
+
+    private class Job implements MediaTranscoderEngine.PauseController {
+        private final int mPriority;
+        private final FutureTask<Void> mFuture;
+        private long mSequence;
+        // Guarded by mLock, volatile for polling from transcoding thread.
+        private volatile int mState = STATE_QUEUED;
+
+        private Job(int priority, final Task task) {
+            mPriority = priority;
+            mFuture = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    return task.call(Job.this);
+                }
+            }) {
+                @Override
+                protected void done() {
+                    // Also called when canceled before start.
+                    onJobFinished(Job.this);
+                }
+            };
+        }
+
+        @Override
+        public boolean shouldPause() {
+            return mState == STATE_PAUSE_REQUESTED;
+        }
+
+        @Override
+        public void awaitResume() throws InterruptedException {
+            synchronized (mLock) {
+                if (mState != STATE_PAUSE_REQUESTED) return;
+                mState = STATE_PAUSED;
+                // Let other jobs take the slot.
+                reschedule();
+                while (mState == STATE_PAUSED) {
+                    mLock.wait();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package net.ypresto.androidtranscoder.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Bounded FIFO of decoded samples waiting for encoder. Samples are copied out of codec buffers into storage of
+ * slots, which are allocated up front and grow only up to the largest codec buffer, so queueing buffers does not
+ * allocate. Codec buffers can be released as soon as they are queued.
+ */
+class AudioBufferRing {
+    private static final int BYTES_PER_SHORT = 2;
+
+    static class AudioBuffer {
+        boolean isEndOfStream;
+        long presentationTimeUs;
+        // Wraps storage of this slot, reused across buffers.
+        ShortBuffer data = ShortBuffer.allocate(0);
+        // Window of valid samples in data.
+        int limit;
+
+        /**
+         * Restores data to its window of valid samples.
+         */
+        void rewind() {
+            data.limit(limit).position(0);
+        }
+    }
+
+    private final AudioBuffer[] mBuffers;
+    private int mHead;
+    private int mSize;
+
+    AudioBufferRing(int capacity) {
+        mBuffers = new AudioBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mBuffers[i] = new AudioBuffer();
+        }
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    boolean isFull() {
+        return mSize == mBuffers.length;
+    }
+
+    /**
+     * Copies samples between position and limit of source, in its byte order. Position of source is not changed.
+     *
+     * @param source Codec buffer, or null for end of stream.
+     */
+    void add(long presentationTimeUs, ByteBuffer source) {
+        if (isFull()) throw new IllegalStateException("Audio buffer ring is full.");
+        AudioBuffer buffer = mBuffers[(mHead + mSize) % mBuffers.length];
+        buffer.isEndOfStream = source == null;
+        buffer.presentationTimeUs = presentationTimeUs;
+        int sampleCount = source == null ? 0 : source.remaining() / BYTES_PER_SHORT;
+        if (buffer.data.capacity() < sampleCount) buffer.data = ShortBuffer.allocate(sampleCount);
+        if (source != null) {
+            short[] samples = buffer.data.array();
+            int offset = source.position();
+            for (int i = 0; i < sampleCount; i++) {
+                samples[i] = source.getShort(offset + i * BYTES_PER_SHORT);
+            }
+        }
+        buffer.limit = sampleCount;
+        buffer.rewind();
+        mSize++;
+    }
+
+    /**
+     * @return Oldest buffer, which stays valid until {@link #remove()} is called.
+     */
+    AudioBuffer peek() {
+        return mSize == 0 ? null : mBuffers[mHead];
+    }
+
+    void remove() {
+        if (mSize == 0) throw new IllegalStateException("Audio buffer ring is empty.");
+        mHead = (mHead + 1) % mBuffers.length;
+        mSize--;
+    }
+}
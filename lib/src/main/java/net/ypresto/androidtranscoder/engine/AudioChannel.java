@@ -1,15 +1,13 @@
 package net.ypresto.androidtranscoder.engine;
 
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 
 import net.ypresto.androidtranscoder.compat.MediaCodecBufferCompatWrapper;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
-import java.util.ArrayDeque;
-import java.util.Queue;
 
 /**
  * Channel of raw audio from decoder to encoder.
@@ -17,22 +15,31 @@ import java.util.Queue;
  *
  * We currently support upmixing from mono to stereo & downmixing from stereo to mono.
  * Sample rate conversion is not supported yet.
+ *
+ * When playback speed is changed, remixed samples go through {@link TimeStretcher} to keep pitch.
+ * Loudness normalization is applied after that. Otherwise remixed samples are collected by
+ * {@link AudioFrameAccumulator}. Encoder is fed from output of the last stage by exactly one codec frame per
+ * input buffer, with timestamps counted from frames, so that every access unit has exact duration.
+ *
+ * Decoded samples are copied into preallocated ring and decoder buffer is released right away. Encoder is filled
+ * from preallocated frame buffer. Codec buffers are never wrapped by views, as MediaCodec on API 21+ hands new
+ * ByteBuffer for every dequeue, so that steady state of long recordings does not allocate per buffer.
  */
 class AudioChannel {
 
-    private static class AudioBuffer {
-        int bufferIndex;
-        long presentationTimeUs;
-        ShortBuffer data;
-    }
-
     public static final int BUFFER_INDEX_END_OF_STREAM = -1;
 
     private static final int BYTES_PER_SHORT = 2;
     private static final long MICROSECS_PER_SEC = 1000000;
+    // Stop taking decoded buffers while this many processed samples are waiting for encoder.
+    private static final int PROCESSED_SAMPLES_LIMIT = 16 * 1024;
+    // Decoder is not drained while ring is full, which bounds samples copied ahead of encoder.
+    private static final int MAX_FILLED_BUFFERS = 16;
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+    // SBR runs AAC core at half of sample rate.
+    private static final int HE_AAC_SAMPLES_PER_FRAME = 2048;
 
-    private final Queue<AudioBuffer> mEmptyBuffers = new ArrayDeque<>();
-    private final Queue<AudioBuffer> mFilledBuffers = new ArrayDeque<>();
+    private final AudioBufferRing mFilledBuffers = new AudioBufferRing(MAX_FILLED_BUFFERS);
 
     private final MediaCodec mDecoder;
     private final MediaCodec mEncoder;
@@ -47,10 +54,20 @@ class AudioChannel {
     private final MediaCodecBufferCompatWrapper mDecoderBuffers;
     private final MediaCodecBufferCompatWrapper mEncoderBuffers;
 
-    private final AudioBuffer mOverflowBuffer = new AudioBuffer();
-
     private MediaFormat mActualDecodedFormat;
 
+    private double mSpeed = 1.0;
+    private TimeStretcher mTimeStretcher;
+    private LoudnessNormalizer mLoudnessNormalizer;
+    private AudioFrameAccumulator mAccumulator;
+    private int mFrameSampleCount;
+    private ShortBuffer mRemixBuffer;
+    private ShortBuffer mStretchedBuffer;
+    private ShortBuffer mFrameBuffer;
+    private long mProcessStartPresentationTimeUs = -1;
+    private long mProcessedFrameCount;
+    private boolean mIsProcessFinished;
+    private boolean mIsEncoderEOSQueued;
 
     public AudioChannel(final MediaCodec decoder,
                         final MediaCodec encoder, final MediaFormat encodeFormat) {
@@ -62,6 +79,21 @@ class AudioChannel {
         mEncoderBuffers = new MediaCodecBufferCompatWrapper(mEncoder);
     }
 
+    /**
+     * Set playback speed. Should be called before decoded format is set.
+     */
+    public void setSpeed(double speed) {
+        mSpeed = speed;
+    }
+
+    /**
+     * Normalize loudness by given normalizer, which may be shared with channels of other segments.
+     * Should be called before decoded format is set.
+     */
+    public void setLoudnessNormalizer(LoudnessNormalizer loudnessNormalizer) {
+        mLoudnessNormalizer = loudnessNormalizer;
+    }
+
     public void setActualDecodedFormat(final MediaFormat decodedFormat) {
         mActualDecodedFormat = decodedFormat;
 
@@ -89,7 +121,21 @@ class AudioChannel {
             mRemixer = AudioRemixer.PASSTHROUGH;
         }
 
-        mOverflowBuffer.presentationTimeUs = 0;
+        mFrameSampleCount = getSamplesPerFrame(mEncodeFormat) * mOutputChannelCount;
+        mFrameBuffer = ShortBuffer.allocate(mFrameSampleCount);
+
+        if (mSpeed != 1.0) {
+            mTimeStretcher = new TimeStretcher(mInputSampleRate, mOutputChannelCount, mSpeed);
+        } else if (mLoudnessNormalizer == null && mAccumulator == null) {
+            mAccumulator = new AudioFrameAccumulator(mOutputChannelCount, PROCESSED_SAMPLES_LIMIT);
+        }
+    }
+
+    /**
+     * @return false if decoded buffers are not consumed by encoder yet, and decoder should not be drained.
+     */
+    public boolean canQueueDecoderBuffer() {
+        return !mFilledBuffers.isFull();
     }
 
     public void drainDecoderBufferAndQueue(final int bufferIndex, final long presentationTimeUs) {
@@ -97,135 +143,137 @@ class AudioChannel {
             throw new RuntimeException("Buffer received before format!");
         }
 
-        final ByteBuffer data =
-                bufferIndex == BUFFER_INDEX_END_OF_STREAM ?
-                        null : mDecoderBuffers.getOutputBuffer(bufferIndex);
-
-        AudioBuffer buffer = mEmptyBuffers.poll();
-        if (buffer == null) {
-            buffer = new AudioBuffer();
-        }
-
-        buffer.bufferIndex = bufferIndex;
-        buffer.presentationTimeUs = presentationTimeUs;
-        buffer.data = data == null ? null : data.asShortBuffer();
-
-        if (mOverflowBuffer.data == null) {
-            mOverflowBuffer.data = ByteBuffer
-                    .allocateDirect(data.capacity())
-                    .order(ByteOrder.nativeOrder())
-                    .asShortBuffer();
-            mOverflowBuffer.data.clear().flip();
+        if (bufferIndex == BUFFER_INDEX_END_OF_STREAM) {
+            mFilledBuffers.add(presentationTimeUs, null);
+            return;
         }
-
-        mFilledBuffers.add(buffer);
+        mFilledBuffers.add(presentationTimeUs, mDecoderBuffers.getOutputBuffer(bufferIndex));
+        mDecoder.releaseOutputBuffer(bufferIndex, false);
     }
 
     public boolean feedEncoder(long timeoutUs) {
-        final boolean hasOverflow = mOverflowBuffer.data != null && mOverflowBuffer.data.hasRemaining();
-        if (mFilledBuffers.isEmpty() && !hasOverflow) {
+        if (mActualDecodedFormat == null) {
             // No audio data - Bail out
             return false;
         }
+        while (!mFilledBuffers.isEmpty() && getProcessedSampleCount() < PROCESSED_SAMPLES_LIMIT) {
+            final AudioBufferRing.AudioBuffer inBuffer = mFilledBuffers.peek();
+            if (inBuffer.isEndOfStream) {
+                mFilledBuffers.remove();
+                if (mTimeStretcher != null) {
+                    mTimeStretcher.finish();
+                    normalizeStretchedSamples();
+                }
+                if (mLoudnessNormalizer != null) mLoudnessNormalizer.flush();
+                mIsProcessFinished = true;
+                break;
+            }
+            if (mProcessStartPresentationTimeUs < 0) {
+                mProcessStartPresentationTimeUs = (long) (inBuffer.presentationTimeUs / mSpeed);
+            }
+            writeProcessedSamples(remix(inBuffer));
+            mFilledBuffers.remove();
+        }
 
+        // Only the last frame may be partial.
+        final int availableSamples = getProcessedSampleCount();
+        final boolean hasFrame = availableSamples >= mFrameSampleCount || (mIsProcessFinished && availableSamples > 0);
+        if (!hasFrame && (!mIsProcessFinished || mIsEncoderEOSQueued)) {
+            return false;
+        }
         final int encoderInBuffIndex = mEncoder.dequeueInputBuffer(timeoutUs);
         if (encoderInBuffIndex < 0) {
             // Encoder is full - Bail out
             return false;
         }
-
-        // Drain overflow first
-        final ShortBuffer outBuffer = mEncoderBuffers.getInputBuffer(encoderInBuffIndex).asShortBuffer();
-        if (hasOverflow) {
-            final long presentationTimeUs = drainOverflow(outBuffer);
-            mEncoder.queueInputBuffer(encoderInBuffIndex,
-                    0, outBuffer.position() * BYTES_PER_SHORT,
-                    presentationTimeUs, 0);
-            return true;
-        }
-
-        final AudioBuffer inBuffer = mFilledBuffers.poll();
-        if (inBuffer.bufferIndex == BUFFER_INDEX_END_OF_STREAM) {
+        if (!hasFrame) {
             mEncoder.queueInputBuffer(encoderInBuffIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mIsEncoderEOSQueued = true;
             return false;
         }
 
-        final long presentationTimeUs = remixAndMaybeFillOverflow(inBuffer, outBuffer);
+        final ByteBuffer outBuffer = mEncoderBuffers.getInputBuffer(encoderInBuffIndex);
+        outBuffer.clear();
+        mFrameBuffer.clear();
+        if (outBuffer.remaining() / BYTES_PER_SHORT < mFrameSampleCount) {
+            mFrameBuffer.limit(outBuffer.remaining() / BYTES_PER_SHORT);
+        }
+        final long presentationTimeUs = Math.max(mProcessStartPresentationTimeUs, 0) +
+                mProcessedFrameCount * MICROSECS_PER_SEC / mInputSampleRate;
+        final int sampleCount = readProcessedSamples(mFrameBuffer);
+        final short[] samples = mFrameBuffer.array();
+        for (int i = 0; i < sampleCount; i++) {
+            outBuffer.putShort(i * BYTES_PER_SHORT, samples[i]);
+        }
+        mProcessedFrameCount += sampleCount / mOutputChannelCount;
         mEncoder.queueInputBuffer(encoderInBuffIndex,
-                0, outBuffer.position() * BYTES_PER_SHORT,
+                0, sampleCount * BYTES_PER_SHORT,
                 presentationTimeUs, 0);
-        if (inBuffer != null) {
-            mDecoder.releaseOutputBuffer(inBuffer.bufferIndex, false);
-            mEmptyBuffers.add(inBuffer);
-        }
-
         return true;
     }
 
-    private static long sampleCountToDurationUs(final int sampleCount,
-                                                final int sampleRate,
-                                                final int channelCount) {
-        return (sampleCount / (sampleRate * MICROSECS_PER_SEC)) / channelCount;
+    /**
+     * @return Samples per channel in one frame of encoder.
+     */
+    static int getSamplesPerFrame(MediaFormat encodeFormat) {
+        if (encodeFormat.containsKey(MediaFormat.KEY_AAC_PROFILE)) {
+            int profile = encodeFormat.getInteger(MediaFormat.KEY_AAC_PROFILE);
+            if (profile == MediaCodecInfo.CodecProfileLevel.AACObjectHE
+                    || profile == MediaCodecInfo.CodecProfileLevel.AACObjectHE_PS) {
+                return HE_AAC_SAMPLES_PER_FRAME;
+            }
+        }
+        return AAC_SAMPLES_PER_FRAME;
     }
 
-    private long drainOverflow(final ShortBuffer outBuff) {
-        final ShortBuffer overflowBuff = mOverflowBuffer.data;
-        final int overflowLimit = overflowBuff.limit();
-        final int overflowSize = overflowBuff.remaining();
-
-        final long beginPresentationTimeUs = mOverflowBuffer.presentationTimeUs +
-                sampleCountToDurationUs(overflowBuff.position(), mInputSampleRate, mOutputChannelCount);
-
-        outBuff.clear();
-        // Limit overflowBuff to outBuff's capacity
-        overflowBuff.limit(outBuff.capacity());
-        // Load overflowBuff onto outBuff
-        outBuff.put(overflowBuff);
+    // Returns decoded samples in output channel layout, remixed if needed.
+    private ShortBuffer remix(AudioBufferRing.AudioBuffer inBuffer) {
+        final ShortBuffer inBuff = inBuffer.data;
+        // Reset to valid samples, since storage of slot is reused.
+        inBuffer.rewind();
+        if (mRemixer == AudioRemixer.PASSTHROUGH) return inBuff;
+        final int remixedSize = inBuff.remaining() / mInputChannelCount * mOutputChannelCount;
+        if (mRemixBuffer == null || mRemixBuffer.capacity() < remixedSize) {
+            mRemixBuffer = ShortBuffer.allocate(remixedSize);
+        }
+        mRemixBuffer.clear();
+        mRemixer.remix(inBuff, mRemixBuffer);
+        mRemixBuffer.flip();
+        return mRemixBuffer;
+    }
 
-        if (overflowSize >= outBuff.capacity()) {
-            // Overflow fully consumed - Reset
-            overflowBuff.clear().limit(0);
+    private void writeProcessedSamples(ShortBuffer samples) {
+        if (mTimeStretcher != null) {
+            mTimeStretcher.write(samples);
+            normalizeStretchedSamples();
+        } else if (mLoudnessNormalizer != null) {
+            mLoudnessNormalizer.write(samples);
         } else {
-            // Only partially consumed - Keep position & restore previous limit
-            overflowBuff.limit(overflowLimit);
+            mAccumulator.write(samples);
         }
-
-        return beginPresentationTimeUs;
     }
 
-    private long remixAndMaybeFillOverflow(final AudioBuffer input,
-                                           final ShortBuffer outBuff) {
-        final ShortBuffer inBuff = input.data;
-        final ShortBuffer overflowBuff = mOverflowBuffer.data;
-
-        outBuff.clear();
-
-        // Reset position to 0, and set limit to capacity (Since MediaCodec doesn't do that for us)
-        inBuff.clear();
-
-        if (inBuff.remaining() > outBuff.remaining()) {
-            // Overflow
-            // Limit inBuff to outBuff's capacity
-            inBuff.limit(outBuff.capacity());
-            mRemixer.remix(inBuff, outBuff);
-
-            // Reset limit to its own capacity & Keep position
-            inBuff.limit(inBuff.capacity());
+    private int readProcessedSamples(ShortBuffer output) {
+        if (mLoudnessNormalizer != null) return mLoudnessNormalizer.read(output);
+        if (mTimeStretcher != null) return mTimeStretcher.read(output);
+        return mAccumulator.read(output);
+    }
 
-            // Remix the rest onto overflowBuffer
-            // NOTE: We should only reach this point when overflow buffer is empty
-            final long consumedDurationUs =
-                    sampleCountToDurationUs(inBuff.position(), mInputSampleRate, mInputChannelCount);
-            mRemixer.remix(inBuff, overflowBuff);
+    private int getProcessedSampleCount() {
+        if (mLoudnessNormalizer != null) return mLoudnessNormalizer.getAvailableSamples();
+        if (mTimeStretcher != null) return mTimeStretcher.getAvailableSamples();
+        return mAccumulator.getAvailableSamples();
+    }
 
-            // Seal off overflowBuff & mark limit
-            overflowBuff.flip();
-            mOverflowBuffer.presentationTimeUs = input.presentationTimeUs + consumedDurationUs;
-        } else {
-            // No overflow
-            mRemixer.remix(inBuff, outBuff);
+    // Moves output of stretcher to normalizer, if both are used.
+    private void normalizeStretchedSamples() {
+        if (mLoudnessNormalizer == null) return;
+        if (mStretchedBuffer == null) mStretchedBuffer = ShortBuffer.allocate(PROCESSED_SAMPLES_LIMIT);
+        while (mTimeStretcher.getAvailableSamples() > 0) {
+            mStretchedBuffer.clear();
+            mTimeStretcher.read(mStretchedBuffer);
+            mStretchedBuffer.flip();
+            mLoudnessNormalizer.write(mStretchedBuffer);
         }
-
-        return input.presentationTimeUs;
     }
 }
@@ -0,0 +1,56 @@
+package net.ypresto.androidtranscoder.engine;
+
+import java.nio.ShortBuffer;
+
+/**
+ * FIFO of interleaved 16-bit PCM, which collects remixed samples of arbitrarily sized decoder buffers so that
+ * encoder can be fed by whole codec frames. Storage grows to the largest backlog, then is reused.
+ */
+class AudioFrameAccumulator {
+    private final int mChannelCount;
+    private short[] mSamples;
+    private int mStart;
+    private int mLength;
+
+    AudioFrameAccumulator(int channelCount, int initialSampleCount) {
+        mChannelCount = channelCount;
+        mSamples = new short[initialSampleCount];
+    }
+
+    /**
+     * Write all remaining samples of input.
+     */
+    public void write(ShortBuffer input) {
+        int sampleCount = input.remaining() / mChannelCount * mChannelCount;
+        ensureCapacity(sampleCount);
+        input.get(mSamples, mStart + mLength, sampleCount);
+        mLength += sampleCount;
+    }
+
+    public int getAvailableSamples() {
+        return mLength;
+    }
+
+    /**
+     * Read samples as much as output has space.
+     *
+     * @return Number of samples read.
+     */
+    public int read(ShortBuffer output) {
+        int samples = Math.min(mLength, output.remaining() / mChannelCount * mChannelCount);
+        output.put(mSamples, mStart, samples);
+        mStart += samples;
+        mLength -= samples;
+        if (mLength == 0) mStart = 0;
+        return samples;
+    }
+
+    private void ensureCapacity(int sampleCount) {
+        int requiredSamples = mLength + sampleCount;
+        if (mStart + requiredSamples <= mSamples.length) return;
+        short[] samples = mSamples.length < requiredSamples ? new short[Math.max(requiredSamples, mSamples.length * 2)] : mSamples;
+        System.arraycopy(mSamples, mStart, samples, 0, mLength);
+        mSamples = samples;
+        mStart = 0;
+    }
+}
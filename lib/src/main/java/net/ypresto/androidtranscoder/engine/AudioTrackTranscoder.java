@@ -39,6 +39,8 @@ public class AudioTrackTranscoder implements TrackTranscoder {
     private boolean mEncoderStarted;
 
     private AudioChannel mAudioChannel;
+    private double mSpeed = 1.0;
+    private LoudnessNormalizer mLoudnessNormalizer;
 
     public AudioTrackTranscoder(MediaExtractor extractor, int trackIndex,
                                 MediaFormat outputFormat, QueuedMuxer muxer) {
@@ -50,11 +52,25 @@ public class AudioTrackTranscoder implements TrackTranscoder {
         mInputFormat = mExtractor.getTrackFormat(mTrackIndex);
     }
 
+    /**
+     * Change playback speed while keeping pitch. Should be called before {@link #setup()}.
+     */
+    public void setSpeed(double speed) {
+        mSpeed = speed;
+    }
+
+    /**
+     * Normalize loudness by given normalizer. Should be called before {@link #setup()}.
+     */
+    void setLoudnessNormalizer(LoudnessNormalizer loudnessNormalizer) {
+        mLoudnessNormalizer = loudnessNormalizer;
+    }
+
     @Override
     public void setup() {
         mExtractor.selectTrack(mTrackIndex);
         try {
-            mEncoder = MediaCodec.createEncoderByType(mOutputFormat.getString(MediaFormat.KEY_MIME));
+            mEncoder = ResourcePool.createEncoderByType(mOutputFormat.getString(MediaFormat.KEY_MIME));
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
@@ -65,7 +81,7 @@ public class AudioTrackTranscoder implements TrackTranscoder {
 
         final MediaFormat inputFormat = mExtractor.getTrackFormat(mTrackIndex);
         try {
-            mDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+            mDecoder = ResourcePool.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
@@ -75,6 +91,8 @@ public class AudioTrackTranscoder implements TrackTranscoder {
         mDecoderBuffers = new MediaCodecBufferCompatWrapper(mDecoder);
 
         mAudioChannel = new AudioChannel(mDecoder, mEncoder, mOutputFormat);
+        mAudioChannel.setSpeed(mSpeed);
+        mAudioChannel.setLoudnessNormalizer(mLoudnessNormalizer);
     }
 
     @Override
@@ -84,6 +102,11 @@ public class AudioTrackTranscoder implements TrackTranscoder {
 
     @Override
     public boolean stepPipeline() {
+        return stepPipeline(0);
+    }
+
+    @Override
+    public boolean stepPipeline(long timeoutUs) {
         boolean busy = false;
 
         int status;
@@ -97,6 +120,11 @@ public class AudioTrackTranscoder implements TrackTranscoder {
         while (mAudioChannel.feedEncoder(0)) busy = true;
         while (drainExtractor(0) != DRAIN_STATE_NONE) busy = true;
 
+        if (!busy && timeoutUs > 0) {
+            // Decoded samples are taken as soon as possible, unless encoder is what holds them back.
+            int waitStatus = !mIsDecoderEOS && mAudioChannel.canQueueDecoderBuffer() ? drainDecoder(timeoutUs) : drainEncoder(timeoutUs);
+            busy = waitStatus != DRAIN_STATE_NONE;
+        }
         return busy;
     }
 
@@ -124,6 +152,7 @@ public class AudioTrackTranscoder implements TrackTranscoder {
 
     private int drainDecoder(long timeoutUs) {
         if (mIsDecoderEOS) return DRAIN_STATE_NONE;
+        if (!mAudioChannel.canQueueDecoderBuffer()) return DRAIN_STATE_NONE;
 
         int result = mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
         switch (result) {
@@ -196,13 +225,11 @@ public class AudioTrackTranscoder implements TrackTranscoder {
     @Override
     public void release() {
         if (mDecoder != null) {
-            if (mDecoderStarted) mDecoder.stop();
-            mDecoder.release();
+            ResourcePool.recycle(mDecoder, mDecoderStarted);
             mDecoder = null;
         }
         if (mEncoder != null) {
-            if (mEncoderStarted) mEncoder.stop();
-            mEncoder.release();
+            ResourcePool.recycle(mEncoder, mEncoderStarted);
             mEncoder = null;
         }
     }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+/**
+ * Controls video bitrate so that output file lands on target size.
+ * <p>
+ * Bytes actually written to muxer are compared with elapsed presentation time, and remaining budget is spread
+ * over remaining duration, after subtracting audio bitrate measured so far. Encoder rate control does not hit
+ * requested bitrate exactly, but its error is corrected by following updates.
+ */
+class BitrateController {
+    private static final long UPDATE_INTERVAL_US = 1000 * 1000;
+    // Reserved for moov box and other container overhead.
+    private static final double CONTAINER_OVERHEAD_RATIO = 0.02;
+    private static final int MIN_VIDEO_BITRATE = 100 * 1000;
+    // Keeps requested bitrate from spiking near the end, where remaining duration is short.
+    private static final int MAX_BITRATE_RATIO_TO_INITIAL = 4;
+    // Avoids reconfiguring encoder for negligible changes.
+    private static final double MIN_CHANGE_RATIO = 0.05;
+    private final long mBudgetBytes;
+    private final long mDurationUs;
+    private final QueuedMuxer mMuxer;
+    private int mInitialVideoBitrate;
+    private int mVideoBitrate;
+    private long mLastUpdatePresentationTimeUs;
+
+    /**
+     * @param targetFileSize Target size of output file in bytes.
+     * @param durationUs     Duration of output in micro-second.
+     * @param muxer          Muxer of output, which counts written bytes.
+     */
+    BitrateController(long targetFileSize, long durationUs, QueuedMuxer muxer) {
+        if (targetFileSize <= 0 || durationUs <= 0) {
+            throw new IllegalArgumentException("Target file size and duration should be positive: " + targetFileSize + ", " + durationUs);
+        }
+        mBudgetBytes = (long) (targetFileSize * (1.0 - CONTAINER_OVERHEAD_RATIO));
+        mDurationUs = durationUs;
+        mMuxer = muxer;
+    }
+
+    /**
+     * Compute initial video bitrate from whole budget.
+     *
+     * @param audioBitrate Expected bitrate of audio, or 0 if there is no audio.
+     * @return Initial video bitrate.
+     */
+    public int computeInitialVideoBitrate(int audioBitrate) {
+        mInitialVideoBitrate = clamp(mBudgetBytes * 8 * 1000000 / mDurationUs - audioBitrate, Integer.MAX_VALUE);
+        mVideoBitrate = mInitialVideoBitrate;
+        return mVideoBitrate;
+    }
+
+    /**
+     * @return Video bitrate currently requested to encoder.
+     */
+    public int getVideoBitrate() {
+        return mVideoBitrate;
+    }
+
+    /**
+     * Update video bitrate from bytes written so far. Should be called after writing each video sample.
+     *
+     * @return Whether video bitrate is changed, and should be applied to encoder.
+     */
+    public boolean update() {
+        long elapsedUs = mMuxer.getWrittenEndPresentationTimeUs();
+        if (elapsedUs - mLastUpdatePresentationTimeUs < UPDATE_INTERVAL_US) return false;
+        mLastUpdatePresentationTimeUs = elapsedUs;
+        long remainingUs = mDurationUs - elapsedUs;
+        if (remainingUs < UPDATE_INTERVAL_US) return false;
+        long remainingBits = (mBudgetBytes - mMuxer.getWrittenByteCount()) * 8;
+        long audioBitrate = mMuxer.getWrittenByteCount(QueuedMuxer.SampleType.AUDIO) * 8 * 1000000 / elapsedUs;
+        int videoBitrate = clamp(remainingBits * 1000000 / remainingUs - audioBitrate, (long) mInitialVideoBitrate * MAX_BITRATE_RATIO_TO_INITIAL);
+        if (Math.abs(videoBitrate - mVideoBitrate) < mVideoBitrate * MIN_CHANGE_RATIO) return false;
+        mVideoBitrate = videoBitrate;
+        return true;
+    }
+
+    private static int clamp(long bitrate, long maxBitrate) {
+        return (int) Math.max(MIN_VIDEO_BITRATE, Math.min(maxBitrate, bitrate));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import net.ypresto.androidtranscoder.format.MediaFormatExtraConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 over things which determine output of a job, without reading whole input: track formats, sample table
+ * and chunks of bytes sampled across the file, together with output formats and options.
+ */
+class ContentFingerprint {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SAMPLED_CHUNK_COUNT = 16;
+    private static final int SAMPLED_CHUNK_SIZE = 4096;
+    // Keys written in this order, so that the same format gives the same bytes regardless of how it was built.
+    private static final String[] FORMAT_KEYS = {
+            MediaFormat.KEY_MIME, MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT, MediaFormat.KEY_BIT_RATE,
+            MediaFormat.KEY_BITRATE_MODE, MediaFormat.KEY_FRAME_RATE, MediaFormat.KEY_I_FRAME_INTERVAL,
+            MediaFormat.KEY_COLOR_FORMAT, MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT,
+            MediaFormat.KEY_AAC_PROFILE, MediaFormatExtraConstants.KEY_PROFILE, MediaFormatExtraConstants.KEY_LEVEL,
+            MediaFormat.KEY_DURATION, MediaFormatExtraConstants.KEY_ROTATION_DEGREES, MediaFormat.KEY_LANGUAGE,
+            "csd-0", "csd-1", "csd-2",
+    };
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final MessageDigest mDigest;
+    private final ByteBuffer mLongBuffer = ByteBuffer.allocate(8);
+
+    ContentFingerprint() {
+        try {
+            mDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void add(String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        add(bytes.length);
+        mDigest.update(bytes);
+    }
+
+    void add(long value) {
+        mLongBuffer.clear();
+        mLongBuffer.putLong(value);
+        mDigest.update(mLongBuffer.array());
+    }
+
+    void add(double value) {
+        add(Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Add format by its known keys, or marker of null format, e.g. pass-through of strategy.
+     */
+    void add(MediaFormat format) {
+        if (format == null) {
+            add(-1);
+            return;
+        }
+        for (String key : FORMAT_KEYS) {
+            if (!format.containsKey(key)) continue;
+            add(key);
+            addValue(format, key);
+        }
+        add(0);
+    }
+
+    /**
+     * Add time, flags and track of every sample, which changes with any edit of media. Reads only container index.
+     * Selection of extractor is changed.
+     */
+    void addSampleTable(MediaExtractor extractor) {
+        int trackCount = extractor.getTrackCount();
+        add(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            add(extractor.getTrackFormat(i));
+            extractor.selectTrack(i);
+        }
+        do {
+            int trackIndex = extractor.getSampleTrackIndex();
+            if (trackIndex < 0) break;
+            add(trackIndex);
+            add(extractor.getSampleTime());
+            add(extractor.getSampleFlags());
+        } while (extractor.advance());
+    }
+
+    /**
+     * Add size of file and chunks at evenly spaced positions including head and tail.
+     * Channel position is not changed.
+     */
+    void addSampledBytes(FileChannel channel) throws IOException {
+        long size = channel.size();
+        add(size);
+        ByteBuffer chunk = ByteBuffer.allocate(SAMPLED_CHUNK_SIZE);
+        long lastPosition = Math.max(0, size - SAMPLED_CHUNK_SIZE);
+        for (int i = 0; i < SAMPLED_CHUNK_COUNT; i++) {
+            long position = lastPosition * i / (SAMPLED_CHUNK_COUNT - 1);
+            chunk.clear();
+            while (chunk.hasRemaining()) {
+                int read = channel.read(chunk, position + chunk.position());
+                if (read < 0) break;
+            }
+            chunk.flip();
+            mDigest.update(chunk);
+        }
+    }
+
+    /**
+     * @return Fingerprint in hex. Fingerprint cannot be updated after this.
+     */
+    String finish() {
+        return toHex(mDigest.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    // MediaFormat does not tell type of value, so try them in turn.
+    private void addValue(MediaFormat format, String key) {
+        try {
+            add(format.getInteger(key));
+            return;
+        } catch (ClassCastException e) {
+            // try next
+        }
+        try {
+            add(format.getLong(key));
+            return;
+        } catch (ClassCastException e) {
+            // try next
+        }
+        try {
+            add(format.getFloat(key));
+            return;
+        } catch (ClassCastException e) {
+            // try next
+        }
+        try {
+            add(format.getString(key));
+            return;
+        } catch (ClassCastException e) {
+            // try next
+        }
+        ByteBuffer buffer = format.getByteBuffer(key).duplicate();
+        add(buffer.remaining());
+        mDigest.update(buffer);
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import net.ypresto.androidtranscoder.compat.MediaCodecBufferCompatWrapper;
+import net.ypresto.androidtranscoder.compat.MediaCodecListCompat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures which settings encode fastest on this device, by encoding short synthetic clip under each of them:
+ * hardware and software encoder, with and without operating rate, then number of encoders running at once.
+ * Clip is generated from a few YUV frames of moving gradient, so that nothing has to be bundled or decoded.
+ */
+class DeviceBenchmark {
+    private static final String TAG = "DeviceBenchmark";
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int FRAME_RATE = 30;
+    private static final int BIT_RATE = 5000 * 1000;
+    private static final int FRAME_COUNT = 90;
+    // Distinct frames cycled through clip, enough to keep encoder from skipping motion search.
+    private static final int DISTINCT_FRAME_COUNT = 4;
+    private static final long TIMEOUT_US = 10000;
+    private static final long CLIP_TIMEOUT_MS = 30000;
+    // 0 leaves operating rate unset. Short.MAX_VALUE asks for as fast as possible, which some encoders reject.
+    private static final int[] OPERATING_RATES = {0, 240, Short.MAX_VALUE};
+    private static final int MAX_CONCURRENT_JOBS = 4;
+    // Another concurrent job is allowed only when it adds this much throughput.
+    private static final double MIN_CONCURRENCY_GAIN = 1.15;
+
+    private DeviceBenchmark() {
+    }
+
+    /**
+     * Blocks for several seconds.
+     *
+     * @return Profile of fastest settings, or one with default settings if no encoder could be measured.
+     */
+    static DeviceProfile measure(String device, String mime) throws InterruptedException {
+        String bestEncoderName = null;
+        int bestOperatingRate = 0;
+        double bestFramesPerSecond = 0;
+        for (String encoderName : findEncoderCandidates(mime)) {
+            for (int operatingRate : OPERATING_RATES) {
+                if (operatingRate > 0 && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) continue;
+                double framesPerSecond = measureThroughput(mime, encoderName, operatingRate, 1);
+                Log.d(TAG, encoderName + " with operating rate " + operatingRate + ": " + framesPerSecond + " fps");
+                if (framesPerSecond > bestFramesPerSecond) {
+                    bestEncoderName = encoderName;
+                    bestOperatingRate = operatingRate;
+                    bestFramesPerSecond = framesPerSecond;
+                }
+            }
+        }
+        if (bestEncoderName == null) {
+            Log.w(TAG, "Could not measure any encoder for " + mime + ", using default settings.");
+            return new DeviceProfile(device, mime, null, 0, 1, 0);
+        }
+        double[] throughputs = new double[MAX_CONCURRENT_JOBS];
+        throughputs[0] = bestFramesPerSecond;
+        for (int i = 1; i < MAX_CONCURRENT_JOBS; i++) {
+            throughputs[i] = measureThroughput(mime, bestEncoderName, bestOperatingRate, i + 1);
+            Log.d(TAG, (i + 1) + " concurrent encoders: " + throughputs[i] + " fps in total");
+            // Failed to run this many, e.g. hardware encoder instances are exhausted.
+            if (throughputs[i] <= 0) break;
+        }
+        return new DeviceProfile(device, mime, bestEncoderName, bestOperatingRate, chooseConcurrency(throughputs),
+                bestFramesPerSecond);
+    }
+
+    /**
+     * @param throughputs Total frames per second of 1, 2, ... concurrent jobs, where 0 means failure.
+     * @return Number of concurrent jobs up to which each one raised throughput enough.
+     */
+    static int chooseConcurrency(double[] throughputs) {
+        int concurrency = 1;
+        while (concurrency < throughputs.length
+                && throughputs[concurrency] >= throughputs[concurrency - 1] * MIN_CONCURRENCY_GAIN) {
+            concurrency++;
+        }
+        return concurrency;
+    }
+
+    static boolean isSoftwareCodec(String codecName) {
+        return codecName.startsWith("OMX.google.") || codecName.startsWith("c2.android.") || codecName.startsWith("c2.google.");
+    }
+
+    // First hardware and first software encoder which take YUV buffers, in the order codec list prefers them.
+    private static List<String> findEncoderCandidates(String mime) {
+        String hardwareEncoderName = null;
+        String softwareEncoderName = null;
+        for (MediaCodecInfo codecInfo : new MediaCodecListCompat(MediaCodecListCompat.REGULAR_CODECS).getCodecInfos()) {
+            if (!codecInfo.isEncoder() || !Arrays.asList(codecInfo.getSupportedTypes()).contains(mime)) continue;
+            if (selectColorFormat(codecInfo, mime) < 0) continue;
+            if (isSoftwareCodec(codecInfo.getName())) {
+                if (softwareEncoderName == null) softwareEncoderName = codecInfo.getName();
+            } else if (hardwareEncoderName == null) {
+                hardwareEncoderName = codecInfo.getName();
+            }
+        }
+        List<String> encoderNames = new ArrayList<>();
+        if (hardwareEncoderName != null) encoderNames.add(hardwareEncoderName);
+        if (softwareEncoderName != null) encoderNames.add(softwareEncoderName);
+        return encoderNames;
+    }
+
+    private static int selectColorFormat(MediaCodecInfo codecInfo, String mime) {
+        for (int colorFormat : codecInfo.getCapabilitiesForType(mime).colorFormats) {
+            if (YuvFrame.isSupportedColorFormat(colorFormat)) return colorFormat;
+        }
+        return -1;
+    }
+
+    // Returns total frames per second of given number of encoders running at once, or 0 if any of them failed.
+    private static double measureThroughput(final String mime, final String encoderName, final int operatingRate,
+                                            int concurrency) throws InterruptedException {
+        final List<Exception> errors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        long startNs = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        encodeClip(mime, encoderName, operatingRate);
+                    } catch (IOException | RuntimeException e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            }, TAG);
+            threads.add(thread);
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            // On cancel, do not leave encoders running.
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        synchronized (errors) {
+            if (!errors.isEmpty()) {
+                Log.w(TAG, "Could not encode with " + encoderName + " (operating rate " + operatingRate + ", "
+                        + concurrency + " concurrent encoders).", errors.get(0));
+                return 0;
+            }
+        }
+        return (double) FRAME_COUNT * concurrency * 1000000000L / elapsedNs;
+    }
+
+    private static void encodeClip(String mime, String encoderName, int operatingRate) throws IOException {
+        MediaCodec encoder = MediaCodec.createByCodecName(encoderName);
+        boolean started = false;
+        try {
+            int colorFormat = selectColorFormat(encoder.getCodecInfo(), mime);
+            MediaFormat format = MediaFormat.createVideoFormat(mime, WIDTH, HEIGHT);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+            if (operatingRate > 0) DeviceProfile.applyOperatingRate(format, operatingRate);
+            YuvFrame[] frames = createFrames(colorFormat);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+            started = true;
+            drainClip(encoder, new MediaCodecBufferCompatWrapper(encoder), frames);
+        } finally {
+            if (started) encoder.stop();
+            encoder.release();
+        }
+    }
+
+    private static void drainClip(MediaCodec encoder, MediaCodecBufferCompatWrapper buffers, YuvFrame[] frames) {
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        long deadlineMs = System.currentTimeMillis() + CLIP_TIMEOUT_MS;
+        int queuedFrameCount = 0;
+        boolean isInputDone = false;
+        while (true) {
+            if (Thread.currentThread().isInterrupted() || System.currentTimeMillis() > deadlineMs) {
+                throw new IllegalStateException("Encoding benchmark clip was interrupted or timed out.");
+            }
+            if (!isInputDone) {
+                int index = encoder.dequeueInputBuffer(TIMEOUT_US);
+                if (index >= 0 && queuedFrameCount == FRAME_COUNT) {
+                    encoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    isInputDone = true;
+                } else if (index >= 0) {
+                    YuvFrame frame = frames[queuedFrameCount % frames.length];
+                    ByteBuffer buffer = buffers.getInputBuffer(index);
+                    buffer.clear();
+                    frame.writeTo(buffer);
+                    encoder.queueInputBuffer(index, 0, frame.mData.length, queuedFrameCount * 1000000L / FRAME_RATE, 0);
+                    queuedFrameCount++;
+                }
+            }
+            int result = encoder.dequeueOutputBuffer(bufferInfo, isInputDone ? TIMEOUT_US : 0);
+            if (result < 0) continue;
+            encoder.releaseOutputBuffer(result, false);
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) return;
+        }
+    }
+
+    private static YuvFrame[] createFrames(int colorFormat) {
+        YuvFrame[] frames = new YuvFrame[DISTINCT_FRAME_COUNT];
+        for (int i = 0; i < frames.length; i++) {
+            YuvFrame frame = YuvFrame.createForColorFormat(colorFormat, WIDTH, HEIGHT, WIDTH, HEIGHT);
+            for (int plane = YuvFrame.PLANE_Y; plane <= YuvFrame.PLANE_V; plane++) {
+                int width = frame.getPlaneWidth(plane);
+                int height = frame.getPlaneHeight(plane);
+                for (int y = 0; y < height; y++) {
+                    int rowOffset = frame.mOffsets[plane] + y * frame.mRowStrides[plane];
+                    for (int x = 0; x < width; x++) {
+                        // Diagonal gradient moving right by frame.
+                        int value = plane == YuvFrame.PLANE_Y ? x + y - i * 8 : 128 + (x - y) / 4 + plane * 16;
+                        frame.mData[rowOffset + x * frame.mPixelStrides[plane]] = (byte) value;
+                    }
+                }
+            }
+            frames[i] = frame;
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.annotation.TargetApi;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.util.Properties;
+
+/**
+ * Settings found fastest on this device by {@link DeviceBenchmark}, applied to later jobs.
+ * See {@link MediaTranscoderEngine#loadDeviceProfile(java.io.File)}.
+ */
+public class DeviceProfile {
+    // Bump when benchmark changes, so that profiles measured by older one are measured again.
+    static final int VERSION = 1;
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_DEVICE = "device";
+    private static final String KEY_VIDEO_MIME = "videoMime";
+    private static final String KEY_VIDEO_ENCODER_NAME = "videoEncoderName";
+    private static final String KEY_OPERATING_RATE = "operatingRate";
+    private static final String KEY_MAX_CONCURRENT_JOBS = "maxConcurrentJobs";
+    private static final String KEY_ENCODE_FRAMES_PER_SECOND = "encodeFramesPerSecond";
+
+    private final String mDevice;
+    private final String mVideoMime;
+    private final String mVideoEncoderName;
+    private final int mOperatingRate;
+    private final int mMaxConcurrentJobs;
+    private final double mEncodeFramesPerSecond;
+
+    DeviceProfile(String device, String videoMime, String videoEncoderName, int operatingRate, int maxConcurrentJobs,
+                  double encodeFramesPerSecond) {
+        mDevice = device;
+        mVideoMime = videoMime;
+        mVideoEncoderName = videoEncoderName;
+        mOperatingRate = operatingRate;
+        mMaxConcurrentJobs = maxConcurrentJobs;
+        mEncodeFramesPerSecond = encodeFramesPerSecond;
+    }
+
+    /**
+     * @return Model and OS version which this profile was measured on.
+     */
+    public String getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * @return Video codec which encoder was chosen for.
+     */
+    public String getVideoMime() {
+        return mVideoMime;
+    }
+
+    /**
+     * @return Name of video encoder to use, e.g. software one where it is faster than hardware.
+     */
+    public String getVideoEncoderName() {
+        return mVideoEncoderName;
+    }
+
+    /**
+     * @return Frame rate set as {@link MediaFormat#KEY_OPERATING_RATE} of video encoder, or 0 not to set it.
+     */
+    public int getOperatingRate() {
+        return mOperatingRate;
+    }
+
+    /**
+     * @return Number of jobs which can run at once before they slow each other down.
+     */
+    public int getMaxConcurrentJobs() {
+        return mMaxConcurrentJobs;
+    }
+
+    /**
+     * @return Frames per second of benchmark clip encoded with this profile by single job.
+     */
+    public double getEncodeFramesPerSecond() {
+        return mEncodeFramesPerSecond;
+    }
+
+    /**
+     * Set operating rate and priority to video encode format, unless strategy has set them.
+     */
+    void applyTo(MediaFormat videoEncodeFormat) {
+        if (mOperatingRate <= 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return;
+        if (!mVideoMime.equals(videoEncodeFormat.getString(MediaFormat.KEY_MIME))) return;
+        applyOperatingRate(videoEncodeFormat, mOperatingRate);
+    }
+
+    // Priority is raised too, as some encoders ignore operating rate of best effort codec.
+    @TargetApi(Build.VERSION_CODES.M)
+    static void applyOperatingRate(MediaFormat format, int operatingRate) {
+        if (!format.containsKey(MediaFormat.KEY_OPERATING_RATE)) format.setInteger(MediaFormat.KEY_OPERATING_RATE, operatingRate);
+        if (!format.containsKey(MediaFormat.KEY_PRIORITY)) format.setInteger(MediaFormat.KEY_PRIORITY, 0);
+    }
+
+    /**
+     * @return Key of current device, which profile is stored for.
+     */
+    static String getCurrentDevice() {
+        return Build.MANUFACTURER + " " + Build.MODEL + " / Android " + Build.VERSION.RELEASE + " (API " + Build.VERSION.SDK_INT + ")";
+    }
+
+    Properties toProperties() {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_VERSION, Integer.toString(VERSION));
+        properties.setProperty(KEY_DEVICE, mDevice);
+        properties.setProperty(KEY_VIDEO_MIME, mVideoMime);
+        if (mVideoEncoderName != null) properties.setProperty(KEY_VIDEO_ENCODER_NAME, mVideoEncoderName);
+        properties.setProperty(KEY_OPERATING_RATE, Integer.toString(mOperatingRate));
+        properties.setProperty(KEY_MAX_CONCURRENT_JOBS, Integer.toString(mMaxConcurrentJobs));
+        properties.setProperty(KEY_ENCODE_FRAMES_PER_SECOND, Double.toString(mEncodeFramesPerSecond));
+        return properties;
+    }
+
+    /**
+     * @return Profile stored in properties, or null if they are broken or written by other version.
+     */
+    static DeviceProfile fromProperties(Properties properties) {
+        try {
+            if (Integer.parseInt(properties.getProperty(KEY_VERSION, "0")) != VERSION) return null;
+            String device = properties.getProperty(KEY_DEVICE);
+            String videoMime = properties.getProperty(KEY_VIDEO_MIME);
+            if (device == null || videoMime == null) return null;
+            return new DeviceProfile(device, videoMime, properties.getProperty(KEY_VIDEO_ENCODER_NAME),
+                    Integer.parseInt(properties.getProperty(KEY_OPERATING_RATE, "")),
+                    Integer.parseInt(properties.getProperty(KEY_MAX_CONCURRENT_JOBS, "")),
+                    Double.parseDouble(properties.getProperty(KEY_ENCODE_FRAMES_PER_SECOND, "")));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceProfile{device=" + mDevice + ", videoMime=" + mVideoMime + ", videoEncoderName=" + mVideoEncoderName
+                + ", operatingRate=" + mOperatingRate + ", maxConcurrentJobs=" + mMaxConcurrentJobs
+                + ", encodeFramesPerSecond=" + mEncodeFramesPerSecond + "}";
+    }
+}
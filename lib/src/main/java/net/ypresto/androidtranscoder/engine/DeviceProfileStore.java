@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Keeps {@link DeviceProfile} in file, so that benchmark runs only once per device and OS version.
+ * File is replaced by rename, so that crash while saving leaves previous profile or none.
+ */
+class DeviceProfileStore {
+    private static final String TAG = "DeviceProfileStore";
+    private final File mFile;
+
+    DeviceProfileStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return Stored profile, or null if none is stored for given device.
+     */
+    DeviceProfile load(String device) {
+        if (!mFile.exists()) return null;
+        Properties properties = new Properties();
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(mFile);
+            properties.load(inputStream);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Could not read device profile, measuring again.", e);
+            return null;
+        } finally {
+            closeQuietly(inputStream);
+        }
+        DeviceProfile profile = DeviceProfile.fromProperties(properties);
+        // Updated OS or restored backup of other device should be measured again.
+        if (profile == null || !profile.getDevice().equals(device)) return null;
+        return profile;
+    }
+
+    void save(DeviceProfile profile) throws IOException {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(tempFile);
+        try {
+            profile.toProperties().store(outputStream, null);
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("Could not replace device profile: " + mFile);
+        }
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        if (inputStream == null) return;
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+/**
+ * Selects decoded frames to be encoded so that output does not exceed target frame rate.
+ * <p>
+ * Frames are selected by presentation time rather than by count, so variable frame rate input is handled:
+ * time is divided into slots of target frame interval, and only the first frame of each slot is kept.
+ * Kept frames keep their original presentation time, so A/V sync is not affected.
+ */
+class FrameDropper {
+    // Absorbs timestamp jitter, e.g. 29.97fps input for 30fps target should not drop any frame.
+    private static final double JITTER_TOLERANCE = 0.1;
+    private final double mFrameIntervalUs;
+    private long mFirstPresentationTimeUs = -1;
+    private long mLastSlot = -1;
+
+    /**
+     * @param targetFrameRate Maximum frame rate of output.
+     */
+    FrameDropper(double targetFrameRate) {
+        if (targetFrameRate <= 0) {
+            throw new IllegalArgumentException("Target frame rate should be positive: " + targetFrameRate);
+        }
+        mFrameIntervalUs = 1000000 / targetFrameRate;
+    }
+
+    double getFrameIntervalUs() {
+        return mFrameIntervalUs;
+    }
+
+    /**
+     * @return Whether frame of given presentation time should be rendered and encoded.
+     */
+    public boolean shouldRender(long presentationTimeUs) {
+        if (mFirstPresentationTimeUs < 0) mFirstPresentationTimeUs = presentationTimeUs;
+        long slot = (long) Math.floor((presentationTimeUs - mFirstPresentationTimeUs) / mFrameIntervalUs + JITTER_TOLERANCE);
+        if (slot <= mLastSlot) return false;
+        mLastSlot = slot;
+        return true;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Full-reference quality metrics of 8-bit luma planes, in pure Java.
+ */
+class FrameQuality {
+    // Cap of PSNR for identical planes, to keep averages finite.
+    static final double MAX_PSNR = 100.0;
+    private static final int SSIM_WINDOW = 8;
+    private static final int SSIM_STEP = 4;
+    private static final double SSIM_C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double SSIM_C2 = (0.03 * 255) * (0.03 * 255);
+
+    private FrameQuality() {
+    }
+
+    /**
+     * Convert RGBA pixels into full range BT.601 luma.
+     */
+    static void rgbaToLuma(ByteBuffer rgba, byte[] luma, int pixelCount) {
+        for (int i = 0; i < pixelCount; i++) {
+            int offset = i * 4;
+            int r = rgba.get(offset) & 0xff;
+            int g = rgba.get(offset + 1) & 0xff;
+            int b = rgba.get(offset + 2) & 0xff;
+            luma[i] = (byte) ((77 * r + 150 * g + 29 * b + 128) >> 8);
+        }
+    }
+
+    /**
+     * Compute mean SSIM over 8x8 windows placed every 4 pixels, with uniform weights.
+     *
+     * @return SSIM in [-1, 1], 1 for identical planes.
+     */
+    static double ssim(byte[] reference, byte[] distorted, int width, int height) {
+        if (width < SSIM_WINDOW || height < SSIM_WINDOW) {
+            throw new IllegalArgumentException("Plane is smaller than SSIM window: " + width + "x" + height);
+        }
+        double sum = 0;
+        int windowCount = 0;
+        double pixelCount = SSIM_WINDOW * SSIM_WINDOW;
+        for (int top = 0; top + SSIM_WINDOW <= height; top += SSIM_STEP) {
+            for (int left = 0; left + SSIM_WINDOW <= width; left += SSIM_STEP) {
+                long sumX = 0, sumY = 0, sumXX = 0, sumYY = 0, sumXY = 0;
+                for (int y = top; y < top + SSIM_WINDOW; y++) {
+                    int row = y * width;
+                    for (int x = left; x < left + SSIM_WINDOW; x++) {
+                        int a = reference[row + x] & 0xff;
+                        int b = distorted[row + x] & 0xff;
+                        sumX += a;
+                        sumY += b;
+                        sumXX += a * a;
+                        sumYY += b * b;
+                        sumXY += a * b;
+                    }
+                }
+                double meanX = sumX / pixelCount;
+                double meanY = sumY / pixelCount;
+                double varianceX = sumXX / pixelCount - meanX * meanX;
+                double varianceY = sumYY / pixelCount - meanY * meanY;
+                double covariance = sumXY / pixelCount - meanX * meanY;
+                sum += (2 * meanX * meanY + SSIM_C1) * (2 * covariance + SSIM_C2)
+                        / ((meanX * meanX + meanY * meanY + SSIM_C1) * (varianceX + varianceY + SSIM_C2));
+                windowCount++;
+            }
+        }
+        return sum / windowCount;
+    }
+
+    /**
+     * @return PSNR in dB, capped at {@link #MAX_PSNR}.
+     */
+    static double psnr(byte[] reference, byte[] distorted, int pixelCount) {
+        long squaredError = 0;
+        for (int i = 0; i < pixelCount; i++) {
+            int difference = (reference[i] & 0xff) - (distorted[i] & 0xff);
+            squaredError += difference * difference;
+        }
+        if (squaredError == 0) return MAX_PSNR;
+        double meanSquaredError = (double) squaredError / pixelCount;
+        return Math.min(MAX_PSNR, 10.0 * Math.log10(255.0 * 255.0 / meanSquaredError));
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.opengl.EGL14;
+import android.view.Surface;
+
+import java.util.ArrayDeque;
+
+/**
+ * Single thread which runs GL work of all concurrent jobs in one EGL context, so that parallel jobs do not make
+ * GPU driver switch between their own contexts. Surfaces of all jobs are created in the shared context.
+ * <p>
+ * Tasks are run in submission order, and each job waits for its task before submitting next one, so jobs with
+ * frames ready take turns frame by frame.
+ */
+class GlRenderThread {
+    private static final String TAG = "GlRenderThread";
+    private static GlRenderThread sInstance;
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<Task> mQueue = new ArrayDeque<>();
+    private final Thread mThread;
+    private int mJobCount;
+    private long mTotalBusyNs;
+    // Touched only on render thread.
+    private ResourcePool.PooledEglContext mEglContext;
+
+    private GlRenderThread() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    static synchronized GlRenderThread getInstance() {
+        if (sInstance == null) sInstance = new GlRenderThread();
+        return sInstance;
+    }
+
+    /**
+     * Starts submitting tasks of a job. Shared EGL context is kept while any job is registered.
+     */
+    Job register() {
+        synchronized (mLock) {
+            mJobCount++;
+            return new Job(this, mTotalBusyNs);
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            Task task;
+            synchronized (mLock) {
+                while (mQueue.isEmpty()) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Render thread lives as long as process.
+                    }
+                }
+                task = mQueue.removeFirst();
+            }
+            long startNs = System.nanoTime();
+            try {
+                task.mRunnable.run();
+            } catch (Throwable t) {
+                task.mThrowable = t;
+            }
+            long endNs = System.nanoTime();
+            synchronized (mLock) {
+                mTotalBusyNs += endNs - startNs;
+            }
+            task.mJob.onTaskFinished(startNs - task.mSubmittedNs, endNs - startNs);
+            task.finish();
+        }
+    }
+
+    private void run(Job job, Runnable runnable) {
+        if (Thread.currentThread() == mThread) {
+            runnable.run();
+            return;
+        }
+        Task task = new Task(job, runnable, System.nanoTime());
+        synchronized (mLock) {
+            mQueue.addLast(task);
+            mLock.notifyAll();
+        }
+        task.await();
+    }
+
+    private void onJobUnregistered() {
+        synchronized (mLock) {
+            mJobCount--;
+            if (mJobCount > 0) return;
+        }
+        if (mEglContext != null) {
+            // Keep context with its programs for next job, until pool evicts it.
+            EGL14.eglMakeCurrent(mEglContext.mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            ResourcePool.recycleEglContext(mEglContext.mDisplay, mEglContext.mConfig, mEglContext.mContext);
+            EGL14.eglReleaseThread();
+            mEglContext = null;
+        }
+    }
+
+    private InputSurface createInputSurface(Surface surface) {
+        if (Thread.currentThread() != mThread) {
+            throw new IllegalStateException("Input surface should be created on render thread.");
+        }
+        if (mEglContext == null) {
+            mEglContext = ResourcePool.acquireEglContext();
+            if (mEglContext == null) mEglContext = InputSurface.createEglContext();
+        }
+        return new InputSurface(surface, mEglContext);
+    }
+
+    /**
+     * Handle to submit GL tasks of a job, which also measures how the job was served by render thread.
+     */
+    static class Job {
+        private final GlRenderThread mRenderThread;
+        private final long mStartTotalBusyNs;
+        private long mEndTotalBusyNs = -1;
+        private boolean mIsUnregistered;
+        // Written on render thread, read after task is finished.
+        private int mTaskCount;
+        private long mTotalWaitNs;
+        private long mMaxWaitNs;
+        private long mBusyNs;
+
+        private Job(GlRenderThread renderThread, long startTotalBusyNs) {
+            mRenderThread = renderThread;
+            mStartTotalBusyNs = startTotalBusyNs;
+        }
+
+        /**
+         * Runs task on render thread and waits for it. Exception thrown by task is rethrown.
+         */
+        void run(Runnable runnable) {
+            if (mIsUnregistered) throw new IllegalStateException("Job is already unregistered.");
+            mRenderThread.run(this, runnable);
+        }
+
+        /**
+         * Creates window surface in shared EGL context. Should be called in task.
+         */
+        InputSurface createInputSurface(Surface surface) {
+            return mRenderThread.createInputSurface(surface);
+        }
+
+        /**
+         * Finishes job. Tasks cannot be run after this.
+         */
+        void unregister() {
+            if (mIsUnregistered) return;
+            run(new Runnable() {
+                @Override
+                public void run() {
+                    mRenderThread.onJobUnregistered();
+                }
+            });
+            mIsUnregistered = true;
+            synchronized (mRenderThread.mLock) {
+                mEndTotalBusyNs = mRenderThread.mTotalBusyNs;
+            }
+        }
+
+        private void onTaskFinished(long waitNs, long busyNs) {
+            mTaskCount++;
+            mTotalWaitNs += waitNs;
+            mMaxWaitNs = Math.max(mMaxWaitNs, waitNs);
+            mBusyNs += busyNs;
+        }
+
+        int getTaskCount() {
+            return mTaskCount;
+        }
+
+        /**
+         * @return Mean time tasks waited for render thread in microseconds, i.e. latency added by other jobs.
+         */
+        long getAverageWaitUs() {
+            return mTaskCount == 0 ? 0 : mTotalWaitNs / mTaskCount / 1000;
+        }
+
+        long getMaxWaitUs() {
+            return mMaxWaitNs / 1000;
+        }
+
+        /**
+         * @return Fraction of render thread time spent for this job while it was registered, which is around
+         * 1 / (number of concurrent jobs) for fairly served jobs with similar load.
+         */
+        double getShare() {
+            long endTotalBusyNs;
+            synchronized (mRenderThread.mLock) {
+                endTotalBusyNs = mEndTotalBusyNs >= 0 ? mEndTotalBusyNs : mRenderThread.mTotalBusyNs;
+            }
+            long totalBusyNs = endTotalBusyNs - mStartTotalBusyNs;
+            return totalBusyNs <= 0 ? Double.NaN : (double) mBusyNs / totalBusyNs;
+        }
+    }
+
+    private static class Task {
+        private final Job mJob;
+        private final Runnable mRunnable;
+        private final long mSubmittedNs;
+        private boolean mIsFinished;
+        private Throwable mThrowable;
+
+        private Task(Job job, Runnable runnable, long submittedNs) {
+            mJob = job;
+            mRunnable = runnable;
+            mSubmittedNs = submittedNs;
+        }
+
+        private synchronized void finish() {
+            mIsFinished = true;
+            notifyAll();
+        }
+
+        private void await() {
+            boolean interrupted = false;
+            synchronized (this) {
+                // Task touches state of caller, so it cannot be abandoned even on cancel.
+                while (!mIsFinished) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            if (mThrowable instanceof RuntimeException) throw (RuntimeException) mThrowable;
+            if (mThrowable instanceof Error) throw (Error) mThrowable;
+            if (mThrowable != null) throw new RuntimeException(mThrowable);
+        }
+    }
+}
@@ -15,6 +15,9 @@
  */
 // from: https://android.googlesource.com/platform/cts/+/lollipop-release/tests/tests/media/src/android/media/cts/InputSurface.java
 // blob: 157ed88d143229e4edb6889daf18fb73aa2fc5a5
+// modified: add constructor which shares EGL context with another InputSurface
+// modified: forget cached programs when EGL context is destroyed.
+// modified: return EGL context to ResourcePool, and add constructor taking context of GlRenderThread.
 package net.ypresto.androidtranscoder.engine;
 import android.opengl.EGL14;
 import android.opengl.EGLConfig;
@@ -36,6 +39,8 @@ class InputSurface {
     private EGLDisplay mEGLDisplay = EGL14.EGL_NO_DISPLAY;
     private EGLContext mEGLContext = EGL14.EGL_NO_CONTEXT;
     private EGLSurface mEGLSurface = EGL14.EGL_NO_SURFACE;
+    private EGLConfig mEGLConfig;
+    private boolean mOwnsEGLContext;
     private Surface mSurface;
     /**
      * Creates an InputSurface from a Surface.
@@ -45,19 +50,45 @@ class InputSurface {
             throw new NullPointerException();
         }
         mSurface = surface;
+        mOwnsEGLContext = true;
         eglSetup();
     }
     /**
-     * Prepares EGL.  We want a GLES 2.0 context and a surface that supports recording.
+     * Creates an InputSurface from a Surface, using EGL context owned by caller, e.g. {@link GlRenderThread}.
+     */
+    InputSurface(Surface surface, ResourcePool.PooledEglContext context) {
+        if (surface == null) {
+            throw new NullPointerException();
+        }
+        mSurface = surface;
+        mEGLDisplay = context.mDisplay;
+        mEGLContext = context.mContext;
+        mEGLConfig = context.mConfig;
+        createWindowSurface();
+    }
+    /**
+     * Prepares EGL, reusing pooled context if any.
      */
     private void eglSetup() {
-        mEGLDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
-        if (mEGLDisplay == EGL14.EGL_NO_DISPLAY) {
+        ResourcePool.PooledEglContext context = ResourcePool.acquireEglContext();
+        if (context == null) {
+            context = createEglContext();
+        }
+        mEGLDisplay = context.mDisplay;
+        mEGLContext = context.mContext;
+        mEGLConfig = context.mConfig;
+        createWindowSurface();
+    }
+    /**
+     * Creates EGL context.  We want a GLES 2.0 context and a surface that supports recording.
+     */
+    static ResourcePool.PooledEglContext createEglContext() {
+        EGLDisplay display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (display == EGL14.EGL_NO_DISPLAY) {
             throw new RuntimeException("unable to get EGL14 display");
         }
         int[] version = new int[2];
-        if (!EGL14.eglInitialize(mEGLDisplay, version, 0, version, 1)) {
-            mEGLDisplay = null;
+        if (!EGL14.eglInitialize(display, version, 0, version, 1)) {
             throw new RuntimeException("unable to initialize EGL14");
         }
         // Configure EGL for recordable and OpenGL ES 2.0.  We want enough RGB bits
@@ -72,7 +103,7 @@ class InputSurface {
         };
         EGLConfig[] configs = new EGLConfig[1];
         int[] numConfigs = new int[1];
-        if (!EGL14.eglChooseConfig(mEGLDisplay, attribList, 0, configs, 0, configs.length,
+        if (!EGL14.eglChooseConfig(display, attribList, 0, configs, 0, configs.length,
                 numConfigs, 0)) {
             throw new RuntimeException("unable to find RGB888+recordable ES2 EGL config");
         }
@@ -81,17 +112,22 @@ class InputSurface {
                 EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
                 EGL14.EGL_NONE
         };
-        mEGLContext = EGL14.eglCreateContext(mEGLDisplay, configs[0], EGL14.EGL_NO_CONTEXT,
+        EGLContext context = EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT,
                 attrib_list, 0);
         checkEglError("eglCreateContext");
-        if (mEGLContext == null) {
+        if (context == null) {
             throw new RuntimeException("null context");
         }
-        // Create a window surface, and attach it to the Surface we received.
+        return new ResourcePool.PooledEglContext(display, configs[0], context);
+    }
+    /**
+     * Creates a window surface, and attach it to the Surface we received.
+     */
+    private void createWindowSurface() {
         int[] surfaceAttribs = {
                 EGL14.EGL_NONE
         };
-        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, configs[0], mSurface,
+        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, mEGLConfig, mSurface,
                 surfaceAttribs, 0);
         checkEglError("eglCreateWindowSurface");
         if (mEGLSurface == null) {
@@ -99,15 +135,21 @@ class InputSurface {
         }
     }
     /**
-     * Discard all resources held by this class, notably the EGL context.  Also releases the
-     * Surface that was passed to our constructor.
+     * Discard all resources held by this class.  The EGL context is returned to {@link ResourcePool}
+     * for next job.  Also releases the Surface that was passed to our constructor.
      */
     public void release() {
         if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
+            if (mOwnsEGLContext) {
+                EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                        EGL14.EGL_NO_CONTEXT);
+            }
             EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
-            EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
-            EGL14.eglReleaseThread();
-            EGL14.eglTerminate(mEGLDisplay);
+            if (mOwnsEGLContext) {
+                // Display is not terminated, as pooled contexts and other jobs still use it.
+                ResourcePool.recycleEglContext(mEGLDisplay, mEGLConfig, mEGLContext);
+                EGL14.eglReleaseThread();
+            }
         }
         mSurface.release();
         mEGLDisplay = EGL14.EGL_NO_DISPLAY;
@@ -166,7 +208,7 @@ class InputSurface {
     /**
      * Checks for EGL errors.
      */
-    private void checkEglError(String msg) {
+    private static void checkEglError(String msg) {
         int error;
         if ((error = EGL14.eglGetError()) != EGL14.EGL_SUCCESS) {
             throw new RuntimeException(msg + ": EGL error: 0x" + Integer.toHexString(error));
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+/**
+ * Loudness meter of ITU-R BS.1770-4 / EBU R128 for interleaved 16-bit PCM, which runs in bounded memory.
+ * <p>
+ * Samples are K-weighted and their energy is summed per 100ms step. Gating blocks are 400ms with 75% overlap.
+ * Blocks are counted in a histogram of 0.1 LU bins instead of being stored, so integrated loudness of any length
+ * of stream is computed from fixed size state.
+ */
+class LoudnessMeter {
+    private static final double ABSOLUTE_GATE_LUFS = -70.0;
+    private static final double RELATIVE_GATE_LU = -10.0;
+    private static final double HISTOGRAM_MAX_LUFS = 10.0;
+    private static final double HISTOGRAM_BIN_LU = 0.1;
+    private static final int HISTOGRAM_BIN_COUNT = (int) Math.round((HISTOGRAM_MAX_LUFS - ABSOLUTE_GATE_LUFS) / HISTOGRAM_BIN_LU);
+    private static final int STEPS_PER_BLOCK = 4;
+    private static final int STEPS_PER_SHORT_TERM = 30;
+    private final int mChannelCount;
+    private final int mStepFrames;
+    // Two biquads per channel: high shelf then high pass. State is {x1, x2, y1, y2} of each.
+    private final double[] mShelfB = new double[3];
+    private final double[] mShelfA = new double[3];
+    private final double[] mHighPassB = new double[3];
+    private final double[] mHighPassA = new double[3];
+    private final double[] mFilterState;
+    private final double[] mStepEnergies = new double[STEPS_PER_SHORT_TERM];
+    private final long[] mHistogramCounts = new long[HISTOGRAM_BIN_COUNT];
+    private final double[] mHistogramEnergies = new double[HISTOGRAM_BIN_COUNT];
+    private double mCurrentStepEnergy;
+    private int mCurrentStepFrames;
+    private long mStepCount;
+
+    LoudnessMeter(int sampleRate, int channelCount) {
+        mChannelCount = channelCount;
+        mStepFrames = sampleRate / 10;
+        mFilterState = new double[channelCount * 8];
+
+        // Coefficients are derived for given sample rate, from filter parameters matching 48kHz ones of BS.1770.
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10.0, 3.999843853973347 / 20.0);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1.0 + k / q + k * k;
+        mShelfB[0] = (vh + vb * k / q + k * k) / a0;
+        mShelfB[1] = 2.0 * (k * k - vh) / a0;
+        mShelfB[2] = (vh - vb * k / q + k * k) / a0;
+        mShelfA[1] = 2.0 * (k * k - 1.0) / a0;
+        mShelfA[2] = (1.0 - k / q + k * k) / a0;
+
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1.0 + k / q + k * k;
+        mHighPassB[0] = 1.0;
+        mHighPassB[1] = -2.0;
+        mHighPassB[2] = 1.0;
+        mHighPassA[1] = 2.0 * (k * k - 1.0) / a0;
+        mHighPassA[2] = (1.0 - k / q + k * k) / a0;
+    }
+
+    /**
+     * Measure interleaved samples.
+     */
+    public void write(short[] samples, int offset, int frameCount) {
+        for (int frame = 0; frame < frameCount; frame++) {
+            int base = offset + frame * mChannelCount;
+            for (int channel = 0; channel < mChannelCount; channel++) {
+                double weighted = filter(channel, samples[base + channel] / 32768.0);
+                // Weights of left, right and center channels are 1.0.
+                mCurrentStepEnergy += weighted * weighted;
+            }
+            if (++mCurrentStepFrames == mStepFrames) {
+                finishStep();
+            }
+        }
+    }
+
+    /**
+     * @return Integrated (gated) loudness in LUFS, or {@link Double#NEGATIVE_INFINITY} if no block is above absolute gate.
+     */
+    public double getIntegratedLoudness() {
+        double energy = 0;
+        long count = 0;
+        for (int i = 0; i < HISTOGRAM_BIN_COUNT; i++) {
+            energy += mHistogramEnergies[i];
+            count += mHistogramCounts[i];
+        }
+        if (count == 0) return Double.NEGATIVE_INFINITY;
+        double relativeGate = energyToLoudness(energy / count) + RELATIVE_GATE_LU;
+        int firstBin = Math.max(0, binOf(relativeGate));
+        energy = 0;
+        count = 0;
+        for (int i = firstBin; i < HISTOGRAM_BIN_COUNT; i++) {
+            energy += mHistogramEnergies[i];
+            count += mHistogramCounts[i];
+        }
+        return count == 0 ? Double.NEGATIVE_INFINITY : energyToLoudness(energy / count);
+    }
+
+    /**
+     * @return Loudness of last 3 seconds in LUFS, or {@link Double#NEGATIVE_INFINITY} if it is shorter than 3 seconds.
+     */
+    public double getShortTermLoudness() {
+        if (mStepCount < STEPS_PER_SHORT_TERM) return Double.NEGATIVE_INFINITY;
+        return energyToLoudness(sumRecentSteps(STEPS_PER_SHORT_TERM) / STEPS_PER_SHORT_TERM);
+    }
+
+    private double filter(int channel, double input) {
+        int state = channel * 8;
+        double[] s = mFilterState;
+        double shelf = mShelfB[0] * input + mShelfB[1] * s[state] + mShelfB[2] * s[state + 1]
+                - mShelfA[1] * s[state + 2] - mShelfA[2] * s[state + 3];
+        s[state + 1] = s[state];
+        s[state] = input;
+        s[state + 3] = s[state + 2];
+        s[state + 2] = shelf;
+        double output = mHighPassB[0] * shelf + mHighPassB[1] * s[state + 4] + mHighPassB[2] * s[state + 5]
+                - mHighPassA[1] * s[state + 6] - mHighPassA[2] * s[state + 7];
+        s[state + 5] = s[state + 4];
+        s[state + 4] = shelf;
+        s[state + 7] = s[state + 6];
+        s[state + 6] = output;
+        return output;
+    }
+
+    private void finishStep() {
+        mStepEnergies[(int) (mStepCount % STEPS_PER_SHORT_TERM)] = mCurrentStepEnergy / mStepFrames;
+        mStepCount++;
+        mCurrentStepEnergy = 0;
+        mCurrentStepFrames = 0;
+        if (mStepCount < STEPS_PER_BLOCK) return;
+        double blockEnergy = sumRecentSteps(STEPS_PER_BLOCK) / STEPS_PER_BLOCK;
+        double blockLoudness = energyToLoudness(blockEnergy);
+        if (blockLoudness <= ABSOLUTE_GATE_LUFS) return;
+        int bin = Math.min(binOf(blockLoudness), HISTOGRAM_BIN_COUNT - 1);
+        mHistogramCounts[bin]++;
+        mHistogramEnergies[bin] += blockEnergy;
+    }
+
+    private double sumRecentSteps(int stepCount) {
+        double energy = 0;
+        for (int i = 1; i <= stepCount; i++) {
+            energy += mStepEnergies[(int) ((mStepCount - i) % STEPS_PER_SHORT_TERM)];
+        }
+        return energy;
+    }
+
+    private static int binOf(double loudness) {
+        return (int) Math.floor((loudness - ABSOLUTE_GATE_LUFS) / HISTOGRAM_BIN_LU);
+    }
+
+    private static double energyToLoudness(double energy) {
+        return -0.691 + 10.0 * Math.log10(energy);
+    }
+}
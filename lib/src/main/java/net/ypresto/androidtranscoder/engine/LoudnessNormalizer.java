@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Normalizes loudness of interleaved 16-bit PCM in single pass.
+ * <p>
+ * Gain follows integrated loudness of input measured so far, so it converges to target loudness within first
+ * seconds and stays stable after that. Peaks raised above ceiling are caught by lookahead limiter, whose delay is
+ * compensated so that output stays aligned with input. Loudness of both input and output is measured.
+ * <p>
+ * Can be used across segments of concatenated inputs; call {@link #flush()} at the end of each segment.
+ */
+class LoudnessNormalizer {
+    private static final double CEILING_DBFS = -1.0;
+    private static final double MAX_GAIN_DB = 20.0;
+    private static final double MIN_GAIN_DB = -30.0;
+    private static final double GAIN_TIME_CONSTANT_SEC = 0.5;
+    private static final double LOOKAHEAD_SEC = 0.005;
+    private static final double RELEASE_TIME_CONSTANT_SEC = 0.1;
+    private final double mTargetLoudness;
+    private final int mChannelCount;
+    private final LoudnessMeter mInputMeter;
+    private final LoudnessMeter mOutputMeter;
+    private final double mCeiling;
+    private final double mGainCoefficient;
+    private final double mAttackCoefficient;
+    private final double mReleaseCoefficient;
+    private final int mLookaheadFrames;
+    // Delay line of gained samples, and sliding minimum of gains required by them including the delayed one.
+    private final double[] mDelay;
+    private final double[] mMinimumGains;
+    private final long[] mMinimumGainFrames;
+    private int mMinimumHead;
+    private int mMinimumCount;
+    private long mFrameCount;
+    private int mPrimingFrames;
+    private double mGain = 1.0;
+    private double mTargetGain = 1.0;
+    private double mEnvelope = 1.0;
+    private short[] mInput = new short[0];
+    private short[] mOutput;
+    private int mOutputStart;
+    private int mOutputLength;
+
+    /**
+     * @param targetLoudness Target integrated loudness in LUFS, e.g. -16.
+     */
+    LoudnessNormalizer(double targetLoudness, int sampleRate, int channelCount) {
+        mTargetLoudness = targetLoudness;
+        mChannelCount = channelCount;
+        mInputMeter = new LoudnessMeter(sampleRate, channelCount);
+        mOutputMeter = new LoudnessMeter(sampleRate, channelCount);
+        mCeiling = Math.pow(10.0, CEILING_DBFS / 20.0) * Short.MAX_VALUE;
+        mGainCoefficient = 1.0 - Math.exp(-1.0 / (GAIN_TIME_CONSTANT_SEC * sampleRate));
+        mLookaheadFrames = Math.max(1, (int) Math.round(LOOKAHEAD_SEC * sampleRate));
+        // Reaches 99% of required gain reduction within lookahead.
+        mAttackCoefficient = 1.0 - Math.exp(-4.6 / mLookaheadFrames);
+        mReleaseCoefficient = 1.0 - Math.exp(-1.0 / (RELEASE_TIME_CONSTANT_SEC * sampleRate));
+        mDelay = new double[mLookaheadFrames * channelCount];
+        mMinimumGains = new double[mLookaheadFrames + 1];
+        mMinimumGainFrames = new long[mLookaheadFrames + 1];
+        mPrimingFrames = mLookaheadFrames;
+        mOutput = new short[sampleRate / 10 * channelCount];
+    }
+
+    /**
+     * Write all remaining samples of input.
+     */
+    public void write(ShortBuffer input) {
+        int sampleCount = input.remaining() / mChannelCount * mChannelCount;
+        if (mInput.length < sampleCount) mInput = new short[sampleCount];
+        input.get(mInput, 0, sampleCount);
+        int frameCount = sampleCount / mChannelCount;
+        mInputMeter.write(mInput, 0, frameCount);
+        double loudness = mInputMeter.getIntegratedLoudness();
+        if (!Double.isInfinite(loudness)) {
+            double gainDb = Math.max(MIN_GAIN_DB, Math.min(MAX_GAIN_DB, mTargetLoudness - loudness));
+            mTargetGain = Math.pow(10.0, gainDb / 20.0);
+        }
+        ensureOutputCapacity(frameCount);
+        for (int frame = 0; frame < frameCount; frame++) {
+            processFrame(mInput, frame * mChannelCount);
+        }
+    }
+
+    /**
+     * Output samples delayed by limiter, e.g. at the end of stream.
+     */
+    public void flush() {
+        short[] silence = new short[mChannelCount];
+        ensureOutputCapacity(mLookaheadFrames);
+        for (int i = 0; i < mLookaheadFrames; i++) {
+            processFrame(silence, 0);
+        }
+        // Delay line is filled by silence now, which should not be output at the head of next segment.
+        mPrimingFrames = mLookaheadFrames;
+    }
+
+    /**
+     * @return Number of samples (not frames) ready to be read.
+     */
+    public int getAvailableSamples() {
+        return mOutputLength;
+    }
+
+    /**
+     * Read normalized samples as much as output has space.
+     *
+     * @return Number of samples (not frames) read.
+     */
+    public int read(ShortBuffer output) {
+        int samples = Math.min(mOutputLength, output.remaining() / mChannelCount * mChannelCount);
+        output.put(mOutput, mOutputStart, samples);
+        mOutputStart += samples;
+        mOutputLength -= samples;
+        if (mOutputLength == 0) mOutputStart = 0;
+        return samples;
+    }
+
+    /**
+     * @return Integrated loudness of input in LUFS.
+     */
+    public double getInputLoudness() {
+        return mInputMeter.getIntegratedLoudness();
+    }
+
+    /**
+     * @return Integrated loudness of output in LUFS.
+     */
+    public double getOutputLoudness() {
+        return mOutputMeter.getIntegratedLoudness();
+    }
+
+    private void processFrame(short[] input, int offset) {
+        mGain += (mTargetGain - mGain) * mGainCoefficient;
+        double peak = 0;
+        for (int channel = 0; channel < mChannelCount; channel++) {
+            peak = Math.max(peak, Math.abs(input[offset + channel] * mGain));
+        }
+        pushRequiredGain(peak > mCeiling ? mCeiling / peak : 1.0);
+        // Envelope for the delayed frame follows minimum gain required in lookahead window.
+        double minimumGain = mMinimumGains[mMinimumHead];
+        mEnvelope += (minimumGain - mEnvelope) * (minimumGain < mEnvelope ? mAttackCoefficient : mReleaseCoefficient);
+        int delayIndex = (int) (mFrameCount % mLookaheadFrames) * mChannelCount;
+        int outputIndex = mOutputStart + mOutputLength;
+        for (int channel = 0; channel < mChannelCount; channel++) {
+            double delayed = mDelay[delayIndex + channel] * mEnvelope;
+            mOutput[outputIndex + channel] = (short) Math.round(Math.max(-mCeiling, Math.min(mCeiling, delayed)));
+            mDelay[delayIndex + channel] = input[offset + channel] * mGain;
+        }
+        mFrameCount++;
+        if (mPrimingFrames > 0) {
+            mPrimingFrames--;
+            return;
+        }
+        mOutputMeter.write(mOutput, outputIndex, 1);
+        mOutputLength += mChannelCount;
+    }
+
+    // Keeps candidates of minimum in monotonic queue, so that minimum of sliding window is found in O(1).
+    private void pushRequiredGain(double gain) {
+        int capacity = mMinimumGains.length;
+        while (mMinimumCount > 0 && mMinimumGains[(mMinimumHead + mMinimumCount - 1) % capacity] >= gain) {
+            mMinimumCount--;
+        }
+        int tail = (mMinimumHead + mMinimumCount) % capacity;
+        mMinimumGains[tail] = gain;
+        mMinimumGainFrames[tail] = mFrameCount;
+        mMinimumCount++;
+        while (mMinimumGainFrames[mMinimumHead] <= mFrameCount - capacity) {
+            mMinimumHead = (mMinimumHead + 1) % capacity;
+            mMinimumCount--;
+        }
+    }
+
+    private void ensureOutputCapacity(int frames) {
+        int requiredSamples = mOutputLength + frames * mChannelCount;
+        if (mOutputStart + requiredSamples <= mOutput.length) return;
+        short[] output = mOutput.length < requiredSamples ? new short[Math.max(requiredSamples, mOutput.length * 2)] : mOutput;
+        System.arraycopy(mOutput, mOutputStart, output, 0, mOutputLength);
+        mOutput = output;
+        mOutputStart = 0;
+    }
+}
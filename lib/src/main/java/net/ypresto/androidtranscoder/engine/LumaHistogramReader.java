@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads luma histogram of frame latched to {@link OutputSurface}, by drawing it downscaled into framebuffer.
+ * <p>
+ * Reading is split into {@link #start(OutputSurface)} and {@link #finish(int[])}. On GLES3, pixels are read into
+ * pixel buffer object, so that GL commands issued in between (e.g. drawing the frame for encoder) are not blocked
+ * by the readback. Otherwise pixels are read synchronously on start.
+ */
+class LumaHistogramReader {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 36;
+    private static final int BYTES_PER_PIXEL = 4;
+    private final int[] mSavedViewport = new int[4];
+    private ByteBuffer mReadBuffer;
+    private int mFramebuffer;
+    private int mTexture;
+    private int mPixelBuffer;
+
+    /**
+     * Draw latched frame and start reading its pixels.
+     */
+    public void start(OutputSurface outputSurface) {
+        if (mFramebuffer == 0) setupGlResources();
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glViewport(0, 0, WIDTH, HEIGHT);
+        outputSurface.drawImage();
+        if (mPixelBuffer != 0) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffer);
+            GLES30.glReadPixels(0, 0, WIDTH, HEIGHT, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        } else {
+            mReadBuffer.clear();
+            GLES20.glReadPixels(0, 0, WIDTH, HEIGHT, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mReadBuffer);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(mSavedViewport[0], mSavedViewport[1], mSavedViewport[2], mSavedViewport[3]);
+    }
+
+    /**
+     * Wait for pixels read by {@link #start(OutputSurface)}, and compute histogram of them.
+     *
+     * @param histogram Array of {@link SceneCutDetector#HISTOGRAM_BINS} elements to receive histogram.
+     */
+    public void finish(int[] histogram) {
+        if (mPixelBuffer == 0) {
+            SceneCutDetector.computeHistogram(mReadBuffer, WIDTH * HEIGHT, histogram);
+            return;
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffer);
+        ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                WIDTH * HEIGHT * BYTES_PER_PIXEL, GLES30.GL_MAP_READ_BIT);
+        if (pixels == null) {
+            throw new RuntimeException("Could not map pixel buffer: glError " + GLES20.glGetError());
+        }
+        SceneCutDetector.computeHistogram(pixels, WIDTH * HEIGHT, histogram);
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    /**
+     * Release GL resources. Should be called before EGL context is destroyed.
+     */
+    public void release() {
+        if (mFramebuffer == 0) return;
+        if (mPixelBuffer != 0) {
+            GLES20.glDeleteBuffers(1, new int[]{mPixelBuffer}, 0);
+            mPixelBuffer = 0;
+        }
+        GLES20.glDeleteFramebuffers(1, new int[]{mFramebuffer}, 0);
+        GLES20.glDeleteTextures(1, new int[]{mTexture}, 0);
+        mFramebuffer = 0;
+        mTexture = 0;
+    }
+
+    private void setupGlResources() {
+        int[] values = new int[1];
+        GLES20.glGenTextures(1, values, 0);
+        mTexture = values[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, WIDTH, HEIGHT, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glGenFramebuffers(1, values, 0);
+        mFramebuffer = values[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mTexture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("Histogram framebuffer is not complete: 0x" + Integer.toHexString(status));
+        }
+
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        if (version != null && version.startsWith("OpenGL ES 3")) {
+            GLES20.glGenBuffers(1, values, 0);
+            mPixelBuffer = values[0];
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffer);
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, WIDTH * HEIGHT * BYTES_PER_PIXEL, null, GLES30.GL_STREAM_READ);
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        } else {
+            mReadBuffer = ByteBuffer.allocateDirect(WIDTH * HEIGHT * BYTES_PER_PIXEL).order(ByteOrder.nativeOrder());
+        }
+    }
+}
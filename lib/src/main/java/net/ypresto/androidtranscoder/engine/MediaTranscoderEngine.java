@@ -15,6 +15,9 @@
  */
 package net.ypresto.androidtranscoder.engine;
 
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaDataSource;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMetadataRetriever;
@@ -23,12 +26,19 @@ import android.os.Build;
 import android.util.Log;
 
 import net.ypresto.androidtranscoder.BuildConfig;
+import net.ypresto.androidtranscoder.format.MediaFormatExtraConstants;
 import net.ypresto.androidtranscoder.format.MediaFormatStrategy;
 import net.ypresto.androidtranscoder.utils.ISO6709LocationParser;
 import net.ypresto.androidtranscoder.utils.MediaExtractorUtils;
 
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Internal engine, do not use this directly.
@@ -39,14 +49,59 @@ public class MediaTranscoderEngine {
     private static final double PROGRESS_UNKNOWN = -1.0;
     private static final long SLEEP_TO_WAIT_TRACK_TRANSCODERS = 10;
     private static final long PROGRESS_INTERVAL_STEPS = 10;
-    private FileDescriptor mInputFileDescriptor;
+    private static final int DEFAULT_SEGMENT_VIDEO_BITRATE = 8000 * 1000; // From Nexus 4 Camera in 720p
+    private static final int DEFAULT_SEGMENT_AUDIO_BITRATE = 128 * 1000;
+    // Assumed when input does not tell its frame rate.
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final long MIN_SCENE_CUT_INTERVAL_US = 500 * 1000;
+    private static final int DEFAULT_MUXER_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final String DEVICE_PROFILE_FILE_NAME = "transcoder-device-profile.properties";
+    // Timeout of codec waits on track threads, short enough to notice cancel.
+    private static final long TRACK_THREAD_CODEC_TIMEOUT_US = 10 * 1000;
+    private static final long TRACK_THREAD_PROGRESS_INTERVAL_MS = 100;
+    private static final long MAX_INTERLEAVE_LEAD_US = 500 * 1000;
+    private List<Input> mInputs;
     private TrackTranscoder mVideoTrackTranscoder;
     private TrackTranscoder mAudioTrackTranscoder;
     private MediaExtractor mExtractor;
-    private MediaMuxer mMuxer;
+    // Used only when tracks run on their own threads, as extractor is not thread-safe.
+    private MediaExtractor mAudioExtractor;
+    private boolean mIsParallelTracksEnabled;
+    private TranscodeCache mResultCache;
+    private OutputDigester mOutputDigester = new OutputDigester(Collections.<String>emptyList());
+    private final List<MediaMuxer> mMuxers = new ArrayList<>();
+    private final List<MuxerWriter> mMuxerWriters = new ArrayList<>();
+    private final List<QueuedMuxer> mQueuedMuxers = new ArrayList<>();
+    private int mMuxerBufferSize = DEFAULT_MUXER_BUFFER_SIZE;
+    private final List<TrackTranscoder> mAdditionalTrackTranscoders = new ArrayList<>();
+    private final List<MediaExtractor> mRenditionExtractors = new ArrayList<>();
     private volatile double mProgress;
     private ProgressCallback mProgressCallback;
     private long mDurationUs;
+    private long[] mSegmentDurationsUs;
+    private MediaFormat mVideoEncodeFormat;
+    private MediaFormat mAudioEncodeFormat;
+    private SpriteSheetOptions mSpriteSheetOptions;
+    private TrackSelection mTrackSelection = new TrackSelection();
+    private double mTargetFrameRate;
+    private double mSpeed = 1.0;
+    private double mTargetLoudness;
+    private LoudnessNormalizer mLoudnessNormalizer;
+    private long mTargetFileSize;
+    private BitrateController mBitrateController;
+    private double mTargetQuality;
+    private QualityController mQualityController;
+    private boolean mIsSceneCutDetectionEnabled;
+    private List<VideoFilter> mVideoFilters = Collections.emptyList();
+    private boolean mIsGlDisabled;
+    private static volatile boolean sIsGlUnavailable;
+    private static volatile DeviceProfile sDeviceProfile;
+    private GlRenderThread.Job mRenderJob;
+    private PauseController mPauseController;
+    private int mVideoTrackIndex = -1;
+    private final List<Integer> mExtraTrackIndices = new ArrayList<>();
+    private final List<Integer> mExtraOutputTracks = new ArrayList<>();
+    private SpriteSheetRecorder mSpriteSheetRecorder;
 
     /**
      * Do not use this constructor unless you know what you are doing.
@@ -54,8 +109,275 @@ public class MediaTranscoderEngine {
     public MediaTranscoderEngine() {
     }
 
+    /**
+     * Allocates codecs and EGL context which jobs with given strategy would use, and keeps them for a while so that
+     * next job starts without their allocation. Formats are asked to strategy for nominal 1080p AVC and 44.1kHz
+     * stereo AAC input. Blocks until finished, so should be called on worker thread.
+     *
+     * @param formatStrategy Strategy of jobs expected to run soon.
+     */
+    public static void prewarm(MediaFormatStrategy formatStrategy) {
+        MediaFormat videoInputFormat = MediaFormat.createVideoFormat(MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC, 1920, 1080);
+        MediaFormat audioInputFormat = MediaFormat.createAudioFormat(MediaFormatExtraConstants.MIMETYPE_AUDIO_AAC, 44100, 2);
+        // AudioSpecificConfig of AAC-LC 44.1kHz stereo, as AAC decoder cannot be configured without it.
+        audioInputFormat.setByteBuffer("csd-0", ByteBuffer.wrap(new byte[]{0x12, 0x10}));
+        ResourcePool.prewarm(videoInputFormat, formatStrategy.createVideoOutputFormat(videoInputFormat),
+                audioInputFormat, formatStrategy.createAudioOutputFormat(audioInputFormat), !sIsGlUnavailable);
+    }
+
+    /**
+     * Loads profile of this device stored in given directory, or measures it by encoding short synthetic clip under
+     * several settings and stores it there. Jobs started after this use encoder and operating rate of the profile.
+     * Measurement takes several seconds, and is repeated after OS update. Blocks, so should be called on worker thread.
+     *
+     * @param profileDir Directory to store profile, which should survive app updates.
+     * @return Loaded or measured profile.
+     * @throws IOException          when measured profile could not be stored.
+     * @throws InterruptedException when cancelled while measuring.
+     */
+    public static DeviceProfile loadDeviceProfile(File profileDir) throws IOException, InterruptedException {
+        DeviceProfileStore store = new DeviceProfileStore(new File(profileDir, DEVICE_PROFILE_FILE_NAME));
+        String device = DeviceProfile.getCurrentDevice();
+        DeviceProfile profile = store.load(device);
+        if (profile == null) {
+            Log.i(TAG, "Measuring device profile of " + device + ".");
+            profile = DeviceBenchmark.measure(device, MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC);
+            // Use measured one even if storing failed, it is measured again next time.
+            setDeviceProfile(profile);
+            store.save(profile);
+        } else {
+            setDeviceProfile(profile);
+        }
+        Log.d(TAG, "Using " + profile);
+        return profile;
+    }
+
+    /**
+     * Set profile which jobs started after this use.
+     *
+     * @param profile Profile e.g. loaded on previous launch, or null to use default settings.
+     */
+    public static void setDeviceProfile(DeviceProfile profile) {
+        DeviceProfile previousProfile = sDeviceProfile;
+        if (previousProfile != null) ResourcePool.setEncoderName(previousProfile.getVideoMime(), null);
+        if (profile != null) ResourcePool.setEncoderName(profile.getVideoMime(), profile.getVideoEncoderName());
+        sDeviceProfile = profile;
+    }
+
+    /**
+     * @return Profile which jobs use, or null if none is set.
+     */
+    public static DeviceProfile getDeviceProfile() {
+        return sDeviceProfile;
+    }
+
+    /**
+     * Releases codecs and EGL contexts kept by finished jobs, e.g. on memory pressure.
+     */
+    public static void releasePooledResources() {
+        ResourcePool.clear();
+    }
+
     public void setDataSource(FileDescriptor fileDescriptor) {
-        mInputFileDescriptor = fileDescriptor;
+        setDataSources(Collections.singletonList(fileDescriptor));
+    }
+
+    /**
+     * Set multiple inputs to be concatenated in order into single output.
+     * Input whose track is already acceptable for output (i.e. {@link MediaFormatStrategy} returns pass-through
+     * and codec is compatible with output track) is copied as-is, and only others are re-encoded.
+     * Presentation times of each input are shifted to follow the previous input.
+     *
+     * @param fileDescriptors FileDescriptors for inputs, at least one.
+     */
+    public void setDataSources(List<FileDescriptor> fileDescriptors) {
+        if (fileDescriptors.isEmpty()) {
+            throw new IllegalArgumentException("At least one data source is required.");
+        }
+        mInputs = new ArrayList<>(fileDescriptors.size());
+        for (FileDescriptor fileDescriptor : fileDescriptors) {
+            mInputs.add(new Input(fileDescriptor, null));
+        }
+    }
+
+    /**
+     * Set input read through {@link MediaDataSource}, e.g. encrypted cache or file being downloaded.
+     * Engine does not close dataSource, as it is read by multiple extractors.
+     *
+     * @param dataSource Input data source.
+     * @see net.ypresto.androidtranscoder.source
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    public void setDataSource(MediaDataSource dataSource) {
+        if (dataSource == null) {
+            throw new NullPointerException("Data source cannot be null.");
+        }
+        mInputs = Collections.singletonList(new Input(null, dataSource));
+    }
+
+    /**
+     * Generate thumbnail sprite sheets from decoded frames while transcoding, without decoding input again.
+     * Thumbnails are not generated for video which is passed through.
+     *
+     * @param spriteSheetOptions Options of sprite sheets, or null to disable.
+     */
+    public void setSpriteSheetOptions(SpriteSheetOptions spriteSheetOptions) {
+        mSpriteSheetOptions = spriteSheetOptions;
+    }
+
+    /**
+     * Select tracks to be written to output. Input does not need to have all of selected tracks.
+     * Extra audio and metadata tracks are taken from the first input, and written to the first output.
+     *
+     * @param trackSelection Track selection, or null for default one.
+     */
+    public void setTrackSelection(TrackSelection trackSelection) {
+        mTrackSelection = trackSelection == null ? new TrackSelection() : trackSelection;
+    }
+
+    /**
+     * Drop frames of re-encoded video so that output does not exceed given frame rate, e.g. 30fps from 60fps input.
+     * Frames are selected by presentation time, and dropped before rendering and encoding.
+     *
+     * @param targetFrameRate Maximum frame rate of output, or 0 to encode all frames.
+     */
+    public void setTargetFrameRate(double targetFrameRate) {
+        mTargetFrameRate = targetFrameRate;
+    }
+
+    /**
+     * Change playback speed, e.g. 2.0 for twice faster or 0.5 for slow motion. Audio keeps its pitch.
+     * Video and audio are always re-encoded when speed is changed.
+     * <p>
+     * Fast motion keeps frame rate of input unless target frame rate is set, and slow motion duplicates frames
+     * only when target frame rate is set.
+     *
+     * @param speed Playback speed, 1.0 for original speed.
+     */
+    public void setSpeed(double speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("Speed should be positive: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    /**
+     * Normalize loudness of audio in single pass, with lookahead limiter to keep peaks below -1dBFS.
+     * Gain follows loudness measured so far, so it converges within first seconds.
+     * Audio is always re-encoded when loudness is normalized, and measured loudness is reported in result.
+     *
+     * @param targetLoudness Target integrated loudness in LUFS e.g. -16, or 0 to disable normalization.
+     */
+    public void setTargetLoudness(double targetLoudness) {
+        mTargetLoudness = targetLoudness;
+    }
+
+    /**
+     * Aim output file at given size, by adjusting video bitrate while encoding from bytes actually written.
+     * Bitrate of output format is used only as initial one. Video is always re-encoded.
+     * Requires API 19, and is applied only to the first output. Ignored if duration of input is unknown.
+     *
+     * @param targetFileSize Target size of output file in bytes, or 0 to disable.
+     */
+    public void setTargetFileSize(long targetFileSize) {
+        mTargetFileSize = targetFileSize;
+    }
+
+    /**
+     * Adjust video bitrate to hit given SSIM at minimum size. Source frames are sampled periodically, compared with
+     * the same frames decoded from encoder output, and bitrate is updated every few samples.
+     * Bitrate of output format is used only as initial one. Video is always re-encoded.
+     * Requires API 19, and is applied only to the first output. Cannot be used with target file size.
+     *
+     * @param targetSsim Target SSIM in (0, 1) e.g. 0.95, or 0 to disable.
+     */
+    public void setTargetQuality(double targetSsim) {
+        mTargetQuality = targetSsim;
+    }
+
+    /**
+     * Request keyframe on scene cuts of re-encoded video, detected from luma histograms of rendered frames.
+     * Scene cuts start new GOP instead of costing large P-frames. Requires API 19.
+     *
+     * @param enabled Whether to detect scene cuts.
+     */
+    public void setSceneCutDetectionEnabled(boolean enabled) {
+        mIsSceneCutDetectionEnabled = enabled;
+    }
+
+    /**
+     * Apply filters to re-encoded video on GPU, fused into as few draw passes as possible. Video is always
+     * re-encoded when filters are set. Filters are applied to all outputs.
+     *
+     * @param videoFilters Filters to apply in order, or null or empty to disable.
+     */
+    public void setVideoFilters(List<VideoFilter> videoFilters) {
+        mVideoFilters = videoFilters == null ? Collections.<VideoFilter>emptyList() : new ArrayList<>(videoFilters);
+    }
+
+    /**
+     * Transcode video on CPU through YUV buffers instead of GL, e.g. for devices with broken GLES driver.
+     * Even if not disabled, video falls back to CPU when EGL cannot be set up. Filters, thumbnails, target quality,
+     * scene cut detection and multiple outputs require GL. Slow motion does not duplicate frames on CPU.
+     *
+     * @param disabled Whether not to use GL.
+     */
+    public void setGlDisabled(boolean disabled) {
+        mIsGlDisabled = disabled;
+    }
+
+    /**
+     * Set size of buffer per output, where encoded samples wait for writer thread. Larger buffer absorbs longer
+     * stalls of slow storage. Default is 4MB.
+     *
+     * @param bufferSize Size in bytes, or 0 to write samples on transcoding thread.
+     */
+    public void setMuxerBufferSize(int bufferSize) {
+        if (bufferSize < 0) throw new IllegalArgumentException("Muxer buffer size should not be negative: " + bufferSize);
+        mMuxerBufferSize = bufferSize;
+    }
+
+    /**
+     * Run video and audio pipelines on their own threads with blocking codec waits, instead of polling both on one
+     * thread. Audio is read by its own extractor, and samples of both meet at interleaving muxer. Applied only when
+     * both video and audio are re-encoded, not copied. Progress is reported from calling thread.
+     *
+     * @param enabled Whether to run tracks on their own threads.
+     */
+    public void setParallelTracksEnabled(boolean enabled) {
+        mIsParallelTracksEnabled = enabled;
+    }
+
+    /**
+     * Copy output from given cache if the same input was transcoded with the same output formats and options, and
+     * add output to it otherwise. Input is identified by its tracks, sample table and bytes sampled across the file,
+     * without reading all of it. Applied only to single file descriptor input and single output without filters or
+     * thumbnails. Failure of cache does not fail transcoding.
+     *
+     * @param resultCache Cache, or null not to cache.
+     */
+    public void setResultCache(TranscodeCache resultCache) {
+        mResultCache = resultCache;
+    }
+
+    /**
+     * Digest each output with given algorithms (e.g. "SHA-256", "MD5") and report them in result, with size and
+     * sample counts. Output is read once right after muxer finishes it, while its pages are still cached.
+     *
+     * @param algorithms Names of {@link java.security.MessageDigest} algorithms, or null not to digest.
+     * @throws IllegalArgumentException if any algorithm is not supported.
+     */
+    public void setOutputDigestAlgorithms(List<String> algorithms) {
+        mOutputDigester = new OutputDigester(algorithms == null ? Collections.<String>emptyList() : algorithms);
+    }
+
+    /**
+     * Let scheduler pause this job in favor of other jobs. Codecs are kept while paused.
+     *
+     * @param pauseController Controller polled while transcoding, or null not to pause.
+     */
+    public void setPauseController(PauseController pauseController) {
+        mPauseController = pauseController;
     }
 
     public ProgressCallback getProgressCallback() {
@@ -79,63 +401,288 @@ public class MediaTranscoderEngine {
      *
      * @param outputPath     File path to output transcoded video file.
      * @param formatStrategy Output format strategy.
+     * @return Result of transcoding.
+     * @throws IOException                  when input or output file could not be opened.
+     * @throws InvalidOutputFormatException when output format is not supported.
+     * @throws InterruptedException         when cancel to transcode.
+     */
+    public TranscodeResult transcodeVideo(String outputPath, MediaFormatStrategy formatStrategy) throws IOException, InterruptedException {
+        return transcodeVideo(Collections.singletonList(outputPath), Collections.singletonList(formatStrategy));
+    }
+
+    /**
+     * Run video transcoding into multiple renditions (e.g. for adaptive bitrate streaming). Blocks current thread.
+     * Video is decoded only once and then encoded for each rendition.
+     * Audio is transcoded once with the first strategy and written to all outputs.
+     * Renditions whose strategy returns pass-through for video copy the input video track.
+     *
+     * @param outputPaths      File paths to output transcoded video files.
+     * @param formatStrategies Output format strategies, in the same order as outputPaths.
+     * @return Result of transcoding.
      * @throws IOException                  when input or output file could not be opened.
      * @throws InvalidOutputFormatException when output format is not supported.
      * @throws InterruptedException         when cancel to transcode.
      */
-    public void transcodeVideo(String outputPath, MediaFormatStrategy formatStrategy) throws IOException, InterruptedException {
-        if (outputPath == null) {
-            throw new NullPointerException("Output path cannot be null.");
+    public TranscodeResult transcodeVideo(List<String> outputPaths, List<MediaFormatStrategy> formatStrategies) throws IOException, InterruptedException {
+        if (outputPaths.isEmpty() || outputPaths.size() != formatStrategies.size()) {
+            throw new IllegalArgumentException("Output paths and format strategies should be non-empty and have same size.");
+        }
+        for (String outputPath : outputPaths) {
+            if (outputPath == null) {
+                throw new NullPointerException("Output path cannot be null.");
+            }
         }
-        if (mInputFileDescriptor == null) {
+        if (mInputs == null) {
             throw new IllegalStateException("Data source is not set.");
         }
+        if (outputPaths.size() > 1 && mInputs.size() > 1) {
+            throw new IllegalStateException("Multiple outputs cannot be used with multiple data sources.");
+        }
+        if (mTargetFileSize > 0 && mTargetQuality > 0) {
+            throw new IllegalStateException("Target file size and target quality cannot be used together.");
+        }
+        if (mIsGlDisabled && (outputPaths.size() > 1 || !mVideoFilters.isEmpty() || mSpriteSheetOptions != null
+                || mTargetQuality > 0 || mIsSceneCutDetectionEnabled)) {
+            throw new IllegalStateException("Multiple outputs, filters, thumbnails, target quality and scene cut detection require GL.");
+        }
+        String cacheKey = null;
+        TranscodeCache.Entry cacheEntry = null;
         try {
-            // NOTE: use single extractor to keep from running out audio track fast.
-            mExtractor = new MediaExtractor();
-            mExtractor.setDataSource(mInputFileDescriptor);
-            mMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            cacheKey = computeResultCacheKey(outputPaths, formatStrategies);
+            if (cacheKey != null) cacheEntry = mResultCache.get(cacheKey, new File(outputPaths.get(0)));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not look up result cache, transcoding.", e);
+        }
+        if (cacheEntry != null) {
+            Log.d(TAG, "Output is copied from result cache.");
+            TranscodeResult result = new TranscodeResult();
+            result.setCacheHit(true);
+            result.setOutputs(Collections.singletonList(mOutputDigester.digest(outputPaths.get(0),
+                    cacheEntry.mVideoSampleCount, cacheEntry.mAudioSampleCount)));
+            mProgress = 1.0;
+            if (mProgressCallback != null) mProgressCallback.onProgress(1.0);
+            return result;
+        }
+        try {
+            for (int i = 0; i < outputPaths.size(); i++) {
+                mMuxers.add(new MediaMuxer(outputPaths.get(i), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4));
+                mMuxerWriters.add(new MuxerWriter(mMuxers.get(i), mMuxerBufferSize));
+                mQueuedMuxers.add(new QueuedMuxer(mMuxerWriters.get(i), new OutputFormatValidator(i)));
+                if (i > 0) mQueuedMuxers.get(0).addMirror(QueuedMuxer.SampleType.AUDIO, mQueuedMuxers.get(i));
+            }
             setupMetadata();
-            setupTrackTranscoders(formatStrategy);
-            runPipelines();
-            mMuxer.stop();
-        } finally {
-            try {
-                if (mVideoTrackTranscoder != null) {
-                    mVideoTrackTranscoder.release();
-                    mVideoTrackTranscoder = null;
-                }
-                if (mAudioTrackTranscoder != null) {
-                    mAudioTrackTranscoder.release();
-                    mAudioTrackTranscoder = null;
-                }
-                if (mExtractor != null) {
-                    mExtractor.release();
-                    mExtractor = null;
+            setupEncoderControls();
+            if (mSpriteSheetOptions != null) mSpriteSheetRecorder = new SpriteSheetRecorder(mSpriteSheetOptions);
+            QueuedMuxer queuedMuxer = mQueuedMuxers.get(0);
+            int segmentCount = mInputs.size();
+            for (int segment = 0; segment < segmentCount; segment++) {
+                // NOTE: use single extractor to keep from running out audio track fast.
+                mExtractor = new MediaExtractor();
+                mInputs.get(segment).setTo(mExtractor);
+                long segmentOffsetUs = queuedMuxer.getWrittenEndPresentationTimeUs();
+                queuedMuxer.beginSegment(segmentOffsetUs, segment == segmentCount - 1);
+                if (mSpriteSheetRecorder != null) mSpriteSheetRecorder.setPresentationTimeOffsetUs(segmentOffsetUs);
+                setupTrackTranscoders(formatStrategies, segment);
+                runPipelines(segment);
+                releaseSegment();
+            }
+            List<TranscodeResult.Output> outputs = new ArrayList<>();
+            for (int i = 0; i < outputPaths.size(); i++) {
+                mMuxerWriters.get(i).stop();
+                // Read back before writing anything else, while output is still in page cache.
+                QueuedMuxer outputMuxer = mQueuedMuxers.get(i);
+                outputs.add(mOutputDigester.digest(outputPaths.get(i),
+                        outputMuxer.getWrittenSampleCount(QueuedMuxer.SampleType.VIDEO),
+                        outputMuxer.getWrittenSampleCount(QueuedMuxer.SampleType.AUDIO)));
+            }
+            if (mSpriteSheetRecorder != null) mSpriteSheetRecorder.finish();
+            if (cacheKey != null) {
+                try {
+                    TranscodeResult.Output output = outputs.get(0);
+                    mResultCache.put(cacheKey, new File(outputPaths.get(0)), output.getVideoSampleCount(), output.getAudioSampleCount());
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not add output to result cache.", e);
                 }
-            } catch (RuntimeException e) {
-                // Too fatal to make alive the app, because it may leak native resources.
-                //noinspection ThrowFromFinallyBlock
-                throw new Error("Could not shutdown extractor, codecs and muxer pipeline.", e);
+            }
+            TranscodeResult result = new TranscodeResult();
+            result.setOutputs(outputs);
+            long muxerBlockedUs = 0;
+            int muxerBlockedCount = 0;
+            long muxerPeakQueuedBytes = 0;
+            for (MuxerWriter muxerWriter : mMuxerWriters) {
+                muxerBlockedUs += muxerWriter.getBlockedUs();
+                muxerBlockedCount += muxerWriter.getBlockedCount();
+                muxerPeakQueuedBytes = Math.max(muxerPeakQueuedBytes, muxerWriter.getPeakQueuedBytes());
+            }
+            result.setMuxerBlockedUs(muxerBlockedUs);
+            result.setMuxerBlockedCount(muxerBlockedCount);
+            result.setMuxerPeakQueuedBytes(muxerPeakQueuedBytes);
+            if (mQualityController != null) {
+                result.setVideoSsim(mQualityController.getAverageSsim());
+                result.setVideoPsnr(mQualityController.getAveragePsnr());
+            }
+            if (mLoudnessNormalizer != null) {
+                result.setInputLoudness(mLoudnessNormalizer.getInputLoudness());
+                result.setOutputLoudness(mLoudnessNormalizer.getOutputLoudness());
+            }
+            if (mRenderJob != null) {
+                result.setRenderWaitAverageUs(mRenderJob.getAverageWaitUs());
+                result.setRenderWaitMaxUs(mRenderJob.getMaxWaitUs());
+                result.setRenderShare(mRenderJob.getShare());
+            }
+            return result;
+        } finally {
+            releaseSegment();
+            if (mRenderJob != null) {
+                mRenderJob.unregister();
+                mRenderJob = null;
+            }
+            for (MuxerWriter muxerWriter : mMuxerWriters) {
+                muxerWriter.close();
             }
             try {
-                if (mMuxer != null) {
-                    mMuxer.release();
-                    mMuxer = null;
+                for (MediaMuxer muxer : mMuxers) {
+                    muxer.release();
                 }
             } catch (RuntimeException e) {
                 Log.e(TAG, "Failed to release muxer.", e);
             }
+            mMuxerWriters.clear();
+            mMuxers.clear();
+            mQueuedMuxers.clear();
+            mExtraTrackIndices.clear();
+            mExtraOutputTracks.clear();
+            mSpriteSheetRecorder = null;
+            mLoudnessNormalizer = null;
+            mBitrateController = null;
+            mQualityController = null;
+        }
+    }
+
+    /**
+     * Decode audio track into PCM. Blocks current thread.
+     * Video track is not decoded, and no output file is written.
+     *
+     * @param sink            Sink to receive PCM chunks.
+     * @param sampleRate      Output sample rate, or 0 to keep input one.
+     * @param channelCount    Output channel count (1 or 2), or 0 to keep input one.
+     * @param chunkFrameCount Number of frames in each chunk passed to sink.
+     * @throws IOException                  when input file could not be opened.
+     * @throws InvalidOutputFormatException when input does not have audio track.
+     * @throws InterruptedException         when cancel to transcode.
+     */
+    public void extractAudioPcm(PcmAudioSink sink, int sampleRate, int channelCount, int chunkFrameCount) throws IOException, InterruptedException {
+        if (mInputs == null) {
+            throw new IllegalStateException("Data source is not set.");
+        }
+        if (mInputs.size() > 1) {
+            throw new IllegalStateException("Multiple data sources are not supported for PCM extraction.");
+        }
+        try {
+            setupMetadata();
+            mExtractor = new MediaExtractor();
+            mInputs.get(0).setTo(mExtractor);
+            MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getTracks(mExtractor);
+            if (trackResult.mAudioTrackIndex < 0) {
+                throw new InvalidOutputFormatException("Input does not have audio track.");
+            }
+            mAudioTrackTranscoder = new PcmAudioTrackTranscoder(mExtractor, trackResult.mAudioTrackIndex, sink, sampleRate, channelCount, chunkFrameCount);
+            mAudioTrackTranscoder.setup();
+            runPipelines(0);
+        } finally {
+            releaseSegment();
+        }
+    }
+
+    // Returns null if job is not cached.
+    private String computeResultCacheKey(List<String> outputPaths, List<MediaFormatStrategy> formatStrategies) throws IOException {
+        if (mResultCache == null) return null;
+        FileDescriptor fileDescriptor = mInputs.get(0).mFileDescriptor;
+        if (mInputs.size() > 1 || outputPaths.size() > 1 || fileDescriptor == null || !mVideoFilters.isEmpty()
+                || mSpriteSheetOptions != null) {
+            return null;
+        }
+        ContentFingerprint fingerprint = new ContentFingerprint();
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            mInputs.get(0).setTo(extractor);
+            MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getTracks(extractor);
+            MediaFormatStrategy formatStrategy = formatStrategies.get(0);
+            fingerprint.add(trackResult.mVideoTrackIndex >= 0 ? formatStrategy.createVideoOutputFormat(trackResult.mVideoTrackFormat) : null);
+            fingerprint.add(trackResult.mAudioTrackIndex >= 0 ? formatStrategy.createAudioOutputFormat(trackResult.mAudioTrackFormat) : null);
+            fingerprint.addSampleTable(extractor);
+        } finally {
+            extractor.release();
+        }
+        // NOTE: stream does not own descriptor, so closing it does not close input.
+        FileInputStream inputStream = new FileInputStream(fileDescriptor);
+        try {
+            fingerprint.addSampledBytes(inputStream.getChannel());
+        } finally {
+            inputStream.close();
+        }
+        fingerprint.add(mTrackSelection.isVideoEnabled() + " " + mTrackSelection.isAudioEnabled() + " "
+                + mTrackSelection.isExtraAudioEnabled() + " " + mTrackSelection.isMetadataEnabled());
+        fingerprint.add(mTargetFrameRate);
+        fingerprint.add(mSpeed);
+        fingerprint.add(mTargetLoudness);
+        fingerprint.add(mTargetFileSize);
+        fingerprint.add(mTargetQuality);
+        fingerprint.add(mIsSceneCutDetectionEnabled ? 1 : 0);
+        // Encoder and its settings chosen for device change output too.
+        DeviceProfile deviceProfile = sDeviceProfile;
+        if (deviceProfile == null) {
+            fingerprint.add(-1);
+        } else {
+            fingerprint.add(deviceProfile.getVideoMime() + " " + deviceProfile.getVideoEncoderName());
+            fingerprint.add(deviceProfile.getOperatingRate());
+        }
+        return fingerprint.finish();
+    }
+
+    private void releaseSegment() {
+        try {
+            if (mVideoTrackTranscoder != null) {
+                mVideoTrackTranscoder.release();
+                mVideoTrackTranscoder = null;
+            }
+            if (mAudioTrackTranscoder != null) {
+                mAudioTrackTranscoder.release();
+                mAudioTrackTranscoder = null;
+            }
+            if (mExtractor != null) {
+                mExtractor.release();
+                mExtractor = null;
+            }
+            if (mAudioExtractor != null) {
+                mAudioExtractor.release();
+                mAudioExtractor = null;
+            }
+            for (TrackTranscoder trackTranscoder : mAdditionalTrackTranscoders) {
+                trackTranscoder.release();
+            }
+            mAdditionalTrackTranscoders.clear();
+            for (MediaExtractor extractor : mRenditionExtractors) {
+                extractor.release();
+            }
+            mRenditionExtractors.clear();
+        } catch (RuntimeException e) {
+            // Too fatal to make alive the app, because it may leak native resources.
+            //noinspection ThrowFromFinallyBlock
+            throw new Error("Could not shutdown extractor, codecs and muxer pipeline.", e);
         }
     }
 
     private void setupMetadata() throws IOException {
         MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-        mediaMetadataRetriever.setDataSource(mInputFileDescriptor);
+        mInputs.get(0).setTo(mediaMetadataRetriever);
 
         String rotationString = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
         try {
-            mMuxer.setOrientationHint(Integer.parseInt(rotationString));
+            int rotation = Integer.parseInt(rotationString);
+            for (MediaMuxer muxer : mMuxers) {
+                muxer.setOrientationHint(rotation);
+            }
         } catch (NumberFormatException e) {
             // skip
         }
@@ -145,76 +692,677 @@ public class MediaTranscoderEngine {
             if (locationString != null) {
                 float[] location = new ISO6709LocationParser().parse(locationString);
                 if (location != null) {
-                    mMuxer.setLocation(location[0], location[1]);
+                    for (MediaMuxer muxer : mMuxers) {
+                        muxer.setLocation(location[0], location[1]);
+                    }
                 } else {
                     Log.d(TAG, "Failed to parse the location metadata: " + locationString);
                 }
             }
         }
 
+        int segmentCount = mInputs.size();
+        mSegmentDurationsUs = new long[segmentCount];
+        mSegmentDurationsUs[0] = extractDurationUs(mediaMetadataRetriever);
+        for (int segment = 1; segment < segmentCount; segment++) {
+            MediaMetadataRetriever segmentRetriever = new MediaMetadataRetriever();
+            try {
+                mInputs.get(segment).setTo(segmentRetriever);
+                mSegmentDurationsUs[segment] = extractDurationUs(segmentRetriever);
+            } finally {
+                segmentRetriever.release();
+            }
+        }
+        mDurationUs = 0;
+        for (long segmentDurationUs : mSegmentDurationsUs) {
+            if (segmentDurationUs <= 0) {
+                mDurationUs = -1;
+                break;
+            }
+            mDurationUs += segmentDurationUs;
+        }
+        Log.d(TAG, "Duration (us): " + mDurationUs);
+    }
+
+    private static long extractDurationUs(MediaMetadataRetriever mediaMetadataRetriever) {
         try {
-            mDurationUs = Long.parseLong(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)) * 1000;
+            return Long.parseLong(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)) * 1000;
         } catch (NumberFormatException e) {
-            mDurationUs = -1;
+            return -1;
         }
-        Log.d(TAG, "Duration (us): " + mDurationUs);
     }
 
-    private void setupTrackTranscoders(MediaFormatStrategy formatStrategy) {
-        MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(mExtractor);
-        MediaFormat videoOutputFormat = formatStrategy.createVideoOutputFormat(trackResult.mVideoTrackFormat);
-        MediaFormat audioOutputFormat = formatStrategy.createAudioOutputFormat(trackResult.mAudioTrackFormat);
-        if (videoOutputFormat == null && audioOutputFormat == null) {
+    private void setupTrackTranscoders(List<MediaFormatStrategy> formatStrategies, int segment) throws IOException {
+        MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getTracks(mExtractor);
+        MediaFormatStrategy formatStrategy = formatStrategies.get(0);
+        QueuedMuxer queuedMuxer = mQueuedMuxers.get(0);
+        boolean hasVideo = mTrackSelection.isVideoEnabled() && trackResult.mVideoTrackIndex >= 0;
+        boolean hasAudio = mTrackSelection.isAudioEnabled() && trackResult.mAudioTrackIndex >= 0;
+        if (segment == 0) {
+            addOutputTracks(trackResult, hasVideo, hasAudio);
+        } else {
+            // Tracks of output are fixed by the first input.
+            if (queuedMuxer.hasTrack(QueuedMuxer.SampleType.VIDEO) && !hasVideo) {
+                throw new InvalidOutputFormatException("Input #" + segment + " does not have video track, while the first input has.");
+            }
+            if (queuedMuxer.hasTrack(QueuedMuxer.SampleType.AUDIO) && !hasAudio) {
+                throw new InvalidOutputFormatException("Input #" + segment + " does not have audio track, while the first input has.");
+            }
+            hasVideo = queuedMuxer.hasTrack(QueuedMuxer.SampleType.VIDEO);
+            hasAudio = queuedMuxer.hasTrack(QueuedMuxer.SampleType.AUDIO);
+        }
+        mVideoTrackIndex = hasVideo ? trackResult.mVideoTrackIndex : -1;
+        MediaFormat videoOutputFormat = hasVideo ? formatStrategy.createVideoOutputFormat(trackResult.mVideoTrackFormat) : null;
+        MediaFormat audioOutputFormat = hasAudio ? formatStrategy.createAudioOutputFormat(trackResult.mAudioTrackFormat) : null;
+        boolean isControllingVideoBitrate = mBitrateController != null || (mTargetQuality > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
+        if (hasVideo && videoOutputFormat == null && (isModifyingVideoFrames() || isControllingVideoBitrate)) {
+            // Retimed, filtered or rate controlled frames cannot be copied.
+            videoOutputFormat = createVideoSegmentFormat(trackResult.mVideoTrackFormat);
+        }
+        if (hasAudio && audioOutputFormat == null && (mSpeed != 1.0 || mTargetLoudness != 0)) {
+            // Processed samples cannot be copied.
+            audioOutputFormat = createAudioSegmentFormat(trackResult.mAudioTrackFormat);
+        }
+        boolean isDroppingTrack = hasVideo != trackResult.mVideoTrackIndex >= 0 || hasAudio != trackResult.mAudioTrackIndex >= 0;
+        if (videoOutputFormat == null && audioOutputFormat == null && !isDroppingTrack && mInputs.size() == 1 && formatStrategies.size() == 1) {
             throw new InvalidOutputFormatException("MediaFormatStrategy returned pass-through for both video and audio. No transcoding is necessary.");
         }
-        QueuedMuxer queuedMuxer = new QueuedMuxer(mMuxer, new QueuedMuxer.Listener() {
-            @Override
-            public void onDetermineOutputFormat() {
-                MediaFormatValidator.validateVideoOutputFormat(mVideoTrackTranscoder.getDeterminedFormat());
-                MediaFormatValidator.validateAudioOutputFormat(mAudioTrackTranscoder.getDeterminedFormat());
+        if (hasVideo) {
+            MediaFormat videoTrackFormat = queuedMuxer.getOutputFormat(QueuedMuxer.SampleType.VIDEO);
+            if (videoOutputFormat != null && videoTrackFormat != null
+                    && (videoOutputFormat.getInteger(MediaFormat.KEY_WIDTH) != videoTrackFormat.getInteger(MediaFormat.KEY_WIDTH)
+                    || videoOutputFormat.getInteger(MediaFormat.KEY_HEIGHT) != videoTrackFormat.getInteger(MediaFormat.KEY_HEIGHT))) {
+                // Output track size is fixed by the first input.
+                videoOutputFormat = createVideoSegmentFormat(videoTrackFormat);
+            } else if (videoOutputFormat != null) {
+                mVideoEncodeFormat = videoOutputFormat;
+            } else if (!canCopyVideoSegment(trackResult.mVideoTrackFormat, videoTrackFormat)) {
+                videoOutputFormat = createVideoSegmentFormat(videoTrackFormat);
+                Log.d(TAG, "Video track is not compatible with output track, re-encoding: " + trackResult.mVideoTrackFormat);
             }
-        });
+        }
+        if (mBitrateController != null && videoOutputFormat != null) {
+            int videoBitrate = segment == 0 ? mBitrateController.computeInitialVideoBitrate(getExpectedAudioBitrate(hasAudio, audioOutputFormat))
+                    : mBitrateController.getVideoBitrate();
+            videoOutputFormat.setInteger(MediaFormat.KEY_BIT_RATE, videoBitrate);
+        }
+        if (isControllingVideoBitrate && mTargetQuality > 0 && videoOutputFormat != null) {
+            if (mQualityController == null) {
+                mQualityController = new QualityController(mTargetQuality, videoOutputFormat.containsKey(MediaFormat.KEY_BIT_RATE)
+                        ? videoOutputFormat.getInteger(MediaFormat.KEY_BIT_RATE) : DEFAULT_SEGMENT_VIDEO_BITRATE);
+            }
+            videoOutputFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQualityController.getVideoBitrate());
+        }
+        DeviceProfile deviceProfile = sDeviceProfile;
+        if (deviceProfile != null && videoOutputFormat != null) deviceProfile.applyTo(videoOutputFormat);
+        if (audioOutputFormat != null) {
+            mAudioEncodeFormat = audioOutputFormat;
+        } else if (hasAudio && !canCopyAudioSegment(trackResult.mAudioTrackFormat, queuedMuxer.getOutputFormat(QueuedMuxer.SampleType.AUDIO))) {
+            audioOutputFormat = createAudioSegmentFormat(queuedMuxer.getOutputFormat(QueuedMuxer.SampleType.AUDIO));
+            Log.d(TAG, "Audio track is not compatible with output track, re-encoding: " + trackResult.mAudioTrackFormat);
+        }
 
-        if (videoOutputFormat == null) {
-            mVideoTrackTranscoder = new PassThroughTrackTranscoder(mExtractor, trackResult.mVideoTrackIndex, queuedMuxer, QueuedMuxer.SampleType.VIDEO);
-        } else {
-            mVideoTrackTranscoder = new VideoTrackTranscoder(mExtractor, trackResult.mVideoTrackIndex, videoOutputFormat, queuedMuxer);
+        if (hasVideo) {
+            if (formatStrategies.size() > 1) {
+                setupRenditionVideoTrackTranscoders(formatStrategies, videoOutputFormat, trackResult);
+            } else if (videoOutputFormat == null) {
+                mVideoTrackTranscoder = new PassThroughTrackTranscoder(mExtractor, trackResult.mVideoTrackIndex, queuedMuxer, QueuedMuxer.SampleType.VIDEO);
+            } else if ((mIsGlDisabled || sIsGlUnavailable) && canTranscodeVideoWithoutGl(formatStrategies.size())) {
+                mVideoTrackTranscoder = new YuvVideoTrackTranscoder(mExtractor, trackResult.mVideoTrackIndex, videoOutputFormat, queuedMuxer);
+            } else {
+                mVideoTrackTranscoder = new VideoTrackTranscoder(mExtractor, trackResult.mVideoTrackIndex, videoOutputFormat, queuedMuxer);
+            }
+            double targetFrameRate = mTargetFrameRate;
+            if (targetFrameRate <= 0 && mSpeed > 1.0) {
+                // Keep frame rate of input, instead of multiplying it by speed.
+                targetFrameRate = getFrameRate(trackResult.mVideoTrackFormat);
+            }
+            configureVideoTrackTranscoder(targetFrameRate);
+            try {
+                mVideoTrackTranscoder.setup();
+            } catch (GlUnavailableException e) {
+                if (videoOutputFormat == null || !canTranscodeVideoWithoutGl(formatStrategies.size())) throw e;
+                Log.w(TAG, "GL is unavailable, falling back to video transcoding on CPU.", e);
+                // Skip GL for following jobs too, as driver is not likely to recover.
+                sIsGlUnavailable = true;
+                mVideoTrackTranscoder.release();
+                mVideoTrackTranscoder = new YuvVideoTrackTranscoder(mExtractor, trackResult.mVideoTrackIndex, videoOutputFormat, queuedMuxer);
+                configureVideoTrackTranscoder(targetFrameRate);
+                mVideoTrackTranscoder.setup();
+            }
         }
-        mVideoTrackTranscoder.setup();
-        if (audioOutputFormat == null) {
-            mAudioTrackTranscoder = new PassThroughTrackTranscoder(mExtractor, trackResult.mAudioTrackIndex, queuedMuxer, QueuedMuxer.SampleType.AUDIO);
-        } else {
-            mAudioTrackTranscoder = new AudioTrackTranscoder(mExtractor, trackResult.mAudioTrackIndex, audioOutputFormat, queuedMuxer);
+        MediaExtractor audioExtractor = mExtractor;
+        if (mIsParallelTracksEnabled && videoOutputFormat != null && audioOutputFormat != null) {
+            mAudioExtractor = new MediaExtractor();
+            mInputs.get(segment).setTo(mAudioExtractor);
+            audioExtractor = mAudioExtractor;
+        }
+        // Keep memory of samples queued before muxer starts bounded, as tracks are not stepped in turn.
+        queuedMuxer.setMaxInterleaveLeadUs(mAudioExtractor != null ? MAX_INTERLEAVE_LEAD_US : 0);
+        if (hasAudio) {
+            if (audioOutputFormat == null) {
+                mAudioTrackTranscoder = new PassThroughTrackTranscoder(audioExtractor, trackResult.mAudioTrackIndex, queuedMuxer, QueuedMuxer.SampleType.AUDIO);
+            } else {
+                AudioTrackTranscoder audioTrackTranscoder = new AudioTrackTranscoder(audioExtractor, trackResult.mAudioTrackIndex, audioOutputFormat, queuedMuxer);
+                audioTrackTranscoder.setSpeed(mSpeed);
+                if (mTargetLoudness != 0) {
+                    if (mLoudnessNormalizer == null) {
+                        // Shared by all segments, so that loudness is measured and normalized across them.
+                        mLoudnessNormalizer = new LoudnessNormalizer(mTargetLoudness,
+                                audioOutputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE), audioOutputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+                    }
+                    audioTrackTranscoder.setLoudnessNormalizer(mLoudnessNormalizer);
+                }
+                mAudioTrackTranscoder = audioTrackTranscoder;
+            }
+            mAudioTrackTranscoder.setup();
+        }
+        if (segment == 0) {
+            for (int i = 0; i < mExtraTrackIndices.size(); i++) {
+                TrackTranscoder trackTranscoder = new PassThroughTrackTranscoder(mExtractor, mExtraTrackIndices.get(i), queuedMuxer, mExtraOutputTracks.get(i));
+                mAdditionalTrackTranscoders.add(trackTranscoder);
+                trackTranscoder.setup();
+                mExtractor.selectTrack(mExtraTrackIndices.get(i));
+            }
+        }
+        if (hasVideo) mExtractor.selectTrack(trackResult.mVideoTrackIndex);
+        if (hasAudio) audioExtractor.selectTrack(trackResult.mAudioTrackIndex);
+    }
+
+    private void setupEncoderControls() {
+        if (mTargetQuality > 0 && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            Log.w(TAG, "Target quality requires Android 4.4 or later, ignoring.");
+        }
+        if (mIsSceneCutDetectionEnabled && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            Log.w(TAG, "Scene cut detection requires Android 4.4 or later, ignoring.");
+        }
+        if (mTargetFileSize <= 0) return;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            Log.w(TAG, "Target file size requires Android 4.4 or later, ignoring.");
+            return;
+        }
+        if (mDurationUs <= 0) {
+            Log.w(TAG, "Duration of input is unknown, ignoring target file size.");
+            return;
+        }
+        mBitrateController = new BitrateController(mTargetFileSize, (long) (mDurationUs / mSpeed), mQueuedMuxers.get(0));
+    }
+
+    private static int getExpectedAudioBitrate(boolean hasAudio, MediaFormat audioOutputFormat) {
+        if (!hasAudio) return 0;
+        if (audioOutputFormat != null && audioOutputFormat.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            return audioOutputFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+        }
+        // Unknown, but corrected by measured bitrate while encoding.
+        return DEFAULT_SEGMENT_AUDIO_BITRATE;
+    }
+
+    private void addOutputTracks(MediaExtractorUtils.TrackResult trackResult, boolean hasVideo, boolean hasAudio) {
+        for (QueuedMuxer queuedMuxer : mQueuedMuxers) {
+            if (hasVideo) queuedMuxer.addTrack(QueuedMuxer.SampleType.VIDEO);
+            // Audio of other outputs is mirrored from the first one.
+            if (hasAudio) queuedMuxer.addTrack(QueuedMuxer.SampleType.AUDIO);
+        }
+        List<Integer> extraTrackIndices = new ArrayList<>();
+        if (mTrackSelection.isExtraAudioEnabled()) extraTrackIndices.addAll(trackResult.mExtraAudioTrackIndices);
+        if (mTrackSelection.isMetadataEnabled()) extraTrackIndices.addAll(trackResult.mMetadataTrackIndices);
+        if (!extraTrackIndices.isEmpty() && Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            Log.w(TAG, "Extra audio and metadata tracks require Android 8.0 or later, skipping " + extraTrackIndices.size() + " tracks.");
+            extraTrackIndices.clear();
+        }
+        if (!extraTrackIndices.isEmpty() && mSpeed != 1.0) {
+            Log.w(TAG, "Extra audio and metadata tracks cannot be retimed, skipping " + extraTrackIndices.size() + " tracks.");
+            extraTrackIndices.clear();
+        }
+        for (int trackIndex : extraTrackIndices) {
+            boolean isMetadata = trackResult.mMetadataTrackIndices.contains(trackIndex);
+            mExtraTrackIndices.add(trackIndex);
+            mExtraOutputTracks.add(mQueuedMuxers.get(0).addTrack(isMetadata ? QueuedMuxer.SampleType.METADATA : QueuedMuxer.SampleType.AUDIO));
+        }
+        if (!hasVideo && !hasAudio && mExtraTrackIndices.isEmpty()) {
+            throw new InvalidOutputFormatException("Input does not have any of selected tracks.");
+        }
+    }
+
+    private void configureVideoTrackTranscoder(double targetFrameRate) {
+        if (targetFrameRate > 0) {
+            if (mVideoTrackTranscoder instanceof VideoTrackTranscoder) {
+                ((VideoTrackTranscoder) mVideoTrackTranscoder).setTargetFrameRate(targetFrameRate);
+            } else if (mVideoTrackTranscoder instanceof YuvVideoTrackTranscoder) {
+                ((YuvVideoTrackTranscoder) mVideoTrackTranscoder).setTargetFrameRate(targetFrameRate);
+            } else {
+                Log.w(TAG, "Video is passed through, frame rate is not changed for this input.");
+            }
+        }
+        if (mVideoTrackTranscoder instanceof VideoTrackTranscoder) {
+            // Single job through all segments, so that render metrics cover whole output.
+            if (mRenderJob == null) mRenderJob = GlRenderThread.getInstance().register();
+            ((VideoTrackTranscoder) mVideoTrackTranscoder).setRenderJob(mRenderJob);
+            ((VideoTrackTranscoder) mVideoTrackTranscoder).setSpeed(mSpeed);
+            ((VideoTrackTranscoder) mVideoTrackTranscoder).setVideoFilters(mVideoFilters);
+            ((VideoTrackTranscoder) mVideoTrackTranscoder).setBitrateController(mBitrateController);
+            ((VideoTrackTranscoder) mVideoTrackTranscoder).setQualityController(mQualityController);
+            if (mIsSceneCutDetectionEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                ((VideoTrackTranscoder) mVideoTrackTranscoder).setSceneCutDetector(new SceneCutDetector(MIN_SCENE_CUT_INTERVAL_US));
+            }
+        } else if (mVideoTrackTranscoder instanceof YuvVideoTrackTranscoder) {
+            ((YuvVideoTrackTranscoder) mVideoTrackTranscoder).setSpeed(mSpeed);
+            ((YuvVideoTrackTranscoder) mVideoTrackTranscoder).setBitrateController(mBitrateController);
+        }
+        if (mSpriteSheetRecorder != null) {
+            if (mVideoTrackTranscoder instanceof VideoTrackTranscoder) {
+                ((VideoTrackTranscoder) mVideoTrackTranscoder).setSpriteSheetRecorder(mSpriteSheetRecorder);
+            } else {
+                Log.w(TAG, "Video is passed through, thumbnails are not generated for this input.");
+            }
+        }
+    }
+
+    private void setupRenditionVideoTrackTranscoders(List<MediaFormatStrategy> formatStrategies, MediaFormat firstVideoOutputFormat,
+                                                     MediaExtractorUtils.TrackResult trackResult) throws IOException {
+        List<MediaFormat> encodeFormats = new ArrayList<>();
+        List<QueuedMuxer> encodeMuxers = new ArrayList<>();
+        List<QueuedMuxer> copyMuxers = new ArrayList<>();
+        for (int i = 0; i < formatStrategies.size(); i++) {
+            MediaFormat videoOutputFormat = i == 0 ? firstVideoOutputFormat
+                    : formatStrategies.get(i).createVideoOutputFormat(trackResult.mVideoTrackFormat);
+            if (videoOutputFormat == null && isModifyingVideoFrames()) {
+                videoOutputFormat = createVideoSegmentFormat(trackResult.mVideoTrackFormat);
+            }
+            DeviceProfile deviceProfile = sDeviceProfile;
+            if (i > 0 && deviceProfile != null && videoOutputFormat != null) deviceProfile.applyTo(videoOutputFormat);
+            if (videoOutputFormat == null) {
+                copyMuxers.add(mQueuedMuxers.get(i));
+            } else {
+                encodeFormats.add(videoOutputFormat);
+                encodeMuxers.add(mQueuedMuxers.get(i));
+            }
+        }
+        if (!encodeFormats.isEmpty()) {
+            mVideoTrackTranscoder = new VideoTrackTranscoder(mExtractor, trackResult.mVideoTrackIndex, encodeFormats, encodeMuxers);
+        }
+        for (QueuedMuxer copyMuxer : copyMuxers) {
+            if (mVideoTrackTranscoder == null) {
+                mVideoTrackTranscoder = new PassThroughTrackTranscoder(mExtractor, trackResult.mVideoTrackIndex, copyMuxer, QueuedMuxer.SampleType.VIDEO);
+                continue;
+            }
+            // Pass-through reads samples by itself, so use dedicated extractor not to steal samples from decoder.
+            MediaExtractor extractor = new MediaExtractor();
+            mRenditionExtractors.add(extractor);
+            mInputs.get(0).setTo(extractor);
+            TrackTranscoder trackTranscoder = new PassThroughTrackTranscoder(extractor, trackResult.mVideoTrackIndex, copyMuxer, QueuedMuxer.SampleType.VIDEO);
+            mAdditionalTrackTranscoders.add(trackTranscoder);
+            trackTranscoder.setup();
+            extractor.selectTrack(trackResult.mVideoTrackIndex);
+        }
+    }
+
+    // NOTE: differences of AVC SPS/PPS are allowed as QueuedMuxer writes them in-band.
+    private static boolean canCopyVideoSegment(MediaFormat inputFormat, MediaFormat trackFormat) {
+        if (trackFormat == null) return true;
+        String mime = inputFormat.getString(MediaFormat.KEY_MIME);
+        return mime.equals(trackFormat.getString(MediaFormat.KEY_MIME))
+                && inputFormat.getInteger(MediaFormat.KEY_WIDTH) == trackFormat.getInteger(MediaFormat.KEY_WIDTH)
+                && inputFormat.getInteger(MediaFormat.KEY_HEIGHT) == trackFormat.getInteger(MediaFormat.KEY_HEIGHT)
+                && (MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC.equals(mime)
+                || QueuedMuxer.hasSameByteBuffer(inputFormat, trackFormat, "csd-0"));
+    }
+
+    private static boolean canCopyAudioSegment(MediaFormat inputFormat, MediaFormat trackFormat) {
+        if (trackFormat == null) return true;
+        return inputFormat.getString(MediaFormat.KEY_MIME).equals(trackFormat.getString(MediaFormat.KEY_MIME))
+                && inputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE) == trackFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+                && inputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT) == trackFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+                && QueuedMuxer.hasSameByteBuffer(inputFormat, trackFormat, "csd-0");
+    }
+
+    private boolean canTranscodeVideoWithoutGl(int outputCount) {
+        return outputCount == 1 && mVideoFilters.isEmpty() && mSpriteSheetRecorder == null && mTargetQuality <= 0
+                && !mIsSceneCutDetectionEnabled;
+    }
+
+    private boolean isModifyingVideoFrames() {
+        return mSpeed != 1.0 || !mVideoFilters.isEmpty();
+    }
+
+    /**
+     * Format to re-encode video of segment in. Always AVC, as output may not take codec of input e.g. VP9.
+     * Returns new object which caller may modify.
+     */
+    private MediaFormat createVideoSegmentFormat(MediaFormat trackFormat) {
+        int width = trackFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int height = trackFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC, width, height);
+        if (mVideoEncodeFormat != null && MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC.equals(mVideoEncodeFormat.getString(MediaFormat.KEY_MIME))
+                && mVideoEncodeFormat.getInteger(MediaFormat.KEY_WIDTH) == width
+                && mVideoEncodeFormat.getInteger(MediaFormat.KEY_HEIGHT) == height) {
+            // NOTE: copy, as segment formats are modified, e.g. bitrate, while codecs of previous segment use them.
+            copyFormatKeys(mVideoEncodeFormat, format, MediaFormat.KEY_BIT_RATE, MediaFormat.KEY_BITRATE_MODE,
+                    MediaFormat.KEY_FRAME_RATE, MediaFormat.KEY_I_FRAME_INTERVAL, MediaFormat.KEY_COLOR_FORMAT,
+                    MediaFormatExtraConstants.KEY_PROFILE, MediaFormatExtraConstants.KEY_LEVEL);
+            return format;
+        }
+        // Bitrate of other codec does not tell quality in AVC.
+        format.setInteger(MediaFormat.KEY_BIT_RATE, trackFormat.containsKey(MediaFormat.KEY_BIT_RATE)
+                && MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC.equals(trackFormat.getString(MediaFormat.KEY_MIME))
+                ? trackFormat.getInteger(MediaFormat.KEY_BIT_RATE) : DEFAULT_SEGMENT_VIDEO_BITRATE);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 3);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        return format;
+    }
+
+    /**
+     * Format to re-encode audio of segment in. Always AAC, as output may not take codec of input e.g. MP3 or Opus.
+     * Returns new object which caller may modify.
+     */
+    private MediaFormat createAudioSegmentFormat(MediaFormat trackFormat) {
+        int sampleRate = trackFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channelCount = trackFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormatExtraConstants.MIMETYPE_AUDIO_AAC, sampleRate, channelCount);
+        if (mAudioEncodeFormat != null && MediaFormatExtraConstants.MIMETYPE_AUDIO_AAC.equals(mAudioEncodeFormat.getString(MediaFormat.KEY_MIME))
+                && mAudioEncodeFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE) == sampleRate
+                && mAudioEncodeFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT) == channelCount) {
+            copyFormatKeys(mAudioEncodeFormat, format, MediaFormat.KEY_BIT_RATE, MediaFormat.KEY_AAC_PROFILE);
+            return format;
+        }
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, trackFormat.containsKey(MediaFormat.KEY_BIT_RATE)
+                && MediaFormatExtraConstants.MIMETYPE_AUDIO_AAC.equals(trackFormat.getString(MediaFormat.KEY_MIME))
+                ? trackFormat.getInteger(MediaFormat.KEY_BIT_RATE) : DEFAULT_SEGMENT_AUDIO_BITRATE);
+        return format;
+    }
+
+    // MediaFormat does not tell type of value, so try them in turn.
+    private static void copyFormatKeys(MediaFormat source, MediaFormat destination, String... keys) {
+        for (String key : keys) {
+            if (!source.containsKey(key)) continue;
+            try {
+                destination.setInteger(key, source.getInteger(key));
+            } catch (ClassCastException e) {
+                destination.setFloat(key, source.getFloat(key));
+            }
         }
-        mAudioTrackTranscoder.setup();
-        mExtractor.selectTrack(trackResult.mVideoTrackIndex);
-        mExtractor.selectTrack(trackResult.mAudioTrackIndex);
     }
 
-    private void runPipelines() throws InterruptedException {
+    private static double getFrameRate(MediaFormat format) {
+        if (!format.containsKey(MediaFormat.KEY_FRAME_RATE)) return DEFAULT_FRAME_RATE;
+        try {
+            return format.getInteger(MediaFormat.KEY_FRAME_RATE);
+        } catch (ClassCastException e) {
+            // Some extractors store frame rate as float.
+            return format.getFloat(MediaFormat.KEY_FRAME_RATE);
+        }
+    }
+
+    private void runPipelines(int segment) throws InterruptedException {
         long loopCount = 0;
         if (mDurationUs <= 0) {
             double progress = PROGRESS_UNKNOWN;
             mProgress = progress;
             if (mProgressCallback != null) mProgressCallback.onProgress(progress); // unknown
         }
-        while (!(mVideoTrackTranscoder.isFinished() && mAudioTrackTranscoder.isFinished())) {
-            boolean stepped = mVideoTrackTranscoder.stepPipeline()
-                    || mAudioTrackTranscoder.stepPipeline();
+        long segmentStartUs = 0;
+        for (int i = 0; i < segment; i++) segmentStartUs += mSegmentDurationsUs[i];
+        long segmentDurationUs = mSegmentDurationsUs[segment];
+        // Written presentation time is retimed by speed.
+        long writtenDurationUs = (long) (segmentDurationUs / mSpeed);
+        if (mAudioExtractor != null) {
+            runPipelinesOnTrackThreads(segmentStartUs, segmentDurationUs, writtenDurationUs);
+            return;
+        }
+        while (!(isFinished(mVideoTrackTranscoder) && isFinished(mAudioTrackTranscoder) && areAdditionalTrackTranscodersFinished())) {
+            boolean stepped = (mVideoTrackTranscoder != null && mVideoTrackTranscoder.stepPipeline())
+                    || (mAudioTrackTranscoder != null && mAudioTrackTranscoder.stepPipeline());
+            for (TrackTranscoder trackTranscoder : mAdditionalTrackTranscoders) {
+                if (trackTranscoder.stepPipeline()) stepped = true;
+            }
             loopCount++;
             if (mDurationUs > 0 && loopCount % PROGRESS_INTERVAL_STEPS == 0) {
-                double videoProgress = mVideoTrackTranscoder.isFinished() ? 1.0 : Math.min(1.0, (double) mVideoTrackTranscoder.getWrittenPresentationTimeUs() / mDurationUs);
-                double audioProgress = mAudioTrackTranscoder.isFinished() ? 1.0 : Math.min(1.0, (double) mAudioTrackTranscoder.getWrittenPresentationTimeUs() / mDurationUs);
-                double progress = (videoProgress + audioProgress) / 2.0;
-                mProgress = progress;
-                if (mProgressCallback != null) mProgressCallback.onProgress(progress);
+                reportProgress(segmentStartUs, segmentDurationUs, writtenDurationUs);
             }
+            pauseIfRequested();
             if (!stepped) {
                 Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
             }
         }
     }
 
+    // Video and additional tracks share one thread as they share extractor, and audio runs on another.
+    private void runPipelinesOnTrackThreads(long segmentStartUs, long segmentDurationUs, long writtenDurationUs) throws InterruptedException {
+        Object lock = new Object();
+        List<TrackTranscoder> videoTrackTranscoders = new ArrayList<>();
+        videoTrackTranscoders.add(mVideoTrackTranscoder);
+        videoTrackTranscoders.addAll(mAdditionalTrackTranscoders);
+        TrackThread videoThread = new TrackThread(videoTrackTranscoders, QueuedMuxer.SampleType.VIDEO, lock);
+        TrackThread audioThread = new TrackThread(Collections.singletonList(mAudioTrackTranscoder), QueuedMuxer.SampleType.AUDIO, lock);
+        videoThread.start();
+        audioThread.start();
+        try {
+            while (true) {
+                synchronized (lock) {
+                    if (videoThread.mError != null || audioThread.mError != null) break;
+                    if (videoThread.mIsDone && audioThread.mIsDone) break;
+                    lock.wait(TRACK_THREAD_PROGRESS_INTERVAL_MS);
+                }
+                // NOTE: approximate, as written time of tracks is read while they are running.
+                if (mDurationUs > 0) reportProgress(segmentStartUs, segmentDurationUs, writtenDurationUs);
+            }
+        } finally {
+            // Also on cancel and error, so that codecs are not used while released.
+            videoThread.interrupt();
+            audioThread.interrupt();
+            joinUninterruptibly(videoThread);
+            joinUninterruptibly(audioThread);
+        }
+        videoThread.throwIfFailed();
+        audioThread.throwIfFailed();
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void reportProgress(long segmentStartUs, long segmentDurationUs, long writtenDurationUs) {
+        double videoProgress = getTrackProgress(mVideoTrackTranscoder, writtenDurationUs);
+        double audioProgress = getTrackProgress(mAudioTrackTranscoder, writtenDurationUs);
+        double segmentProgress = mVideoTrackTranscoder == null ? audioProgress
+                : mAudioTrackTranscoder == null ? videoProgress : (videoProgress + audioProgress) / 2.0;
+        double progress = (segmentStartUs + segmentProgress * segmentDurationUs) / mDurationUs;
+        mProgress = progress;
+        if (mProgressCallback != null) mProgressCallback.onProgress(progress);
+    }
+
+    private void pauseIfRequested() throws InterruptedException {
+        if (mPauseController != null && mPauseController.shouldPause() && isAtVideoSyncSample()) {
+            Log.d(TAG, "Pausing in favor of other jobs.");
+            mPauseController.awaitResume();
+            Log.d(TAG, "Resumed.");
+        }
+    }
+
+    // Pause only before video sync sample, so that job resumes from the start of a GOP.
+    private boolean isAtVideoSyncSample() {
+        if (mVideoTrackIndex < 0) return true;
+        int trackIndex = mExtractor.getSampleTrackIndex();
+        if (trackIndex < 0) return true;
+        return trackIndex == mVideoTrackIndex && (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+    }
+
+    private static boolean isFinished(TrackTranscoder trackTranscoder) {
+        return trackTranscoder == null || trackTranscoder.isFinished();
+    }
+
+    private static double getTrackProgress(TrackTranscoder trackTranscoder, long segmentDurationUs) {
+        if (isFinished(trackTranscoder)) return 1.0;
+        return Math.min(1.0, (double) trackTranscoder.getWrittenPresentationTimeUs() / segmentDurationUs);
+    }
+
+    private boolean areAdditionalTrackTranscodersFinished() {
+        for (TrackTranscoder trackTranscoder : mAdditionalTrackTranscoders) {
+            if (!trackTranscoder.isFinished()) return false;
+        }
+        return true;
+    }
+
+    private class TrackThread extends Thread {
+        private final List<TrackTranscoder> mTrackTranscoders;
+        private final QueuedMuxer.SampleType mSampleType;
+        private final Object mLock;
+        private volatile Throwable mError;
+        private volatile boolean mIsDone;
+
+        private TrackThread(List<TrackTranscoder> trackTranscoders, QueuedMuxer.SampleType sampleType, Object lock) {
+            super(TAG + "-" + sampleType);
+            mTrackTranscoders = trackTranscoders;
+            mSampleType = sampleType;
+            mLock = lock;
+        }
+
+        @Override
+        public void run() {
+            try {
+                loop();
+            } catch (InterruptedException e) {
+                // Cancelled by engine.
+            } catch (Throwable t) {
+                mError = t;
+            } finally {
+                // Do not let other track wait for this one in muxer.
+                mQueuedMuxers.get(0).setTrackFinished(mSampleType);
+                synchronized (mLock) {
+                    mIsDone = true;
+                    mLock.notifyAll();
+                }
+            }
+        }
+
+        private void loop() throws InterruptedException {
+            while (true) {
+                if (isInterrupted()) throw new InterruptedException();
+                TrackTranscoder waitingTrackTranscoder = null;
+                boolean stepped = false;
+                for (TrackTranscoder trackTranscoder : mTrackTranscoders) {
+                    if (trackTranscoder.isFinished()) continue;
+                    if (waitingTrackTranscoder == null) waitingTrackTranscoder = trackTranscoder;
+                    if (trackTranscoder.stepPipeline()) stepped = true;
+                }
+                if (waitingTrackTranscoder == null) return;
+                // Pausing at video sync sample needs extractor of video.
+                if (mSampleType == QueuedMuxer.SampleType.VIDEO) pauseIfRequested();
+                if (stepped) continue;
+                long startNs = System.nanoTime();
+                if (waitingTrackTranscoder.stepPipeline(TRACK_THREAD_CODEC_TIMEOUT_US)) continue;
+                // Pipeline had nothing to wait on, e.g. pass-through, so do not spin.
+                if (System.nanoTime() - startNs < TRACK_THREAD_CODEC_TIMEOUT_US * 1000 / 2) {
+                    Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
+                }
+            }
+        }
+
+        private void throwIfFailed() {
+            Throwable error = mError;
+            if (error == null) return;
+            if (error instanceof RuntimeException) throw (RuntimeException) error;
+            if (error instanceof Error) throw (Error) error;
+            throw new RuntimeException(error);
+        }
+    }
+
+    private static class Input {
+        private final FileDescriptor mFileDescriptor;
+        private final Object mDataSource; // MediaDataSource, which is not available before Android 6.0.
+
+        private Input(FileDescriptor fileDescriptor, Object dataSource) {
+            mFileDescriptor = fileDescriptor;
+            mDataSource = dataSource;
+        }
+
+        private void setTo(MediaExtractor extractor) throws IOException {
+            if (mFileDescriptor != null) {
+                extractor.setDataSource(mFileDescriptor);
+            } else {
+                extractor.setDataSource(createUnclosableDataSource());
+            }
+        }
+
+        private void setTo(MediaMetadataRetriever mediaMetadataRetriever) {
+            if (mFileDescriptor != null) {
+                mediaMetadataRetriever.setDataSource(mFileDescriptor);
+            } else {
+                mediaMetadataRetriever.setDataSource(createUnclosableDataSource());
+            }
+        }
+
+        // Extractor and retriever close data source on release, while it is shared by all of them.
+        @TargetApi(Build.VERSION_CODES.M)
+        private MediaDataSource createUnclosableDataSource() {
+            final MediaDataSource dataSource = (MediaDataSource) mDataSource;
+            return new MediaDataSource() {
+                @Override
+                public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+                    return dataSource.readAt(position, buffer, offset, size);
+                }
+
+                @Override
+                public long getSize() throws IOException {
+                    return dataSource.getSize();
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return mFileDescriptor != null ? mFileDescriptor.toString() : mDataSource.toString();
+        }
+    }
+
+    private class OutputFormatValidator implements QueuedMuxer.Listener {
+        private final int mOutputIndex;
+
+        private OutputFormatValidator(int outputIndex) {
+            mOutputIndex = outputIndex;
+        }
+
+        @Override
+        public void onDetermineOutputFormat() {
+            QueuedMuxer queuedMuxer = mQueuedMuxers.get(mOutputIndex);
+            MediaFormat videoFormat = queuedMuxer.getOutputFormat(QueuedMuxer.SampleType.VIDEO);
+            MediaFormat audioFormat = queuedMuxer.getOutputFormat(QueuedMuxer.SampleType.AUDIO);
+            if (videoFormat != null) MediaFormatValidator.validateVideoOutputFormat(videoFormat);
+            if (audioFormat != null) MediaFormatValidator.validateAudioOutputFormat(audioFormat);
+        }
+    }
+
+    public interface PauseController {
+        /**
+         * Called on each step of transcoding on the transcoding thread.
+         *
+         * @return true to pause at next video sync sample.
+         */
+        boolean shouldPause();
+
+        /**
+         * Blocks transcoding thread until job may continue.
+         *
+         * @throws InterruptedException when canceled while paused.
+         */
+        void awaitResume() throws InterruptedException;
+    }
+
     public interface ProgressCallback {
         /**
          * Called to notify progress. Same thread which initiated transcode is used.
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes samples to {@link MediaMuxer} on its own thread, so that slow storage does not stall codecs.
+ * <p>
+ * Samples are copied into preallocated ring, so encoder buffer can be released as soon as write returns.
+ * Ring has single producer (transcoding thread) and single consumer (writer thread), which only exchange counters
+ * of published and consumed samples; no lock is taken while writing. Writer drains all published samples in a batch
+ * before giving their space back. When ring is full, producer waits, and the time is reported as backpressure.
+ * <p>
+ * With zero capacity, samples are written synchronously on caller thread.
+ */
+class MuxerWriter {
+    private static final String TAG = "MuxerWriter";
+    // Upper bound of samples in ring regardless of their sizes, e.g. for many small audio samples.
+    private static final int MAX_QUEUED_SAMPLES = 1024;
+
+    private final MediaMuxer mMuxer;
+    private final int mCapacity;
+    private final ByteBuffer mProducerData;
+    private final ByteBuffer mConsumerData;
+    private final int[] mTracks;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    // Size in ring including padding skipped at the end of ring before the sample.
+    private final int[] mSpans;
+    private final long[] mPresentationTimesUs;
+    private final int[] mFlags;
+    private final Thread mThread;
+    private final MediaCodec.BufferInfo mConsumerBufferInfo = new MediaCodec.BufferInfo();
+
+    // Written by producer only.
+    private volatile long mPublishedCount;
+    private volatile long mPublishedBytes;
+    // Written by consumer only.
+    private volatile long mConsumedCount;
+    private volatile long mConsumedBytes;
+    private volatile boolean mIsProducerWaiting;
+    private volatile boolean mIsConsumerWaiting;
+    private volatile Thread mProducerThread;
+    private volatile boolean mIsClosed;
+    private volatile Throwable mError;
+
+    // Touched by producer only.
+    private long mBlockedNs;
+    private int mBlockedCount;
+    private long mPeakQueuedBytes;
+
+    /**
+     * @param capacity Bytes of ring, or 0 to write synchronously.
+     */
+    MuxerWriter(MediaMuxer muxer, int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("Capacity should not be negative: " + capacity);
+        mMuxer = muxer;
+        mCapacity = capacity;
+        if (capacity == 0) {
+            mProducerData = mConsumerData = null;
+            mTracks = mOffsets = mSizes = mSpans = mFlags = null;
+            mPresentationTimesUs = null;
+            mThread = null;
+            return;
+        }
+        mProducerData = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        mConsumerData = mProducerData.duplicate();
+        mTracks = new int[MAX_QUEUED_SAMPLES];
+        mOffsets = new int[MAX_QUEUED_SAMPLES];
+        mSizes = new int[MAX_QUEUED_SAMPLES];
+        mSpans = new int[MAX_QUEUED_SAMPLES];
+        mPresentationTimesUs = new long[MAX_QUEUED_SAMPLES];
+        mFlags = new int[MAX_QUEUED_SAMPLES];
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    int addTrack(MediaFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    void start() {
+        mMuxer.start();
+    }
+
+    /**
+     * Copies sample into ring, waiting for space if needed. Position and limit of byteBuf may be modified.
+     */
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        throwIfFailed();
+        int size = bufferInfo.size;
+        if (mCapacity == 0 || size > mCapacity) {
+            // Too large for ring; write it in order after queued ones.
+            flush();
+            writeSample(trackIndex, byteBuf, bufferInfo);
+            return;
+        }
+        long publishedCount = mPublishedCount;
+        long publishedBytes = mPublishedBytes;
+        int offset = (int) (publishedBytes % mCapacity);
+        int span = size;
+        if (offset + size > mCapacity) {
+            // Keep each sample contiguous, muxer takes single buffer.
+            span += mCapacity - offset;
+            offset = 0;
+        }
+        awaitSpace(publishedCount, publishedBytes, span);
+
+        byteBuf.limit(bufferInfo.offset + size);
+        byteBuf.position(bufferInfo.offset);
+        mProducerData.limit(offset + size);
+        mProducerData.position(offset);
+        mProducerData.put(byteBuf);
+
+        int slot = (int) (publishedCount % MAX_QUEUED_SAMPLES);
+        mTracks[slot] = trackIndex;
+        mOffsets[slot] = offset;
+        mSizes[slot] = size;
+        mSpans[slot] = span;
+        mPresentationTimesUs[slot] = bufferInfo.presentationTimeUs;
+        mFlags[slot] = bufferInfo.flags;
+        mPublishedBytes = publishedBytes + span;
+        mPublishedCount = publishedCount + 1;
+        mPeakQueuedBytes = Math.max(mPeakQueuedBytes, mPublishedBytes - mConsumedBytes);
+        if (mIsConsumerWaiting) LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Waits until all queued samples are written.
+     */
+    void flush() {
+        if (mCapacity == 0) return;
+        awaitConsumed(mPublishedCount);
+        throwIfFailed();
+    }
+
+    /**
+     * Writes queued samples and stops muxer.
+     */
+    void stop() {
+        flush();
+        mMuxer.stop();
+    }
+
+    /**
+     * Ends writer thread, dropping queued samples. Muxer itself should be released by owner.
+     */
+    void close() {
+        if (mThread == null || mIsClosed) return;
+        mIsClosed = true;
+        LockSupport.unpark(mThread);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return Total time producer waited for space in ring, in microseconds.
+     */
+    long getBlockedUs() {
+        return mBlockedNs / 1000;
+    }
+
+    /**
+     * @return Number of writes which waited for space in ring.
+     */
+    int getBlockedCount() {
+        return mBlockedCount;
+    }
+
+    /**
+     * @return Largest number of bytes which were waiting for writer, including padding.
+     */
+    long getPeakQueuedBytes() {
+        return mPeakQueuedBytes;
+    }
+
+    // Overridden by tests to run without real muxer.
+    void writeSample(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        mMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    private void awaitSpace(long publishedCount, long publishedBytes, int span) {
+        if (hasSpace(publishedCount, publishedBytes, span)) return;
+        long startNs = System.nanoTime();
+        mBlockedCount++;
+        mProducerThread = Thread.currentThread();
+        while (true) {
+            mIsProducerWaiting = true;
+            if (hasSpace(publishedCount, publishedBytes, span)) break;
+            throwIfFailed();
+            LockSupport.park(this);
+        }
+        mIsProducerWaiting = false;
+        mBlockedNs += System.nanoTime() - startNs;
+    }
+
+    private boolean hasSpace(long publishedCount, long publishedBytes, int span) {
+        return publishedCount - mConsumedCount < MAX_QUEUED_SAMPLES
+                && publishedBytes + span - mConsumedBytes <= mCapacity;
+    }
+
+    private void awaitConsumed(long count) {
+        mProducerThread = Thread.currentThread();
+        while (true) {
+            mIsProducerWaiting = true;
+            if (mConsumedCount >= count || mError != null) break;
+            LockSupport.park(this);
+        }
+        mIsProducerWaiting = false;
+    }
+
+    private void throwIfFailed() {
+        Throwable error = mError;
+        if (error == null) return;
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        if (error instanceof Error) throw (Error) error;
+        throw new RuntimeException(error);
+    }
+
+    private void loop() {
+        long consumedCount = 0;
+        long consumedBytes = 0;
+        while (!mIsClosed) {
+            long publishedCount = mPublishedCount;
+            if (publishedCount == consumedCount) {
+                mIsConsumerWaiting = true;
+                if (mPublishedCount == consumedCount && !mIsClosed) LockSupport.park(this);
+                mIsConsumerWaiting = false;
+                continue;
+            }
+            try {
+                for (long i = consumedCount; i < publishedCount; i++) {
+                    int slot = (int) (i % MAX_QUEUED_SAMPLES);
+                    int offset = mOffsets[slot];
+                    int size = mSizes[slot];
+                    mConsumerData.limit(offset + size);
+                    mConsumerData.position(offset);
+                    mConsumerBufferInfo.set(offset, size, mPresentationTimesUs[slot], mFlags[slot]);
+                    writeSample(mTracks[slot], mConsumerData, mConsumerBufferInfo);
+                    consumedBytes += mSpans[slot];
+                }
+            } catch (Throwable t) {
+                mError = t;
+                wakeProducer();
+                return;
+            }
+            consumedCount = publishedCount;
+            mConsumedBytes = consumedBytes;
+            mConsumedCount = consumedCount;
+            if (mIsProducerWaiting) wakeProducer();
+        }
+    }
+
+    private void wakeProducer() {
+        Thread producer = mProducerThread;
+        if (producer != null) LockSupport.unpark(producer);
+    }
+}
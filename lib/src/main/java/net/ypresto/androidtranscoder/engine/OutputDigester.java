@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Digests of finished output in one sequential read, done right after muxer is stopped so that pages written by it
+ * are still in cache and storage is not read again.
+ */
+class OutputDigester {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final List<String> mAlgorithms;
+
+    /**
+     * @throws IllegalArgumentException if any algorithm is not supported.
+     */
+    OutputDigester(List<String> algorithms) {
+        for (String algorithm : algorithms) createDigest(algorithm);
+        mAlgorithms = new ArrayList<>(algorithms);
+    }
+
+    /**
+     * Read output once to digest it. Only its size is taken if no algorithm is given.
+     *
+     * @param videoSampleCount Number of video samples written.
+     * @param audioSampleCount Number of audio samples written.
+     */
+    TranscodeResult.Output digest(String path, int videoSampleCount, int audioSampleCount) throws IOException {
+        File file = new File(path);
+        Map<String, String> hexDigests = new LinkedHashMap<>();
+        if (mAlgorithms.isEmpty()) {
+            return new TranscodeResult.Output(path, file.length(), hexDigests, videoSampleCount, audioSampleCount);
+        }
+        List<MessageDigest> digests = new ArrayList<>();
+        for (String algorithm : mAlgorithms) digests.add(createDigest(algorithm));
+        long size = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = inputStream.read(buffer)) >= 0) {
+                for (MessageDigest digest : digests) digest.update(buffer, 0, read);
+                size += read;
+            }
+        } finally {
+            inputStream.close();
+        }
+        for (int i = 0; i < mAlgorithms.size(); i++) {
+            hexDigests.put(mAlgorithms.get(i), ContentFingerprint.toHex(digests.get(i).digest()));
+        }
+        return new TranscodeResult.Output(path, size, hexDigests, videoSampleCount, audioSampleCount);
+    }
+
+    private static MessageDigest createDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm, e);
+        }
+    }
+}
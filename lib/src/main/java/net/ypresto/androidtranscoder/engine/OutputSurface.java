@@ -16,6 +16,9 @@
 // from: https://android.googlesource.com/platform/cts/+/lollipop-release/tests/tests/media/src/android/media/cts/OutputSurface.java
 // blob: fc8ad9cd390c5c311f015d3b7c1359e4d295bc52
 // modified: change TIMEOUT_MS from 500 to 10000
+// modified: forget cached programs when EGL context is destroyed.
+// modified: add setFilterChain.
+// modified: delete texture on release, and split awaitNewImage into waitForNewImage and updateTexImage.
 package net.ypresto.androidtranscoder.engine;
 import android.graphics.SurfaceTexture;
 import android.opengl.EGL14;
@@ -155,9 +158,13 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
      * Discard all resources held by this class, notably the EGL context.
      */
     public void release() {
+        if (mTextureRender != null) {
+            mTextureRender.release();
+        }
         if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
             EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
             EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
+            ShaderProgramCache.onContextDestroyed(mEGLContext);
             EGL14.eglReleaseThread();
             EGL14.eglTerminate(mEGLDisplay);
         }
@@ -186,6 +193,12 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
     public Surface getSurface() {
         return mSurface;
     }
+    /**
+     * Draws frames through given filters in {@link #drawImage()}, or as is if null.
+     */
+    public void setFilterChain(VideoFilterChain filterChain) {
+        mTextureRender.setFilterChain(filterChain);
+    }
     /**
      * Replaces the fragment shader.
      */
@@ -198,6 +211,14 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
      * data is available.
      */
     public void awaitNewImage() {
+        waitForNewImage();
+        updateTexImage();
+    }
+    /**
+     * Waits for new image without latching it, so that waiting does not occupy EGL context.
+     * Call {@link #updateTexImage()} afterwards with the context current.
+     */
+    public void waitForNewImage() {
         final int TIMEOUT_MS = 10000;
         synchronized (mFrameSyncObject) {
             while (!mFrameAvailable) {
@@ -216,7 +237,11 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
             }
             mFrameAvailable = false;
         }
-        // Latch the data.
+    }
+    /**
+     * Latches image waited by {@link #waitForNewImage()}.
+     */
+    public void updateTexImage() {
         mTextureRender.checkGlError("before updateTexImage");
         mSurfaceTexture.updateTexImage();
     }
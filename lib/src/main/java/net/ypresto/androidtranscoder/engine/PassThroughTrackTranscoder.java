@@ -24,10 +24,11 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 public class PassThroughTrackTranscoder implements TrackTranscoder {
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024; // e.g. for timed metadata, which does not have max input size.
     private final MediaExtractor mExtractor;
     private final int mTrackIndex;
     private final QueuedMuxer mMuxer;
-    private final QueuedMuxer.SampleType mSampleType;
+    private final int mOutputTrack;
     private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
     private int mBufferSize;
     private ByteBuffer mBuffer;
@@ -37,14 +38,23 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
 
     public PassThroughTrackTranscoder(MediaExtractor extractor, int trackIndex,
                                       QueuedMuxer muxer, QueuedMuxer.SampleType sampleType) {
+        this(extractor, trackIndex, muxer, muxer.getTrack(sampleType));
+    }
+
+    /**
+     * @param outputTrack Track of muxer returned by {@link QueuedMuxer#addTrack(QueuedMuxer.SampleType)}.
+     */
+    public PassThroughTrackTranscoder(MediaExtractor extractor, int trackIndex,
+                                      QueuedMuxer muxer, int outputTrack) {
         mExtractor = extractor;
         mTrackIndex = trackIndex;
         mMuxer = muxer;
-        mSampleType = sampleType;
+        mOutputTrack = outputTrack;
 
         mActualOutputFormat = mExtractor.getTrackFormat(mTrackIndex);
-        mMuxer.setOutputFormat(mSampleType, mActualOutputFormat);
-        mBufferSize = mActualOutputFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+        mMuxer.setOutputFormat(mOutputTrack, mActualOutputFormat);
+        mBufferSize = mActualOutputFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                ? mActualOutputFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : DEFAULT_BUFFER_SIZE;
         mBuffer = ByteBuffer.allocateDirect(mBufferSize).order(ByteOrder.nativeOrder());
     }
 
@@ -57,6 +67,12 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
         return mActualOutputFormat;
     }
 
+    @Override
+    public boolean stepPipeline(long timeoutUs) {
+        // Extractor does not block.
+        return stepPipeline();
+    }
+
     @SuppressLint("Assert")
     @Override
     public boolean stepPipeline() {
@@ -65,7 +81,7 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
         if (trackIndex < 0) {
             mBuffer.clear();
             mBufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-            mMuxer.writeSampleData(mSampleType, mBuffer, mBufferInfo);
+            mMuxer.writeSampleData(mOutputTrack, mBuffer, mBufferInfo);
             mIsEOS = true;
             return true;
         }
@@ -77,7 +93,7 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
         boolean isKeyFrame = (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
         int flags = isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
         mBufferInfo.set(0, sampleSize, mExtractor.getSampleTime(), flags);
-        mMuxer.writeSampleData(mSampleType, mBuffer, mBufferInfo);
+        mMuxer.writeSampleData(mOutputTrack, mBuffer, mBufferInfo);
         mWrittenPresentationTimeUs = mBufferInfo.presentationTimeUs;
 
         mExtractor.advance();
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+/**
+ * Receives decoded audio as interleaved 16-bit PCM in fixed-size chunks.
+ */
+public interface PcmAudioSink {
+    /**
+     * Called once before the first chunk.
+     */
+    void onOutputFormat(int sampleRate, int channelCount);
+
+    /**
+     * Called for each chunk. Array is reused for the next chunk, so copy it if it is used after this call.
+     *
+     * @param samples            Interleaved samples.
+     * @param frameCount         Number of frames in chunk, which is less than chunk size only for the last chunk.
+     * @param presentationTimeUs Presentation time of the first frame.
+     */
+    void onPcmChunk(short[] samples, int frameCount, long presentationTimeUs);
+
+    /**
+     * Called after the last chunk.
+     */
+    void onEndOfStream();
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import net.ypresto.androidtranscoder.compat.MediaCodecBufferCompatWrapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes audio track and writes PCM into {@link PcmAudioSink} instead of muxer.
+ */
+public class PcmAudioTrackTranscoder implements TrackTranscoder {
+    private static final int DRAIN_STATE_NONE = 0;
+    private static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
+    private static final int DRAIN_STATE_CONSUMED = 2;
+
+    private final MediaExtractor mExtractor;
+    private final int mTrackIndex;
+    private final PcmConverter mConverter;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private MediaCodec mDecoder;
+    private MediaCodecBufferCompatWrapper mDecoderBuffers;
+    private MediaFormat mActualOutputFormat;
+    private boolean mIsExtractorEOS;
+    private boolean mIsDecoderEOS;
+    private boolean mDecoderStarted;
+
+    /**
+     * @param sampleRate      Output sample rate, or 0 to keep input one.
+     * @param channelCount    Output channel count (1 or 2), or 0 to keep input one.
+     * @param chunkFrameCount Number of frames in each chunk passed to sink.
+     */
+    public PcmAudioTrackTranscoder(MediaExtractor extractor, int trackIndex, PcmAudioSink sink,
+                                   int sampleRate, int channelCount, int chunkFrameCount) {
+        mExtractor = extractor;
+        mTrackIndex = trackIndex;
+        mConverter = new PcmConverter(sink, sampleRate, channelCount, chunkFrameCount);
+    }
+
+    @Override
+    public void setup() {
+        mExtractor.selectTrack(mTrackIndex);
+        MediaFormat inputFormat = mExtractor.getTrackFormat(mTrackIndex);
+        try {
+            mDecoder = ResourcePool.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        mDecoder.configure(inputFormat, null, null, 0);
+        mDecoder.start();
+        mDecoderStarted = true;
+        mDecoderBuffers = new MediaCodecBufferCompatWrapper(mDecoder);
+    }
+
+    @Override
+    public MediaFormat getDeterminedFormat() {
+        return mActualOutputFormat;
+    }
+
+    @Override
+    public boolean stepPipeline() {
+        return stepPipeline(0);
+    }
+
+    @Override
+    public boolean stepPipeline(long timeoutUs) {
+        boolean busy = false;
+        int status;
+        do {
+            status = drainDecoder(0);
+            if (status != DRAIN_STATE_NONE) busy = true;
+        } while (status == DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY);
+        while (drainExtractor(0) != DRAIN_STATE_NONE) busy = true;
+        if (!busy && timeoutUs > 0) busy = drainDecoder(timeoutUs) != DRAIN_STATE_NONE;
+        return busy;
+    }
+
+    private int drainExtractor(long timeoutUs) {
+        if (mIsExtractorEOS) return DRAIN_STATE_NONE;
+        int trackIndex = mExtractor.getSampleTrackIndex();
+        if (trackIndex >= 0 && trackIndex != mTrackIndex) {
+            return DRAIN_STATE_NONE;
+        }
+        int result = mDecoder.dequeueInputBuffer(timeoutUs);
+        if (result < 0) return DRAIN_STATE_NONE;
+        if (trackIndex < 0) {
+            mIsExtractorEOS = true;
+            mDecoder.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return DRAIN_STATE_NONE;
+        }
+        int sampleSize = mExtractor.readSampleData(mDecoderBuffers.getInputBuffer(result), 0);
+        boolean isKeyFrame = (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        mDecoder.queueInputBuffer(result, 0, sampleSize, mExtractor.getSampleTime(), isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        mExtractor.advance();
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    private int drainDecoder(long timeoutUs) {
+        if (mIsDecoderEOS) return DRAIN_STATE_NONE;
+        int result = mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        switch (result) {
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                return DRAIN_STATE_NONE;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                mActualOutputFormat = mDecoder.getOutputFormat();
+                mConverter.setInputFormat(mActualOutputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                        mActualOutputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                mDecoderBuffers = new MediaCodecBufferCompatWrapper(mDecoder);
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        if (mBufferInfo.size > 0) {
+            ByteBuffer buffer = mDecoderBuffers.getOutputBuffer(result);
+            buffer.limit(mBufferInfo.offset + mBufferInfo.size);
+            buffer.position(mBufferInfo.offset);
+            mConverter.write(buffer.slice().order(ByteOrder.nativeOrder()).asShortBuffer(), mBufferInfo.presentationTimeUs);
+        }
+        mDecoder.releaseOutputBuffer(result, false);
+        if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mIsDecoderEOS = true;
+            mConverter.finish();
+        }
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    @Override
+    public long getWrittenPresentationTimeUs() {
+        return mConverter.getWrittenPresentationTimeUs();
+    }
+
+    @Override
+    public boolean isFinished() {
+        return mIsDecoderEOS;
+    }
+
+    @Override
+    public void release() {
+        if (mDecoder != null) {
+            ResourcePool.recycle(mDecoder, mDecoderStarted);
+            mDecoder = null;
+        }
+    }
+}
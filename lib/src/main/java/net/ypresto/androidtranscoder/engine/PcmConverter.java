@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Converts channels and sample rate of decoded PCM, and slices it into fixed-size chunks for {@link PcmAudioSink}.
+ * Sample rate is converted by linear interpolation, which is enough for speech.
+ */
+class PcmConverter {
+    private static final long MICROSECS_PER_SEC = 1000000;
+    private final PcmAudioSink mSink;
+    private final int mRequestedSampleRate;
+    private final int mRequestedChannelCount;
+    private final int mChunkFrameCount;
+    private int mInputSampleRate;
+    private int mInputChannelCount;
+    private int mOutputSampleRate;
+    private int mOutputChannelCount;
+    private short[] mChunk;
+    private int mChunkFrames;
+    private short[] mMixed = new short[0];
+    private short[] mPreviousFrame;
+    // Position of next output frame in input frames, relative to the head of current buffer.
+    // Negative value means it is between the previous frame and the head.
+    private double mResamplePosition;
+    private long mStartPresentationTimeUs = -1;
+    private long mOutputFrameCount;
+
+    /**
+     * @param sampleRate      Output sample rate, or 0 to keep input one.
+     * @param channelCount    Output channel count, or 0 to keep input one.
+     * @param chunkFrameCount Number of frames in each chunk.
+     */
+    PcmConverter(PcmAudioSink sink, int sampleRate, int channelCount, int chunkFrameCount) {
+        if (chunkFrameCount <= 0) {
+            throw new IllegalArgumentException("Chunk frame count should be positive: " + chunkFrameCount);
+        }
+        if (channelCount < 0 || channelCount > 2) {
+            throw new UnsupportedOperationException("Output channel count (" + channelCount + ") not supported.");
+        }
+        mSink = sink;
+        mRequestedSampleRate = sampleRate;
+        mRequestedChannelCount = channelCount;
+        mChunkFrameCount = chunkFrameCount;
+    }
+
+    public void setInputFormat(int sampleRate, int channelCount) {
+        if (mChunk != null) {
+            if (sampleRate != mInputSampleRate || channelCount != mInputChannelCount) {
+                throw new UnsupportedOperationException("Decoded audio format changed while decoding.");
+            }
+            return;
+        }
+        mInputSampleRate = sampleRate;
+        mInputChannelCount = channelCount;
+        mOutputSampleRate = mRequestedSampleRate > 0 ? mRequestedSampleRate : sampleRate;
+        mOutputChannelCount = mRequestedChannelCount > 0 ? mRequestedChannelCount : channelCount;
+        mChunk = new short[mChunkFrameCount * mOutputChannelCount];
+        mPreviousFrame = new short[mOutputChannelCount];
+        mSink.onOutputFormat(mOutputSampleRate, mOutputChannelCount);
+    }
+
+    /**
+     * @param input              Interleaved samples of input format.
+     * @param presentationTimeUs Presentation time of the first frame of input.
+     */
+    public void write(ShortBuffer input, long presentationTimeUs) {
+        if (mChunk == null) {
+            throw new IllegalStateException("Input format is not set.");
+        }
+        if (mStartPresentationTimeUs < 0) mStartPresentationTimeUs = presentationTimeUs;
+        int frameCount = input.remaining() / mInputChannelCount;
+        if (frameCount == 0) return;
+        if (mMixed.length < frameCount * mOutputChannelCount) {
+            mMixed = new short[frameCount * mOutputChannelCount];
+        }
+        mixChannels(input, frameCount);
+        if (mInputSampleRate == mOutputSampleRate) {
+            for (int frame = 0; frame < frameCount; frame++) {
+                putFrame(mMixed, frame * mOutputChannelCount);
+            }
+        } else {
+            resample(frameCount);
+        }
+    }
+
+    /**
+     * Emit remaining frames and notify end of stream.
+     */
+    public void finish() {
+        if (mChunk == null) {
+            // No audio is decoded.
+            mSink.onEndOfStream();
+            return;
+        }
+        if (mChunkFrames > 0) emitChunk();
+        mSink.onEndOfStream();
+    }
+
+    /**
+     * @return Presentation time of emitted frames so far.
+     */
+    public long getWrittenPresentationTimeUs() {
+        if (mStartPresentationTimeUs < 0) return 0;
+        return mStartPresentationTimeUs + mOutputFrameCount * MICROSECS_PER_SEC / mOutputSampleRate;
+    }
+
+    private void mixChannels(ShortBuffer input, int frameCount) {
+        int outIndex = 0;
+        for (int frame = 0; frame < frameCount; frame++) {
+            int inIndex = input.position() + frame * mInputChannelCount;
+            if (mOutputChannelCount == mInputChannelCount) {
+                for (int channel = 0; channel < mOutputChannelCount; channel++) {
+                    mMixed[outIndex++] = input.get(inIndex + channel);
+                }
+            } else if (mOutputChannelCount == 1) {
+                // Average of all channels, which never clips unlike sum.
+                int sum = 0;
+                for (int channel = 0; channel < mInputChannelCount; channel++) {
+                    sum += input.get(inIndex + channel);
+                }
+                mMixed[outIndex++] = (short) (sum / mInputChannelCount);
+            } else if (mInputChannelCount == 1) {
+                short sample = input.get(inIndex);
+                mMixed[outIndex++] = sample;
+                mMixed[outIndex++] = sample;
+            } else {
+                // Front left and right of multichannel audio.
+                mMixed[outIndex++] = input.get(inIndex);
+                mMixed[outIndex++] = input.get(inIndex + 1);
+            }
+        }
+        input.position(input.position() + frameCount * mInputChannelCount);
+    }
+
+    private void resample(int frameCount) {
+        double step = (double) mInputSampleRate / mOutputSampleRate;
+        int channels = mOutputChannelCount;
+        while (true) {
+            int index = (int) Math.floor(mResamplePosition);
+            if (index + 1 >= frameCount) break;
+            double fraction = mResamplePosition - index;
+            int chunkIndex = mChunkFrames * channels;
+            for (int channel = 0; channel < channels; channel++) {
+                int a = index < 0 ? mPreviousFrame[channel] : mMixed[index * channels + channel];
+                int b = mMixed[(index + 1) * channels + channel];
+                mChunk[chunkIndex + channel] = (short) Math.round(a + (b - a) * fraction);
+            }
+            onFramePut();
+            mResamplePosition += step;
+        }
+        mResamplePosition -= frameCount;
+        System.arraycopy(mMixed, (frameCount - 1) * channels, mPreviousFrame, 0, channels);
+    }
+
+    private void putFrame(short[] source, int offset) {
+        System.arraycopy(source, offset, mChunk, mChunkFrames * mOutputChannelCount, mOutputChannelCount);
+        onFramePut();
+    }
+
+    private void onFramePut() {
+        mChunkFrames++;
+        if (mChunkFrames == mChunkFrameCount) emitChunk();
+    }
+
+    private void emitChunk() {
+        long presentationTimeUs = getWrittenPresentationTimeUs();
+        mSink.onPcmChunk(mChunk, mChunkFrames, presentationTimeUs);
+        mOutputFrameCount += mChunkFrames;
+        mChunkFrames = 0;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+/**
+ * Controls video bitrate so that output hits target SSIM at minimum size.
+ * <p>
+ * Frames are sampled periodically, and scores are averaged per window of samples. At the end of each window,
+ * bitrate is scaled by the ratio of distortion (1 - SSIM) to target one, limited to halving or doubling.
+ * Bitrate is kept while the score is within tolerance of target.
+ */
+class QualityController {
+    private static final long SAMPLE_INTERVAL_US = 500 * 1000;
+    private static final int SAMPLES_PER_WINDOW = 4;
+    private static final double TOLERANCE = 0.002;
+    private static final double MAX_STEP_RATIO = 2.0;
+    private static final int MIN_BITRATE = 100 * 1000;
+    private static final int MAX_BITRATE_RATIO_TO_INITIAL = 4;
+    private final double mTargetSsim;
+    private final int mMaxBitrate;
+    private int mVideoBitrate;
+    private long mLastSamplePresentationTimeUs = Long.MIN_VALUE;
+    private double mWindowSsim;
+    private int mWindowSampleCount;
+    private double mTotalSsim;
+    private double mTotalPsnr;
+    private int mTotalSampleCount;
+
+    /**
+     * @param targetSsim     Target SSIM of output, e.g. 0.95.
+     * @param initialBitrate Bitrate of output format, used until first window is scored.
+     */
+    QualityController(double targetSsim, int initialBitrate) {
+        if (targetSsim <= 0 || targetSsim >= 1) {
+            throw new IllegalArgumentException("Target SSIM should be in (0, 1): " + targetSsim);
+        }
+        mTargetSsim = targetSsim;
+        mVideoBitrate = initialBitrate;
+        mMaxBitrate = Math.max(MIN_BITRATE, initialBitrate) * MAX_BITRATE_RATIO_TO_INITIAL;
+    }
+
+    /**
+     * @return Whether frame of given presentation time should be compared with its encoded one.
+     */
+    public boolean shouldSample(long presentationTimeUs) {
+        if (mLastSamplePresentationTimeUs != Long.MIN_VALUE
+                && presentationTimeUs - mLastSamplePresentationTimeUs < SAMPLE_INTERVAL_US) return false;
+        mLastSamplePresentationTimeUs = presentationTimeUs;
+        return true;
+    }
+
+    /**
+     * Add score of a sampled frame.
+     */
+    public void addScore(double ssim, double psnr) {
+        mWindowSsim += ssim;
+        mWindowSampleCount++;
+        mTotalSsim += ssim;
+        mTotalPsnr += psnr;
+        mTotalSampleCount++;
+    }
+
+    /**
+     * Update bitrate when a window of samples is scored.
+     *
+     * @return Whether video bitrate is changed, and should be applied to encoder.
+     */
+    public boolean update() {
+        if (mWindowSampleCount < SAMPLES_PER_WINDOW) return false;
+        double ssim = mWindowSsim / mWindowSampleCount;
+        mWindowSsim = 0;
+        mWindowSampleCount = 0;
+        if (Math.abs(ssim - mTargetSsim) < TOLERANCE) return false;
+        // Distortion roughly halves when bitrate doubles in the range used for delivery.
+        double ratio = Math.max(1.0 - ssim, 1e-4) / (1.0 - mTargetSsim);
+        ratio = Math.max(1.0 / MAX_STEP_RATIO, Math.min(MAX_STEP_RATIO, ratio));
+        int videoBitrate = (int) Math.max(MIN_BITRATE, Math.min(mMaxBitrate, mVideoBitrate * ratio));
+        if (videoBitrate == mVideoBitrate) return false;
+        mVideoBitrate = videoBitrate;
+        return true;
+    }
+
+    /**
+     * @return Video bitrate currently requested to encoder.
+     */
+    public int getVideoBitrate() {
+        return mVideoBitrate;
+    }
+
+    /**
+     * @return Mean SSIM of all sampled frames, or NaN if no frame is sampled.
+     */
+    public double getAverageSsim() {
+        return mTotalSampleCount == 0 ? Double.NaN : mTotalSsim / mTotalSampleCount;
+    }
+
+    /**
+     * @return Mean PSNR of all sampled frames in dB, or NaN if no frame is sampled.
+     */
+    public double getAveragePsnr() {
+        return mTotalSampleCount == 0 ? Double.NaN : mTotalPsnr / mTotalSampleCount;
+    }
+}
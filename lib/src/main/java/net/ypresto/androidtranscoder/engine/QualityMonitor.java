@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares sampled source frames with the same frames re-decoded from encoder output, and scores them into
+ * {@link QualityController}.
+ * <p>
+ * Both frames are drawn downscaled into a framebuffer and read back as luma. Encoded samples are decoded by
+ * a dedicated decoder in the same EGL context; only sampled frames are rendered. Should be used on GL thread of
+ * the transcoder.
+ */
+class QualityMonitor {
+    private static final String TAG = "QualityMonitor";
+    private static final int SAMPLE_WIDTH = 160;
+    private static final long INPUT_TIMEOUT_US = 10 * 1000;
+    // Source frames whose encoded ones are lost, e.g. by skipped samples, are dropped after this.
+    private static final int MAX_PENDING_FRAMES = 8;
+    private final QualityController mController;
+    private final int mSampleWidth;
+    private final int mSampleHeight;
+    private final TreeMap<Long, byte[]> mPendingSourceLumas = new TreeMap<>();
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private final int[] mSavedViewport = new int[4];
+    private final ByteBuffer mReadBuffer;
+    private final byte[] mOutputLuma;
+    private MediaCodec mDecoder;
+    private ByteBuffer[] mDecoderInputBuffers;
+    private OutputSurface mOutputSurface;
+    private int mFramebuffer;
+    private int mTexture;
+    private boolean mIsWaitingSyncFrame;
+
+    /**
+     * @param width  Width of encoded video.
+     * @param height Height of encoded video.
+     */
+    QualityMonitor(QualityController controller, int width, int height) {
+        mController = controller;
+        mSampleWidth = SAMPLE_WIDTH;
+        mSampleHeight = Math.max(8, Math.round((float) SAMPLE_WIDTH * height / width / 2) * 2);
+        mReadBuffer = ByteBuffer.allocateDirect(mSampleWidth * mSampleHeight * 4).order(ByteOrder.nativeOrder());
+        mOutputLuma = new byte[mSampleWidth * mSampleHeight];
+    }
+
+    /**
+     * Keep luma of source frame latched to given surface, if it is to be sampled.
+     */
+    public void captureSource(OutputSurface decoderOutputSurface, long presentationTimeUs) {
+        if (mDecoder == null || !mController.shouldSample(presentationTimeUs)) return;
+        byte[] luma = mPendingSourceLumas.size() >= MAX_PENDING_FRAMES ? mPendingSourceLumas.pollFirstEntry().getValue()
+                : new byte[mSampleWidth * mSampleHeight];
+        readLuma(decoderOutputSurface, luma);
+        mPendingSourceLumas.put(presentationTimeUs, luma);
+    }
+
+    /**
+     * Start decoder of encoded video. Should be called when output format of encoder is determined.
+     */
+    public void setOutputFormat(MediaFormat format) {
+        mOutputSurface = new OutputSurface();
+        try {
+            mDecoder = ResourcePool.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        mDecoder.configure(format, mOutputSurface.getSurface(), null, 0);
+        mDecoder.start();
+        mDecoderInputBuffers = mDecoder.getInputBuffers();
+    }
+
+    /**
+     * Decode encoded sample, and score sampled frames decoded so far.
+     */
+    public void queueEncodedSample(ByteBuffer buffer, MediaCodec.BufferInfo bufferInfo) {
+        if (mDecoder == null || bufferInfo.size == 0) return;
+        drain();
+        boolean isSyncFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (mIsWaitingSyncFrame && !isSyncFrame) return;
+        int index = mDecoder.dequeueInputBuffer(INPUT_TIMEOUT_US);
+        if (index < 0) {
+            // Never block encoding for verification; resume from next sync frame instead.
+            Log.d(TAG, "Verification decoder is busy, skipping samples until next sync frame.");
+            mIsWaitingSyncFrame = true;
+            return;
+        }
+        mIsWaitingSyncFrame = false;
+        ByteBuffer inputBuffer = mDecoderInputBuffers[index];
+        inputBuffer.clear();
+        buffer.limit(bufferInfo.offset + bufferInfo.size);
+        buffer.position(bufferInfo.offset);
+        inputBuffer.put(buffer);
+        mDecoder.queueInputBuffer(index, 0, bufferInfo.size, bufferInfo.presentationTimeUs, isSyncFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        drain();
+    }
+
+    /**
+     * Release decoder and GL resources. Should be called before EGL context is destroyed.
+     */
+    public void release() {
+        if (mDecoder != null) {
+            ResourcePool.recycle(mDecoder, true);
+            mDecoder = null;
+        }
+        if (mOutputSurface != null) {
+            mOutputSurface.release();
+            mOutputSurface = null;
+        }
+        if (mFramebuffer != 0) {
+            GLES20.glDeleteFramebuffers(1, new int[]{mFramebuffer}, 0);
+            GLES20.glDeleteTextures(1, new int[]{mTexture}, 0);
+            mFramebuffer = 0;
+            mTexture = 0;
+        }
+        mPendingSourceLumas.clear();
+    }
+
+    private void drain() {
+        while (true) {
+            int index = mDecoder.dequeueOutputBuffer(mBufferInfo, 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) return;
+            if (index < 0) continue;
+            long presentationTimeUs = mBufferInfo.presentationTimeUs;
+            byte[] sourceLuma = mPendingSourceLumas.get(presentationTimeUs);
+            boolean doRender = sourceLuma != null && mBufferInfo.size > 0;
+            mDecoder.releaseOutputBuffer(index, doRender);
+            if (doRender) {
+                mOutputSurface.awaitNewImage();
+                readLuma(mOutputSurface, mOutputLuma);
+                mController.addScore(FrameQuality.ssim(sourceLuma, mOutputLuma, mSampleWidth, mSampleHeight),
+                        FrameQuality.psnr(sourceLuma, mOutputLuma, mOutputLuma.length));
+            }
+            // Frames are decoded in presentation order, so earlier ones will never come.
+            Iterator<Map.Entry<Long, byte[]>> iterator = mPendingSourceLumas.headMap(presentationTimeUs, true).entrySet().iterator();
+            while (iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void readLuma(OutputSurface outputSurface, byte[] luma) {
+        if (mFramebuffer == 0) setupFramebuffer();
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glViewport(0, 0, mSampleWidth, mSampleHeight);
+        outputSurface.drawImage();
+        mReadBuffer.clear();
+        GLES20.glReadPixels(0, 0, mSampleWidth, mSampleHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mReadBuffer);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(mSavedViewport[0], mSavedViewport[1], mSavedViewport[2], mSavedViewport[3]);
+        FrameQuality.rgbaToLuma(mReadBuffer, luma, luma.length);
+    }
+
+    private void setupFramebuffer() {
+        int[] values = new int[1];
+        GLES20.glGenTextures(1, values, 0);
+        mTexture = values[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mSampleWidth, mSampleHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glGenFramebuffers(1, values, 0);
+        mFramebuffer = values[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mTexture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("Quality framebuffer is not complete: 0x" + Integer.toHexString(status));
+        }
+    }
+}
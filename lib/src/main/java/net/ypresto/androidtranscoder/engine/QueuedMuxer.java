@@ -20,6 +20,8 @@ import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.util.Log;
 
+import net.ypresto.androidtranscoder.format.MediaFormatExtraConstants;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
@@ -27,48 +29,214 @@ import java.util.List;
 
 /**
  * This class queues until all output track formats are determined.
+ * Output tracks should be added by {@link #addTrack(SampleType)} before any format is set.
+ * <p>
+ * When multiple inputs are concatenated, each input is written as a segment; see {@link #beginSegment(long, boolean)}.
+ * <p>
+ * Thread-safe, so that tracks can be written from their own threads. Then {@link #setMaxInterleaveLeadUs(long)}
+ * keeps each track from running ahead of others, which also bounds samples queued before muxer starts.
  */
 public class QueuedMuxer {
     private static final String TAG = "QueuedMuxer";
     private static final int BUFFER_SIZE = 64 * 1024; // I have no idea whether this value is appropriate or not...
-    private final MediaMuxer mMuxer;
+    private final MuxerWriter mMuxer;
     private final Listener mListener;
-    private MediaFormat mVideoFormat;
-    private MediaFormat mAudioFormat;
-    private int mVideoTrackIndex;
-    private int mAudioTrackIndex;
+    private final List<OutputTrack> mTracks = new ArrayList<>();
     private ByteBuffer mByteBuffer;
     private final List<SampleInfo> mSampleInfoList;
     private boolean mStarted;
+    private final MediaCodec.BufferInfo mSegmentBufferInfo = new MediaCodec.BufferInfo();
+    private long mPresentationTimeOffsetUs;
+    private boolean mIsLastSegment = true;
+    private long mWrittenEndPresentationTimeUs;
+    private byte[] mVideoInBandParameterSets;
+    private ByteBuffer mInBandBuffer;
+    private final List<QueuedMuxer> mMirrors = new ArrayList<>();
+    private final List<SampleType> mMirrorSampleTypes = new ArrayList<>();
+    private long mMaxInterleaveLeadUs;
 
     public QueuedMuxer(MediaMuxer muxer, Listener listener) {
-        mMuxer = muxer;
+        this(new MuxerWriter(muxer, 0), listener);
+    }
+
+    /**
+     * @param writer Writer which may write samples on its own thread.
+     */
+    QueuedMuxer(MuxerWriter writer, Listener listener) {
+        mMuxer = writer;
         mListener = listener;
         mSampleInfoList = new ArrayList<>();
     }
 
+    /**
+     * Add output track. Muxer starts when formats of all added tracks are determined.
+     * Samples of first track of each type can be written by {@link SampleType}, and others by returned track.
+     *
+     * @param sampleType Type of track.
+     * @return Track to be passed to {@link #setOutputFormat(int, MediaFormat)} and {@link #writeSampleData(int, ByteBuffer, MediaCodec.BufferInfo)}.
+     */
+    public synchronized int addTrack(SampleType sampleType) {
+        if (mStarted) {
+            throw new IllegalStateException("Track cannot be added after muxer is started.");
+        }
+        mTracks.add(new OutputTrack(sampleType));
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * @return Whether track of given type is added.
+     */
+    public synchronized boolean hasTrack(SampleType sampleType) {
+        return findTrack(sampleType) >= 0;
+    }
+
+    /**
+     * @return First track of given type.
+     */
+    public synchronized int getTrack(SampleType sampleType) {
+        int track = findTrack(sampleType);
+        if (track < 0) {
+            throw new IllegalStateException("Muxer does not have " + sampleType + " track.");
+        }
+        return track;
+    }
+
+    private int findTrack(SampleType sampleType) {
+        for (int i = 0; i < mTracks.size(); i++) {
+            if (mTracks.get(i).mSampleType == sampleType) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Also write output format and samples of given type to another muxer.
+     * Used to share single encoded track (e.g. audio) among multiple outputs.
+     *
+     * @param sampleType Sample type to be mirrored.
+     * @param mirror     Muxer to receive samples.
+     */
+    public synchronized void addMirror(SampleType sampleType, QueuedMuxer mirror) {
+        mMirrorSampleTypes.add(sampleType);
+        mMirrors.add(mirror);
+    }
+
+    /**
+     * Starts writing samples of next input. Presentation times of following samples are shifted by given offset,
+     * and end of stream is only written for the last segment.
+     *
+     * @param presentationTimeOffsetUs Offset added to presentation time of following samples.
+     * @param isLastSegment            Whether following samples are from the last input.
+     */
+    public synchronized void beginSegment(long presentationTimeOffsetUs, boolean isLastSegment) {
+        mPresentationTimeOffsetUs = presentationTimeOffsetUs;
+        mIsLastSegment = isLastSegment;
+        mVideoInBandParameterSets = null;
+        for (OutputTrack outputTrack : mTracks) outputTrack.mIsFinished = false;
+    }
+
+    /**
+     * Make writer of a track wait while its sample is ahead of last written sample of another unfinished track by more
+     * than given time. Track of each type written first is regarded. Should be enabled only when tracks are written
+     * from different threads, as waiting writer is released by others. Default is 0, which disables waiting.
+     *
+     * @param maxInterleaveLeadUs Maximum lead in micro-second, or 0 to disable.
+     */
+    public synchronized void setMaxInterleaveLeadUs(long maxInterleaveLeadUs) {
+        mMaxInterleaveLeadUs = maxInterleaveLeadUs;
+        notifyAll();
+    }
+
+    /**
+     * Tell that no more samples are written to first track of given type in current segment, so that other tracks
+     * do not wait for it. Also done by end of stream sample.
+     */
+    public synchronized void setTrackFinished(SampleType sampleType) {
+        int track = findTrack(sampleType);
+        if (track < 0) return;
+        mTracks.get(track).mIsFinished = true;
+        notifyAll();
+    }
+
+    /**
+     * Get end time of samples written so far, i.e. presentation time of last sample plus its estimated duration.
+     * Use this as offset of next segment to keep timestamps continuous.
+     *
+     * @return End time in micro-second in output timeline.
+     */
+    public synchronized long getWrittenEndPresentationTimeUs() {
+        return mWrittenEndPresentationTimeUs;
+    }
+
+    /**
+     * @return Total size of samples written so far including queued ones, excluding container overhead.
+     */
+    public synchronized long getWrittenByteCount() {
+        long byteCount = 0;
+        for (OutputTrack outputTrack : mTracks) byteCount += outputTrack.mWrittenByteCount;
+        return byteCount;
+    }
+
+    /**
+     * @return Total size of samples of given type written so far including queued ones.
+     */
+    public synchronized long getWrittenByteCount(SampleType sampleType) {
+        long byteCount = 0;
+        for (OutputTrack outputTrack : mTracks) {
+            if (outputTrack.mSampleType == sampleType) byteCount += outputTrack.mWrittenByteCount;
+        }
+        return byteCount;
+    }
+
+    /**
+     * @return Number of non-empty samples of given type written so far including queued ones.
+     */
+    public synchronized int getWrittenSampleCount(SampleType sampleType) {
+        int sampleCount = 0;
+        for (OutputTrack outputTrack : mTracks) {
+            if (outputTrack.mSampleType == sampleType) sampleCount += outputTrack.mWrittenSampleCount;
+        }
+        return sampleCount;
+    }
+
+    /**
+     * @return Output format registered to muxer for first track of given sample type,
+     * or {@code null} if not yet determined or there is no such track.
+     */
+    public synchronized MediaFormat getOutputFormat(SampleType sampleType) {
+        int track = findTrack(sampleType);
+        return track < 0 ? null : mTracks.get(track).mFormat;
+    }
+
     public void setOutputFormat(SampleType sampleType, MediaFormat format) {
-        switch (sampleType) {
-            case VIDEO:
-                mVideoFormat = format;
-                break;
-            case AUDIO:
-                mAudioFormat = format;
-                break;
-            default:
-                throw new AssertionError();
+        setOutputFormat(getTrack(sampleType), format);
+    }
+
+    public synchronized void setOutputFormat(int track, MediaFormat format) {
+        OutputTrack outputTrack = mTracks.get(track);
+        if (track == findTrack(outputTrack.mSampleType)) {
+            for (int i = 0; i < mMirrors.size(); i++) {
+                if (mMirrorSampleTypes.get(i) == outputTrack.mSampleType) mMirrors.get(i).setOutputFormat(outputTrack.mSampleType, format);
+            }
         }
+        if (mStarted) {
+            setSegmentOutputFormat(outputTrack.mSampleType, outputTrack.mFormat, format);
+            return;
+        }
+        outputTrack.mFormat = format;
         onSetOutputFormat();
     }
 
     private void onSetOutputFormat() {
-        if (mVideoFormat == null || mAudioFormat == null) return;
+        if (mTracks.isEmpty()) return;
+        for (OutputTrack outputTrack : mTracks) {
+            if (outputTrack.mFormat == null) return;
+        }
         mListener.onDetermineOutputFormat();
 
-        mVideoTrackIndex = mMuxer.addTrack(mVideoFormat);
-        Log.v(TAG, "Added track #" + mVideoTrackIndex + " with " + mVideoFormat.getString(MediaFormat.KEY_MIME) + " to muxer");
-        mAudioTrackIndex = mMuxer.addTrack(mAudioFormat);
-        Log.v(TAG, "Added track #" + mAudioTrackIndex + " with " + mAudioFormat.getString(MediaFormat.KEY_MIME) + " to muxer");
+        for (OutputTrack outputTrack : mTracks) {
+            outputTrack.mMuxerTrackIndex = mMuxer.addTrack(outputTrack.mFormat);
+            Log.v(TAG, "Added track #" + outputTrack.mMuxerTrackIndex + " with " + outputTrack.mFormat.getString(MediaFormat.KEY_MIME) + " to muxer");
+        }
         mMuxer.start();
         mStarted = true;
 
@@ -82,16 +250,76 @@ public class QueuedMuxer {
         int offset = 0;
         for (SampleInfo sampleInfo : mSampleInfoList) {
             sampleInfo.writeToBufferInfo(bufferInfo, offset);
-            mMuxer.writeSampleData(getTrackIndexForSampleType(sampleInfo.mSampleType), mByteBuffer, bufferInfo);
+            mMuxer.writeSampleData(mTracks.get(sampleInfo.mTrack).mMuxerTrackIndex, mByteBuffer, bufferInfo);
             offset += sampleInfo.mSize;
         }
         mSampleInfoList.clear();
         mByteBuffer = null;
     }
 
+    // Track formats of muxer cannot be changed after start, so formats of following segments should be compatible.
+    private void setSegmentOutputFormat(SampleType sampleType, MediaFormat trackFormat, MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (!mime.equals(trackFormat.getString(MediaFormat.KEY_MIME))) {
+            throw new InvalidOutputFormatException("Segment has different " + sampleType + " codec (" + mime
+                    + ") from output track (" + trackFormat.getString(MediaFormat.KEY_MIME) + ").");
+        }
+        if (hasSameCodecConfig(format, trackFormat)) return;
+        if (sampleType == SampleType.VIDEO && MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            // MP4 track can hold only one SPS/PPS pair, so carry this segment's ones in-band before sync samples.
+            mVideoInBandParameterSets = concatCodecConfig(format);
+            Log.v(TAG, "Segment has different SPS/PPS from output track, writing them in-band.");
+            return;
+        }
+        throw new InvalidOutputFormatException("Segment has different " + sampleType + " codec config from output track.");
+    }
+
     public void writeSampleData(SampleType sampleType, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        writeSampleData(getTrack(sampleType), byteBuf, bufferInfo);
+    }
+
+    public void writeSampleData(int track, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        // NOTE: tracks and mirrors are fixed before writing samples.
+        SampleType sampleType = mTracks.get(track).mSampleType;
+        if (track == findTrack(sampleType)) {
+            // Mirrors are written outside of our lock, as they are locked by themselves.
+            for (int i = 0; i < mMirrors.size(); i++) {
+                // NOTE: duplicate as position and limit might be modified.
+                if (mMirrorSampleTypes.get(i) == sampleType) mMirrors.get(i).writeSampleData(sampleType, byteBuf.duplicate(), bufferInfo);
+            }
+        }
+        synchronized (this) {
+            writeOwnSampleData(track, byteBuf, bufferInfo);
+        }
+    }
+
+    private void writeOwnSampleData(int track, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        OutputTrack outputTrack = mTracks.get(track);
+        SampleType sampleType = outputTrack.mSampleType;
+        boolean isEndOfStream = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        if (isEndOfStream) {
+            outputTrack.mIsFinished = true;
+            if (mMaxInterleaveLeadUs > 0) notifyAll();
+        }
+        if (isEndOfStream && bufferInfo.size == 0 && !mIsLastSegment) return;
+        if (mMaxInterleaveLeadUs > 0 && bufferInfo.size > 0) {
+            awaitInterleaveTurn(outputTrack, bufferInfo.presentationTimeUs + mPresentationTimeOffsetUs);
+        }
+        if (mPresentationTimeOffsetUs != 0 || mVideoInBandParameterSets != null) {
+            mSegmentBufferInfo.set(bufferInfo.offset, bufferInfo.size,
+                    bufferInfo.presentationTimeUs + mPresentationTimeOffsetUs, bufferInfo.flags);
+            bufferInfo = mSegmentBufferInfo;
+            if (sampleType == SampleType.VIDEO && mVideoInBandParameterSets != null
+                    && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0 && bufferInfo.size > 0) {
+                byteBuf = prependInBandParameterSets(byteBuf, bufferInfo);
+            }
+        }
+        if (bufferInfo.size > 0) updateWrittenEndPresentationTime(outputTrack, bufferInfo.presentationTimeUs);
+        outputTrack.mWrittenByteCount += bufferInfo.size;
+        if (bufferInfo.size > 0) outputTrack.mWrittenSampleCount++;
+        if (mMaxInterleaveLeadUs > 0) notifyAll();
         if (mStarted) {
-            mMuxer.writeSampleData(getTrackIndexForSampleType(sampleType), byteBuf, bufferInfo);
+            mMuxer.writeSampleData(outputTrack.mMuxerTrackIndex, byteBuf, bufferInfo);
             return;
         }
         byteBuf.limit(bufferInfo.offset + bufferInfo.size);
@@ -100,30 +328,122 @@ public class QueuedMuxer {
             mByteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
         }
         mByteBuffer.put(byteBuf);
-        mSampleInfoList.add(new SampleInfo(sampleType, bufferInfo.size, bufferInfo));
+        mSampleInfoList.add(new SampleInfo(track, bufferInfo.size, bufferInfo));
+    }
+
+    // Should be called with lock held. Gives up waiting on interrupt, so that cancellation is not blocked.
+    private void awaitInterleaveTurn(OutputTrack outputTrack, long presentationTimeUs) {
+        if (canWriteInterleaved(outputTrack, presentationTimeUs)) return;
+        outputTrack.mIsWaiting = true;
+        outputTrack.mWaitingPresentationTimeUs = presentationTimeUs;
+        // Let others waiting for this sample re-evaluate.
+        notifyAll();
+        try {
+            while (!canWriteInterleaved(outputTrack, presentationTimeUs)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            outputTrack.mIsWaiting = false;
+        }
     }
 
-    private int getTrackIndexForSampleType(SampleType sampleType) {
-        switch (sampleType) {
-            case VIDEO:
-                return mVideoTrackIndex;
-            case AUDIO:
-                return mAudioTrackIndex;
-            default:
-                throw new AssertionError();
+    private boolean canWriteInterleaved(OutputTrack outputTrack, long presentationTimeUs) {
+        if (mMaxInterleaveLeadUs <= 0 || !isInterleaved(outputTrack)) return true;
+        for (OutputTrack other : mTracks) {
+            if (other == outputTrack || other.mIsFinished || !isInterleaved(other)) continue;
+            if (presentationTimeUs <= other.mLastPresentationTimeUs + mMaxInterleaveLeadUs) continue;
+            // Both are waiting, so earlier one goes first.
+            if (other.mIsWaiting && other.mWaitingPresentationTimeUs >= presentationTimeUs) continue;
+            return false;
         }
+        return true;
     }
 
-    public enum SampleType {VIDEO, AUDIO}
+    private boolean isInterleaved(OutputTrack outputTrack) {
+        return outputTrack.mSampleType != SampleType.METADATA && mTracks.get(findTrack(outputTrack.mSampleType)) == outputTrack;
+    }
 
-    private static class SampleInfo {
+    private void updateWrittenEndPresentationTime(OutputTrack outputTrack, long presentationTimeUs) {
+        // Metadata samples are sparse, and do not define duration of media.
+        if (outputTrack.mSampleType == SampleType.METADATA) return;
+        if (outputTrack.mLastPresentationTimeUs >= 0 && presentationTimeUs > outputTrack.mLastPresentationTimeUs) {
+            outputTrack.mSampleDurationUs = presentationTimeUs - outputTrack.mLastPresentationTimeUs;
+        }
+        outputTrack.mLastPresentationTimeUs = presentationTimeUs;
+        mWrittenEndPresentationTimeUs = Math.max(mWrittenEndPresentationTimeUs, presentationTimeUs + outputTrack.mSampleDurationUs);
+    }
+
+    private ByteBuffer prependInBandParameterSets(ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        int size = mVideoInBandParameterSets.length + bufferInfo.size;
+        if (mInBandBuffer == null || mInBandBuffer.capacity() < size) {
+            mInBandBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+        mInBandBuffer.clear();
+        mInBandBuffer.put(mVideoInBandParameterSets);
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        byteBuf.position(bufferInfo.offset);
+        mInBandBuffer.put(byteBuf);
+        mInBandBuffer.flip();
+        bufferInfo.set(0, size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        return mInBandBuffer;
+    }
+
+    private static boolean hasSameCodecConfig(MediaFormat a, MediaFormat b) {
+        return hasSameByteBuffer(a, b, "csd-0") && hasSameByteBuffer(a, b, "csd-1");
+    }
+
+    static boolean hasSameByteBuffer(MediaFormat a, MediaFormat b, String key) {
+        ByteBuffer bufferA = a.containsKey(key) ? a.getByteBuffer(key) : null;
+        ByteBuffer bufferB = b.containsKey(key) ? b.getByteBuffer(key) : null;
+        if (bufferA == null || bufferB == null) return bufferA == bufferB;
+        // NOTE: ByteBuffer#equals() compares remaining bytes.
+        bufferA = bufferA.duplicate();
+        bufferB = bufferB.duplicate();
+        bufferA.rewind();
+        bufferB.rewind();
+        return bufferA.equals(bufferB);
+    }
+
+    private static byte[] concatCodecConfig(MediaFormat format) {
+        ByteBuffer sps = format.getByteBuffer(MediaFormatExtraConstants.KEY_AVC_SPS).duplicate();
+        ByteBuffer pps = format.getByteBuffer(MediaFormatExtraConstants.KEY_AVC_PPS).duplicate();
+        sps.rewind();
+        pps.rewind();
+        byte[] bytes = new byte[sps.remaining() + pps.remaining()];
+        sps.get(bytes, 0, sps.remaining());
+        pps.get(bytes, bytes.length - pps.remaining(), pps.remaining());
+        return bytes;
+    }
+
+    public enum SampleType {VIDEO, AUDIO, METADATA}
+
+    private static class OutputTrack {
         private final SampleType mSampleType;
+        private MediaFormat mFormat;
+        private int mMuxerTrackIndex;
+        private long mLastPresentationTimeUs = -1;
+        private long mSampleDurationUs;
+        private long mWrittenByteCount;
+        private int mWrittenSampleCount;
+        private boolean mIsFinished;
+        private boolean mIsWaiting;
+        private long mWaitingPresentationTimeUs;
+
+        private OutputTrack(SampleType sampleType) {
+            mSampleType = sampleType;
+        }
+    }
+
+    private static class SampleInfo {
+        private final int mTrack;
         private final int mSize;
         private final long mPresentationTimeUs;
         private final int mFlags;
 
-        private SampleInfo(SampleType sampleType, int size, MediaCodec.BufferInfo bufferInfo) {
-            mSampleType = sampleType;
+        private SampleInfo(int track, int size, MediaCodec.BufferInfo bufferInfo) {
+            mTrack = track;
             mSize = size;
             mPresentationTimeUs = bufferInfo.presentationTimeUs;
             mFlags = bufferInfo.flags;
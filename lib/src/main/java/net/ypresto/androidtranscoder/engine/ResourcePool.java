@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps codecs and EGL contexts of finished jobs alive for a while, so that next job can skip their allocation and
+ * shader compilation. Codecs are handed back in uninitialized state, and should be configured again by the caller.
+ */
+class ResourcePool {
+    private static final String TAG = "ResourcePool";
+    private static final long IDLE_TIMEOUT_MS = 30000;
+    private static final int MAX_IDLE_CODECS_PER_TYPE = 2;
+    private static final int MAX_IDLE_EGL_CONTEXTS = 1;
+
+    private static final Object sLock = new Object();
+    private static final Map<String, ArrayDeque<IdleCodec>> sIdleCodecs = new HashMap<>();
+    private static final Map<MediaCodec, String> sAcquiredCodecs = new IdentityHashMap<>();
+    private static final ArrayDeque<PooledEglContext> sIdleEglContexts = new ArrayDeque<>();
+    // Encoders chosen by device profile instead of default one of the type.
+    private static final Map<String, String> sEncoderNames = new HashMap<>();
+    private static ScheduledExecutorService sEvictor;
+
+    private ResourcePool() {
+    }
+
+    /**
+     * EGL context with the display and config it was created for.
+     */
+    static class PooledEglContext {
+        final EGLDisplay mDisplay;
+        final EGLConfig mConfig;
+        final EGLContext mContext;
+        private long mIdleSinceMs;
+
+        PooledEglContext(EGLDisplay display, EGLConfig config, EGLContext context) {
+            mDisplay = display;
+            mConfig = config;
+            mContext = context;
+        }
+    }
+
+    private static class IdleCodec {
+        final MediaCodec mCodec;
+        final long mIdleSinceMs;
+
+        IdleCodec(MediaCodec codec, long idleSinceMs) {
+            mCodec = codec;
+            mIdleSinceMs = idleSinceMs;
+        }
+    }
+
+    static MediaCodec createEncoderByType(String mime) throws IOException {
+        String codecName;
+        synchronized (sLock) {
+            codecName = sEncoderNames.get(mime);
+        }
+        if (codecName != null) return acquireCodec("encoder/" + mime + "/" + codecName, mime, codecName, true);
+        return acquireCodec("encoder/" + mime, mime, null, true);
+    }
+
+    static MediaCodec createDecoderByType(String mime) throws IOException {
+        return acquireCodec("decoder/" + mime, mime, null, false);
+    }
+
+    /**
+     * Create encoders of given type by name from now on.
+     *
+     * @param codecName Name of encoder, or null to use default one.
+     */
+    static void setEncoderName(String mime, String codecName) {
+        synchronized (sLock) {
+            if (codecName != null) {
+                sEncoderNames.put(mime, codecName);
+            } else {
+                sEncoderNames.remove(mime);
+            }
+        }
+    }
+
+    private static MediaCodec acquireCodec(String key, String mime, String codecName, boolean isEncoder) throws IOException {
+        MediaCodec codec = null;
+        synchronized (sLock) {
+            ArrayDeque<IdleCodec> idleCodecs = sIdleCodecs.get(key);
+            if (idleCodecs != null && !idleCodecs.isEmpty()) {
+                codec = idleCodecs.removeLast().mCodec;
+            }
+        }
+        if (codec == null && codecName != null) {
+            codec = MediaCodec.createByCodecName(codecName);
+        } else if (codec == null) {
+            codec = isEncoder ? MediaCodec.createEncoderByType(mime) : MediaCodec.createDecoderByType(mime);
+        }
+        synchronized (sLock) {
+            sAcquiredCodecs.put(codec, key);
+        }
+        return codec;
+    }
+
+    /**
+     * Returns codec acquired from this pool, or releases it if it cannot be reused.
+     *
+     * @param started true if {@link MediaCodec#start()} has been called.
+     */
+    static void recycle(MediaCodec codec, boolean started) {
+        String key;
+        synchronized (sLock) {
+            key = sAcquiredCodecs.remove(codec);
+        }
+        // Before API 21 there is no reset(), and only started codec can go back to uninitialized state.
+        boolean canReset = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP || started;
+        if (key == null || !canReset) {
+            if (started) codec.stop();
+            codec.release();
+            return;
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                resetCodec(codec);
+            } else {
+                codec.stop();
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Could not reset codec, releasing it.", e);
+            codec.release();
+            return;
+        }
+        boolean pooled = false;
+        synchronized (sLock) {
+            ArrayDeque<IdleCodec> idleCodecs = sIdleCodecs.get(key);
+            if (idleCodecs == null) {
+                idleCodecs = new ArrayDeque<>();
+                sIdleCodecs.put(key, idleCodecs);
+            }
+            if (idleCodecs.size() < MAX_IDLE_CODECS_PER_TYPE) {
+                idleCodecs.addLast(new IdleCodec(codec, System.currentTimeMillis()));
+                pooled = true;
+            }
+        }
+        if (pooled) {
+            scheduleEviction();
+        } else {
+            codec.release();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void resetCodec(MediaCodec codec) {
+        codec.reset();
+    }
+
+    /**
+     * Returns idle EGL context, or null if none. Caller owns returned context.
+     */
+    static PooledEglContext acquireEglContext() {
+        synchronized (sLock) {
+            return sIdleEglContexts.pollLast();
+        }
+    }
+
+    /**
+     * Keeps EGL context for next job, together with programs compiled in it. The context must not be current on
+     * any thread.
+     */
+    static void recycleEglContext(EGLDisplay display, EGLConfig config, EGLContext context) {
+        PooledEglContext pooledContext = new PooledEglContext(display, config, context);
+        boolean pooled = false;
+        synchronized (sLock) {
+            if (sIdleEglContexts.size() < MAX_IDLE_EGL_CONTEXTS) {
+                pooledContext.mIdleSinceMs = System.currentTimeMillis();
+                sIdleEglContexts.addLast(pooledContext);
+                pooled = true;
+            }
+        }
+        if (pooled) {
+            scheduleEviction();
+        } else {
+            destroyEglContext(pooledContext);
+        }
+    }
+
+    /**
+     * Releases all idle resources immediately.
+     */
+    static void clear() {
+        evict(Long.MAX_VALUE);
+    }
+
+    private static void evictIdle() {
+        evict(System.currentTimeMillis() - IDLE_TIMEOUT_MS);
+    }
+
+    private static void evict(long idleBeforeMs) {
+        List<MediaCodec> codecs = new ArrayList<>();
+        List<PooledEglContext> contexts = new ArrayList<>();
+        synchronized (sLock) {
+            for (ArrayDeque<IdleCodec> idleCodecs : sIdleCodecs.values()) {
+                Iterator<IdleCodec> iterator = idleCodecs.iterator();
+                while (iterator.hasNext()) {
+                    IdleCodec idleCodec = iterator.next();
+                    if (idleCodec.mIdleSinceMs <= idleBeforeMs) {
+                        codecs.add(idleCodec.mCodec);
+                        iterator.remove();
+                    }
+                }
+            }
+            Iterator<PooledEglContext> iterator = sIdleEglContexts.iterator();
+            while (iterator.hasNext()) {
+                PooledEglContext context = iterator.next();
+                if (context.mIdleSinceMs <= idleBeforeMs) {
+                    contexts.add(context);
+                    iterator.remove();
+                }
+            }
+        }
+        for (MediaCodec codec : codecs) {
+            codec.release();
+        }
+        for (PooledEglContext context : contexts) {
+            destroyEglContext(context);
+        }
+    }
+
+    private static void destroyEglContext(PooledEglContext context) {
+        EGL14.eglDestroyContext(context.mDisplay, context.mContext);
+        ShaderProgramCache.onContextDestroyed(context.mContext);
+    }
+
+    private static void scheduleEviction() {
+        ScheduledExecutorService evictor;
+        synchronized (sLock) {
+            if (sEvictor == null) {
+                ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                sEvictor = executor;
+            }
+            evictor = sEvictor;
+        }
+        evictor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Allocates codecs and EGL context for given formats and returns them to the pool. Null format skips the track.
+     * Blocks until finished.
+     */
+    static void prewarm(MediaFormat videoInputFormat, MediaFormat videoOutputFormat,
+                        MediaFormat audioInputFormat, MediaFormat audioOutputFormat, boolean useGl) {
+        if (videoOutputFormat != null) {
+            prewarmDecoder(videoInputFormat);
+            prewarmEncoder(videoOutputFormat, useGl);
+        }
+        if (audioOutputFormat != null) {
+            prewarmDecoder(audioInputFormat);
+            prewarmEncoder(audioOutputFormat, false);
+        }
+    }
+
+    private static void prewarmDecoder(MediaFormat format) {
+        MediaCodec decoder = null;
+        boolean started = false;
+        try {
+            decoder = createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            decoder.configure(format, null, null, 0);
+            decoder.start();
+            started = true;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not prewarm decoder for " + format, e);
+        } finally {
+            if (decoder != null) recycle(decoder, started);
+        }
+    }
+
+    private static void prewarmEncoder(MediaFormat format, boolean withInputSurface) {
+        MediaCodec encoder = null;
+        boolean started = false;
+        InputSurface inputSurface = null;
+        try {
+            encoder = createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            if (withInputSurface) {
+                Surface surface = encoder.createInputSurface();
+                try {
+                    inputSurface = new InputSurface(surface);
+                } catch (RuntimeException e) {
+                    surface.release();
+                    throw e;
+                }
+                inputSurface.makeCurrent();
+                // Compiles the default program into the pooled context.
+                TextureRender textureRender = new TextureRender();
+                textureRender.surfaceCreated();
+                textureRender.release();
+                inputSurface.makeUnCurrent();
+            }
+            encoder.start();
+            started = true;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not prewarm encoder for " + format, e);
+        } finally {
+            if (inputSurface != null) inputSurface.release();
+            if (encoder != null) recycle(encoder, started);
+        }
+    }
+}
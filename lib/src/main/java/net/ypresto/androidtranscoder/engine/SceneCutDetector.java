@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Detects scene cuts from luma histograms of consecutive frames.
+ * <p>
+ * Cut is detected when histogram distance to previous frame is large both in absolute terms and relative to
+ * recent average distance, so that high motion or flashes in a scene are less likely to be taken as cuts.
+ * Cuts closer than minimum interval to previous one are ignored, as keyframes there would only add size.
+ */
+class SceneCutDetector {
+    static final int HISTOGRAM_BINS = 32;
+    private static final double MIN_DISTANCE = 0.3;
+    private static final double MIN_DISTANCE_RATIO_TO_AVERAGE = 3.0;
+    // Weight of the latest distance in moving average.
+    private static final double AVERAGE_WEIGHT = 0.1;
+    private final long mMinIntervalUs;
+    private final int[] mPreviousHistogram = new int[HISTOGRAM_BINS];
+    private boolean mHasPreviousHistogram;
+    private double mAverageDistance;
+    private long mLastCutPresentationTimeUs;
+    private int mCutCount;
+
+    /**
+     * @param minIntervalUs Minimum interval between cuts.
+     */
+    SceneCutDetector(long minIntervalUs) {
+        mMinIntervalUs = minIntervalUs;
+    }
+
+    /**
+     * Compute luma histogram of RGBA pixels.
+     */
+    static void computeHistogram(ByteBuffer rgba, int pixelCount, int[] histogram) {
+        for (int i = 0; i < HISTOGRAM_BINS; i++) histogram[i] = 0;
+        for (int i = 0; i < pixelCount; i++) {
+            int offset = i * 4;
+            int luma = (77 * (rgba.get(offset) & 0xff) + 150 * (rgba.get(offset + 1) & 0xff) + 29 * (rgba.get(offset + 2) & 0xff)) >> 8;
+            histogram[luma * HISTOGRAM_BINS >> 8]++;
+        }
+    }
+
+    /**
+     * @param histogram          Luma histogram of frame, in presentation order.
+     * @param presentationTimeUs Presentation time of frame.
+     * @return Whether frame starts new scene.
+     */
+    public boolean isSceneCut(int[] histogram, long presentationTimeUs) {
+        if (!mHasPreviousHistogram) {
+            System.arraycopy(histogram, 0, mPreviousHistogram, 0, HISTOGRAM_BINS);
+            mHasPreviousHistogram = true;
+            mLastCutPresentationTimeUs = presentationTimeUs;
+            return false;
+        }
+        long difference = 0;
+        long pixelCount = 0;
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            difference += Math.abs(histogram[i] - mPreviousHistogram[i]);
+            pixelCount += histogram[i];
+        }
+        System.arraycopy(histogram, 0, mPreviousHistogram, 0, HISTOGRAM_BINS);
+        double distance = pixelCount == 0 ? 0 : difference / (2.0 * pixelCount);
+        boolean isCut = distance >= MIN_DISTANCE
+                && distance >= mAverageDistance * MIN_DISTANCE_RATIO_TO_AVERAGE
+                && presentationTimeUs - mLastCutPresentationTimeUs >= mMinIntervalUs;
+        mAverageDistance += (distance - mAverageDistance) * AVERAGE_WEIGHT;
+        if (isCut) {
+            mLastCutPresentationTimeUs = presentationTimeUs;
+            mCutCount++;
+        }
+        return isCut;
+    }
+
+    /**
+     * @return Number of cuts detected so far.
+     */
+    public int getCutCount() {
+        return mCutCount;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caches linked GL programs by their shader sources, so that shaders are compiled once per EGL context instead of
+ * per frame or per job. Programs are owned by the cache, and forgotten when their context is destroyed.
+ */
+class ShaderProgramCache {
+    private static final String TAG = "ShaderProgramCache";
+    private static final Map<EGLContext, ShaderProgramCache> sCaches = new HashMap<>();
+    private final Map<String, Integer> mPrograms = new HashMap<>();
+
+    private ShaderProgramCache() {
+    }
+
+    /**
+     * Returns cache of current EGL context.
+     */
+    public static ShaderProgramCache getInstance() {
+        EGLContext context = EGL14.eglGetCurrentContext();
+        if (context == null || context.equals(EGL14.EGL_NO_CONTEXT)) {
+            throw new IllegalStateException("No EGL context is current.");
+        }
+        synchronized (sCaches) {
+            ShaderProgramCache cache = sCaches.get(context);
+            if (cache == null) {
+                cache = new ShaderProgramCache();
+                sCaches.put(context, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Forget programs of given context. Should be called when the context is destroyed, which deletes programs.
+     */
+    public static void onContextDestroyed(EGLContext context) {
+        synchronized (sCaches) {
+            sCaches.remove(context);
+        }
+    }
+
+    /**
+     * Returns program linked from given shaders, compiling them on first use.
+     */
+    public int getProgram(String vertexSource, String fragmentSource) {
+        String key = vertexSource + '\0' + fragmentSource;
+        Integer program = mPrograms.get(key);
+        if (program == null) {
+            program = createProgram(vertexSource, fragmentSource);
+            if (program == 0) {
+                throw new RuntimeException("failed creating program");
+            }
+            mPrograms.put(key, program);
+        }
+        return program;
+    }
+
+    private static int loadShader(int shaderType, String source) {
+        int shader = GLES20.glCreateShader(shaderType);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] compiled = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) {
+            Log.e(TAG, "Could not compile shader " + shaderType + ":");
+            Log.e(TAG, " " + GLES20.glGetShaderInfoLog(shader));
+            GLES20.glDeleteShader(shader);
+            shader = 0;
+        }
+        return shader;
+    }
+
+    private static int createProgram(String vertexSource, String fragmentSource) {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        if (vertexShader == 0) {
+            return 0;
+        }
+        int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        if (pixelShader == 0) {
+            GLES20.glDeleteShader(vertexShader);
+            return 0;
+        }
+        int program = GLES20.glCreateProgram();
+        if (program == 0) {
+            Log.e(TAG, "Could not create program");
+            return 0;
+        }
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, pixelShader);
+        GLES20.glLinkProgram(program);
+        // Shaders are deleted with the program.
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(pixelShader);
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            Log.e(TAG, "Could not link program: ");
+            Log.e(TAG, GLES20.glGetProgramInfoLog(program));
+            GLES20.glDeleteProgram(program);
+            program = 0;
+        }
+        return program;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.graphics.Bitmap;
+
+/**
+ * Options for thumbnail sprite sheets generated from decoded frames while transcoding.
+ * <p>
+ * Thumbnails are packed into sheets of columns x rows tiles, written to {@code <outputPathPrefix>-<n>.jpg}
+ * (or {@code .webp}). Timing index is written to {@code <outputPathPrefix>.vtt} as WebVTT,
+ * whose cues point tiles by media fragment e.g. {@code thumbs-0.jpg#xywh=160,0,160,90}.
+ */
+public class SpriteSheetOptions {
+    private static final int DEFAULT_COLUMNS = 10;
+    private static final int DEFAULT_ROWS = 10;
+    private static final long DEFAULT_INTERVAL_US = 1000 * 1000;
+    private static final int DEFAULT_QUALITY = 80;
+    private final String mOutputPathPrefix;
+    private final int mThumbnailWidth;
+    private final int mThumbnailHeight;
+    private int mColumns = DEFAULT_COLUMNS;
+    private int mRows = DEFAULT_ROWS;
+    private long mIntervalUs = DEFAULT_INTERVAL_US;
+    private int mFrameInterval;
+    private Bitmap.CompressFormat mCompressFormat = Bitmap.CompressFormat.JPEG;
+    private int mQuality = DEFAULT_QUALITY;
+
+    /**
+     * @param outputPathPrefix Path prefix of sheet images and index file.
+     * @param thumbnailWidth   Width of each thumbnail.
+     * @param thumbnailHeight  Height of each thumbnail.
+     */
+    public SpriteSheetOptions(String outputPathPrefix, int thumbnailWidth, int thumbnailHeight) {
+        if (outputPathPrefix == null) {
+            throw new NullPointerException("Output path prefix cannot be null.");
+        }
+        if (thumbnailWidth <= 0 || thumbnailHeight <= 0) {
+            throw new IllegalArgumentException("Thumbnail size should be positive: " + thumbnailWidth + "x" + thumbnailHeight);
+        }
+        mOutputPathPrefix = outputPathPrefix;
+        mThumbnailWidth = thumbnailWidth;
+        mThumbnailHeight = thumbnailHeight;
+    }
+
+    /**
+     * Set number of tiles in a sheet. Default is 10x10.
+     */
+    public void setGrid(int columns, int rows) {
+        if (columns <= 0 || rows <= 0) {
+            throw new IllegalArgumentException("Grid size should be positive: " + columns + "x" + rows);
+        }
+        mColumns = columns;
+        mRows = rows;
+    }
+
+    /**
+     * Capture one thumbnail per given interval of presentation time. Default is 1 second.
+     */
+    public void setIntervalUs(long intervalUs) {
+        if (intervalUs <= 0) {
+            throw new IllegalArgumentException("Interval should be positive: " + intervalUs);
+        }
+        mIntervalUs = intervalUs;
+        mFrameInterval = 0;
+    }
+
+    /**
+     * Capture every Nth decoded frame instead of time interval.
+     */
+    public void setFrameInterval(int frameInterval) {
+        if (frameInterval <= 0) {
+            throw new IllegalArgumentException("Frame interval should be positive: " + frameInterval);
+        }
+        mFrameInterval = frameInterval;
+    }
+
+    /**
+     * Set image format of sheets. Default is JPEG with quality 80.
+     */
+    public void setCompressFormat(Bitmap.CompressFormat compressFormat, int quality) {
+        if (compressFormat == Bitmap.CompressFormat.PNG) {
+            // Works, but sheets become too large for scrubbing.
+            throw new IllegalArgumentException("Use JPEG or WEBP for sprite sheets.");
+        }
+        mCompressFormat = compressFormat;
+        mQuality = quality;
+    }
+
+    public String getOutputPathPrefix() {
+        return mOutputPathPrefix;
+    }
+
+    public int getThumbnailWidth() {
+        return mThumbnailWidth;
+    }
+
+    public int getThumbnailHeight() {
+        return mThumbnailHeight;
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    public long getIntervalUs() {
+        return mIntervalUs;
+    }
+
+    /**
+     * @return Frame interval, or 0 if time interval is used.
+     */
+    public int getFrameInterval() {
+        return mFrameInterval;
+    }
+
+    public Bitmap.CompressFormat getCompressFormat() {
+        return mCompressFormat;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Captures thumbnails of decoded frames into sprite sheets.
+ * <p>
+ * Frame is drawn into small offscreen framebuffer, then read back through double-buffered pixel buffer objects
+ * on GLES 3.0 context so that reading does not wait for the transfer of the frame just drawn.
+ * Falls back to synchronous glReadPixels() on GLES 2.0, which is still cheap for small thumbnails.
+ * <p>
+ * GL methods should be called on the thread whose EGL context is current.
+ */
+class SpriteSheetRecorder {
+    private static final String TAG = "SpriteSheetRecorder";
+    private static final int BYTES_PER_PIXEL = 4;
+    private final SpriteSheetOptions mOptions;
+    private final int mTileWidth;
+    private final int mTileHeight;
+    private final int mSheetWidth;
+    private final int mTilesPerSheet;
+    private final ByteBuffer mSheetBuffer;
+    private final List<Long> mTileTimesUs = new ArrayList<>();
+    private final int[] mSavedViewport = new int[4];
+    private int mTileCountInSheet;
+    private int mSheetCount;
+    private long mPresentationTimeOffsetUs;
+    private long mNextCaptureTimeUs;
+    private int mFrameCount;
+    private int mFramebuffer;
+    private int mTexture;
+    private int[] mPixelBuffers;
+    private int mPixelBufferIndex;
+    private boolean mHasPendingPixelBuffer;
+    private long mPendingTimeUs;
+    private ByteBuffer mReadBuffer;
+
+    public SpriteSheetRecorder(SpriteSheetOptions options) {
+        mOptions = options;
+        mTileWidth = options.getThumbnailWidth();
+        mTileHeight = options.getThumbnailHeight();
+        mSheetWidth = mTileWidth * options.getColumns();
+        mTilesPerSheet = options.getColumns() * options.getRows();
+        // NOTE: heap buffer to clear it by Arrays.fill().
+        mSheetBuffer = ByteBuffer.allocate(mSheetWidth * mTileHeight * options.getRows() * BYTES_PER_PIXEL);
+    }
+
+    /**
+     * Set offset added to presentation times of following frames, e.g. start time of current segment.
+     */
+    public void setPresentationTimeOffsetUs(long presentationTimeOffsetUs) {
+        mPresentationTimeOffsetUs = presentationTimeOffsetUs;
+    }
+
+    /**
+     * Decide whether frame of given presentation time should be captured. Call once for each decoded frame.
+     */
+    public boolean shouldCapture(long presentationTimeUs) {
+        if (mOptions.getFrameInterval() > 0) {
+            return mFrameCount++ % mOptions.getFrameInterval() == 0;
+        }
+        long timeUs = presentationTimeUs + mPresentationTimeOffsetUs;
+        if (timeUs < mNextCaptureTimeUs) return false;
+        // Align to interval not to drift on variable frame rate.
+        mNextCaptureTimeUs = (timeUs / mOptions.getIntervalUs() + 1) * mOptions.getIntervalUs();
+        return true;
+    }
+
+    /**
+     * Draw current image of outputSurface into thumbnail. Bound framebuffer and viewport are restored after that.
+     */
+    public void capture(OutputSurface outputSurface, long presentationTimeUs) {
+        if (mFramebuffer == 0) setupGlResources();
+        long timeUs = presentationTimeUs + mPresentationTimeOffsetUs;
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glViewport(0, 0, mTileWidth, mTileHeight);
+        outputSurface.drawImage();
+        if (mPixelBuffers != null) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[mPixelBufferIndex]);
+            GLES30.glReadPixels(0, 0, mTileWidth, mTileHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+            // Map the one issued on previous capture, which should have been transferred by now.
+            if (mHasPendingPixelBuffer) readPixelBuffer(1 - mPixelBufferIndex, mPendingTimeUs);
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            mHasPendingPixelBuffer = true;
+            mPendingTimeUs = timeUs;
+            mPixelBufferIndex = 1 - mPixelBufferIndex;
+        } else {
+            mReadBuffer.clear();
+            GLES20.glReadPixels(0, 0, mTileWidth, mTileHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mReadBuffer);
+            addTile(mReadBuffer, timeUs);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(mSavedViewport[0], mSavedViewport[1], mSavedViewport[2], mSavedViewport[3]);
+    }
+
+    /**
+     * Read pending thumbnail and release GL resources. Should be called before EGL context is destroyed.
+     */
+    public void releaseGlResources() {
+        if (mFramebuffer == 0) return;
+        if (mHasPendingPixelBuffer) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[1 - mPixelBufferIndex]);
+            readPixelBuffer(1 - mPixelBufferIndex, mPendingTimeUs);
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            mHasPendingPixelBuffer = false;
+        }
+        if (mPixelBuffers != null) {
+            GLES20.glDeleteBuffers(mPixelBuffers.length, mPixelBuffers, 0);
+            mPixelBuffers = null;
+        }
+        GLES20.glDeleteFramebuffers(1, new int[]{mFramebuffer}, 0);
+        GLES20.glDeleteTextures(1, new int[]{mTexture}, 0);
+        mFramebuffer = 0;
+        mTexture = 0;
+    }
+
+    /**
+     * Write remaining sheet and timing index. Call after {@link #releaseGlResources()}.
+     *
+     * @throws IOException when output files could not be written.
+     */
+    public void finish() throws IOException {
+        if (mTileCountInSheet > 0) writeSheet();
+        writeIndex();
+        Log.d(TAG, "Wrote " + mTileTimesUs.size() + " thumbnails into " + mSheetCount + " sheets.");
+    }
+
+    private void setupGlResources() {
+        int[] values = new int[1];
+        GLES20.glGenTextures(1, values, 0);
+        mTexture = values[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mTileWidth, mTileHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glGenFramebuffers(1, values, 0);
+        mFramebuffer = values[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mTexture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("Thumbnail framebuffer is not complete: 0x" + Integer.toHexString(status));
+        }
+
+        int size = mTileWidth * mTileHeight * BYTES_PER_PIXEL;
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        if (version != null && version.startsWith("OpenGL ES 3")) {
+            mPixelBuffers = new int[2];
+            GLES20.glGenBuffers(2, mPixelBuffers, 0);
+            for (int pixelBuffer : mPixelBuffers) {
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffer);
+                GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+            }
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        } else if (mReadBuffer == null) {
+            mReadBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private void readPixelBuffer(int index, long timeUs) {
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[index]);
+        ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                mTileWidth * mTileHeight * BYTES_PER_PIXEL, GLES30.GL_MAP_READ_BIT);
+        if (pixels == null) {
+            throw new RuntimeException("Could not map pixel buffer: glError " + GLES20.glGetError());
+        }
+        addTile(pixels, timeUs);
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+    }
+
+    private void addTile(ByteBuffer pixels, long timeUs) {
+        int column = mTileCountInSheet % mOptions.getColumns();
+        int row = mTileCountInSheet / mOptions.getColumns();
+        int rowBytes = mTileWidth * BYTES_PER_PIXEL;
+        // GL rows are bottom-up, while bitmap rows are top-down.
+        for (int y = 0; y < mTileHeight; y++) {
+            pixels.limit((y + 1) * rowBytes);
+            pixels.position(y * rowBytes);
+            int sheetY = row * mTileHeight + (mTileHeight - 1 - y);
+            mSheetBuffer.position((sheetY * mSheetWidth + column * mTileWidth) * BYTES_PER_PIXEL);
+            mSheetBuffer.put(pixels);
+        }
+        mTileTimesUs.add(timeUs);
+        mTileCountInSheet++;
+        if (mTileCountInSheet == mTilesPerSheet) {
+            try {
+                writeSheet();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write sprite sheet.", e);
+            }
+        }
+    }
+
+    private void writeSheet() throws IOException {
+        int rows = (mTileCountInSheet + mOptions.getColumns() - 1) / mOptions.getColumns();
+        Bitmap bitmap = Bitmap.createBitmap(mSheetWidth, rows * mTileHeight, Bitmap.Config.ARGB_8888);
+        mSheetBuffer.rewind();
+        // ARGB_8888 is stored as RGBA bytes, same as GL_RGBA.
+        bitmap.copyPixelsFromBuffer(mSheetBuffer);
+        OutputStream outputStream = new FileOutputStream(getSheetPath(mSheetCount));
+        try {
+            if (!bitmap.compress(mOptions.getCompressFormat(), mOptions.getQuality(), outputStream)) {
+                throw new IOException("Could not compress sprite sheet.");
+            }
+        } finally {
+            outputStream.close();
+            bitmap.recycle();
+        }
+        Arrays.fill(mSheetBuffer.array(), (byte) 0);
+        mSheetCount++;
+        mTileCountInSheet = 0;
+    }
+
+    private void writeIndex() throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(mOptions.getOutputPathPrefix() + ".vtt"), "UTF-8");
+        try {
+            writer.write("WEBVTT\n");
+            for (int i = 0; i < mTileTimesUs.size(); i++) {
+                long startUs = mTileTimesUs.get(i);
+                long endUs = i + 1 < mTileTimesUs.size() ? mTileTimesUs.get(i + 1) : startUs + mOptions.getIntervalUs();
+                int tileInSheet = i % mTilesPerSheet;
+                writer.write(String.format(Locale.US, "\n%s --> %s\n%s#xywh=%d,%d,%d,%d\n",
+                        formatTime(startUs), formatTime(endUs), new File(getSheetPath(i / mTilesPerSheet)).getName(),
+                        tileInSheet % mOptions.getColumns() * mTileWidth, tileInSheet / mOptions.getColumns() * mTileHeight,
+                        mTileWidth, mTileHeight));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private String getSheetPath(int sheetIndex) {
+        String extension = mOptions.getCompressFormat() == Bitmap.CompressFormat.JPEG ? ".jpg" : ".webp";
+        return mOptions.getOutputPathPrefix() + "-" + sheetIndex + extension;
+    }
+
+    private static String formatTime(long timeUs) {
+        long timeMs = timeUs / 1000;
+        return String.format(Locale.US, "%02d:%02d:%02d.%03d",
+                timeMs / 3600000, timeMs / 60000 % 60, timeMs / 1000 % 60, timeMs % 1000);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Streaming time-stretcher for interleaved 16-bit PCM, which changes speed without changing pitch.
+ * <p>
+ * Implements WSOLA (waveform similarity overlap-add): windows of input are taken at intervals scaled by speed,
+ * each shifted within small tolerance to best match continuation of the previous window, and overlap-added
+ * at fixed intervals. Memory is bounded by window and search sizes, regardless of stream length.
+ */
+class TimeStretcher {
+    private static final double WINDOW_SEC = 0.030;
+    private static final double SEEK_SEC = 0.010;
+    // Correlation is computed for every Nth frame to keep search cheap.
+    private static final int CORRELATION_DECIMATION = 4;
+    private final int mChannelCount;
+    private final double mSpeed;
+    private final int mWindowFrames;
+    private final int mHopFrames;
+    private final int mSeekFrames;
+    private final float[] mWindow;
+    private final float[] mOverlap;
+    private final float[] mReference;
+    private short[] mInput;
+    private int mInputFrames;
+    private long mInputOffsetFrames;
+    private long mTotalInputFrames;
+    private double mAnalysisPosition;
+    private long mPreviousSegmentPosition = -1;
+    private short[] mOutput;
+    private int mOutputStart;
+    private int mOutputLength;
+    private long mTotalOutputFrames;
+    private boolean mIsFinished;
+
+    /**
+     * @param speed Playback speed, e.g. 2.0 for twice faster.
+     */
+    TimeStretcher(int sampleRate, int channelCount, double speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("Speed should be positive: " + speed);
+        }
+        mChannelCount = channelCount;
+        mSpeed = speed;
+        mHopFrames = (int) Math.round(sampleRate * WINDOW_SEC / 2);
+        mWindowFrames = mHopFrames * 2;
+        mSeekFrames = (int) Math.round(sampleRate * SEEK_SEC);
+        mWindow = new float[mWindowFrames];
+        for (int i = 0; i < mWindowFrames; i++) {
+            // Periodic Hann window, whose overlaps at half window sum to exactly 1.
+            mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / mWindowFrames));
+        }
+        mOverlap = new float[mHopFrames * channelCount];
+        mReference = new float[(mHopFrames + CORRELATION_DECIMATION - 1) / CORRELATION_DECIMATION];
+        mInput = new short[(mWindowFrames + 2 * mSeekFrames) * 2 * channelCount];
+        mOutput = new short[mHopFrames * 4 * channelCount];
+    }
+
+    /**
+     * Write all remaining samples of input.
+     */
+    public void write(ShortBuffer input) {
+        if (mIsFinished) throw new IllegalStateException("Already finished.");
+        int frames = input.remaining() / mChannelCount;
+        appendInput(input, frames);
+        mTotalInputFrames += frames;
+        process();
+    }
+
+    /**
+     * Flush remaining input. Output length is trimmed to input length divided by speed.
+     */
+    public void finish() {
+        if (mIsFinished) return;
+        mIsFinished = true;
+        // Pad silence so that all real input is covered by windows.
+        int padFrames = mWindowFrames + 2 * mSeekFrames + (int) Math.ceil(mHopFrames * mSpeed);
+        appendInput(null, padFrames);
+        process();
+        ensureOutputCapacity(mHopFrames);
+        for (int i = 0; i < mHopFrames * mChannelCount; i++) {
+            mOutput[mOutputStart + mOutputLength++] = clamp(mOverlap[i]);
+        }
+        mTotalOutputFrames += mHopFrames;
+        long expectedFrames = Math.round(mTotalInputFrames / mSpeed);
+        long excessFrames = Math.min(mTotalOutputFrames - expectedFrames, mOutputLength / mChannelCount);
+        if (excessFrames > 0) {
+            mOutputLength -= (int) excessFrames * mChannelCount;
+            mTotalOutputFrames -= excessFrames;
+        }
+    }
+
+    /**
+     * @return Number of samples (not frames) ready to be read.
+     */
+    public int getAvailableSamples() {
+        return mOutputLength;
+    }
+
+    /**
+     * Read stretched samples as much as output has space.
+     *
+     * @return Number of samples (not frames) read.
+     */
+    public int read(ShortBuffer output) {
+        int samples = Math.min(mOutputLength, output.remaining() / mChannelCount * mChannelCount);
+        output.put(mOutput, mOutputStart, samples);
+        mOutputStart += samples;
+        mOutputLength -= samples;
+        if (mOutputLength == 0) mOutputStart = 0;
+        return samples;
+    }
+
+    private void appendInput(ShortBuffer input, int frames) {
+        int requiredSamples = (mInputFrames + frames) * mChannelCount;
+        if (mInput.length < requiredSamples) {
+            short[] newInput = new short[Math.max(requiredSamples, mInput.length * 2)];
+            System.arraycopy(mInput, 0, newInput, 0, mInputFrames * mChannelCount);
+            mInput = newInput;
+        }
+        int offset = mInputFrames * mChannelCount;
+        if (input == null) {
+            for (int i = 0; i < frames * mChannelCount; i++) mInput[offset + i] = 0;
+        } else {
+            input.get(mInput, offset, frames * mChannelCount);
+        }
+        mInputFrames += frames;
+    }
+
+    private void process() {
+        long inputEnd = mInputOffsetFrames + mInputFrames;
+        while (true) {
+            long target = (long) mAnalysisPosition;
+            long segmentPosition;
+            if (mPreviousSegmentPosition < 0) {
+                if (target + mWindowFrames > inputEnd) break;
+                segmentPosition = target;
+            } else {
+                long natural = mPreviousSegmentPosition + mHopFrames;
+                long seekStart = Math.max(target - mSeekFrames, mInputOffsetFrames);
+                long seekEnd = target + mSeekFrames;
+                if (Math.max(seekEnd, natural) + mWindowFrames > inputEnd) break;
+                segmentPosition = seek(natural, seekStart, seekEnd);
+            }
+            overlapAdd(segmentPosition);
+            mPreviousSegmentPosition = segmentPosition;
+            mAnalysisPosition += mHopFrames * mSpeed;
+        }
+        compactInput();
+    }
+
+    // Find position in [seekStart, seekEnd] whose waveform is most similar to natural continuation of previous window.
+    private long seek(long natural, long seekStart, long seekEnd) {
+        int referenceLength = 0;
+        for (int i = 0; i < mHopFrames; i += CORRELATION_DECIMATION) {
+            mReference[referenceLength++] = monoSample(natural + i);
+        }
+        long bestPosition = seekStart;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (long position = seekStart; position <= seekEnd; position++) {
+            double correlation = 0;
+            double energy = 0;
+            for (int i = 0; i < referenceLength; i++) {
+                float sample = monoSample(position + i * CORRELATION_DECIMATION);
+                correlation += mReference[i] * sample;
+                energy += sample * sample;
+            }
+            double score = correlation / Math.sqrt(energy + 1);
+            if (score > bestScore) {
+                bestScore = score;
+                bestPosition = position;
+            }
+        }
+        return bestPosition;
+    }
+
+    private float monoSample(long framePosition) {
+        int index = (int) (framePosition - mInputOffsetFrames) * mChannelCount;
+        float sum = 0;
+        for (int channel = 0; channel < mChannelCount; channel++) {
+            sum += mInput[index + channel];
+        }
+        return sum;
+    }
+
+    private void overlapAdd(long segmentPosition) {
+        boolean isFirst = mPreviousSegmentPosition < 0;
+        int base = (int) (segmentPosition - mInputOffsetFrames) * mChannelCount;
+        ensureOutputCapacity(mHopFrames);
+        int outputIndex = mOutputStart + mOutputLength;
+        for (int i = 0; i < mHopFrames; i++) {
+            // Nothing to overlap with at the head of stream, so take it without fading in.
+            float weight = isFirst ? 1 : mWindow[i];
+            for (int channel = 0; channel < mChannelCount; channel++) {
+                int sample = i * mChannelCount + channel;
+                mOutput[outputIndex + sample] = clamp(mOverlap[sample] + mInput[base + sample] * weight);
+            }
+        }
+        for (int i = 0; i < mHopFrames; i++) {
+            float weight = mWindow[mHopFrames + i];
+            for (int channel = 0; channel < mChannelCount; channel++) {
+                int sample = i * mChannelCount + channel;
+                mOverlap[sample] = mInput[base + mHopFrames * mChannelCount + sample] * weight;
+            }
+        }
+        mOutputLength += mHopFrames * mChannelCount;
+        mTotalOutputFrames += mHopFrames;
+    }
+
+    private void ensureOutputCapacity(int frames) {
+        int requiredSamples = mOutputLength + frames * mChannelCount;
+        if (mOutputStart + requiredSamples <= mOutput.length) return;
+        short[] output = mOutput.length < requiredSamples ? new short[Math.max(requiredSamples, mOutput.length * 2)] : mOutput;
+        System.arraycopy(mOutput, mOutputStart, output, 0, mOutputLength);
+        mOutput = output;
+        mOutputStart = 0;
+    }
+
+    // Drop input which is no longer needed by following windows.
+    private void compactInput() {
+        long keepFrom = (long) mAnalysisPosition - mSeekFrames;
+        if (mPreviousSegmentPosition >= 0) keepFrom = Math.min(keepFrom, mPreviousSegmentPosition + mHopFrames);
+        int dropFrames = (int) Math.min(keepFrom - mInputOffsetFrames, mInputFrames);
+        if (dropFrames <= 0) return;
+        System.arraycopy(mInput, dropFrames * mChannelCount, mInput, 0, (mInputFrames - dropFrames) * mChannelCount);
+        mInputFrames -= dropFrames;
+        mInputOffsetFrames += dropFrames;
+    }
+
+    private static short clamp(float value) {
+        if (value > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (value < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) Math.round(value);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+/**
+ * Selects which tracks of input are written to output. Tracks which input does not have are just skipped,
+ * e.g. screen recording without audio is transcoded into video-only output.
+ * <p>
+ * By default, first video and audio tracks are selected.
+ */
+public class TrackSelection {
+    private boolean mVideoEnabled = true;
+    private boolean mAudioEnabled = true;
+    private boolean mExtraAudioEnabled;
+    private boolean mMetadataEnabled;
+
+    /**
+     * Select first video track. Default is true.
+     */
+    public void setVideoEnabled(boolean videoEnabled) {
+        mVideoEnabled = videoEnabled;
+    }
+
+    /**
+     * Select first audio track. Default is true.
+     */
+    public void setAudioEnabled(boolean audioEnabled) {
+        mAudioEnabled = audioEnabled;
+    }
+
+    /**
+     * Pass through audio tracks other than first one (e.g. other languages) as-is. Default is false.
+     * Requires Android 8.0 or later, as older muxer cannot write multiple audio tracks.
+     */
+    public void setExtraAudioEnabled(boolean extraAudioEnabled) {
+        mExtraAudioEnabled = extraAudioEnabled;
+    }
+
+    /**
+     * Pass through timed metadata tracks (mime type application/*) as-is. Default is false.
+     * Requires Android 8.0 or later.
+     */
+    public void setMetadataEnabled(boolean metadataEnabled) {
+        mMetadataEnabled = metadataEnabled;
+    }
+
+    public boolean isVideoEnabled() {
+        return mVideoEnabled;
+    }
+
+    public boolean isAudioEnabled() {
+        return mAudioEnabled;
+    }
+
+    public boolean isExtraAudioEnabled() {
+        return mExtraAudioEnabled;
+    }
+
+    public boolean isMetadataEnabled() {
+        return mMetadataEnabled;
+    }
+}
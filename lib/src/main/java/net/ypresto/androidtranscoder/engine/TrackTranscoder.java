@@ -37,6 +37,15 @@ public interface TrackTranscoder {
      */
     boolean stepPipeline();
 
+    /**
+     * Same as {@link #stepPipeline()}, but if nothing moved, waits for output of the codec which pipeline is waiting
+     * on instead of returning at once. Used when track runs on its own thread.
+     *
+     * @param timeoutUs Maximum time to wait in micro-second.
+     * @return true if data moved in pipeline.
+     */
+    boolean stepPipeline(long timeoutUs);
+
     /**
      * Get presentation time of last sample written to muxer.
      *
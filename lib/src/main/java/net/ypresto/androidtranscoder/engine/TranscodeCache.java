@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Outputs of finished jobs on disk, keyed by fingerprint of input and settings, so that the same job is not run twice.
+ * Least recently used outputs are deleted when total size exceeds the limit.
+ * <p>
+ * Index is replaced by rename after output file is in place, so that crash leaves consistent cache: outputs missing
+ * from index are deleted, and index entries without output are dropped on the next load. Can be shared by
+ * concurrent jobs.
+ */
+public class TranscodeCache {
+    private static final String TAG = "TranscodeCache";
+    private static final String INDEX_FILE_NAME = "index";
+    private static final String INDEX_HEADER = "transcode-cache 2";
+    private static final String ENTRY_SUFFIX = ".mp4";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    // In order of access, the least recent first.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+    private boolean mIsLoaded;
+    private int mTempFileCount;
+
+    /**
+     * @param directory Directory only for this cache, created if missing. Use single instance per directory.
+     * @param maxSize   Limit of total size of outputs in bytes.
+     */
+    public TranscodeCache(File directory, long maxSize) {
+        if (maxSize <= 0) throw new IllegalArgumentException("Max size should be positive: " + maxSize);
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return Total size of cached outputs in bytes.
+     */
+    public synchronized long getSize() throws IOException {
+        load();
+        return mSize;
+    }
+
+    /**
+     * Deletes all cached outputs.
+     */
+    public synchronized void clear() throws IOException {
+        load();
+        for (String key : mEntries.keySet()) {
+            //noinspection ResultOfMethodCallIgnored
+            getEntryFile(key).delete();
+        }
+        mEntries.clear();
+        mSize = 0;
+        writeIndex();
+    }
+
+    /**
+     * Copy cached output of given key to output file.
+     *
+     * @return Entry of cached output, or null if not cached.
+     */
+    Entry get(String key, File output) throws IOException {
+        FileInputStream inputStream;
+        Entry entry;
+        synchronized (this) {
+            load();
+            // NOTE: get() also marks it as recently used.
+            entry = mEntries.get(key);
+            if (entry == null) return null;
+            try {
+                inputStream = new FileInputStream(getEntryFile(key));
+            } catch (IOException e) {
+                Log.w(TAG, "Cached output is lost, dropping it.", e);
+                mSize -= mEntries.remove(key).mSize;
+                writeIndex();
+                return null;
+            }
+            // Persist recency, so that order survives restart.
+            writeIndex();
+        }
+        // Opened file stays readable even if evicted meanwhile.
+        try {
+            copy(inputStream, output);
+        } finally {
+            inputStream.close();
+        }
+        return entry;
+    }
+
+    /**
+     * Copy finished output into cache, evicting least recently used ones to make room.
+     *
+     * @param videoSampleCount Number of video samples in output, returned with cache hit.
+     * @param audioSampleCount Number of audio samples in output, returned with cache hit.
+     */
+    void put(String key, File output, int videoSampleCount, int audioSampleCount) throws IOException {
+        long size = output.length();
+        if (size > mMaxSize) return;
+        File tempFile;
+        synchronized (this) {
+            load();
+            tempFile = new File(mDirectory, key + "." + mTempFileCount++ + TEMP_SUFFIX);
+        }
+        FileInputStream inputStream = new FileInputStream(output);
+        try {
+            copy(inputStream, tempFile);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw e;
+        } finally {
+            inputStream.close();
+        }
+        synchronized (this) {
+            if (!tempFile.renameTo(getEntryFile(key))) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+                throw new IOException("Could not move output into cache: " + key);
+            }
+            Entry previousEntry = mEntries.put(key, new Entry(size, videoSampleCount, audioSampleCount));
+            mSize += size - (previousEntry != null ? previousEntry.mSize : 0);
+            evict();
+            writeIndex();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            //noinspection ResultOfMethodCallIgnored
+            getEntryFile(entry.getKey()).delete();
+            mSize -= entry.getValue().mSize;
+            iterator.remove();
+        }
+    }
+
+    private void load() throws IOException {
+        if (mIsLoaded) return;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create cache directory: " + mDirectory);
+        }
+        File indexFile = new File(mDirectory, INDEX_FILE_NAME);
+        if (indexFile.exists()) readIndex(indexFile);
+        // Leftovers of crash: outputs not indexed yet, partial copies and index.
+        Set<String> entryFileNames = new HashSet<>();
+        for (String key : mEntries.keySet()) entryFileNames.add(getEntryFile(key).getName());
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().equals(INDEX_FILE_NAME) || entryFileNames.contains(file.getName())) continue;
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        mIsLoaded = true;
+    }
+
+    private void readIndex(File indexFile) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) lines.add(line);
+        } finally {
+            reader.close();
+        }
+        if (lines.isEmpty() || !lines.get(0).equals(INDEX_HEADER)) {
+            Log.w(TAG, "Unknown cache index, starting empty.");
+            return;
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(" ");
+            if (fields.length != 4) continue;
+            Entry entry;
+            try {
+                entry = new Entry(Long.parseLong(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            File entryFile = getEntryFile(fields[0]);
+            if (!entryFile.exists() || entryFile.length() != entry.mSize) continue;
+            mEntries.put(fields[0], entry);
+            mSize += entry.mSize;
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        File tempFile = new File(mDirectory, INDEX_FILE_NAME + TEMP_SUFFIX);
+        FileOutputStream outputStream = new FileOutputStream(tempFile);
+        try {
+            Writer writer = new OutputStreamWriter(outputStream, "UTF-8");
+            writer.write(INDEX_HEADER + "\n");
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                Entry value = entry.getValue();
+                writer.write(entry.getKey() + " " + value.mSize + " " + value.mVideoSampleCount + " "
+                        + value.mAudioSampleCount + "\n");
+            }
+            writer.flush();
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        if (!tempFile.renameTo(new File(mDirectory, INDEX_FILE_NAME))) {
+            throw new IOException("Could not replace cache index in " + mDirectory);
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(mDirectory, key + ENTRY_SUFFIX);
+    }
+
+    private static void copy(FileInputStream inputStream, File output) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(output);
+        try {
+            FileChannel source = inputStream.getChannel();
+            FileChannel destination = outputStream.getChannel();
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, size - position, destination);
+            }
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * What is known of cached output besides its bytes.
+     */
+    static class Entry {
+        final long mSize;
+        final int mVideoSampleCount;
+        final int mAudioSampleCount;
+
+        Entry(long size, int videoSampleCount, int audioSampleCount) {
+            mSize = size;
+            mVideoSampleCount = videoSampleCount;
+            mAudioSampleCount = audioSampleCount;
+        }
+    }
+}
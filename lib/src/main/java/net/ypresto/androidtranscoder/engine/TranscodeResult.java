@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of transcode job, reported in addition to output files.
+ */
+public class TranscodeResult {
+    private double mInputLoudness = Double.NaN;
+    private double mOutputLoudness = Double.NaN;
+    private double mVideoSsim = Double.NaN;
+    private double mVideoPsnr = Double.NaN;
+    private long mRenderWaitAverageUs = -1;
+    private long mRenderWaitMaxUs = -1;
+    private double mRenderShare = Double.NaN;
+    private long mMuxerBlockedUs;
+    private int mMuxerBlockedCount;
+    private long mMuxerPeakQueuedBytes;
+    private boolean mIsCacheHit;
+    private List<Output> mOutputs = Collections.emptyList();
+
+    /**
+     * @return Integrated loudness of input audio in LUFS, or NaN if loudness is not measured.
+     * {@link Double#NEGATIVE_INFINITY} means input is silent.
+     */
+    public double getInputLoudness() {
+        return mInputLoudness;
+    }
+
+    void setInputLoudness(double inputLoudness) {
+        mInputLoudness = inputLoudness;
+    }
+
+    /**
+     * @return Integrated loudness of output audio in LUFS, or NaN if loudness is not measured.
+     */
+    public double getOutputLoudness() {
+        return mOutputLoudness;
+    }
+
+    void setOutputLoudness(double outputLoudness) {
+        mOutputLoudness = outputLoudness;
+    }
+
+    /**
+     * @return Mean SSIM of sampled video frames, or NaN if quality is not measured.
+     */
+    public double getVideoSsim() {
+        return mVideoSsim;
+    }
+
+    void setVideoSsim(double videoSsim) {
+        mVideoSsim = videoSsim;
+    }
+
+    /**
+     * @return Mean PSNR of sampled video frames in dB, or NaN if quality is not measured.
+     */
+    public double getVideoPsnr() {
+        return mVideoPsnr;
+    }
+
+    void setVideoPsnr(double videoPsnr) {
+        mVideoPsnr = videoPsnr;
+    }
+
+    /**
+     * @return Mean time frames waited for GL render thread shared with concurrent jobs in microseconds,
+     * or -1 if video is not drawn by GL.
+     */
+    public long getRenderWaitAverageUs() {
+        return mRenderWaitAverageUs;
+    }
+
+    void setRenderWaitAverageUs(long renderWaitAverageUs) {
+        mRenderWaitAverageUs = renderWaitAverageUs;
+    }
+
+    /**
+     * @return Longest time a frame waited for GL render thread in microseconds, or -1 if video is not drawn by GL.
+     */
+    public long getRenderWaitMaxUs() {
+        return mRenderWaitMaxUs;
+    }
+
+    void setRenderWaitMaxUs(long renderWaitMaxUs) {
+        mRenderWaitMaxUs = renderWaitMaxUs;
+    }
+
+    /**
+     * @return Fraction of GL render thread time spent for this job while it ran, or NaN if video is not drawn by GL.
+     * Fairly served job gets around 1 / (number of concurrent jobs) when their loads are similar.
+     */
+    public double getRenderShare() {
+        return mRenderShare;
+    }
+
+    void setRenderShare(double renderShare) {
+        mRenderShare = renderShare;
+    }
+
+    /**
+     * @return Total time transcoding waited for muxer writer because its buffer was full, in microseconds.
+     * Large value means storage is slower than codecs, and larger muxer buffer would not help much.
+     */
+    public long getMuxerBlockedUs() {
+        return mMuxerBlockedUs;
+    }
+
+    void setMuxerBlockedUs(long muxerBlockedUs) {
+        mMuxerBlockedUs = muxerBlockedUs;
+    }
+
+    /**
+     * @return Number of samples which waited for space in muxer buffer.
+     */
+    public int getMuxerBlockedCount() {
+        return mMuxerBlockedCount;
+    }
+
+    void setMuxerBlockedCount(int muxerBlockedCount) {
+        mMuxerBlockedCount = muxerBlockedCount;
+    }
+
+    /**
+     * @return Largest number of bytes waiting in muxer buffer to be written.
+     */
+    public long getMuxerPeakQueuedBytes() {
+        return mMuxerPeakQueuedBytes;
+    }
+
+    void setMuxerPeakQueuedBytes(long muxerPeakQueuedBytes) {
+        mMuxerPeakQueuedBytes = muxerPeakQueuedBytes;
+    }
+
+    /**
+     * @return true if output was copied from result cache instead of being transcoded. Only outputs are reported then.
+     */
+    public boolean isCacheHit() {
+        return mIsCacheHit;
+    }
+
+    void setCacheHit(boolean cacheHit) {
+        mIsCacheHit = cacheHit;
+    }
+
+    /**
+     * @return Size, digests and sample counts of output files, in the same order as output paths.
+     */
+    public List<Output> getOutputs() {
+        return mOutputs;
+    }
+
+    void setOutputs(List<Output> outputs) {
+        mOutputs = Collections.unmodifiableList(new ArrayList<>(outputs));
+    }
+
+    @Override
+    public String toString() {
+        return "TranscodeResult{inputLoudness=" + mInputLoudness + ", outputLoudness=" + mOutputLoudness
+                + ", videoSsim=" + mVideoSsim + ", videoPsnr=" + mVideoPsnr
+                + ", renderWaitAverageUs=" + mRenderWaitAverageUs + ", renderWaitMaxUs=" + mRenderWaitMaxUs
+                + ", renderShare=" + mRenderShare + ", muxerBlockedUs=" + mMuxerBlockedUs
+                + ", muxerBlockedCount=" + mMuxerBlockedCount + ", muxerPeakQueuedBytes=" + mMuxerPeakQueuedBytes
+                + ", cacheHit=" + mIsCacheHit + ", outputs=" + mOutputs + "}";
+    }
+
+    /**
+     * Output file as finished by muxer, measured without reading it again after job.
+     */
+    public static class Output {
+        private final String mPath;
+        private final long mSize;
+        private final Map<String, String> mDigests;
+        private final int mVideoSampleCount;
+        private final int mAudioSampleCount;
+
+        Output(String path, long size, Map<String, String> digests, int videoSampleCount, int audioSampleCount) {
+            mPath = path;
+            mSize = size;
+            mDigests = Collections.unmodifiableMap(digests);
+            mVideoSampleCount = videoSampleCount;
+            mAudioSampleCount = audioSampleCount;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        /**
+         * @return Size of output file in bytes.
+         */
+        public long getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return Digest of output file in lowercase hex, or null if given algorithm was not requested.
+         */
+        public String getDigest(String algorithm) {
+            return mDigests.get(algorithm);
+        }
+
+        /**
+         * @return Digests in hex keyed by algorithm name, e.g. "SHA-256".
+         */
+        public Map<String, String> getDigests() {
+            return mDigests;
+        }
+
+        /**
+         * @return Number of video samples written, also when output was copied from result cache.
+         */
+        public int getVideoSampleCount() {
+            return mVideoSampleCount;
+        }
+
+        /**
+         * @return Number of audio samples written, also when output was copied from result cache.
+         */
+        public int getAudioSampleCount() {
+            return mAudioSampleCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Output{path=" + mPath + ", size=" + mSize + ", digests=" + mDigests
+                    + ", videoSampleCount=" + mVideoSampleCount + ", audioSampleCount=" + mAudioSampleCount + "}";
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.opengl.Matrix;
+
+/**
+ * Filter applied to decoded frames on GPU before they are encoded. Create by factory methods, and pass list of them
+ * to {@link MediaTranscoderEngine#setVideoFilters(java.util.List)}.
+ * <p>
+ * Filters are applied in order of the list. Crop and rotate only change texture coordinates, and overlay and color
+ * grade are evaluated per pixel, so that they are fused into a single shader pass. Blur samples neighboring pixels,
+ * so it starts a new pass when it follows a per-pixel filter. Coordinates are normalized to [0, 1] from top-left of
+ * the frame at the point of the chain where the filter is placed.
+ */
+public abstract class VideoFilter {
+    private static final int LUT_SIZE = 512;
+
+    VideoFilter() {
+    }
+
+    /**
+     * Crop the frame to given rectangle. Output is stretched to output format, so the aspect ratio of rectangle
+     * should match with it.
+     */
+    public static VideoFilter crop(float left, float top, float right, float bottom) {
+        if (left < 0 || top < 0 || right > 1 || bottom > 1 || left >= right || top >= bottom) {
+            throw new IllegalArgumentException("Invalid crop rectangle: " + left + ", " + top + ", " + right + ", " + bottom);
+        }
+        return new Crop(left, top, right, bottom);
+    }
+
+    /**
+     * Rotate the frame clockwise. Width and height of output format should be swapped for 90 and 270 degrees.
+     *
+     * @param degrees Multiple of 90.
+     */
+    public static VideoFilter rotate(int degrees) {
+        if (degrees % 90 != 0) {
+            throw new IllegalArgumentException("Rotation should be multiple of 90 degrees: " + degrees);
+        }
+        return new Rotate((degrees % 360 + 360) % 360);
+    }
+
+    /**
+     * Draw bitmap e.g. watermark over the frame, blending with its alpha channel.
+     * Bitmap is uploaded when transcoding starts, and should not be recycled until then.
+     */
+    public static VideoFilter overlay(Bitmap bitmap, float left, float top, float right, float bottom) {
+        if (bitmap == null) {
+            throw new NullPointerException("Overlay bitmap cannot be null.");
+        }
+        if (left >= right || top >= bottom) {
+            throw new IllegalArgumentException("Invalid overlay rectangle: " + left + ", " + top + ", " + right + ", " + bottom);
+        }
+        return new Overlay(bitmap, left, top, right, bottom);
+    }
+
+    /**
+     * Grade colors by 3D lookup table, in the common 512x512 layout of 64 blue slices tiled 8x8.
+     * Bitmap is uploaded when transcoding starts, and should not be recycled until then.
+     *
+     * @param intensity Mix ratio of graded color, in [0, 1].
+     */
+    public static VideoFilter colorLut(Bitmap lut, float intensity) {
+        if (lut == null) {
+            throw new NullPointerException("Lookup table cannot be null.");
+        }
+        if (lut.getWidth() != LUT_SIZE || lut.getHeight() != LUT_SIZE) {
+            throw new IllegalArgumentException("Lookup table should be " + LUT_SIZE + "x" + LUT_SIZE + ": " + lut.getWidth() + "x" + lut.getHeight());
+        }
+        if (intensity < 0 || intensity > 1) {
+            throw new IllegalArgumentException("Intensity should be in [0, 1]: " + intensity);
+        }
+        return new ColorLut(lut, intensity);
+    }
+
+    /**
+     * Blur the frame by 3x3 tap Gaussian approximation, in a single pass.
+     *
+     * @param radius Distance of taps, in pixels of the frame at this point of the chain.
+     */
+    public static VideoFilter blur(float radius) {
+        if (radius <= 0) {
+            throw new IllegalArgumentException("Blur radius should be positive: " + radius);
+        }
+        return new Blur(radius);
+    }
+
+    /**
+     * Whether this filter computes color of each pixel. Otherwise it only transforms coordinates.
+     */
+    abstract boolean isPixelFilter();
+
+    /**
+     * Whether this filter samples neighboring pixels of its input, which cannot be fused after per-pixel filters.
+     */
+    boolean isSamplingNeighbors() {
+        return false;
+    }
+
+    /**
+     * Set matrix which maps output coordinates of this filter to its input coordinates, with origin at bottom-left.
+     */
+    void getCoordinateTransform(float[] matrix) {
+        Matrix.setIdentityM(matrix, 0);
+    }
+
+    int getOutputWidth(int inputWidth, int inputHeight) {
+        return inputWidth;
+    }
+
+    int getOutputHeight(int inputWidth, int inputHeight) {
+        return inputHeight;
+    }
+
+    /**
+     * Whether {@link #getFragmentCode(int)} reads coordinates of this filter from varying {@code vCoord<index>}.
+     */
+    boolean usesCoordinate() {
+        return false;
+    }
+
+    /**
+     * Uniform declarations of fragment shader, suffixed by index of filter in the pass.
+     */
+    String getFragmentDeclarations(int index) {
+        return "";
+    }
+
+    /**
+     * Fragment shader code which updates {@code vec4 color}.
+     */
+    String getFragmentCode(int index) {
+        return "";
+    }
+
+    /**
+     * Create texture used by this filter in current EGL context.
+     *
+     * @return Texture name, or 0 if not used.
+     */
+    int createTexture() {
+        return 0;
+    }
+
+    int[] getUniformLocations(int program, int index) {
+        return new int[0];
+    }
+
+    /**
+     * Set uniforms for drawing a frame, with program in use.
+     */
+    void setUniforms(int[] locations, int texture, int textureUnit) {
+    }
+
+    static int createBitmapTexture(Bitmap bitmap) {
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        return textures[0];
+    }
+
+    private static class Crop extends VideoFilter {
+        private final float mLeft;
+        private final float mTop;
+        private final float mRight;
+        private final float mBottom;
+
+        private Crop(float left, float top, float right, float bottom) {
+            mLeft = left;
+            mTop = top;
+            mRight = right;
+            mBottom = bottom;
+        }
+
+        @Override
+        boolean isPixelFilter() {
+            return false;
+        }
+
+        @Override
+        void getCoordinateTransform(float[] matrix) {
+            Matrix.setIdentityM(matrix, 0);
+            Matrix.translateM(matrix, 0, mLeft, 1 - mBottom, 0);
+            Matrix.scaleM(matrix, 0, mRight - mLeft, mBottom - mTop, 1);
+        }
+
+        @Override
+        int getOutputWidth(int inputWidth, int inputHeight) {
+            return Math.max(1, Math.round(inputWidth * (mRight - mLeft)));
+        }
+
+        @Override
+        int getOutputHeight(int inputWidth, int inputHeight) {
+            return Math.max(1, Math.round(inputHeight * (mBottom - mTop)));
+        }
+    }
+
+    private static class Rotate extends VideoFilter {
+        private final int mDegrees;
+
+        private Rotate(int degrees) {
+            mDegrees = degrees;
+        }
+
+        @Override
+        boolean isPixelFilter() {
+            return false;
+        }
+
+        @Override
+        void getCoordinateTransform(float[] matrix) {
+            // Rotating output coordinates counterclockwise samples input rotated clockwise.
+            Matrix.setIdentityM(matrix, 0);
+            Matrix.translateM(matrix, 0, 0.5f, 0.5f, 0);
+            Matrix.rotateM(matrix, 0, mDegrees, 0, 0, 1);
+            Matrix.translateM(matrix, 0, -0.5f, -0.5f, 0);
+        }
+
+        @Override
+        int getOutputWidth(int inputWidth, int inputHeight) {
+            return mDegrees % 180 == 0 ? inputWidth : inputHeight;
+        }
+
+        @Override
+        int getOutputHeight(int inputWidth, int inputHeight) {
+            return mDegrees % 180 == 0 ? inputHeight : inputWidth;
+        }
+    }
+
+    private static class Overlay extends VideoFilter {
+        private final Bitmap mBitmap;
+        private final float mLeft;
+        private final float mTop;
+        private final float mRight;
+        private final float mBottom;
+
+        private Overlay(Bitmap bitmap, float left, float top, float right, float bottom) {
+            mBitmap = bitmap;
+            mLeft = left;
+            mTop = top;
+            mRight = right;
+            mBottom = bottom;
+        }
+
+        @Override
+        boolean isPixelFilter() {
+            return true;
+        }
+
+        @Override
+        boolean usesCoordinate() {
+            return true;
+        }
+
+        @Override
+        String getFragmentDeclarations(int index) {
+            return "uniform sampler2D sOverlay" + index + ";\n" +
+                    "uniform vec4 uOverlayRect" + index + ";\n";
+        }
+
+        @Override
+        String getFragmentCode(int index) {
+            // Bitmap is uploaded premultiplied, with its top row at v = 0.
+            return "  {\n" +
+                    "    vec4 rect = uOverlayRect" + index + ";\n" +
+                    "    vec2 uv = vec2(vCoord" + index + ".x - rect.x, 1.0 - vCoord" + index + ".y - rect.y) / (rect.zw - rect.xy);\n" +
+                    "    vec4 overlay = texture2D(sOverlay" + index + ", uv);\n" +
+                    "    vec2 inside = step(0.0, uv) * step(uv, vec2(1.0));\n" +
+                    "    overlay *= inside.x * inside.y;\n" +
+                    "    color.rgb = color.rgb * (1.0 - overlay.a) + overlay.rgb;\n" +
+                    "  }\n";
+        }
+
+        @Override
+        int createTexture() {
+            return createBitmapTexture(mBitmap);
+        }
+
+        @Override
+        int[] getUniformLocations(int program, int index) {
+            return new int[]{
+                    GLES20.glGetUniformLocation(program, "sOverlay" + index),
+                    GLES20.glGetUniformLocation(program, "uOverlayRect" + index),
+            };
+        }
+
+        @Override
+        void setUniforms(int[] locations, int texture, int textureUnit) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + textureUnit);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            GLES20.glUniform1i(locations[0], textureUnit);
+            GLES20.glUniform4f(locations[1], mLeft, mTop, mRight, mBottom);
+        }
+    }
+
+    private static class ColorLut extends VideoFilter {
+        private final Bitmap mLut;
+        private final float mIntensity;
+
+        private ColorLut(Bitmap lut, float intensity) {
+            mLut = lut;
+            mIntensity = intensity;
+        }
+
+        @Override
+        boolean isPixelFilter() {
+            return true;
+        }
+
+        @Override
+        String getFragmentDeclarations(int index) {
+            return "uniform sampler2D sLut" + index + ";\n" +
+                    "uniform float uLutIntensity" + index + ";\n";
+        }
+
+        @Override
+        String getFragmentCode(int index) {
+            // Interpolate between two blue slices, each sampled bilinearly within half texel from its edges.
+            return "  {\n" +
+                    "    float blue = color.b * 63.0;\n" +
+                    "    vec2 slice1 = vec2(mod(floor(blue), 8.0), floor(floor(blue) / 8.0));\n" +
+                    "    vec2 slice2 = vec2(mod(ceil(blue), 8.0), floor(ceil(blue) / 8.0));\n" +
+                    "    vec2 offset = 0.5 / 512.0 + (0.125 - 1.0 / 512.0) * color.rg;\n" +
+                    "    vec4 graded = mix(texture2D(sLut" + index + ", slice1 * 0.125 + offset),\n" +
+                    "        texture2D(sLut" + index + ", slice2 * 0.125 + offset), fract(blue));\n" +
+                    "    color.rgb = mix(color.rgb, graded.rgb, uLutIntensity" + index + ");\n" +
+                    "  }\n";
+        }
+
+        @Override
+        int createTexture() {
+            return createBitmapTexture(mLut);
+        }
+
+        @Override
+        int[] getUniformLocations(int program, int index) {
+            return new int[]{
+                    GLES20.glGetUniformLocation(program, "sLut" + index),
+                    GLES20.glGetUniformLocation(program, "uLutIntensity" + index),
+            };
+        }
+
+        @Override
+        void setUniforms(int[] locations, int texture, int textureUnit) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + textureUnit);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            GLES20.glUniform1i(locations[0], textureUnit);
+            GLES20.glUniform1f(locations[1], mIntensity);
+        }
+    }
+
+    static class Blur extends VideoFilter {
+        private final float mRadius;
+
+        private Blur(float radius) {
+            mRadius = radius;
+        }
+
+        float getRadius() {
+            return mRadius;
+        }
+
+        @Override
+        boolean isPixelFilter() {
+            return true;
+        }
+
+        @Override
+        boolean isSamplingNeighbors() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Draws decoded frame through list of {@link VideoFilter}s, fused into as few passes as possible.
+ * <p>
+ * Coordinate transforms of crop and rotate are folded into texture coordinates computed by vertex shader, and
+ * per-pixel filters are concatenated into one fragment shader. A new pass, rendered into intermediate texture, is
+ * started only when a filter samples neighbors of output of a preceding per-pixel filter. Programs are taken from
+ * {@link ShaderProgramCache}, so that the same chain of filter types is compiled once per EGL context.
+ */
+class VideoFilterChain {
+    private static final int FLOAT_SIZE_BYTES = 4;
+    private static final int TRIANGLE_VERTICES_DATA_STRIDE_BYTES = 5 * FLOAT_SIZE_BYTES;
+    private static final int TRIANGLE_VERTICES_DATA_POS_OFFSET = 0;
+    private static final int TRIANGLE_VERTICES_DATA_UV_OFFSET = 3;
+    private final List<Pass> mPasses = new ArrayList<>();
+    private final float[] mIdentityMatrix = new float[16];
+    private final int[] mSavedFramebuffer = new int[1];
+    private final int[] mSavedViewport = new int[4];
+    private boolean mIsGlSetup;
+
+    /**
+     * @param filters Filters to apply in order.
+     * @param width   Width of decoded frame.
+     * @param height  Height of decoded frame.
+     */
+    public VideoFilterChain(List<VideoFilter> filters, int width, int height) {
+        if (filters.isEmpty()) {
+            throw new IllegalArgumentException("Filter chain should have at least one filter.");
+        }
+        Matrix.setIdentityM(mIdentityMatrix, 0);
+        Pass pass = new Pass(true);
+        for (VideoFilter filter : filters) {
+            if (filter.isSamplingNeighbors() && pass.hasPixelFilter()) {
+                pass.finish(width, height);
+                mPasses.add(pass);
+                pass = new Pass(false);
+            }
+            pass.addFilter(filter, width, height);
+            int outputWidth = filter.getOutputWidth(width, height);
+            height = filter.getOutputHeight(width, height);
+            width = outputWidth;
+        }
+        pass.finish(width, height);
+        mPasses.add(pass);
+    }
+
+    int getPassCount() {
+        return mPasses.size();
+    }
+
+    String getVertexShader(int pass) {
+        return mPasses.get(pass).mVertexShader;
+    }
+
+    String getFragmentShader(int pass) {
+        return mPasses.get(pass).mFragmentShader;
+    }
+
+    /**
+     * Draw frame of external texture onto current framebuffer and viewport.
+     *
+     * @param texture   External texture of decoded frame.
+     * @param stMatrix  Transform matrix of SurfaceTexture.
+     * @param vertices  Vertices of full screen quad, in the layout of {@link TextureRender}.
+     */
+    public void draw(int texture, float[] stMatrix, FloatBuffer vertices) {
+        if (!mIsGlSetup) {
+            for (int i = 0; i < mPasses.size(); i++) {
+                mPasses.get(i).setupGlResources();
+                if (i < mPasses.size() - 1) mPasses.get(i).setupFramebuffer();
+            }
+            mIsGlSetup = true;
+        }
+        boolean isMultiPass = mPasses.size() > 1;
+        if (isMultiPass) {
+            GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFramebuffer, 0);
+            GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+        }
+        int inputTexture = texture;
+        for (int i = 0; i < mPasses.size(); i++) {
+            Pass pass = mPasses.get(i);
+            if (pass.mFramebuffer != 0) {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, pass.mFramebuffer);
+                GLES20.glViewport(0, 0, pass.mOutputWidth, pass.mOutputHeight);
+            } else if (isMultiPass) {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFramebuffer[0]);
+                GLES20.glViewport(mSavedViewport[0], mSavedViewport[1], mSavedViewport[2], mSavedViewport[3]);
+            }
+            pass.draw(inputTexture, i == 0 ? stMatrix : mIdentityMatrix, vertices);
+            inputTexture = pass.mOutputTexture;
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    }
+
+    /**
+     * Release textures and framebuffers. Should be called before EGL context is destroyed.
+     * Programs are kept in {@link ShaderProgramCache}.
+     */
+    public void release() {
+        if (!mIsGlSetup) return;
+        for (Pass pass : mPasses) pass.releaseGlResources();
+        mIsGlSetup = false;
+    }
+
+    private static void checkGlError(String op) {
+        int error = GLES20.glGetError();
+        if (error != GLES20.GL_NO_ERROR) {
+            throw new RuntimeException(op + ": glError " + error);
+        }
+    }
+
+    private static class Pass {
+        private final boolean mIsExternalInput;
+        private final List<VideoFilter> mFilters = new ArrayList<>();
+        private final List<float[]> mCoordinateTransforms = new ArrayList<>();
+        private final float[] mSourceMatrix = new float[16];
+        private final float[] mBlurMatrix = new float[16];
+        private final float[] mTextureMatrix = new float[16];
+        private VideoFilter.Blur mBlur;
+        private float mBlurStepX;
+        private float mBlurStepY;
+        private float[][] mCoordinateMatrices;
+        private String mVertexShader;
+        private String mFragmentShader;
+        private int mOutputWidth;
+        private int mOutputHeight;
+        private int mProgram;
+        private int maPositionHandle;
+        private int maTextureHandle;
+        private int muSTMatrixHandle;
+        private int muTextureHandle;
+        private int muBlurStepXHandle;
+        private int muBlurStepYHandle;
+        private int[] muCoordinateMatrixHandles;
+        private int[][] mFilterUniformLocations;
+        private int[] mFilterTextures;
+        private int mFramebuffer;
+        private int mOutputTexture;
+
+        private Pass(boolean isExternalInput) {
+            mIsExternalInput = isExternalInput;
+            Matrix.setIdentityM(mSourceMatrix, 0);
+        }
+
+        private boolean hasPixelFilter() {
+            for (VideoFilter filter : mFilters) {
+                if (filter.isPixelFilter()) return true;
+            }
+            return false;
+        }
+
+        private void addFilter(VideoFilter filter, int inputWidth, int inputHeight) {
+            float[] transform = new float[16];
+            filter.getCoordinateTransform(transform);
+            mFilters.add(filter);
+            mCoordinateTransforms.add(transform);
+            if (filter instanceof VideoFilter.Blur) {
+                mBlur = (VideoFilter.Blur) filter;
+                // Blur steps are in input pixels of the filter, mapped to source by preceding transforms.
+                System.arraycopy(mSourceMatrix, 0, mBlurMatrix, 0, 16);
+                mBlurStepX = mBlur.getRadius() / inputWidth;
+                mBlurStepY = mBlur.getRadius() / inputHeight;
+            }
+            if (!filter.isPixelFilter()) {
+                float[] sourceMatrix = new float[16];
+                Matrix.multiplyMM(sourceMatrix, 0, mSourceMatrix, 0, transform, 0);
+                System.arraycopy(sourceMatrix, 0, mSourceMatrix, 0, 16);
+            }
+        }
+
+        private void finish(int outputWidth, int outputHeight) {
+            mOutputWidth = outputWidth;
+            mOutputHeight = outputHeight;
+            // Per-pixel filters see coordinates transformed by filters following them.
+            mCoordinateMatrices = new float[mFilters.size()][];
+            float[] matrix = new float[16];
+            Matrix.setIdentityM(matrix, 0);
+            for (int i = mFilters.size() - 1; i >= 0; i--) {
+                VideoFilter filter = mFilters.get(i);
+                if (!filter.isPixelFilter()) {
+                    float[] product = new float[16];
+                    Matrix.multiplyMM(product, 0, mCoordinateTransforms.get(i), 0, matrix, 0);
+                    matrix = product;
+                } else if (filter.usesCoordinate()) {
+                    mCoordinateMatrices[i] = matrix.clone();
+                }
+            }
+            buildShaders();
+        }
+
+        private void buildShaders() {
+            StringBuilder vertex = new StringBuilder();
+            StringBuilder fragment = new StringBuilder();
+            vertex.append("uniform mat4 uSTMatrix;\n");
+            for (int i = 0; i < mFilters.size(); i++) {
+                if (mCoordinateMatrices[i] != null) vertex.append("uniform mat4 uCoordMatrix").append(i).append(";\n");
+            }
+            vertex.append("attribute vec4 aPosition;\n")
+                    .append("attribute vec4 aTextureCoord;\n")
+                    .append("varying vec2 vTextureCoord;\n");
+            if (mIsExternalInput) fragment.append("#extension GL_OES_EGL_image_external : require\n");
+            fragment.append("precision mediump float;\n")
+                    .append("varying vec2 vTextureCoord;\n");
+            for (int i = 0; i < mFilters.size(); i++) {
+                if (mCoordinateMatrices[i] == null) continue;
+                vertex.append("varying vec2 vCoord").append(i).append(";\n");
+                fragment.append("varying vec2 vCoord").append(i).append(";\n");
+            }
+            vertex.append("void main() {\n")
+                    .append("  gl_Position = aPosition;\n")
+                    .append("  vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n");
+            for (int i = 0; i < mFilters.size(); i++) {
+                if (mCoordinateMatrices[i] == null) continue;
+                vertex.append("  vCoord").append(i).append(" = (uCoordMatrix").append(i).append(" * aTextureCoord).xy;\n");
+            }
+            vertex.append("}\n");
+
+            fragment.append(mIsExternalInput ? "uniform samplerExternalOES sTexture;\n" : "uniform sampler2D sTexture;\n");
+            if (mBlur != null) fragment.append("uniform vec2 uBlurStepX;\n").append("uniform vec2 uBlurStepY;\n");
+            for (int i = 0; i < mFilters.size(); i++) {
+                fragment.append(mFilters.get(i).getFragmentDeclarations(i));
+            }
+            fragment.append("void main() {\n");
+            if (mBlur != null) {
+                // Binomial 3x3 kernel, weights 1-2-1 in each direction.
+                fragment.append("  vec2 uv = vTextureCoord;\n")
+                        .append("  vec4 color = texture2D(sTexture, uv) * 4.0\n")
+                        .append("      + (texture2D(sTexture, uv - uBlurStepX) + texture2D(sTexture, uv + uBlurStepX)\n")
+                        .append("      + texture2D(sTexture, uv - uBlurStepY) + texture2D(sTexture, uv + uBlurStepY)) * 2.0\n")
+                        .append("      + texture2D(sTexture, uv - uBlurStepX - uBlurStepY) + texture2D(sTexture, uv + uBlurStepX - uBlurStepY)\n")
+                        .append("      + texture2D(sTexture, uv - uBlurStepX + uBlurStepY) + texture2D(sTexture, uv + uBlurStepX + uBlurStepY);\n")
+                        .append("  color /= 16.0;\n");
+            } else {
+                fragment.append("  vec4 color = texture2D(sTexture, vTextureCoord);\n");
+            }
+            for (int i = 0; i < mFilters.size(); i++) {
+                fragment.append(mFilters.get(i).getFragmentCode(i));
+            }
+            fragment.append("  gl_FragColor = color;\n")
+                    .append("}\n");
+            mVertexShader = vertex.toString();
+            mFragmentShader = fragment.toString();
+        }
+
+        private void setupGlResources() {
+            mProgram = ShaderProgramCache.getInstance().getProgram(mVertexShader, mFragmentShader);
+            maPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
+            maTextureHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
+            muSTMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uSTMatrix");
+            muTextureHandle = GLES20.glGetUniformLocation(mProgram, "sTexture");
+            if (mBlur != null) {
+                muBlurStepXHandle = GLES20.glGetUniformLocation(mProgram, "uBlurStepX");
+                muBlurStepYHandle = GLES20.glGetUniformLocation(mProgram, "uBlurStepY");
+            }
+            muCoordinateMatrixHandles = new int[mFilters.size()];
+            mFilterUniformLocations = new int[mFilters.size()][];
+            mFilterTextures = new int[mFilters.size()];
+            for (int i = 0; i < mFilters.size(); i++) {
+                VideoFilter filter = mFilters.get(i);
+                if (mCoordinateMatrices[i] != null) {
+                    muCoordinateMatrixHandles[i] = GLES20.glGetUniformLocation(mProgram, "uCoordMatrix" + i);
+                }
+                mFilterUniformLocations[i] = filter.getUniformLocations(mProgram, i);
+                mFilterTextures[i] = filter.createTexture();
+            }
+            checkGlError("setup filter pass");
+        }
+
+        private void setupFramebuffer() {
+            int[] values = new int[1];
+            GLES20.glGenTextures(1, values, 0);
+            mOutputTexture = values[0];
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mOutputTexture);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mOutputWidth, mOutputHeight, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glGenFramebuffers(1, values, 0);
+            mFramebuffer = values[0];
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mOutputTexture, 0);
+            int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+                throw new RuntimeException("Filter framebuffer is not complete: 0x" + Integer.toHexString(status));
+            }
+        }
+
+        private void draw(int inputTexture, float[] stMatrix, FloatBuffer vertices) {
+            GLES20.glUseProgram(mProgram);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(mIsExternalInput ? GLES11Ext.GL_TEXTURE_EXTERNAL_OES : GLES20.GL_TEXTURE_2D, inputTexture);
+            GLES20.glUniform1i(muTextureHandle, 0);
+            vertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
+            GLES20.glVertexAttribPointer(maPositionHandle, 3, GLES20.GL_FLOAT, false,
+                    TRIANGLE_VERTICES_DATA_STRIDE_BYTES, vertices);
+            GLES20.glEnableVertexAttribArray(maPositionHandle);
+            vertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
+            GLES20.glVertexAttribPointer(maTextureHandle, 2, GLES20.GL_FLOAT, false,
+                    TRIANGLE_VERTICES_DATA_STRIDE_BYTES, vertices);
+            GLES20.glEnableVertexAttribArray(maTextureHandle);
+            Matrix.multiplyMM(mTextureMatrix, 0, stMatrix, 0, mSourceMatrix, 0);
+            GLES20.glUniformMatrix4fv(muSTMatrixHandle, 1, false, mTextureMatrix, 0);
+            if (mBlur != null) {
+                // Only linear part of the transform applies to steps.
+                Matrix.multiplyMM(mTextureMatrix, 0, stMatrix, 0, mBlurMatrix, 0);
+                GLES20.glUniform2f(muBlurStepXHandle, mTextureMatrix[0] * mBlurStepX, mTextureMatrix[1] * mBlurStepX);
+                GLES20.glUniform2f(muBlurStepYHandle, mTextureMatrix[4] * mBlurStepY, mTextureMatrix[5] * mBlurStepY);
+            }
+            int textureUnit = 1;
+            for (int i = 0; i < mFilters.size(); i++) {
+                if (mCoordinateMatrices[i] != null) {
+                    GLES20.glUniformMatrix4fv(muCoordinateMatrixHandles[i], 1, false, mCoordinateMatrices[i], 0);
+                }
+                mFilters.get(i).setUniforms(mFilterUniformLocations[i], mFilterTextures[i], textureUnit);
+                if (mFilterTextures[i] != 0) textureUnit++;
+            }
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+            checkGlError("draw filter pass");
+        }
+
+        private void releaseGlResources() {
+            for (int i = 0; i < mFilterTextures.length; i++) {
+                if (mFilterTextures[i] == 0) continue;
+                GLES20.glDeleteTextures(1, mFilterTextures, i);
+                mFilterTextures[i] = 0;
+            }
+            if (mFramebuffer != 0) {
+                GLES20.glDeleteFramebuffers(1, new int[]{mFramebuffer}, 0);
+                GLES20.glDeleteTextures(1, new int[]{mOutputTexture}, 0);
+                mFramebuffer = 0;
+                mOutputTexture = 0;
+            }
+        }
+    }
+}
@@ -15,14 +15,23 @@
  */
 package net.ypresto.androidtranscoder.engine;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
 
 import net.ypresto.androidtranscoder.format.MediaFormatExtraConstants;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 // Refer: https://android.googlesource.com/platform/cts/+/lollipop-release/tests/tests/media/src/android/media/cts/ExtractDecodeEditEncodeMuxTest.java
 public class VideoTrackTranscoder implements TrackTranscoder {
@@ -33,46 +42,130 @@ public class VideoTrackTranscoder implements TrackTranscoder {
 
     private final MediaExtractor mExtractor;
     private final int mTrackIndex;
-    private final MediaFormat mOutputFormat;
-    private final QueuedMuxer mMuxer;
+    private final List<Rendition> mRenditions;
     private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
     private MediaCodec mDecoder;
-    private MediaCodec mEncoder;
     private ByteBuffer[] mDecoderInputBuffers;
-    private ByteBuffer[] mEncoderOutputBuffers;
-    private MediaFormat mActualOutputFormat;
     private OutputSurface mDecoderOutputSurfaceWrapper;
-    private InputSurface mEncoderInputSurfaceWrapper;
     private boolean mIsExtractorEOS;
     private boolean mIsDecoderEOS;
-    private boolean mIsEncoderEOS;
     private boolean mDecoderStarted;
-    private boolean mEncoderStarted;
-    private long mWrittenPresentationTimeUs;
+    private SpriteSheetRecorder mSpriteSheetRecorder;
+    private FrameDropper mFrameDropper;
+    private double mSpeed = 1.0;
+    private BitrateController mBitrateController;
+    private QualityController mQualityController;
+    private QualityMonitor mQualityMonitor;
+    private SceneCutDetector mSceneCutDetector;
+    private List<VideoFilter> mVideoFilters = Collections.emptyList();
+    private VideoFilterChain mVideoFilterChain;
+    private LumaHistogramReader mLumaHistogramReader;
+    private final int[] mHistogram = new int[SceneCutDetector.HISTOGRAM_BINS];
+    private long mLastRenderedPresentationTimeUs = -1;
+    private boolean mIsRenderingDirectly;
+    private GlRenderThread.Job mRenderJob;
+    private boolean mOwnsRenderJob;
+    private long mRenderPresentationTimeUs;
+    private final Runnable mRenderDecodedFrameTask = new Runnable() {
+        @Override
+        public void run() {
+            renderDecodedFrame(mRenderPresentationTimeUs);
+        }
+    };
 
     public VideoTrackTranscoder(MediaExtractor extractor, int trackIndex,
                                 MediaFormat outputFormat, QueuedMuxer muxer) {
+        this(extractor, trackIndex, Collections.singletonList(outputFormat), Collections.singletonList(muxer));
+    }
+
+    /**
+     * Decodes video once and encodes it into multiple renditions, each written to its own muxer.
+     *
+     * @param outputFormats Output formats of renditions.
+     * @param muxers        Muxers for renditions, in the same order as outputFormats.
+     */
+    public VideoTrackTranscoder(MediaExtractor extractor, int trackIndex,
+                                List<MediaFormat> outputFormats, List<QueuedMuxer> muxers) {
+        if (outputFormats.isEmpty() || outputFormats.size() != muxers.size()) {
+            throw new IllegalArgumentException("Output formats and muxers should be non-empty and have same size.");
+        }
         mExtractor = extractor;
         mTrackIndex = trackIndex;
-        mOutputFormat = outputFormat;
-        mMuxer = muxer;
+        mRenditions = new ArrayList<>(outputFormats.size());
+        for (int i = 0; i < outputFormats.size(); i++) {
+            mRenditions.add(new Rendition(outputFormats.get(i), muxers.get(i)));
+        }
+    }
+
+    /**
+     * Capture thumbnails of decoded frames by given recorder. Should be called before {@link #setup()}.
+     */
+    void setSpriteSheetRecorder(SpriteSheetRecorder spriteSheetRecorder) {
+        mSpriteSheetRecorder = spriteSheetRecorder;
+    }
+
+    /**
+     * Drop decoded frames so that output does not exceed given frame rate. Should be called before {@link #setup()}.
+     *
+     * @param targetFrameRate Maximum frame rate of output, or 0 to encode all frames.
+     */
+    void setTargetFrameRate(double targetFrameRate) {
+        mFrameDropper = targetFrameRate > 0 ? new FrameDropper(targetFrameRate) : null;
+    }
+
+    /**
+     * Change playback speed by retiming frames. Should be called before {@link #setup()}.
+     * <p>
+     * With target frame rate, fast motion drops frames above it, and slow motion duplicates frames up to it.
+     *
+     * @param speed Playback speed, e.g. 2.0 for twice faster.
+     */
+    void setSpeed(double speed) {
+        mSpeed = speed;
+    }
+
+    /**
+     * Adjust bitrate of the first rendition by given controller while encoding. Requires API 19.
+     * Should be called before {@link #setup()}.
+     */
+    void setBitrateController(BitrateController bitrateController) {
+        mBitrateController = bitrateController;
+    }
+
+    /**
+     * Adjust bitrate of the first rendition to hit target quality, by comparing source frames with encoded ones.
+     * Requires API 19. Should be called before {@link #setup()}.
+     */
+    void setQualityController(QualityController qualityController) {
+        mQualityController = qualityController;
+    }
+
+    /**
+     * Request sync frame of all renditions on scene cuts detected by given detector. Requires API 19.
+     * Should be called before {@link #setup()}.
+     */
+    void setSceneCutDetector(SceneCutDetector sceneCutDetector) {
+        mSceneCutDetector = sceneCutDetector;
+    }
+
+    /**
+     * Apply given filters to decoded frames on GPU. Should be called before {@link #setup()}.
+     */
+    void setVideoFilters(List<VideoFilter> videoFilters) {
+        mVideoFilters = videoFilters;
+    }
+
+    /**
+     * Run GL work as given job of shared render thread, so that metrics are measured across segments.
+     * Should be called before {@link #setup()}. Otherwise this transcoder registers its own job.
+     */
+    void setRenderJob(GlRenderThread.Job renderJob) {
+        mRenderJob = renderJob;
     }
 
     @Override
     public void setup() {
         mExtractor.selectTrack(mTrackIndex);
-        try {
-            mEncoder = MediaCodec.createEncoderByType(mOutputFormat.getString(MediaFormat.KEY_MIME));
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
-        }
-        mEncoder.configure(mOutputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mEncoderInputSurfaceWrapper = new InputSurface(mEncoder.createInputSurface());
-        mEncoderInputSurfaceWrapper.makeCurrent();
-        mEncoder.start();
-        mEncoderStarted = true;
-        mEncoderOutputBuffers = mEncoder.getOutputBuffers();
-
         MediaFormat inputFormat = mExtractor.getTrackFormat(mTrackIndex);
         if (inputFormat.containsKey(MediaFormatExtraConstants.KEY_ROTATION_DEGREES)) {
             // Decoded video is rotated automatically in Android 5.0 lollipop.
@@ -80,9 +173,67 @@ public class VideoTrackTranscoder implements TrackTranscoder {
             // refer: https://android.googlesource.com/platform/frameworks/av/+blame/lollipop-release/media/libstagefright/Utils.cpp
             inputFormat.setInteger(MediaFormatExtraConstants.KEY_ROTATION_DEGREES, 0);
         }
-        mDecoderOutputSurfaceWrapper = new OutputSurface();
+        if (canRenderDirectly(inputFormat)) {
+            setupDirectRendering(inputFormat);
+            return;
+        }
+        final List<Surface> encoderInputSurfaces = new ArrayList<>(mRenditions.size());
+        for (Rendition rendition : mRenditions) {
+            try {
+                rendition.mEncoder = ResourcePool.createEncoderByType(rendition.mOutputFormat.getString(MediaFormat.KEY_MIME));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            rendition.mEncoder.configure(rendition.mOutputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoderInputSurfaces.add(rendition.mEncoder.createInputSurface());
+        }
+        if (mRenderJob == null) {
+            mRenderJob = GlRenderThread.getInstance().register();
+            mOwnsRenderJob = true;
+        }
+        try {
+            mRenderJob.run(new Runnable() {
+                @Override
+                public void run() {
+                    // All renditions share EGL context of render thread so that decoded texture can be drawn onto each of them.
+                    for (int i = 0; i < mRenditions.size(); i++) {
+                        mRenditions.get(i).mEncoderInputSurfaceWrapper = mRenderJob.createInputSurface(encoderInputSurfaces.get(i));
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            for (int i = 0; i < mRenditions.size(); i++) {
+                if (mRenditions.get(i).mEncoderInputSurfaceWrapper == null) encoderInputSurfaces.get(i).release();
+            }
+            throw new GlUnavailableException("Could not set up EGL for encoder input surface.", e);
+        }
+        for (Rendition rendition : mRenditions) {
+            rendition.mEncoder.start();
+            rendition.mEncoderStarted = true;
+            rendition.mEncoderOutputBuffers = rendition.mEncoder.getOutputBuffers();
+        }
+
+        final int inputWidth = inputFormat.getInteger(MediaFormat.KEY_WIDTH);
+        final int inputHeight = inputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        mRenderJob.run(new Runnable() {
+            @Override
+            public void run() {
+                makeCurrent();
+                mDecoderOutputSurfaceWrapper = new OutputSurface();
+                if (!mVideoFilters.isEmpty()) {
+                    mVideoFilterChain = new VideoFilterChain(mVideoFilters, inputWidth, inputHeight);
+                    // Sprite sheets, scene cut detection and quality monitor see filtered frames as well.
+                    mDecoderOutputSurfaceWrapper.setFilterChain(mVideoFilterChain);
+                }
+                if (mSceneCutDetector != null) mLumaHistogramReader = new LumaHistogramReader();
+                if (mQualityController != null) {
+                    Rendition rendition = mRenditions.get(0);
+                    mQualityMonitor = new QualityMonitor(mQualityController, rendition.mWidth, rendition.mHeight);
+                }
+            }
+        });
         try {
-            mDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+            mDecoder = ResourcePool.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
@@ -92,17 +243,75 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         mDecoderInputBuffers = mDecoder.getInputBuffers();
     }
 
+    /**
+     * Makes surface of the first rendition current. Should be called at the start of each render task, as other
+     * jobs draw onto their own surfaces in between.
+     */
+    private void makeCurrent() {
+        Rendition rendition = mRenditions.get(0);
+        rendition.mEncoderInputSurfaceWrapper.makeCurrent();
+        GLES20.glViewport(0, 0, rendition.mWidth, rendition.mHeight);
+    }
+
+    /**
+     * Whether decoded frames can be sent to encoder as is, i.e. nothing is drawn or read by GL and size is unchanged.
+     */
+    private boolean canRenderDirectly(MediaFormat inputFormat) {
+        if (mRenditions.size() != 1 || mSpeed != 1.0 || !mVideoFilters.isEmpty() || mSpriteSheetRecorder != null
+                || mQualityController != null || mSceneCutDetector != null) {
+            return false;
+        }
+        Rendition rendition = mRenditions.get(0);
+        return inputFormat.getInteger(MediaFormat.KEY_WIDTH) == rendition.mWidth
+                && inputFormat.getInteger(MediaFormat.KEY_HEIGHT) == rendition.mHeight;
+    }
+
+    /**
+     * Configure decoder to render into input surface of encoder, without EGL context in between.
+     */
+    private void setupDirectRendering(MediaFormat inputFormat) {
+        Rendition rendition = mRenditions.get(0);
+        try {
+            rendition.mEncoder = ResourcePool.createEncoderByType(rendition.mOutputFormat.getString(MediaFormat.KEY_MIME));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        rendition.mEncoder.configure(rendition.mOutputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        rendition.mEncoderInputSurface = rendition.mEncoder.createInputSurface();
+        rendition.mEncoder.start();
+        rendition.mEncoderStarted = true;
+        rendition.mEncoderOutputBuffers = rendition.mEncoder.getOutputBuffers();
+        try {
+            mDecoder = ResourcePool.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        mDecoder.configure(inputFormat, rendition.mEncoderInputSurface, null, 0);
+        mDecoder.start();
+        mDecoderStarted = true;
+        mDecoderInputBuffers = mDecoder.getInputBuffers();
+        mIsRenderingDirectly = true;
+        Log.d(TAG, "Rendering decoded frames directly into encoder surface.");
+    }
+
     @Override
     public MediaFormat getDeterminedFormat() {
-        return mActualOutputFormat;
+        return mRenditions.get(0).mActualOutputFormat;
     }
 
     @Override
     public boolean stepPipeline() {
+        return stepPipeline(0);
+    }
+
+    @Override
+    public boolean stepPipeline(long timeoutUs) {
         boolean busy = false;
 
         int status;
-        while (drainEncoder(0) != DRAIN_STATE_NONE) busy = true;
+        for (Rendition rendition : mRenditions) {
+            while (drainEncoder(rendition, 0) != DRAIN_STATE_NONE) busy = true;
+        }
         do {
             status = drainDecoder(0);
             if (status != DRAIN_STATE_NONE) busy = true;
@@ -110,39 +319,97 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         } while (status == DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY);
         while (drainExtractor(0) != DRAIN_STATE_NONE) busy = true;
 
+        if (!busy && timeoutUs > 0) busy = awaitOutput(timeoutUs);
         return busy;
     }
 
+    // Waits for decoded frame, or encoded one after decoder reached end of stream.
+    private boolean awaitOutput(long timeoutUs) {
+        if (!mIsDecoderEOS) return drainDecoder(timeoutUs) != DRAIN_STATE_NONE;
+        for (Rendition rendition : mRenditions) {
+            if (!rendition.mIsEncoderEOS) return drainEncoder(rendition, timeoutUs) != DRAIN_STATE_NONE;
+        }
+        return false;
+    }
+
     @Override
     public long getWrittenPresentationTimeUs() {
-        return mWrittenPresentationTimeUs;
+        long writtenPresentationTimeUs = Long.MAX_VALUE;
+        for (Rendition rendition : mRenditions) {
+            if (rendition.mIsEncoderEOS) continue;
+            writtenPresentationTimeUs = Math.min(writtenPresentationTimeUs, rendition.mWrittenPresentationTimeUs);
+        }
+        return writtenPresentationTimeUs == Long.MAX_VALUE ? mRenditions.get(0).mWrittenPresentationTimeUs : writtenPresentationTimeUs;
     }
 
     @Override
     public boolean isFinished() {
-        return mIsEncoderEOS;
+        for (Rendition rendition : mRenditions) {
+            if (!rendition.mIsEncoderEOS) return false;
+        }
+        return true;
     }
 
     // TODO: CloseGuard
     @Override
     public void release() {
-        if (mDecoderOutputSurfaceWrapper != null) {
-            mDecoderOutputSurfaceWrapper.release();
-            mDecoderOutputSurfaceWrapper = null;
+        if (mRenderJob != null) {
+            mRenderJob.run(new Runnable() {
+                @Override
+                public void run() {
+                    releaseGlResources();
+                }
+            });
+            if (mOwnsRenderJob) mRenderJob.unregister();
+            mRenderJob = null;
         }
-        if (mEncoderInputSurfaceWrapper != null) {
-            mEncoderInputSurfaceWrapper.release();
-            mEncoderInputSurfaceWrapper = null;
+        for (Rendition rendition : mRenditions) {
+            if (rendition.mEncoderInputSurface != null) {
+                rendition.mEncoderInputSurface.release();
+                rendition.mEncoderInputSurface = null;
+            }
         }
         if (mDecoder != null) {
-            if (mDecoderStarted) mDecoder.stop();
-            mDecoder.release();
+            ResourcePool.recycle(mDecoder, mDecoderStarted);
             mDecoder = null;
         }
-        if (mEncoder != null) {
-            if (mEncoderStarted) mEncoder.stop();
-            mEncoder.release();
-            mEncoder = null;
+        for (Rendition rendition : mRenditions) {
+            if (rendition.mEncoder != null) {
+                ResourcePool.recycle(rendition.mEncoder, rendition.mEncoderStarted);
+                rendition.mEncoder = null;
+            }
+        }
+    }
+
+    private void releaseGlResources() {
+        InputSurface currentSurface = mRenditions.get(0).mEncoderInputSurfaceWrapper;
+        if (currentSurface != null) currentSurface.makeCurrent();
+        if (mSpriteSheetRecorder != null && mDecoderOutputSurfaceWrapper != null) {
+            mSpriteSheetRecorder.releaseGlResources();
+        }
+        if (mQualityMonitor != null) {
+            mQualityMonitor.release();
+            mQualityMonitor = null;
+        }
+        if (mLumaHistogramReader != null) {
+            mLumaHistogramReader.release();
+            mLumaHistogramReader = null;
+        }
+        if (mVideoFilterChain != null) {
+            mVideoFilterChain.release();
+            mVideoFilterChain = null;
+        }
+        if (mDecoderOutputSurfaceWrapper != null) {
+            mDecoderOutputSurfaceWrapper.release();
+            mDecoderOutputSurfaceWrapper = null;
+        }
+        // Shared context outlives surfaces, which should not be current when destroyed.
+        if (currentSurface != null) currentSurface.makeUnCurrent();
+        for (Rendition rendition : mRenditions) {
+            if (rendition.mEncoderInputSurfaceWrapper != null) {
+                rendition.mEncoderInputSurfaceWrapper.release();
+                rendition.mEncoderInputSurfaceWrapper = null;
+            }
         }
     }
 
@@ -177,55 +444,172 @@ public class VideoTrackTranscoder implements TrackTranscoder {
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
         if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            mEncoder.signalEndOfInputStream();
+            for (Rendition rendition : mRenditions) {
+                rendition.mEncoder.signalEndOfInputStream();
+            }
             mIsDecoderEOS = true;
             mBufferInfo.size = 0;
         }
         boolean doRender = (mBufferInfo.size > 0);
+        long presentationTimeUs = mSpeed == 1.0 ? mBufferInfo.presentationTimeUs : (long) (mBufferInfo.presentationTimeUs / mSpeed);
+        // Dropped frame is released without rendering, so that neither GL nor encoder spends time on it.
+        if (doRender && mFrameDropper != null && !mFrameDropper.shouldRender(presentationTimeUs)) doRender = false;
         // NOTE: doRender will block if buffer (of encoder) is full.
         // Refer: http://bigflake.com/mediacodec/CameraToMpegTest.java.txt
         mDecoder.releaseOutputBuffer(result, doRender);
-        if (doRender) {
-            mDecoderOutputSurfaceWrapper.awaitNewImage();
-            mDecoderOutputSurfaceWrapper.drawImage();
-            mEncoderInputSurfaceWrapper.setPresentationTime(mBufferInfo.presentationTimeUs * 1000);
-            mEncoderInputSurfaceWrapper.swapBuffers();
+        if (doRender && !mIsRenderingDirectly) {
+            // Wait on this thread, so that render thread keeps drawing frames of other jobs meanwhile.
+            mDecoderOutputSurfaceWrapper.waitForNewImage();
+            mRenderPresentationTimeUs = presentationTimeUs;
+            mRenderJob.run(mRenderDecodedFrameTask);
+            mLastRenderedPresentationTimeUs = presentationTimeUs;
         }
         return DRAIN_STATE_CONSUMED;
     }
 
-    private int drainEncoder(long timeoutUs) {
-        if (mIsEncoderEOS) return DRAIN_STATE_NONE;
-        int result = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+    private void renderDecodedFrame(long presentationTimeUs) {
+        makeCurrent();
+        mDecoderOutputSurfaceWrapper.updateTexImage();
+        if (mSpriteSheetRecorder != null && mSpriteSheetRecorder.shouldCapture(presentationTimeUs)) {
+            mSpriteSheetRecorder.capture(mDecoderOutputSurfaceWrapper, presentationTimeUs);
+        }
+        if (mQualityMonitor != null) mQualityMonitor.captureSource(mDecoderOutputSurfaceWrapper, presentationTimeUs);
+        if (mLumaHistogramReader != null) mLumaHistogramReader.start(mDecoderOutputSurfaceWrapper);
+        renderFrame(presentationTimeUs, mLumaHistogramReader != null);
+        if (mSpeed < 1.0 && mFrameDropper != null && mLastRenderedPresentationTimeUs >= 0) {
+            // Duration of this frame is not known until next one, so assume it is the same as previous one.
+            long endPresentationTimeUs = presentationTimeUs + (presentationTimeUs - mLastRenderedPresentationTimeUs);
+            double intervalUs = mFrameDropper.getFrameIntervalUs();
+            for (long duplicateTimeUs = (long) (presentationTimeUs + intervalUs);
+                 duplicateTimeUs + intervalUs / 2 < endPresentationTimeUs;
+                 duplicateTimeUs = (long) (duplicateTimeUs + intervalUs)) {
+                // Go through dropper too, so that following frame is not rendered before duplicates.
+                if (mFrameDropper.shouldRender(duplicateTimeUs)) renderFrame(duplicateTimeUs, false);
+            }
+        }
+    }
+
+    private void renderFrame(long presentationTimeUs, boolean detectSceneCut) {
+        for (int i = 0; i < mRenditions.size(); i++) {
+            InputSurface inputSurface = mRenditions.get(i).mEncoderInputSurfaceWrapper;
+            if (mRenditions.size() > 1) {
+                inputSurface.makeCurrent();
+                // Viewport is not updated on switching surfaces.
+                GLES20.glViewport(0, 0, mRenditions.get(i).mWidth, mRenditions.get(i).mHeight);
+            }
+            mDecoderOutputSurfaceWrapper.drawImage();
+            // Histogram is read after drawing the frame, but sync frame is requested before the frame is sent.
+            if (i == 0 && detectSceneCut) requestSyncFrameOnSceneCut(presentationTimeUs);
+            inputSurface.setPresentationTime(presentationTimeUs * 1000);
+            inputSurface.swapBuffers();
+        }
+    }
+
+    private void requestSyncFrameOnSceneCut(long presentationTimeUs) {
+        mLumaHistogramReader.finish(mHistogram);
+        if (!mSceneCutDetector.isSceneCut(mHistogram, presentationTimeUs)) return;
+        // Keep keyframes of renditions aligned.
+        for (Rendition rendition : mRenditions) {
+            requestSyncFrame(rendition.mEncoder);
+        }
+    }
+
+    private int drainEncoder(Rendition rendition, long timeoutUs) {
+        if (rendition.mIsEncoderEOS) return DRAIN_STATE_NONE;
+        MediaCodec encoder = rendition.mEncoder;
+        int result = encoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
                 return DRAIN_STATE_NONE;
             case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                if (mActualOutputFormat != null)
+                if (rendition.mActualOutputFormat != null)
                     throw new RuntimeException("Video output format changed twice.");
-                mActualOutputFormat = mEncoder.getOutputFormat();
-                mMuxer.setOutputFormat(QueuedMuxer.SampleType.VIDEO, mActualOutputFormat);
+                rendition.mActualOutputFormat = encoder.getOutputFormat();
+                rendition.mMuxer.setOutputFormat(QueuedMuxer.SampleType.VIDEO, rendition.mActualOutputFormat);
+                if (mQualityMonitor != null && rendition == mRenditions.get(0)) {
+                    final MediaFormat actualOutputFormat = rendition.mActualOutputFormat;
+                    mRenderJob.run(new Runnable() {
+                        @Override
+                        public void run() {
+                            makeCurrent();
+                            mQualityMonitor.setOutputFormat(actualOutputFormat);
+                        }
+                    });
+                }
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
             case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                mEncoderOutputBuffers = mEncoder.getOutputBuffers();
+                rendition.mEncoderOutputBuffers = encoder.getOutputBuffers();
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
-        if (mActualOutputFormat == null) {
+        if (rendition.mActualOutputFormat == null) {
             throw new RuntimeException("Could not determine actual output format.");
         }
 
         if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            mIsEncoderEOS = true;
+            rendition.mIsEncoderEOS = true;
             mBufferInfo.set(0, 0, 0, mBufferInfo.flags);
         }
         if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
             // SPS or PPS, which should be passed by MediaFormat.
-            mEncoder.releaseOutputBuffer(result, false);
+            encoder.releaseOutputBuffer(result, false);
             return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
-        mMuxer.writeSampleData(QueuedMuxer.SampleType.VIDEO, mEncoderOutputBuffers[result], mBufferInfo);
-        mWrittenPresentationTimeUs = mBufferInfo.presentationTimeUs;
-        mEncoder.releaseOutputBuffer(result, false);
+        if (mQualityMonitor != null && rendition == mRenditions.get(0)) {
+            // NOTE: duplicate as muxer might modify position and limit.
+            final ByteBuffer encodedSample = rendition.mEncoderOutputBuffers[result].duplicate();
+            mRenderJob.run(new Runnable() {
+                @Override
+                public void run() {
+                    makeCurrent();
+                    mQualityMonitor.queueEncodedSample(encodedSample, mBufferInfo);
+                }
+            });
+        }
+        rendition.mMuxer.writeSampleData(QueuedMuxer.SampleType.VIDEO, rendition.mEncoderOutputBuffers[result], mBufferInfo);
+        rendition.mWrittenPresentationTimeUs = mBufferInfo.presentationTimeUs;
+        encoder.releaseOutputBuffer(result, false);
+        if (mBitrateController != null && rendition == mRenditions.get(0) && mBitrateController.update()) {
+            setVideoBitrate(encoder, mBitrateController.getVideoBitrate());
+        }
+        if (mQualityController != null && rendition == mRenditions.get(0) && mQualityController.update()) {
+            setVideoBitrate(encoder, mQualityController.getVideoBitrate());
+        }
         return DRAIN_STATE_CONSUMED;
     }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    static void setVideoBitrate(MediaCodec encoder, int bitrate) {
+        Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        encoder.setParameters(parameters);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void requestSyncFrame(MediaCodec encoder) {
+        Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        encoder.setParameters(parameters);
+    }
+
+    private static class Rendition {
+        private final MediaFormat mOutputFormat;
+        private final QueuedMuxer mMuxer;
+        private final int mWidth;
+        private final int mHeight;
+        private MediaCodec mEncoder;
+        private ByteBuffer[] mEncoderOutputBuffers;
+        private InputSurface mEncoderInputSurfaceWrapper;
+        private Surface mEncoderInputSurface;
+        private MediaFormat mActualOutputFormat;
+        private boolean mIsEncoderEOS;
+        private boolean mEncoderStarted;
+        private long mWrittenPresentationTimeUs;
+
+        private Rendition(MediaFormat outputFormat, QueuedMuxer muxer) {
+            mOutputFormat = outputFormat;
+            mMuxer = muxer;
+            mWidth = outputFormat.getInteger(MediaFormat.KEY_WIDTH);
+            mHeight = outputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        }
+    }
 }
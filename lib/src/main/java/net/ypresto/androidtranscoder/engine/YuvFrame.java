@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodecInfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * YUV 4:2:0 frame in byte array. Each plane is described by offset, row stride and pixel stride, so that planar
+ * (I420) and semi-planar (NV12) layouts of codec buffers are handled alike.
+ */
+class YuvFrame {
+    static final int PLANE_Y = 0;
+    static final int PLANE_U = 1;
+    static final int PLANE_V = 2;
+    final byte[] mData;
+    final int[] mOffsets = new int[3];
+    final int[] mRowStrides = new int[3];
+    final int[] mPixelStrides = new int[3];
+    int mWidth;
+    int mHeight;
+
+    private YuvFrame(int width, int height, int size) {
+        mWidth = width;
+        mHeight = height;
+        mData = new byte[size];
+    }
+
+    /**
+     * Create frame of planar layout, in which U plane follows Y, and V follows U.
+     */
+    static YuvFrame createI420(int width, int height, int stride, int sliceHeight) {
+        int chromaStride = (stride + 1) / 2;
+        int chromaSliceHeight = (sliceHeight + 1) / 2;
+        YuvFrame frame = new YuvFrame(width, height, stride * sliceHeight + chromaStride * chromaSliceHeight * 2);
+        frame.setPlane(PLANE_Y, 0, stride, 1);
+        frame.setPlane(PLANE_U, stride * sliceHeight, chromaStride, 1);
+        frame.setPlane(PLANE_V, stride * sliceHeight + chromaStride * chromaSliceHeight, chromaStride, 1);
+        return frame;
+    }
+
+    /**
+     * Create frame of semi-planar layout, in which interleaved U and V follow Y plane.
+     */
+    static YuvFrame createNv12(int width, int height, int stride, int sliceHeight) {
+        YuvFrame frame = new YuvFrame(width, height, stride * sliceHeight + stride * ((sliceHeight + 1) / 2));
+        frame.setPlane(PLANE_Y, 0, stride, 1);
+        frame.setPlane(PLANE_U, stride * sliceHeight, stride, 2);
+        frame.setPlane(PLANE_V, stride * sliceHeight + 1, stride, 2);
+        return frame;
+    }
+
+    /**
+     * Create frame in layout of given codec color format.
+     *
+     * @throws UnsupportedOperationException If color format is not I420 or NV12 family.
+     */
+    static YuvFrame createForColorFormat(int colorFormat, int width, int height, int stride, int sliceHeight) {
+        switch (colorFormat) {
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
+                return createI420(width, height, stride, sliceHeight);
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar:
+                return createNv12(width, height, stride, sliceHeight);
+            default:
+                throw new UnsupportedOperationException("Unsupported YUV color format: 0x" + Integer.toHexString(colorFormat));
+        }
+    }
+
+    static boolean isSupportedColorFormat(int colorFormat) {
+        switch (colorFormat) {
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Restrict visible area to given rectangle, e.g. crop of decoder output. Should be called once after creation.
+     */
+    void setCrop(int left, int top, int width, int height) {
+        mOffsets[PLANE_Y] += top * mRowStrides[PLANE_Y] + left * mPixelStrides[PLANE_Y];
+        for (int plane = PLANE_U; plane <= PLANE_V; plane++) {
+            mOffsets[plane] += top / 2 * mRowStrides[plane] + left / 2 * mPixelStrides[plane];
+        }
+        mWidth = width;
+        mHeight = height;
+    }
+
+    int getPlaneWidth(int plane) {
+        return plane == PLANE_Y ? mWidth : (mWidth + 1) / 2;
+    }
+
+    int getPlaneHeight(int plane) {
+        return plane == PLANE_Y ? mHeight : (mHeight + 1) / 2;
+    }
+
+    /**
+     * Copy frame from codec buffer, from its position up to size of this frame.
+     */
+    void readFrom(ByteBuffer buffer) {
+        buffer.get(mData, 0, Math.min(buffer.remaining(), mData.length));
+    }
+
+    /**
+     * Copy frame to codec buffer at its position.
+     */
+    void writeTo(ByteBuffer buffer) {
+        if (buffer.remaining() < mData.length) {
+            throw new IllegalStateException("Codec buffer is too small for frame: " + buffer.remaining() + " < " + mData.length);
+        }
+        buffer.put(mData);
+    }
+
+    private void setPlane(int plane, int offset, int rowStride, int pixelStride) {
+        mOffsets[plane] = offset;
+        mRowStrides[plane] = rowStride;
+        mPixelStrides[plane] = pixelStride;
+    }
+}
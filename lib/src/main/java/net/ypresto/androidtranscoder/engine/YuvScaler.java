@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Scales and converts {@link YuvFrame} between sizes and layouts on CPU, for video path without GL.
+ * <p>
+ * Rows of output are split into bands scaled in parallel. Weights are precomputed per column in fixed point, and
+ * rows of the same size and packed layout are copied in bulk.
+ */
+class YuvScaler {
+    private static final int WEIGHT_BITS = 8;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+
+    enum Filter {
+        /**
+         * Interpolate 2x2 nearest source pixels. Suitable for upscaling and mild downscaling.
+         */
+        BILINEAR,
+        /**
+         * Average source pixels covered by each output pixel. Suitable for downscaling by 2x or more.
+         */
+        BOX,
+    }
+
+    private final Filter mFilter;
+    private final PlaneScaler mLumaScaler = new PlaneScaler();
+    private final PlaneScaler mChromaScaler = new PlaneScaler();
+    private final ExecutorService mExecutor;
+    private final BandTask[] mBandTasks;
+    private final Future<?>[] mFutures;
+    private YuvFrame mSource;
+    private YuvFrame mTarget;
+
+    /**
+     * @param filter      Filter for scaling.
+     * @param threadCount Number of bands scaled in parallel, including calling thread.
+     */
+    public YuvScaler(Filter filter, int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Thread count should be positive: " + threadCount);
+        }
+        mFilter = filter;
+        mBandTasks = new BandTask[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            mBandTasks[i] = new BandTask(i, threadCount);
+        }
+        mFutures = new Future<?>[threadCount];
+        mExecutor = threadCount > 1 ? Executors.newFixedThreadPool(threadCount - 1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "YuvScaler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+    }
+
+    /**
+     * Choose filter for scaling frame between given sizes.
+     */
+    static Filter chooseFilter(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
+        return targetWidth * 2 <= sourceWidth && targetHeight * 2 <= sourceHeight ? Filter.BOX : Filter.BILINEAR;
+    }
+
+    /**
+     * Scale visible area of source frame into visible area of target frame.
+     */
+    public void scale(YuvFrame source, YuvFrame target) {
+        mLumaScaler.prepare(mFilter, source.getPlaneWidth(YuvFrame.PLANE_Y), source.getPlaneHeight(YuvFrame.PLANE_Y),
+                target.getPlaneWidth(YuvFrame.PLANE_Y), target.getPlaneHeight(YuvFrame.PLANE_Y));
+        mChromaScaler.prepare(mFilter, source.getPlaneWidth(YuvFrame.PLANE_U), source.getPlaneHeight(YuvFrame.PLANE_U),
+                target.getPlaneWidth(YuvFrame.PLANE_U), target.getPlaneHeight(YuvFrame.PLANE_U));
+        mSource = source;
+        mTarget = target;
+        try {
+            for (int i = 1; i < mBandTasks.length; i++) {
+                mFutures[i] = mExecutor.submit(mBandTasks[i]);
+            }
+            mBandTasks[0].run();
+            for (int i = 1; i < mBandTasks.length; i++) {
+                try {
+                    mFutures[i].get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+                mFutures[i] = null;
+            }
+        } finally {
+            mSource = null;
+            mTarget = null;
+        }
+    }
+
+    /**
+     * Stop worker threads.
+     */
+    public void release() {
+        if (mExecutor != null) mExecutor.shutdown();
+    }
+
+    private void scaleBand(int band, int bandCount) {
+        // Bands are aligned to even luma rows so that each chroma row belongs to one band.
+        int chromaHeight = mTarget.getPlaneHeight(YuvFrame.PLANE_U);
+        int chromaStart = chromaHeight * band / bandCount;
+        int chromaEnd = chromaHeight * (band + 1) / bandCount;
+        int lumaHeight = mTarget.getPlaneHeight(YuvFrame.PLANE_Y);
+        mLumaScaler.scaleRows(mSource, mTarget, YuvFrame.PLANE_Y, Math.min(chromaStart * 2, lumaHeight), Math.min(chromaEnd * 2, lumaHeight));
+        mChromaScaler.scaleRows(mSource, mTarget, YuvFrame.PLANE_U, chromaStart, chromaEnd);
+        mChromaScaler.scaleRows(mSource, mTarget, YuvFrame.PLANE_V, chromaStart, chromaEnd);
+    }
+
+    private class BandTask implements Runnable {
+        private final int mBand;
+        private final int mBandCount;
+
+        private BandTask(int band, int bandCount) {
+            mBand = band;
+            mBandCount = bandCount;
+        }
+
+        @Override
+        public void run() {
+            scaleBand(mBand, mBandCount);
+        }
+    }
+
+    /**
+     * Scales one plane size to another, with lookup tables shared by planes of the same size.
+     */
+    private static class PlaneScaler {
+        private Filter mFilter;
+        private int mSourceWidth;
+        private int mSourceHeight;
+        private int mTargetWidth;
+        private int mTargetHeight;
+        // Bilinear: left source column and weight of right one. Box: first and end source columns.
+        private int[] mColumnStarts;
+        private int[] mColumnWeightsOrEnds;
+
+        private void prepare(Filter filter, int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
+            if (filter == mFilter && sourceWidth == mSourceWidth && sourceHeight == mSourceHeight
+                    && targetWidth == mTargetWidth && targetHeight == mTargetHeight) {
+                return;
+            }
+            mFilter = filter;
+            mSourceWidth = sourceWidth;
+            mSourceHeight = sourceHeight;
+            mTargetWidth = targetWidth;
+            mTargetHeight = targetHeight;
+            mColumnStarts = new int[targetWidth];
+            mColumnWeightsOrEnds = new int[targetWidth];
+            for (int x = 0; x < targetWidth; x++) {
+                if (filter == Filter.BILINEAR) {
+                    int position = bilinearPosition(x, sourceWidth, targetWidth);
+                    mColumnStarts[x] = position >> WEIGHT_BITS;
+                    mColumnWeightsOrEnds[x] = position & (WEIGHT_ONE - 1);
+                } else {
+                    mColumnStarts[x] = boxStart(x, sourceWidth, targetWidth);
+                    mColumnWeightsOrEnds[x] = boxEnd(x, sourceWidth, targetWidth);
+                }
+            }
+        }
+
+        private void scaleRows(YuvFrame source, YuvFrame target, int plane, int startRow, int endRow) {
+            byte[] src = source.mData;
+            byte[] dst = target.mData;
+            int srcOffset = source.mOffsets[plane];
+            int srcRowStride = source.mRowStrides[plane];
+            int srcPixelStride = source.mPixelStrides[plane];
+            int dstOffset = target.mOffsets[plane];
+            int dstRowStride = target.mRowStrides[plane];
+            int dstPixelStride = target.mPixelStrides[plane];
+            if (mSourceWidth == mTargetWidth && mSourceHeight == mTargetHeight) {
+                for (int y = startRow; y < endRow; y++) {
+                    int srcIndex = srcOffset + y * srcRowStride;
+                    int dstIndex = dstOffset + y * dstRowStride;
+                    if (srcPixelStride == 1 && dstPixelStride == 1) {
+                        System.arraycopy(src, srcIndex, dst, dstIndex, mTargetWidth);
+                        continue;
+                    }
+                    for (int x = 0; x < mTargetWidth; x++, srcIndex += srcPixelStride, dstIndex += dstPixelStride) {
+                        dst[dstIndex] = src[srcIndex];
+                    }
+                }
+                return;
+            }
+            int[] starts = mColumnStarts;
+            int[] weightsOrEnds = mColumnWeightsOrEnds;
+            if (mFilter == Filter.BILINEAR) {
+                for (int y = startRow; y < endRow; y++) {
+                    int position = bilinearPosition(y, mSourceHeight, mTargetHeight);
+                    int sy = position >> WEIGHT_BITS;
+                    int row0 = srcOffset + sy * srcRowStride;
+                    int row1 = srcOffset + Math.min(sy + 1, mSourceHeight - 1) * srcRowStride;
+                    int wy = position & (WEIGHT_ONE - 1);
+                    int dstIndex = dstOffset + y * dstRowStride;
+                    for (int x = 0; x < mTargetWidth; x++, dstIndex += dstPixelStride) {
+                        int x0 = starts[x] * srcPixelStride;
+                        int x1 = Math.min(starts[x] + 1, mSourceWidth - 1) * srcPixelStride;
+                        int wx = weightsOrEnds[x];
+                        int top = (src[row0 + x0] & 0xff) * (WEIGHT_ONE - wx) + (src[row0 + x1] & 0xff) * wx;
+                        int bottom = (src[row1 + x0] & 0xff) * (WEIGHT_ONE - wx) + (src[row1 + x1] & 0xff) * wx;
+                        dst[dstIndex] = (byte) ((top * (WEIGHT_ONE - wy) + bottom * wy + (1 << (2 * WEIGHT_BITS - 1))) >> (2 * WEIGHT_BITS));
+                    }
+                }
+            } else {
+                for (int y = startRow; y < endRow; y++) {
+                    int y0 = boxStart(y, mSourceHeight, mTargetHeight);
+                    int y1 = boxEnd(y, mSourceHeight, mTargetHeight);
+                    int dstIndex = dstOffset + y * dstRowStride;
+                    for (int x = 0; x < mTargetWidth; x++, dstIndex += dstPixelStride) {
+                        int x0 = starts[x];
+                        int x1 = weightsOrEnds[x];
+                        int sum = 0;
+                        for (int sy = y0; sy < y1; sy++) {
+                            int srcIndex = srcOffset + sy * srcRowStride + x0 * srcPixelStride;
+                            for (int sx = x0; sx < x1; sx++, srcIndex += srcPixelStride) {
+                                sum += src[srcIndex] & 0xff;
+                            }
+                        }
+                        int count = (x1 - x0) * (y1 - y0);
+                        dst[dstIndex] = (byte) ((sum + count / 2) / count);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Map center of target pixel to source, in fixed point clamped to the edges.
+         */
+        private static int bilinearPosition(int target, int sourceSize, int targetSize) {
+            long position = ((2L * target + 1) * sourceSize * WEIGHT_ONE) / (2L * targetSize) - WEIGHT_ONE / 2;
+            return (int) Math.max(0, Math.min(position, (long) (sourceSize - 1) * WEIGHT_ONE));
+        }
+
+        private static int boxStart(int target, int sourceSize, int targetSize) {
+            return (int) ((long) target * sourceSize / targetSize);
+        }
+
+        private static int boxEnd(int target, int sourceSize, int targetSize) {
+            return Math.max(boxStart(target, sourceSize, targetSize) + 1, (int) ((long) (target + 1) * sourceSize / targetSize));
+        }
+    }
+}
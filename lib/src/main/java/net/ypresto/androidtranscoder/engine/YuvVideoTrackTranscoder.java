@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import net.ypresto.androidtranscoder.compat.MediaCodecBufferCompatWrapper;
+import net.ypresto.androidtranscoder.format.MediaFormatExtraConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transcodes video without GL, for devices whose GLES driver is broken. Decoder outputs YUV buffers, which are
+ * scaled and converted on CPU by {@link YuvScaler} and queued to input buffers of encoder.
+ */
+public class YuvVideoTrackTranscoder implements TrackTranscoder {
+    private static final QueuedMuxer.SampleType SAMPLE_TYPE = QueuedMuxer.SampleType.VIDEO;
+    private static final int DRAIN_STATE_NONE = 0;
+    private static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
+    private static final int DRAIN_STATE_CONSUMED = 2;
+    private static final int MAX_SCALER_THREADS = 4;
+
+    private final MediaExtractor mExtractor;
+    private final int mTrackIndex;
+    private final MediaFormat mOutputFormat;
+    private final QueuedMuxer mMuxer;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private MediaCodec mDecoder;
+    private MediaCodec mEncoder;
+    private MediaCodecBufferCompatWrapper mDecoderBuffers;
+    private MediaCodecBufferCompatWrapper mEncoderBuffers;
+    private MediaFormat mActualOutputFormat;
+    private YuvFrame mSourceFrame;
+    private YuvFrame mTargetFrame;
+    private YuvScaler mScaler;
+    private FrameDropper mFrameDropper;
+    private double mSpeed = 1.0;
+    private BitrateController mBitrateController;
+    private boolean mIsExtractorEOS;
+    private boolean mIsDecoderEOS;
+    private boolean mIsEncoderEOS;
+    private boolean mIsEncoderInputEOS;
+    private boolean mDecoderStarted;
+    private boolean mEncoderStarted;
+    private boolean mHasPendingFrame;
+    private long mPendingPresentationTimeUs;
+    private long mWrittenPresentationTimeUs;
+
+    public YuvVideoTrackTranscoder(MediaExtractor extractor, int trackIndex,
+                                   MediaFormat outputFormat, QueuedMuxer muxer) {
+        mExtractor = extractor;
+        mTrackIndex = trackIndex;
+        mOutputFormat = outputFormat;
+        mMuxer = muxer;
+    }
+
+    /**
+     * Drop decoded frames so that output does not exceed given frame rate. Should be called before {@link #setup()}.
+     *
+     * @param targetFrameRate Maximum frame rate of output, or 0 to encode all frames.
+     */
+    void setTargetFrameRate(double targetFrameRate) {
+        mFrameDropper = targetFrameRate > 0 ? new FrameDropper(targetFrameRate) : null;
+    }
+
+    /**
+     * Change playback speed by retiming frames. Slow motion does not duplicate frames in this path.
+     * Should be called before {@link #setup()}.
+     */
+    void setSpeed(double speed) {
+        mSpeed = speed;
+    }
+
+    /**
+     * Adjust bitrate by given controller while encoding. Requires API 19. Should be called before {@link #setup()}.
+     */
+    void setBitrateController(BitrateController bitrateController) {
+        mBitrateController = bitrateController;
+    }
+
+    @Override
+    public void setup() {
+        mExtractor.selectTrack(mTrackIndex);
+        String mime = mOutputFormat.getString(MediaFormat.KEY_MIME);
+        try {
+            mEncoder = ResourcePool.createEncoderByType(mime);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        int colorFormat = selectColorFormat(mEncoder.getCodecInfo(), mime);
+        mOutputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+        int width = mOutputFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int height = mOutputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        mTargetFrame = YuvFrame.createForColorFormat(colorFormat, width, height, width, height);
+        mEncoder.configure(mOutputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mEncoder.start();
+        mEncoderStarted = true;
+        mEncoderBuffers = new MediaCodecBufferCompatWrapper(mEncoder);
+
+        MediaFormat inputFormat = mExtractor.getTrackFormat(mTrackIndex);
+        if (inputFormat.containsKey(MediaFormatExtraConstants.KEY_ROTATION_DEGREES)) {
+            // Same as VideoTrackTranscoder, encode frames as stored.
+            inputFormat.setInteger(MediaFormatExtraConstants.KEY_ROTATION_DEGREES, 0);
+        }
+        try {
+            mDecoder = ResourcePool.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        mDecoder.configure(inputFormat, null, null, 0);
+        mDecoder.start();
+        mDecoderStarted = true;
+        mDecoderBuffers = new MediaCodecBufferCompatWrapper(mDecoder);
+    }
+
+    @Override
+    public MediaFormat getDeterminedFormat() {
+        return mActualOutputFormat;
+    }
+
+    @Override
+    public boolean stepPipeline() {
+        return stepPipeline(0);
+    }
+
+    @Override
+    public boolean stepPipeline(long timeoutUs) {
+        boolean busy = false;
+
+        int status;
+        while (drainEncoder(0) != DRAIN_STATE_NONE) busy = true;
+        if (feedEncoder(0) != DRAIN_STATE_NONE) busy = true;
+        do {
+            status = drainDecoder(0);
+            if (status != DRAIN_STATE_NONE) busy = true;
+            // NOTE: not repeating to keep from deadlock when encoder is full.
+        } while (status == DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY);
+        if (feedEncoder(0) != DRAIN_STATE_NONE) busy = true;
+        while (drainExtractor(0) != DRAIN_STATE_NONE) busy = true;
+
+        if (!busy && timeoutUs > 0) {
+            // Pending frame waits for encoder input, otherwise decoder is what pipeline waits on until its end.
+            int waitStatus = mHasPendingFrame ? feedEncoder(timeoutUs)
+                    : !mIsDecoderEOS ? drainDecoder(timeoutUs) : drainEncoder(timeoutUs);
+            busy = waitStatus != DRAIN_STATE_NONE;
+        }
+        return busy;
+    }
+
+    @Override
+    public long getWrittenPresentationTimeUs() {
+        return mWrittenPresentationTimeUs;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return mIsEncoderEOS;
+    }
+
+    @Override
+    public void release() {
+        if (mScaler != null) {
+            mScaler.release();
+            mScaler = null;
+        }
+        if (mDecoder != null) {
+            ResourcePool.recycle(mDecoder, mDecoderStarted);
+            mDecoder = null;
+        }
+        if (mEncoder != null) {
+            ResourcePool.recycle(mEncoder, mEncoderStarted);
+            mEncoder = null;
+        }
+    }
+
+    private int drainExtractor(long timeoutUs) {
+        if (mIsExtractorEOS) return DRAIN_STATE_NONE;
+        int trackIndex = mExtractor.getSampleTrackIndex();
+        if (trackIndex >= 0 && trackIndex != mTrackIndex) {
+            return DRAIN_STATE_NONE;
+        }
+        int result = mDecoder.dequeueInputBuffer(timeoutUs);
+        if (result < 0) return DRAIN_STATE_NONE;
+        if (trackIndex < 0) {
+            mIsExtractorEOS = true;
+            mDecoder.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return DRAIN_STATE_NONE;
+        }
+        int sampleSize = mExtractor.readSampleData(mDecoderBuffers.getInputBuffer(result), 0);
+        boolean isKeyFrame = (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        mDecoder.queueInputBuffer(result, 0, sampleSize, mExtractor.getSampleTime(), isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        mExtractor.advance();
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    private int drainDecoder(long timeoutUs) {
+        // Keep decoded frame in decoder until previous one is queued to encoder.
+        if (mIsDecoderEOS || mHasPendingFrame) return DRAIN_STATE_NONE;
+        int result = mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        switch (result) {
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                return DRAIN_STATE_NONE;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                mSourceFrame = createSourceFrame(mDecoder.getOutputFormat());
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                mDecoderBuffers = new MediaCodecBufferCompatWrapper(mDecoder);
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mIsDecoderEOS = true;
+            mDecoder.releaseOutputBuffer(result, false);
+            return DRAIN_STATE_CONSUMED;
+        }
+        long presentationTimeUs = mSpeed == 1.0 ? mBufferInfo.presentationTimeUs : (long) (mBufferInfo.presentationTimeUs / mSpeed);
+        boolean doRender = mBufferInfo.size > 0;
+        if (doRender && mFrameDropper != null && !mFrameDropper.shouldRender(presentationTimeUs)) doRender = false;
+        if (doRender) {
+            if (mSourceFrame == null) mSourceFrame = createSourceFrame(mDecoder.getOutputFormat());
+            ByteBuffer buffer = mDecoderBuffers.getOutputBuffer(result);
+            buffer.position(mBufferInfo.offset);
+            buffer.limit(mBufferInfo.offset + mBufferInfo.size);
+            mSourceFrame.readFrom(buffer);
+            if (mScaler == null) {
+                mScaler = new YuvScaler(YuvScaler.chooseFilter(mSourceFrame.mWidth, mSourceFrame.mHeight, mTargetFrame.mWidth, mTargetFrame.mHeight),
+                        Math.min(MAX_SCALER_THREADS, Runtime.getRuntime().availableProcessors()));
+            }
+            mScaler.scale(mSourceFrame, mTargetFrame);
+            mHasPendingFrame = true;
+            mPendingPresentationTimeUs = presentationTimeUs;
+        }
+        mDecoder.releaseOutputBuffer(result, false);
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    private int feedEncoder(long timeoutUs) {
+        if (mIsEncoderInputEOS || (!mHasPendingFrame && !mIsDecoderEOS)) return DRAIN_STATE_NONE;
+        int result = mEncoder.dequeueInputBuffer(timeoutUs);
+        if (result < 0) return DRAIN_STATE_NONE;
+        if (!mHasPendingFrame) {
+            mIsEncoderInputEOS = true;
+            mEncoder.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return DRAIN_STATE_NONE;
+        }
+        ByteBuffer buffer = mEncoderBuffers.getInputBuffer(result);
+        buffer.clear();
+        mTargetFrame.writeTo(buffer);
+        mEncoder.queueInputBuffer(result, 0, mTargetFrame.mData.length, mPendingPresentationTimeUs, 0);
+        mHasPendingFrame = false;
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    private int drainEncoder(long timeoutUs) {
+        if (mIsEncoderEOS) return DRAIN_STATE_NONE;
+        int result = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        switch (result) {
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                return DRAIN_STATE_NONE;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                if (mActualOutputFormat != null) {
+                    throw new RuntimeException("Video output format changed twice.");
+                }
+                mActualOutputFormat = mEncoder.getOutputFormat();
+                mMuxer.setOutputFormat(SAMPLE_TYPE, mActualOutputFormat);
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                mEncoderBuffers = new MediaCodecBufferCompatWrapper(mEncoder);
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        if (mActualOutputFormat == null) {
+            throw new RuntimeException("Could not determine actual output format.");
+        }
+
+        if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mIsEncoderEOS = true;
+            mBufferInfo.set(0, 0, 0, mBufferInfo.flags);
+        }
+        if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // SPS or PPS, which should be passed by MediaFormat.
+            mEncoder.releaseOutputBuffer(result, false);
+            return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        mMuxer.writeSampleData(SAMPLE_TYPE, mEncoderBuffers.getOutputBuffer(result), mBufferInfo);
+        mWrittenPresentationTimeUs = mBufferInfo.presentationTimeUs;
+        mEncoder.releaseOutputBuffer(result, false);
+        if (mBitrateController != null && mBitrateController.update()) {
+            VideoTrackTranscoder.setVideoBitrate(mEncoder, mBitrateController.getVideoBitrate());
+        }
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    private static YuvFrame createSourceFrame(MediaFormat format) {
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        int stride = getInteger(format, MediaFormatExtraConstants.KEY_STRIDE, width);
+        int sliceHeight = getInteger(format, MediaFormatExtraConstants.KEY_SLICE_HEIGHT, height);
+        YuvFrame frame = YuvFrame.createForColorFormat(format.getInteger(MediaFormat.KEY_COLOR_FORMAT),
+                width, height, Math.max(stride, width), Math.max(sliceHeight, height));
+        if (format.containsKey(MediaFormatExtraConstants.KEY_CROP_LEFT)) {
+            int left = format.getInteger(MediaFormatExtraConstants.KEY_CROP_LEFT);
+            int top = format.getInteger(MediaFormatExtraConstants.KEY_CROP_TOP);
+            // Right and bottom are inclusive.
+            frame.setCrop(left, top, format.getInteger(MediaFormatExtraConstants.KEY_CROP_RIGHT) - left + 1,
+                    format.getInteger(MediaFormatExtraConstants.KEY_CROP_BOTTOM) - top + 1);
+        }
+        return frame;
+    }
+
+    private static int getInteger(MediaFormat format, String key, int defaultValue) {
+        return format.containsKey(key) ? format.getInteger(key) : defaultValue;
+    }
+
+    private static int selectColorFormat(MediaCodecInfo codecInfo, String mime) {
+        for (int colorFormat : codecInfo.getCapabilitiesForType(mime).colorFormats) {
+            if (YuvFrame.isSupportedColorFormat(colorFormat)) return colorFormat;
+        }
+        throw new InvalidOutputFormatException("Encoder " + codecInfo.getName() + " does not accept YUV 4:2:0 buffers.");
+    }
+}
@@ -40,6 +40,17 @@ public class MediaFormatExtraConstants {
      */
     public static final String KEY_ROTATION_DEGREES = "rotation-degrees";
 
+    // from https://android.googlesource.com/platform/frameworks/av/+/lollipop-release/media/libstagefright/ACodec.cpp
+    /** Included in output format of video decoder. Row stride of Y plane of output buffers. */
+    public static final String KEY_STRIDE = "stride";
+    /** Included in output format of video decoder. Number of rows of Y plane of output buffers. */
+    public static final String KEY_SLICE_HEIGHT = "slice-height";
+    /** Included in output format of video decoder. Visible rectangle of output buffers, right and bottom inclusive. */
+    public static final String KEY_CROP_LEFT = "crop-left";
+    public static final String KEY_CROP_TOP = "crop-top";
+    public static final String KEY_CROP_RIGHT = "crop-right";
+    public static final String KEY_CROP_BOTTOM = "crop-bottom";
+
     // Video formats
     // from MediaFormat of API level >= 21
     public static final String MIMETYPE_VIDEO_AVC = "video/avc";
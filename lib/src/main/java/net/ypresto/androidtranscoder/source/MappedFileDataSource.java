@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.source;
+
+import android.annotation.TargetApi;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link MediaDataSource} which reads range of file through memory mapping, e.g. uncompressed asset in APK.
+ * Reads are served by copying from page cache without system call per read.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class MappedFileDataSource extends MediaDataSource {
+    // MappedByteBuffer is indexed by int, so map large files in chunks.
+    private static final long CHUNK_SIZE = 1L << 30;
+    private final FileInputStream mInputStream;
+    private final long mLength;
+    private ByteBuffer[] mChunks;
+
+    /**
+     * @param fileDescriptor FileDescriptor of file, which is not closed by this class.
+     * @param offset         Start offset of range in file.
+     * @param length         Length of range, or negative value to map until end of file.
+     * @throws IOException when file could not be mapped.
+     */
+    public MappedFileDataSource(FileDescriptor fileDescriptor, long offset, long length) throws IOException {
+        mInputStream = new FileInputStream(fileDescriptor);
+        FileChannel channel = mInputStream.getChannel();
+        if (length < 0) length = channel.size() - offset;
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range: offset " + offset + ", length " + length);
+        }
+        mLength = length;
+        mChunks = new ByteBuffer[(int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+        for (int i = 0; i < mChunks.length; i++) {
+            long chunkOffset = i * CHUNK_SIZE;
+            mChunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + chunkOffset, Math.min(CHUNK_SIZE, length - chunkOffset));
+        }
+    }
+
+    /**
+     * @param assetFileDescriptor Asset to read, which is not closed by this class.
+     * @throws IOException when file could not be mapped.
+     */
+    public MappedFileDataSource(AssetFileDescriptor assetFileDescriptor) throws IOException {
+        this(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(),
+                assetFileDescriptor.getLength() == AssetFileDescriptor.UNKNOWN_LENGTH ? -1 : assetFileDescriptor.getLength());
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        ByteBuffer[] chunks = mChunks;
+        if (chunks == null) throw new IOException("Data source is already closed.");
+        if (position >= mLength) return -1;
+        int readSize = (int) Math.min(size, mLength - position);
+        int read = 0;
+        while (read < readSize) {
+            long chunkPosition = (position + read) % CHUNK_SIZE;
+            // Duplicate not to share position between threads.
+            ByteBuffer chunk = chunks[(int) ((position + read) / CHUNK_SIZE)].duplicate();
+            chunk.position((int) chunkPosition);
+            int length = Math.min(readSize - read, chunk.remaining());
+            chunk.get(buffer, offset + read, length);
+            read += length;
+        }
+        return read;
+    }
+
+    @Override
+    public long getSize() {
+        return mLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Mapping is released on GC.
+        mChunks = null;
+        mInputStream.getChannel().close();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.source;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+/**
+ * {@link MediaDataSource} for file which is still being written, e.g. downloading.
+ * Reads block until requested bytes are written. Writer should notify progress by
+ * {@link #notifyBytesAvailable(long)} and finally {@link #notifyCompleted()} or {@link #notifyFailed(IOException)}.
+ * <p>
+ * Note that input whose index is at the end of file (e.g. MP4 without fast start) cannot be started until download completes.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class ProgressiveDataSource extends MediaDataSource {
+    private static final long DEFAULT_TIMEOUT_MS = 30 * 1000;
+    private final File mFile;
+    private long mSize;
+    private long mAvailableBytes;
+    private boolean mIsCompleted;
+    private IOException mFailure;
+    private long mTimeoutMs = DEFAULT_TIMEOUT_MS;
+    private RandomAccessFile mRandomAccessFile;
+    private boolean mIsClosed;
+
+    /**
+     * @param file File which is being written from its head.
+     * @param size Expected size of file, or negative value if unknown.
+     */
+    public ProgressiveDataSource(File file, long size) {
+        mFile = file;
+        mSize = size;
+    }
+
+    /**
+     * Set maximum time to block for bytes without progress. Default is 30 seconds.
+     */
+    public synchronized void setTimeoutMs(long timeoutMs) {
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Notify that bytes until given length are written to file.
+     */
+    public synchronized void notifyBytesAvailable(long availableBytes) {
+        if (availableBytes <= mAvailableBytes) return;
+        mAvailableBytes = availableBytes;
+        notifyAll();
+    }
+
+    /**
+     * Notify that writing finished. Size is determined by written bytes.
+     */
+    public synchronized void notifyCompleted() {
+        mIsCompleted = true;
+        mSize = mAvailableBytes;
+        notifyAll();
+    }
+
+    /**
+     * Notify that writing failed. Blocked and following reads throw given exception.
+     */
+    public synchronized void notifyFailed(IOException exception) {
+        mFailure = exception;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (mIsClosed) throw new IOException("Data source is already closed.");
+        long end = mSize >= 0 ? Math.min(position + size, mSize) : position + size;
+        long lastAvailableBytes = mAvailableBytes;
+        long deadline = SystemClock.elapsedRealtime() + mTimeoutMs;
+        while (mAvailableBytes < end && !mIsCompleted) {
+            if (mIsClosed) throw new IOException("Data source is already closed.");
+            if (mFailure != null) throw new IOException("Failed to receive input.", mFailure);
+            if (mAvailableBytes != lastAvailableBytes) {
+                lastAvailableBytes = mAvailableBytes;
+                deadline = SystemClock.elapsedRealtime() + mTimeoutMs;
+            }
+            long waitMs = deadline - SystemClock.elapsedRealtime();
+            if (waitMs <= 0) {
+                throw new IOException("Timed out waiting for bytes until " + end + ", available: " + mAvailableBytes);
+            }
+            try {
+                wait(waitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for input.");
+            }
+        }
+        if (mFailure != null) throw new IOException("Failed to receive input.", mFailure);
+        int readSize = (int) Math.min(size, mAvailableBytes - position);
+        if (readSize <= 0) return -1;
+        if (mRandomAccessFile == null) mRandomAccessFile = new RandomAccessFile(mFile, "r");
+        mRandomAccessFile.seek(position);
+        mRandomAccessFile.readFully(buffer, offset, readSize);
+        return readSize;
+    }
+
+    /**
+     * @return Expected size of file, or -1 if it is unknown yet.
+     */
+    @Override
+    public synchronized long getSize() {
+        return mSize >= 0 ? mSize : -1;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mIsClosed = true;
+        notifyAll();
+        if (mRandomAccessFile != null) {
+            mRandomAccessFile.close();
+            mRandomAccessFile = null;
+        }
+    }
+}
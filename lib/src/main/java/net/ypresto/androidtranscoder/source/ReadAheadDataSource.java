@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 Yuya Tanaka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.ypresto.androidtranscoder.source;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import java.io.IOException;
+
+/**
+ * {@link MediaDataSource} which reads another source by window, to reduce small reads of extractor
+ * into costly ones, e.g. decrypting or network-backed source.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class ReadAheadDataSource extends MediaDataSource {
+    public static final int DEFAULT_WINDOW_SIZE = 512 * 1024;
+    private final MediaDataSource mSource;
+    private final byte[] mWindow;
+    private long mWindowPosition;
+    private int mWindowLength;
+
+    public ReadAheadDataSource(MediaDataSource source) {
+        this(source, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param source     Source to read, which is closed with this source.
+     * @param windowSize Size of each read from source.
+     */
+    public ReadAheadDataSource(MediaDataSource source, int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size should be positive: " + windowSize);
+        }
+        mSource = source;
+        mWindow = new byte[windowSize];
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0) return 0;
+        if (position < mWindowPosition || position >= mWindowPosition + mWindowLength) {
+            if (size >= mWindow.length) {
+                // Nothing to gain from buffering.
+                return mSource.readAt(position, buffer, offset, size);
+            }
+            fillWindow(position);
+            if (mWindowLength == 0) return -1;
+        }
+        int windowOffset = (int) (position - mWindowPosition);
+        int length = Math.min(size, mWindowLength - windowOffset);
+        System.arraycopy(mWindow, windowOffset, buffer, offset, length);
+        return length;
+    }
+
+    private void fillWindow(long position) throws IOException {
+        mWindowPosition = position;
+        mWindowLength = 0;
+        while (mWindowLength < mWindow.length) {
+            int read = mSource.readAt(position + mWindowLength, mWindow, mWindowLength, mWindow.length - mWindowLength);
+            if (read <= 0) break;
+            mWindowLength += read;
+        }
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return mSource.getSize();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mWindowLength = 0;
+        mSource.close();
+    }
+}
@@ -18,6 +18,9 @@ package net.ypresto.androidtranscoder.utils;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class MediaExtractorUtils {
 
     private MediaExtractorUtils() {
@@ -34,9 +37,23 @@ public class MediaExtractorUtils {
         public int mAudioTrackIndex;
         public String mAudioTrackMime;
         public MediaFormat mAudioTrackFormat;
+        public final List<Integer> mExtraAudioTrackIndices = new ArrayList<>();
+        public final List<Integer> mMetadataTrackIndices = new ArrayList<>();
     }
 
     public static TrackResult getFirstVideoAndAudioTrack(MediaExtractor extractor) {
+        TrackResult trackResult = getTracks(extractor);
+        if (trackResult.mVideoTrackIndex < 0 || trackResult.mAudioTrackIndex < 0) {
+            throw new IllegalArgumentException("extractor does not contain video and/or audio tracks.");
+        }
+        return trackResult;
+    }
+
+    /**
+     * Find first video and audio track, and remaining audio and timed metadata tracks.
+     * Index of video or audio track is -1 if the extractor does not have such track.
+     */
+    public static TrackResult getTracks(MediaExtractor extractor) {
         TrackResult trackResult = new TrackResult();
         trackResult.mVideoTrackIndex = -1;
         trackResult.mAudioTrackIndex = -1;
@@ -52,11 +69,11 @@ public class MediaExtractorUtils {
                 trackResult.mAudioTrackIndex = i;
                 trackResult.mAudioTrackMime = mime;
                 trackResult.mAudioTrackFormat = format;
+            } else if (mime.startsWith("audio/")) {
+                trackResult.mExtraAudioTrackIndices.add(i);
+            } else if (mime.startsWith("application/")) {
+                trackResult.mMetadataTrackIndices.add(i);
             }
-            if (trackResult.mVideoTrackIndex >= 0 && trackResult.mAudioTrackIndex >= 0) break;
-        }
-        if (trackResult.mVideoTrackIndex < 0 || trackResult.mAudioTrackIndex < 0) {
-            throw new IllegalArgumentException("extractor does not contain video and/or audio tracks.");
         }
         return trackResult;
     }